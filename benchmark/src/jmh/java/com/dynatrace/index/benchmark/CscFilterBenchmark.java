@@ -0,0 +1,84 @@
+package com.dynatrace.index.benchmark;
+
+import com.dynatrace.index.csc.CscFilter;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the query performance of the in-memory CSC sketches in isolation, without reading any log data.
+ * Run with "-prof gc" to verify that the steady-state query path does not allocate ("gc.alloc.rate.norm").
+ *
+ * <p>The batch benchmarks look up {@code batchSize} tokens per invocation, either with a single batched lookup or with
+ * one query per token. Their scores are directly comparable and are best compared on mapped sketches.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgs = {"-Xms4096m", "-Xmx16g"})
+@Warmup(time = 10, iterations = 2)
+@Measurement(time = 10, iterations = 3)
+public class CscFilterBenchmark {
+
+  @Benchmark
+  public void shiftingQuery(CscFilterState state) {
+    state.shiftingFilter().query(state.nextQueryToken(), state.postingsConsumer());
+  }
+
+  @Benchmark
+  public void shiftingQueryAll(CscFilterState state) {
+    state.shiftingFilter().queryAll(state.nextQueryNGrams(), state.postingsConsumer());
+  }
+
+  @Benchmark
+  public BitSet[] shiftingQueryBatch(CscFilterState state) {
+    return queryBatch(state.shiftingFilter(), state);
+  }
+
+  @Benchmark
+  public BitSet[] shiftingQueryLoop(CscFilterState state) {
+    return queryLoop(state.shiftingFilter(), state);
+  }
+
+  @Benchmark
+  public void cscQuery(CscFilterState state) {
+    state.cscFilter().query(state.nextQueryToken(), state.postingsConsumer());
+  }
+
+  @Benchmark
+  public void cscQueryAll(CscFilterState state) {
+    state.cscFilter().queryAll(state.nextQueryNGrams(), state.postingsConsumer());
+  }
+
+  @Benchmark
+  public BitSet[] cscQueryBatch(CscFilterState state) {
+    return queryBatch(state.cscFilter(), state);
+  }
+
+  @Benchmark
+  public BitSet[] cscQueryLoop(CscFilterState state) {
+    return queryLoop(state.cscFilter(), state);
+  }
+
+  private static BitSet[] queryBatch(CscFilter filter, CscFilterState state) {
+    final BitSet[] results = state.batchResults();
+    filter.queryBatch(state.nextQueryBatch(), results);
+    return results;
+  }
+
+  private static BitSet[] queryLoop(CscFilter filter, CscFilterState state) {
+    final byte[][] batch = state.nextQueryBatch();
+    final BitSet[] results = state.batchResults();
+    for (int i = 0; i < batch.length; i++) {
+      final BitSet result = results[i];
+      result.clear();
+      filter.query(batch[i], result::set);
+    }
+    return results;
+  }
+}
@@ -0,0 +1,194 @@
+package com.dynatrace.index.benchmark;
+
+import com.dynatrace.index.csc.BitSetKernel;
+import com.dynatrace.index.csc.CscBloomFilter;
+import com.dynatrace.index.csc.CscFilter;
+import com.dynatrace.index.csc.MemoryBitSet;
+import com.dynatrace.index.csc.ShiftingBloomFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntConsumer;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Builds in-memory CSC sketches filled with random tokens, so the query path of the sketches can be measured without
+ * any I/O. All query inputs are prepared upfront, so the benchmark methods only allocate what the sketches allocate
+ * (see "-prof gc").
+ *
+ * <p>With "-p mapped=true" the sketches are written to temporary files and queried through memory mapped files, like
+ * the sketches of a {@link com.dynatrace.index.csc.CscLogStoreReader}.
+ */
+@State(Scope.Thread)
+public class CscFilterState {
+
+  private static final int TOKEN_LENGTH = 16;
+
+  @Param("UNROLLED")
+  public BitSetKernel kernel = BitSetKernel.UNROLLED;
+  @Param("8")
+  public int cscSizeMB = 8;
+  @Param("4096")
+  public int sets = 4096;
+  @Param("1000000")
+  public int tokenCount = 1_000_000;
+  @Param("4")
+  public int hashes = 4;
+  @Param("1000")
+  public int queryTokenCount = 1_000;
+  @Param("100")
+  public int batchSize = 100;
+  @Param("false")
+  public boolean mapped = false;
+
+  private final Random random = new Random(81195);
+
+  private CscFilter shiftingFilter;
+  private CscFilter cscFilter;
+  private byte[][] queryTokens;
+  private byte[][][] queryNGrams;
+  private byte[][][] queryBatches;
+  private BitSet[] batchResults;
+  private int nextQuery;
+  private int nextBatch;
+  private IntConsumer postingsConsumer;
+
+  @Setup(Level.Trial)
+  public void setupConsumer(Blackhole blackhole) {
+    postingsConsumer = blackhole::consume;
+  }
+
+  @Setup(Level.Trial)
+  public void setupFilters() throws IOException {
+    MemoryBitSet.useKernel(kernel);
+
+    final long capacity = 8L * cscSizeMB * 1024 * 1024;
+    shiftingFilter = ShiftingBloomFilter.create(capacity, hashes, sets);
+    cscFilter = CscBloomFilter.create(capacity, hashes, 2, sets / 8, sets);
+
+    queryTokens = new byte[queryTokenCount][];
+    final byte[] token = new byte[TOKEN_LENGTH];
+    for (int i = 0; i < tokenCount; i++) {
+      randomToken(token);
+      final int posting = random.nextInt(sets);
+      shiftingFilter.update(token, 0, token.length, posting);
+      cscFilter.update(token, 0, token.length, posting);
+
+      if (i < queryTokenCount) {
+        queryTokens[i] = token.clone();
+      }
+    }
+
+    queryNGrams = new byte[queryTokenCount][][];
+    for (int i = 0; i < queryTokenCount; i++) {
+      queryNGrams[i] = triGrams(queryTokens[i]);
+    }
+
+    queryBatches = new byte[Math.max(1, queryTokenCount / batchSize)][batchSize][];
+    for (int i = 0; i < queryBatches.length * batchSize; i++) {
+      queryBatches[i / batchSize][i % batchSize] = queryTokens[i % queryTokenCount];
+    }
+    batchResults = new BitSet[batchSize];
+    for (int i = 0; i < batchSize; i++) {
+      batchResults[i] = new BitSet(sets);
+    }
+
+    if (mapped) {
+      shiftingFilter = mapFilter(shiftingFilter, "shifting");
+      cscFilter = mapFilter(cscFilter, "csc");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void closeFilters() {
+    shiftingFilter.close();
+    cscFilter.close();
+  }
+
+  public CscFilter shiftingFilter() {
+    return shiftingFilter;
+  }
+
+  public CscFilter cscFilter() {
+    return cscFilter;
+  }
+
+  public IntConsumer postingsConsumer() {
+    return postingsConsumer;
+  }
+
+  /**
+   * @return an indexed token
+   */
+  public byte[] nextQueryToken() {
+    final byte[] token = queryTokens[nextQuery];
+    nextQuery = (nextQuery + 1) % queryTokens.length;
+    return token;
+  }
+
+  /**
+   * @return a batch of indexed tokens, see {@link #batchResults()}
+   */
+  public byte[][] nextQueryBatch() {
+    final byte[][] batch = queryBatches[nextBatch];
+    nextBatch = (nextBatch + 1) % queryBatches.length;
+    return batch;
+  }
+
+  /**
+   * @return reusable results for the tokens of a batch
+   */
+  public BitSet[] batchResults() {
+    return batchResults;
+  }
+
+  /**
+   * @return tri-grams of an indexed token, which resemble the n-grams queried for contains queries
+   */
+  public byte[][] nextQueryNGrams() {
+    final byte[][] ngrams = queryNGrams[nextQuery];
+    nextQuery = (nextQuery + 1) % queryNGrams.length;
+    return ngrams;
+  }
+
+  private static CscFilter mapFilter(CscFilter filter, String name) throws IOException {
+    final Path file = Files.createTempFile(name, ".csc");
+    try {
+      try (OutputStream out = Files.newOutputStream(file)) {
+        filter.writeTo(out);
+      }
+      filter.close();
+
+      // The mapping stays valid after the file is closed and deleted
+      try (FileInputStream in = new FileInputStream(file.toFile())) {
+        return filter instanceof ShiftingBloomFilter ? ShiftingBloomFilter.readFrom(in) : CscBloomFilter.readFrom(in);
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static byte[][] triGrams(byte[] token) {
+    final byte[][] ngrams = new byte[token.length - 2][];
+    for (int i = 0; i < ngrams.length; i++) {
+      ngrams[i] = new byte[] {token[i], token[i + 1], token[i + 2]};
+    }
+    return ngrams;
+  }
+
+  private void randomToken(byte[] token) {
+    for (int i = 0; i < token.length; i++) {
+      token[i] = (byte) (random.nextInt(26) + 97);
+    }
+  }
+}
@@ -18,23 +18,34 @@ import org.openjdk.jmh.annotations.State;
 public class IngestFinishMetrics implements FinishTrace {
 
   private double sketchMemoryUsageMB;
+  private double sketchOffHeapMemoryUsageMB;
   private double sketchDiskUsageMB;
   private double dataDiskUsageMB;
   private double sketchFinishTimeSeconds;
   private double dataFinishTimeSeconds;
+  private double sketchFillRatio;
+  private double sketchMaxFillRatio;
+  private double sketchTokenFalsePositiveRate;
+  private double sketchContainsFalsePositiveRate;
 
   @Setup(Level.Iteration)
   public void clean() {
     sketchFinishTimeSeconds = 0;
     dataFinishTimeSeconds = 0;
     sketchMemoryUsageMB = 0;
+    sketchOffHeapMemoryUsageMB = 0;
     sketchDiskUsageMB = 0;
     dataDiskUsageMB = 0;
+    sketchFillRatio = 0;
+    sketchMaxFillRatio = 0;
+    sketchTokenFalsePositiveRate = 0;
+    sketchContainsFalsePositiveRate = 0;
   }
 
   @Override
-  public void trackSketchMemoryUsage(long memoryBytes) {
-    this.sketchMemoryUsageMB = memoryBytes / 1024d / 1024d;
+  public void trackSketchMemoryUsage(long heapBytes, long offHeapBytes) {
+    this.sketchMemoryUsageMB = heapBytes / 1024d / 1024d;
+    this.sketchOffHeapMemoryUsageMB = offHeapBytes / 1024d / 1024d;
   }
 
   @Override
@@ -57,10 +68,29 @@ public class IngestFinishMetrics implements FinishTrace {
     this.dataDiskUsageMB = dataDiskBytes / 1024d / 1024d;
   }
 
+  @Override
+  public void trackSketchSaturation(
+      double[] fillRatios, double tokenFalsePositiveRate, double containsFalsePositiveRate) {
+    double sum = 0;
+    double max = 0;
+    for (double fillRatio : fillRatios) {
+      sum += fillRatio;
+      max = Math.max(max, fillRatio);
+    }
+    this.sketchFillRatio = sum / fillRatios.length;
+    this.sketchMaxFillRatio = max;
+    this.sketchTokenFalsePositiveRate = tokenFalsePositiveRate;
+    this.sketchContainsFalsePositiveRate = containsFalsePositiveRate;
+  }
+
   public double sketchMemoryUsage() {
     return sketchMemoryUsageMB;
   }
 
+  public double sketchOffHeapMemoryUsage() {
+    return sketchOffHeapMemoryUsageMB;
+  }
+
   public double sketchDiskUsage() {
     return sketchDiskUsageMB;
   }
@@ -76,4 +106,20 @@ public class IngestFinishMetrics implements FinishTrace {
   public double dataFinishTimeSeconds() {
     return dataFinishTimeSeconds;
   }
+
+  public double sketchFillRatio() {
+    return sketchFillRatio;
+  }
+
+  public double sketchMaxFillRatio() {
+    return sketchMaxFillRatio;
+  }
+
+  public double sketchTokenFalsePositiveRate() {
+    return sketchTokenFalsePositiveRate;
+  }
+
+  public double sketchContainsFalsePositiveRate() {
+    return sketchContainsFalsePositiveRate;
+  }
 }
@@ -35,6 +35,15 @@ public class IngestMetrics implements IngestTrace {
     this.tokenCount += tokens;
   }
 
+  /**
+   * Add the metrics gathered by another instance, e.g. by another ingest thread.
+   */
+  void add(IngestMetrics other) {
+    this.lineCount += other.lineCount;
+    this.sourceCount = Math.max(sourceCount, other.sourceCount);
+    this.tokenCount += other.tokenCount;
+  }
+
   public long sourceCount() {
     return sourceCount;
   }
@@ -4,6 +4,9 @@ import static java.nio.file.StandardOpenOption.READ;
 
 import com.dynatrace.index.LogStore;
 import com.dynatrace.index.LogStoreFactory;
+import com.dynatrace.index.LogStoreOptions;
+import com.dynatrace.index.csc.CscHashScheme;
+import com.dynatrace.index.csc.CscMemoryType;
 import com.dynatrace.index.data.analysis.parser.LineSink;
 import com.dynatrace.index.data.analysis.parser.LogLineReader;
 import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
@@ -12,7 +15,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
@@ -38,6 +49,16 @@ public class IngestState {
 
   @Param("8")
   public int cscSizeMB = 8;
+  @Param("MURMUR3")
+  public CscHashScheme cscHashScheme = CscHashScheme.MURMUR3;
+  // Values larger than 1 are only supported by the CSC based store types
+  @Param("1")
+  public int ingestThreads = 1;
+  @Param("HEAP")
+  public CscMemoryType cscMemoryType = CscMemoryType.HEAP;
+  // 0 compresses the log data on the ingest threads
+  @Param("0")
+  public int compressionThreads = 0;
 
   private final AtomicInteger lineCount = new AtomicInteger();
   private final AtomicInteger groupCount = new AtomicInteger();
@@ -46,22 +67,47 @@ public class IngestState {
   private LineSink lineSink;
   private InputStream dataIn;
   private LogLineReader logReader;
+  private IngestMetrics metrics;
+
+  // State of the multi-threaded ingest
+  private ExecutorService executor;
+  private int[] lineOffsets;
+  private int[] lineLengths;
+  private int[] linePostings;
+  private int batchLineCount;
+  private byte[] batchBytes;
 
   @Setup(Level.Iteration)
   public void setupIteration(IngestMetrics metrics) throws IOException {
     Path rootDir = PathHelper.resolvePath(rootDirName);
-    Tokenizer logTokenizer = TokenizerFactory.createTokenizer(tokenizer);
-    logStore = LogStoreFactory.createStore(storeType, rootDir, logTokenizer, maxBatchCount, cscSizeMB);
+    Supplier<Tokenizer> logTokenizers = () -> TokenizerFactory.createTokenizer(tokenizer);
+    final LogStoreOptions options = LogStoreOptions.builder(logTokenizers)
+        .cscHashScheme(cscHashScheme)
+        .ingestThreads(ingestThreads)
+        .cscMemoryType(cscMemoryType)
+        .compressionThreads(compressionThreads)
+        .build();
+    logStore = LogStoreFactory.createStore(storeType, rootDir, maxBatchCount, cscSizeMB, options);
+    this.metrics = metrics;
 
     groupCount.set(0);
     lineCount.set(0);
 
-    lineSink = (bytes, offset, length, posting) -> {
-      logStore.addLogLine(bytes, offset, length, posting, metrics);
+    if (ingestThreads == 1) {
+      lineSink = (bytes, offset, length, posting) -> {
+        logStore.addLogLine(bytes, offset, length, posting, metrics);
 
-      groupCount.set(Math.max(groupCount.get(), posting));
-      lineCount.incrementAndGet();
-    };
+        groupCount.set(Math.max(groupCount.get(), posting));
+        lineCount.incrementAndGet();
+      };
+    } else {
+      // Lines are only collected while parsing and ingested by the executor afterwards
+      executor = Executors.newFixedThreadPool(ingestThreads);
+      lineOffsets = new int[64 * 1024];
+      lineLengths = new int[64 * 1024];
+      linePostings = new int[64 * 1024];
+      lineSink = this::collectLine;
+    }
 
     dataIn = Files.newInputStream(Path.of(logFileName), READ);
     logReader = LogLineReader.create(dataIn, LogLineReader.DEFAULT_BATCH_SIZE, maxLineLength);
@@ -79,10 +125,70 @@ public class IngestState {
       logStore.close();
     } finally {
       dataIn.close();
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
     }
   }
 
   public void indexBatch() {
+    if (ingestThreads == 1) {
+      logReader.parseBatch(lineSink);
+      return;
+    }
+
+    batchLineCount = 0;
     logReader.parseBatch(lineSink);
+    ingestCollectedLines();
+  }
+
+  private void collectLine(byte[] bytes, int offset, int length, int posting) {
+    if (batchLineCount == lineOffsets.length) {
+      final int newSize = lineOffsets.length * 2;
+      lineOffsets = Arrays.copyOf(lineOffsets, newSize);
+      lineLengths = Arrays.copyOf(lineLengths, newSize);
+      linePostings = Arrays.copyOf(linePostings, newSize);
+    }
+
+    // All lines of a batch share the backing array of the reader, which stays unchanged until the next batch is read
+    batchBytes = bytes;
+    lineOffsets[batchLineCount] = offset;
+    lineLengths[batchLineCount] = length;
+    linePostings[batchLineCount] = posting;
+    batchLineCount++;
+
+    groupCount.set(Math.max(groupCount.get(), posting));
+    lineCount.incrementAndGet();
+  }
+
+  private void ingestCollectedLines() {
+    final int linesPerThread = (batchLineCount + ingestThreads - 1) / ingestThreads;
+    final List<Future<IngestMetrics>> results = new ArrayList<>(ingestThreads);
+    for (int start = 0; start < batchLineCount; start += linesPerThread) {
+      final int from = start;
+      final int to = Math.min(batchLineCount, start + linesPerThread);
+      results.add(executor.submit(() -> ingestLines(from, to)));
+    }
+
+    try {
+      for (Future<IngestMetrics> result : results) {
+        metrics.add(result.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for ingest threads", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Ingest thread failed", e.getCause());
+    }
+  }
+
+  private IngestMetrics ingestLines(int from, int to) {
+    // Every thread gathers its own metrics, which are merged after the batch was ingested
+    final IngestMetrics threadMetrics = new IngestMetrics();
+    for (int i = from; i < to; i++) {
+      logStore.addLogLine(batchBytes, lineOffsets[i], lineLengths[i], linePostings[i], threadMetrics);
+    }
+    return threadMetrics;
   }
 }
@@ -0,0 +1,37 @@
+package com.dynatrace.index.benchmark;
+
+import com.dynatrace.index.storage.BoyerMoore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the case-insensitive matchers of the post-filter in isolation, by searching all lines of a decompressed
+ * batch for a token. Both {@link com.dynatrace.index.storage.MatcherKernel}s are compared by default.
+ *
+ * <p>Unknown tokens search every line entirely, like the post-filtering of false positive batches or of scan queries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgs = {"-Xms4096m", "-Xmx16g"})
+@Warmup(time = 10, iterations = 2)
+@Measurement(time = 10, iterations = 3)
+public class MatcherBenchmark {
+
+  @Benchmark
+  public int indexedToken(MatcherState state) {
+    final BoyerMoore matcher = BoyerMoore.createForPattern(state.nextIndexedToken(), state.kernel);
+    return state.nextBatch().countMatches(matcher);
+  }
+
+  @Benchmark
+  public int unknownToken(MatcherState state) {
+    final BoyerMoore matcher = BoyerMoore.createForPattern(state.nextUnknownToken(), state.kernel);
+    return state.nextBatch().countMatches(matcher);
+  }
+}
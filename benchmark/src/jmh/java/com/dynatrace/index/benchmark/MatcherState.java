@@ -0,0 +1,164 @@
+package com.dynatrace.index.benchmark;
+
+import static com.dynatrace.index.storage.StorageDirectories.dataDirectory;
+
+import com.dynatrace.index.LogStore;
+import com.dynatrace.index.LogStoreFactory;
+import com.dynatrace.index.data.analysis.parser.LogLineReader;
+import com.dynatrace.index.data.analysis.parser.LogParser;
+import com.dynatrace.index.data.analysis.tokenization.Lowercase;
+import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
+import com.dynatrace.index.data.analysis.tokenization.TokenizerFactory;
+import com.dynatrace.index.storage.BoyerMoore;
+import com.dynatrace.index.storage.DefaultBatchReader;
+import com.dynatrace.index.storage.MatcherKernel;
+import com.dynatrace.index.tokenization.QueryTokenSink;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Ingests a log file into a scan store and keeps the decompressed batches in memory, so the post-filtering matchers
+ * can be measured on real batch data without any I/O or decompression. The query tokens are lowercased upfront, like
+ * the tokens of the post-filter.
+ */
+@State(Scope.Thread)
+public class MatcherState {
+
+  private static final int UNKNOWN_TOKEN_LENGTH = 16;
+
+  @Param({"BOYER_MOORE", "SWAR"})
+  public MatcherKernel kernel = MatcherKernel.SWAR;
+  @Param("logFile")
+  public String logFileName;
+  @Param(PathHelper.TMP_DIR_PROPERTY)
+  public String rootDirName;
+  @Param("20000")
+  public int maxQueryTokens = 20_000;
+  @Param("full")
+  public String tokenizer = "full";
+  @Param("2048")
+  public int maxBatchCount = 2048;
+  @Param("2147483647") // int max
+  public int maxLineLength = Integer.MAX_VALUE;
+
+  private final Random random = new Random(81195);
+
+  private Batch[] batches;
+  private byte[][] indexedTokens;
+  private byte[][] unknownTokens;
+  private int nextBatch;
+  private int nextIndexedToken;
+  private int nextUnknownToken;
+
+  @Setup(Level.Trial)
+  public void setupBatches() throws IOException {
+    final Tokenizer logTokenizer = TokenizerFactory.createTokenizer(tokenizer);
+    final Path indexDir = PathHelper.resolvePath(rootDirName);
+    final Path logFile = Path.of(logFileName);
+    final LogStore logStore = LogStoreFactory.createStore("scan", indexDir, logTokenizer, maxBatchCount, 0);
+    try {
+      LogLineReader.parseFile(logFile, logStore::addLogLine, maxLineLength);
+      logStore.finish(new IngestFinishMetrics());
+    } finally {
+      logStore.close();
+    }
+    readBatches(DefaultBatchReader.create(dataDirectory(indexDir)));
+
+    final QueryTokenSink tokenSink = new QueryTokenSink(maxQueryTokens);
+    LogParser.parseFile(logFile, logTokenizer, tokenSink, maxLineLength, false);
+    indexedTokens = tokenSink.getQueryTokens().stream()
+        .map(token -> lowerCase(token.bytes()))
+        .toArray(byte[][]::new);
+
+    // Random sequences of [a-z] characters are almost definitely not contained, so every line is searched entirely
+    unknownTokens = new byte[maxQueryTokens][UNKNOWN_TOKEN_LENGTH];
+    for (byte[] token : unknownTokens) {
+      for (int i = 0; i < token.length; i++) {
+        token[i] = (byte) (random.nextInt(26) + 97);
+      }
+    }
+  }
+
+  public Batch nextBatch() {
+    final Batch batch = batches[nextBatch];
+    nextBatch = (nextBatch + 1) % batches.length;
+    return batch;
+  }
+
+  public byte[] nextIndexedToken() {
+    final byte[] token = indexedTokens[nextIndexedToken];
+    nextIndexedToken = (nextIndexedToken + 1) % indexedTokens.length;
+    return token;
+  }
+
+  public byte[] nextUnknownToken() {
+    final byte[] token = unknownTokens[nextUnknownToken];
+    nextUnknownToken = (nextUnknownToken + 1) % unknownTokens.length;
+    return token;
+  }
+
+  private void readBatches(DefaultBatchReader reader) {
+    try {
+      batches = new Batch[reader.getMaxBatch() + 1];
+      for (int i = 0; i < batches.length; i++) {
+        final Batch batch = new Batch();
+        reader.readBatch(i, batch::add);
+        batches[i] = batch;
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static byte[] lowerCase(byte[] token) {
+    final byte[] lowerCaseToken = new byte[token.length];
+    Lowercase.toLowerCase(token, 0, token.length, lowerCaseToken);
+    return lowerCaseToken;
+  }
+
+  /**
+   * Decompressed log lines of a batch.
+   */
+  public static final class Batch {
+    private byte[] data = new byte[1024];
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int lineCount;
+    private int size;
+
+    /**
+     * @return the number of lines containing the pattern
+     */
+    public int countMatches(BoyerMoore matcher) {
+      int matches = 0;
+      for (int i = 0; i < lineCount; i++) {
+        if (matcher.matchLowerCase(data, offsets[i], lengths[i]) >= 0) {
+          matches++;
+        }
+      }
+      return matches;
+    }
+
+    private void add(byte[] bytes, int offset, int length) {
+      if (lineCount == offsets.length) {
+        offsets = Arrays.copyOf(offsets, lineCount * 2);
+        lengths = Arrays.copyOf(lengths, lineCount * 2);
+      }
+      if (size + length > data.length) {
+        data = Arrays.copyOf(data, Math.max(size + length, data.length * 2));
+      }
+      System.arraycopy(bytes, offset, data, size, length);
+      offsets[lineCount] = size;
+      lengths[lineCount] = length;
+      size += length;
+      lineCount++;
+    }
+  }
+}
@@ -21,6 +21,9 @@ public class QueryMetrics implements QueryTrace {
   private long truePositives;
   private long batches;
   private long queryCount;
+  private long batchCacheHits;
+  private long batchCacheMisses;
+  private long batchCacheEvictions;
 
   @Setup(Level.Iteration)
   public void clean() {
@@ -28,6 +31,9 @@ public class QueryMetrics implements QueryTrace {
     truePositives = 0;
     batches = 0;
     queryCount = 0;
+    batchCacheHits = 0;
+    batchCacheMisses = 0;
+    batchCacheEvictions = 0;
   }
 
   @Override
@@ -38,6 +44,13 @@ public class QueryMetrics implements QueryTrace {
     this.queryCount++;
   }
 
+  @Override
+  public void trackBatchCache(int hits, int misses, int evictions) {
+    this.batchCacheHits += hits;
+    this.batchCacheMisses += misses;
+    this.batchCacheEvictions += evictions;
+  }
+
   public double errorRate() {
     return batches == 0 ? 0 : ((double) falsePositives) / batches;
   }
@@ -57,4 +70,16 @@ public class QueryMetrics implements QueryTrace {
   public long queryCount() {
     return queryCount;
   }
+
+  public long batchCacheHits() {
+    return batchCacheHits;
+  }
+
+  public long batchCacheMisses() {
+    return batchCacheMisses;
+  }
+
+  public long batchCacheEvictions() {
+    return batchCacheEvictions;
+  }
 }
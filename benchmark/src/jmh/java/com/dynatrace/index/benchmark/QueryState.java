@@ -4,11 +4,17 @@ import static com.dynatrace.index.util.SystemUtils.dropPageCache;
 
 import com.dynatrace.index.LogStore;
 import com.dynatrace.index.LogStoreFactory;
+import com.dynatrace.index.LogStoreOptions;
 import com.dynatrace.index.LogStoreReader;
+import com.dynatrace.index.LogStoreReaderOptions;
+import com.dynatrace.index.csc.CscHashScheme;
 import com.dynatrace.index.data.analysis.parser.LogLineReader;
 import com.dynatrace.index.data.analysis.parser.LogParser;
 import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
 import com.dynatrace.index.data.analysis.tokenization.TokenizerFactory;
+import com.dynatrace.index.storage.BatchCache;
+import com.dynatrace.index.storage.BatchReadMode;
+import com.dynatrace.index.storage.TokenVerification;
 import com.dynatrace.index.tokenization.QueryTokenSink;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -46,9 +52,25 @@ public class QueryState {
   public boolean loadData = true;
   @Param("HOT")
   public QueryMode queryMode = QueryMode.HOT;
+  @Param("HEAP")
+  public BatchReadMode batchReadMode = BatchReadMode.HEAP;
+  // Capacity of the cache of decompressed batches, 0 disables the cache. Compare e.g. 0 and 256 in HOT mode.
+  @Param("0")
+  public int batchCacheMB = 0;
+  // Threads post-filtering the matching batches of a query, 0 post-filters them on the benchmark thread
+  @Param("0")
+  public int postFilterThreads = 0;
+  // Matching batches read ahead while a batch is post-filtered, compare e.g. 0, 1, 4 and 16 in COLD mode
+  @Param("0")
+  public int prefetchDepth = 0;
+  // TOKEN only returns lines containing the queried token bounded by other token types
+  @Param("SUBSTRING")
+  public TokenVerification tokenVerification = TokenVerification.SUBSTRING;
 
   @Param("8")
   public int cscSizeMB = 8;
+  @Param("MURMUR3")
+  public CscHashScheme cscHashScheme = CscHashScheme.MURMUR3;
 
   private final byte[] randomQueryID = new byte[16];
   private final byte[] randomQueryIP = new byte[] {
@@ -58,6 +80,7 @@ public class QueryState {
 
   public LogStore logStore;
   private LogStoreReader reader;
+  private BatchCache batchCache;
   private Path indexDir;
 
   private QueryTokenSink tokenSink;
@@ -70,8 +93,10 @@ public class QueryState {
 
     final Tokenizer logTokenizer = TokenizerFactory.createTokenizer(tokenizer);
     indexDir = PathHelper.resolvePath(rootDirName);
-    logStore = LogStoreFactory.createStore(storeType, indexDir, logTokenizer, maxBatchCount, cscSizeMB);
+    final LogStoreOptions options = LogStoreOptions.builder(() -> logTokenizer).cscHashScheme(cscHashScheme).build();
+    logStore = LogStoreFactory.createStore(storeType, indexDir, maxBatchCount, cscSizeMB, options);
     tokenSink = new QueryTokenSink(maxQueryTokens);
+    batchCache = batchCacheMB == 0 ? null : new BatchCache(batchCacheMB * 1024L * 1024);
 
     final Path logFile = Path.of(logFileName);
 
@@ -94,6 +119,9 @@ public class QueryState {
 
       if (queryMode == QueryMode.COLD) {
         dropPageCache();
+        if (batchCache != null) {
+          batchCache.clear();
+        }
       }
     }
   }
@@ -121,7 +149,14 @@ public class QueryState {
 
   public LogStoreReader acquireReader() {
     if (reader == null) {
-      reader = LogStoreFactory.loadReader(storeType, indexDir);
+      final LogStoreReaderOptions options = LogStoreReaderOptions.builder()
+          .readMode(batchReadMode)
+          .batchCache(batchCache)
+          .postFilterThreads(postFilterThreads)
+          .prefetchDepth(prefetchDepth)
+          .tokenVerification(tokenVerification)
+          .build();
+      reader = LogStoreFactory.loadReader(storeType, indexDir, options);
     }
     return reader;
   }
@@ -10,5 +10,19 @@ public interface FinishTrace {
 
   void trackDataDiskUsage(long dataDiskBytes);
 
-  void trackSketchMemoryUsage(long memoryBytes);
+  /**
+   * @param heapBytes the heap memory used by the index or sketch
+   * @param offHeapBytes the memory used by the index or sketch outside of the Java heap
+   */
+  void trackSketchMemoryUsage(long heapBytes, long offHeapBytes);
+
+  /**
+   * Track how saturated the sketch is, which is only reported by sketches whose false positives increase with their
+   * fill.
+   *
+   * @param fillRatios the share of bits set to 1 within each repetition of the sketch
+   * @param tokenFalsePositiveRate the expected share of batches falsely located by a token query
+   * @param containsFalsePositiveRate the expected share of batches falsely located by a contains query
+   */
+  void trackSketchSaturation(double[] fillRatios, double tokenFalsePositiveRate, double containsFalsePositiveRate);
 }
@@ -1,6 +1,7 @@
 package com.dynatrace.index;
 
 import static com.dynatrace.index.util.FileUtils.directorySize;
+import static com.google.common.base.Preconditions.checkState;
 import static java.util.Objects.requireNonNull;
 
 import com.dynatrace.index.data.analysis.tokenization.Lowercase;
@@ -11,23 +12,31 @@ import com.dynatrace.index.tokenization.IngestTokenSink;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /**
  * Base class for all implementations pre-filtering data through some indexing structure.
+ *
+ * <p>Log lines can be added from multiple threads if the store is created with a tokenizer supplier and its token
+ * consumer is thread-safe. Storing the lines is serialized, while tokenization and indexing run in parallel on
+ * per-thread buffers. Stores created with a single tokenizer reject log lines added concurrently.
  */
 public abstract class LogStoreBase extends LogStoreReaderBase implements LogStore {
 
   private static final int BATCH_SIZE_SHIFT = 19; // x >> 19 => x / 512k
 
   private final BatchWriter batchWriter;
-  private final Tokenizer ingestTokenizer;
-  private final IngestTokenSink tokenSink;
+  private final ThreadLocal<LineIndexer> lineIndexers;
   private final int maxBatchCount;
   private final Path dataDirectory;
+  private final Object storeLock = new Object();
+  // Only set if all threads share a single tokenizer
+  @Nullable
+  private final AtomicBoolean indexing;
 
   private long[] sourceSizes;
-  private byte[] lowercase;
 
   protected LogStoreBase(
       BatchWriter batchWriter,
@@ -35,34 +44,61 @@ public abstract class LogStoreBase extends LogStoreReaderBase implements LogStor
       Tokenizer tokenizer,
       BulkTokenConsumer tokenConsumer,
       int maxBatchCount) {
+    // The single tokenizer restricts ingest to one thread at a time
+    this(batchWriter, dataDirectory, () -> tokenizer, tokenConsumer, maxBatchCount, false);
+  }
+
+  protected LogStoreBase(
+      BatchWriter batchWriter,
+      Path dataDirectory,
+      Supplier<Tokenizer> tokenizers,
+      BulkTokenConsumer tokenConsumer,
+      int maxBatchCount) {
+    this(batchWriter, dataDirectory, tokenizers, tokenConsumer, maxBatchCount, true);
+  }
+
+  private LogStoreBase(
+      BatchWriter batchWriter,
+      Path dataDirectory,
+      Supplier<Tokenizer> tokenizers,
+      BulkTokenConsumer tokenConsumer,
+      int maxBatchCount,
+      boolean concurrent) {
     super(batchWriter);
 
+    requireNonNull(tokenizers);
+    requireNonNull(tokenConsumer);
     this.batchWriter = requireNonNull(batchWriter);
     this.dataDirectory = requireNonNull(dataDirectory);
     this.maxBatchCount = maxBatchCount;
-    this.ingestTokenizer = requireNonNull(tokenizer);
-    this.tokenSink = new IngestTokenSink(tokenConsumer);
-    this.lowercase = new byte[16 * 1024];
+    this.lineIndexers = ThreadLocal.withInitial(() -> new LineIndexer(tokenizers.get(), tokenConsumer));
     this.sourceSizes = new long[4096];
+    this.indexing = concurrent ? null : new AtomicBoolean();
   }
 
   @Override
   public void addLogLine(byte[] bytes, int offset, int length, int sourceId, @Nullable IngestTrace trace) {
-    final int batch = getBatch(sourceId, length);
+    final int batch;
+    synchronized (storeLock) {
+      batch = getBatch(sourceId, length);
 
-    // Store data
-    batchWriter.addLogLine(bytes, offset, length, batch);
+      // Store data
+      batchWriter.addLogLine(bytes, offset, length, batch);
+    }
 
     // Index data
-    if (length > lowercase.length) {
-      int newSize = Math.max(length, lowercase.length * 2);
-      lowercase = new byte[newSize];
+    final int tokenCount;
+    if (indexing == null) {
+      tokenCount = lineIndexers.get().index(bytes, offset, length, batch);
+    } else {
+      checkState(indexing.compareAndSet(false, true),
+          "Log lines must not be added concurrently to a store created with a single tokenizer");
+      try {
+        tokenCount = lineIndexers.get().index(bytes, offset, length, batch);
+      } finally {
+        indexing.set(false);
+      }
     }
-    Lowercase.toLowerCase(bytes, offset, length, lowercase);
-    tokenSink.startLine(lowercase, batch);
-    ingestTokenizer.tokenize(lowercase, 0, length, tokenSink);
-    final int tokenCount = tokenSink.getTokenCount();
-    tokenSink.endLine();
 
     if (trace != null) {
       trace.trackIngestedLine(sourceId, tokenCount);
@@ -71,6 +107,9 @@ public abstract class LogStoreBase extends LogStoreReaderBase implements LogStor
 
   @Override
   public void finish(FinishTrace trace) throws IOException {
+    // Remove the indexer of the finishing thread, the ones of other ingest threads end with their threads
+    lineIndexers.remove();
+
     final long start = System.nanoTime();
     batchWriter.flush();
     trace.trackDataFinishTime(System.nanoTime() - start);
@@ -91,4 +130,32 @@ public abstract class LogStoreBase extends LogStoreReaderBase implements LogStor
     sourceSizes[sourceId] = sourceSize + length;
     return (int) ((sourceStart + sourceBatch) % maxBatchCount);
   }
+
+  /**
+   * Buffers and tokenizer of a single ingest thread.
+   */
+  private static final class LineIndexer {
+    private final Tokenizer tokenizer;
+    private final IngestTokenSink tokenSink;
+    private byte[] lowercase;
+
+    LineIndexer(Tokenizer tokenizer, BulkTokenConsumer tokenConsumer) {
+      this.tokenizer = requireNonNull(tokenizer);
+      this.tokenSink = new IngestTokenSink(tokenConsumer);
+      this.lowercase = new byte[16 * 1024];
+    }
+
+    int index(byte[] bytes, int offset, int length, int batch) {
+      if (length > lowercase.length) {
+        int newSize = Math.max(length, lowercase.length * 2);
+        lowercase = new byte[newSize];
+      }
+      Lowercase.toLowerCase(bytes, offset, length, lowercase);
+      tokenSink.startLine(lowercase, batch);
+      tokenizer.tokenize(lowercase, 0, length, tokenSink);
+      final int tokenCount = tokenSink.getTokenCount();
+      tokenSink.endLine();
+      return tokenCount;
+    }
+  }
 }
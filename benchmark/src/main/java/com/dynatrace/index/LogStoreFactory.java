@@ -1,5 +1,8 @@
 package com.dynatrace.index;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.dynatrace.index.csc.BlockedShiftingBloomFilter;
 import com.dynatrace.index.csc.CscLogStore;
 import com.dynatrace.index.csc.CscLogStoreReader;
 import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
@@ -9,10 +12,13 @@ import com.dynatrace.index.lucene.LuceneLogStore;
 import com.dynatrace.index.lucene.LuceneLogStoreReader;
 import com.dynatrace.index.scan.ScanLogStore;
 import com.dynatrace.index.scan.ScanLogStoreReader;
+import com.dynatrace.index.storage.BatchReadMode;
+import com.dynatrace.index.storage.TokenVerification;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
 public final class LogStoreFactory {
 
@@ -22,72 +28,117 @@ public final class LogStoreFactory {
 
   public static LogStore createStore(
       String storeType, Path rootDir, Tokenizer tokenizer, int maxBatchCount, int cscSizeMB) {
+    return createStore(storeType, rootDir, maxBatchCount, cscSizeMB, LogStoreOptions.of(tokenizer));
+  }
+
+  public static LogStore createStore(
+      String storeType, Path rootDir, int maxBatchCount, int cscSizeMB, LogStoreOptions options) {
+    final boolean concurrent = options.concurrent();
+    final int compressionThreads = options.compressionThreads();
+
     storeType = storeType.toLowerCase(Locale.ROOT);
     switch (storeType) {
       case "csc":
         return CscLogStore.create(rootDir,
-            tokenizer,
-            8 * cscSizeMB * 1024 * 1024, // size as bits
+            8L * cscSizeMB * 1024 * 1024, // size as bits
             4,
             1,
             maxBatchCount,
-            maxBatchCount);
+            maxBatchCount,
+            ThreadLocalRandom.current().nextLong(),
+            options);
       case "csc-bf":
         return CscLogStore.create(rootDir,
-            tokenizer,
-            8 * cscSizeMB * 1024 * 1024, // size as bits
+            8L * cscSizeMB * 1024 * 1024, // size as bits
             4,
             2,
             maxBatchCount / 8,
-            maxBatchCount);
+            maxBatchCount,
+            ThreadLocalRandom.current().nextLong(),
+            options);
+      case "csc-blocked":
+        return CscLogStore.createBlocked(rootDir,
+            8L * cscSizeMB * 1024 * 1024, // size as bits
+            BlockedShiftingBloomFilter.PAGE_BITS,
+            4,
+            maxBatchCount,
+            ThreadLocalRandom.current().nextLong(),
+            options);
+      case "csc-scalable":
+        return CscLogStore.createScalable(rootDir,
+            8L * cscSizeMB * 1024 * 1024, // size of the first section as bits
+            4,
+            1,
+            maxBatchCount,
+            maxBatchCount,
+            0.5,
+            options);
       case "lucene":
-        return createLuceneIndex(rootDir, tokenizer, maxBatchCount);
+        checkArgument(!concurrent, "Concurrent ingest is not supported by store type %s", storeType);
+        return createLuceneIndex(rootDir, options.tokenizers().get(), maxBatchCount, compressionThreads);
       case "loggrep":
+        checkArgument(!concurrent, "Concurrent ingest is not supported by store type %s", storeType);
+        checkArgument(compressionThreads == 0, "Background compression is not supported by store type %s", storeType);
         return new LogGrepStore(Path.of("./binaries/loggrep"), rootDir, 128_000);
       case "scan":
-        return new ScanLogStore(rootDir, maxBatchCount);
+        checkArgument(!concurrent, "Concurrent ingest is not supported by store type %s", storeType);
+        return new ScanLogStore(rootDir, maxBatchCount, compressionThreads);
       default:
         throw new IllegalArgumentException("Unknown index type: " + storeType);
     }
   }
 
-  public static LogStoreReader loadReader(
-      String storeType, Path rootDir) {
+  public static LogStoreReader loadReader(String storeType, Path rootDir) {
+    return loadReader(storeType, rootDir, LogStoreReaderOptions.DEFAULT);
+  }
+
+  public static LogStoreReader loadReader(String storeType, Path rootDir, LogStoreReaderOptions options) {
     storeType = storeType.toLowerCase(Locale.ROOT);
     switch (storeType) {
       case "csc": // intentional fall-through
-      case "csc-bf":
-        return loadCscReader(rootDir);
+      case "csc-bf": // intentional fall-through
+      case "csc-blocked": // intentional fall-through
+      case "csc-scalable":
+        return loadCscReader(rootDir, options);
       case "lucene":
-        return loadLuceneReader(rootDir);
+        return loadLuceneReader(rootDir, options);
       case "loggrep":
+        checkArgument(options.readMode() == BatchReadMode.HEAP, "Read mode %s is not supported by store type %s",
+            options.readMode(), storeType);
+        checkArgument(options.batchCache() == null, "Batch caches are not supported by store type %s", storeType);
+        checkArgument(options.postFilterThreads() == 0,
+            "Parallel post-filtering is not supported by store type %s", storeType);
+        checkArgument(options.prefetchDepth() == 0, "Prefetching is not supported by store type %s", storeType);
+        checkArgument(options.tokenVerification() == TokenVerification.SUBSTRING,
+            "Token verification %s is not supported by store type %s", options.tokenVerification(), storeType);
         return LogGrepStoreReader.loadFromDisk(Path.of("./binaries/loggrep"), rootDir);
       case "scan":
-        return ScanLogStoreReader.loadFromDisk(rootDir);
+        return ScanLogStoreReader.loadFromDisk(rootDir, options);
       default:
         throw new IllegalArgumentException("Unknown index type: " + storeType);
     }
   }
 
-  private static LogStoreReader loadCscReader(Path rootDir) {
+  private static LogStoreReader loadCscReader(Path rootDir, LogStoreReaderOptions options) {
     try {
-      return CscLogStoreReader.loadFromDisk(rootDir);
+      return CscLogStoreReader.loadFromDisk(rootDir, options);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
   }
 
-  private static LuceneLogStoreReader loadLuceneReader(Path rootDir) {
+  private static LuceneLogStoreReader loadLuceneReader(Path rootDir, LogStoreReaderOptions options) {
     try {
-      return LuceneLogStoreReader.loadFromDisk(rootDir);
+      return LuceneLogStoreReader.loadFromDisk(rootDir, options);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
   }
 
-  private static LuceneLogStore createLuceneIndex(Path rootDir, Tokenizer tokenizer, int maxBatchCount) {
+  private static LuceneLogStore createLuceneIndex(
+      Path rootDir, Tokenizer tokenizer, int maxBatchCount, int compressionThreads) {
     try {
-      return LuceneLogStore.create(rootDir, tokenizer, maxBatchCount);
+      return LuceneLogStore.create(rootDir, tokenizer, maxBatchCount, compressionThreads);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -0,0 +1,126 @@
+package com.dynatrace.index;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.dynatrace.index.csc.CscHashScheme;
+import com.dynatrace.index.csc.CscMemoryType;
+import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
+import java.util.function.Supplier;
+
+/**
+ * Options defining how a {@link LogStore} ingests log lines. The hash scheme and memory type only apply to the CSC
+ * based stores.
+ */
+public final class LogStoreOptions {
+
+  private final Supplier<Tokenizer> tokenizers;
+  private final CscHashScheme cscHashScheme;
+  private final int ingestThreads;
+  private final CscMemoryType cscMemoryType;
+  private final int compressionThreads;
+
+  private LogStoreOptions(Builder builder) {
+    this.tokenizers = builder.tokenizers;
+    this.cscHashScheme = builder.cscHashScheme;
+    this.ingestThreads = builder.ingestThreads;
+    this.cscMemoryType = builder.cscMemoryType;
+    this.compressionThreads = builder.compressionThreads;
+  }
+
+  /**
+   * @param tokenizers supplies the tokenizer of each ingest thread
+   */
+  public static Builder builder(Supplier<Tokenizer> tokenizers) {
+    return new Builder(tokenizers);
+  }
+
+  /**
+   * @return options ingesting on a single thread with the given tokenizer and default settings otherwise
+   */
+  public static LogStoreOptions of(Tokenizer tokenizer) {
+    requireNonNull(tokenizer);
+    return builder(() -> tokenizer).build();
+  }
+
+  public Supplier<Tokenizer> tokenizers() {
+    return tokenizers;
+  }
+
+  public CscHashScheme cscHashScheme() {
+    return cscHashScheme;
+  }
+
+  public int ingestThreads() {
+    return ingestThreads;
+  }
+
+  /**
+   * @return whether multiple threads add log lines concurrently
+   */
+  public boolean concurrent() {
+    return ingestThreads > 1;
+  }
+
+  public CscMemoryType cscMemoryType() {
+    return cscMemoryType;
+  }
+
+  public int compressionThreads() {
+    return compressionThreads;
+  }
+
+  public static final class Builder {
+
+    private final Supplier<Tokenizer> tokenizers;
+    private CscHashScheme cscHashScheme = CscHashScheme.MURMUR3;
+    private int ingestThreads = 1;
+    private CscMemoryType cscMemoryType = CscMemoryType.HEAP;
+    private int compressionThreads;
+
+    private Builder(Supplier<Tokenizer> tokenizers) {
+      this.tokenizers = requireNonNull(tokenizers);
+    }
+
+    /**
+     * The hash functions of the CSC sketch, {@link CscHashScheme#MURMUR3} by default.
+     */
+    public Builder cscHashScheme(CscHashScheme cscHashScheme) {
+      this.cscHashScheme = requireNonNull(cscHashScheme);
+      return this;
+    }
+
+    /**
+     * The number of threads which will add log lines concurrently, one by default. Only the CSC based stores support
+     * more than one thread.
+     */
+    public Builder ingestThreads(int ingestThreads) {
+      checkArgument(ingestThreads > 0, "ingestThreads must be larger than 0");
+      this.ingestThreads = ingestThreads;
+      return this;
+    }
+
+    /**
+     * Defines where the CSC sketch is allocated during ingest, {@link CscMemoryType#HEAP} by default.
+     * {@link CscMemoryType#MAPPED} does not support concurrent ingest.
+     */
+    public Builder cscMemoryType(CscMemoryType cscMemoryType) {
+      this.cscMemoryType = requireNonNull(cscMemoryType);
+      return this;
+    }
+
+    /**
+     * The number of threads compressing the log data in the background, zero (the default) compresses the log data
+     * on the ingest threads. Not supported by the loggrep store.
+     */
+    public Builder compressionThreads(int compressionThreads) {
+      checkArgument(compressionThreads >= 0, "compressionThreads must not be negative");
+      this.compressionThreads = compressionThreads;
+      return this;
+    }
+
+    public LogStoreOptions build() {
+      return new LogStoreOptions(this);
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package com.dynatrace.index;
 
 import com.dynatrace.index.storage.LogConsumer;
+import java.util.BitSet;
 
 /**
  * Capable of searching and reading log lines stored in a log store.
@@ -27,6 +28,18 @@ public interface LogStoreReader {
    */
   void queryContains(byte[] utf8String, LogConsumer logConsumer, QueryTrace trace, boolean loadData);
 
+  /**
+   * Locate the batches which may contain each of the queried tokens, without reading any log lines. Indexing
+   * structures may look up all tokens at once, which is cheaper than querying them one after another.
+   *
+   * @param utf8Tokens tokens to query
+   * @return the batches which may contain the token at the same index
+   * @throws UnsupportedOperationException if the reader does not locate batches through an indexing structure
+   */
+  default BitSet[] queryTokenBatches(byte[][] utf8Tokens) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " does not locate batches");
+  }
+
   /**
    * @return estimated memory usage of ONLY the internal indexing structure (if applicable)
    */
@@ -5,8 +5,12 @@ import static java.util.Objects.requireNonNull;
 
 import com.dynatrace.index.data.analysis.tokenization.Lowercase;
 import com.dynatrace.index.storage.BatchReader;
+import com.dynatrace.index.storage.BoyerMoore;
 import com.dynatrace.index.storage.LogConsumer;
+import com.dynatrace.index.storage.ParallelPostFiltering;
+import com.dynatrace.index.storage.TokenVerification;
 import java.util.BitSet;
+import javax.annotation.Nullable;
 
 /**
  * Base class for all implementations pre-filtering data through some indexing structure.
@@ -15,10 +19,23 @@ public abstract class LogStoreReaderBase implements LogStoreReader {
 
   private final BatchReader reader;
   private final BitSet matchingBatches;
+  @Nullable
+  private final ParallelPostFiltering parallelPostFiltering;
+  private final int prefetchDepth;
+  private final TokenVerification tokenVerification;
 
   protected LogStoreReaderBase(BatchReader reader) {
+    this(reader, LogStoreReaderOptions.DEFAULT);
+  }
+
+  protected LogStoreReaderBase(BatchReader reader, LogStoreReaderOptions options) {
     this.reader = requireNonNull(reader);
+    this.prefetchDepth = options.prefetchDepth();
+    this.tokenVerification = options.tokenVerification();
     this.matchingBatches = new BitSet();
+    this.parallelPostFiltering = options.postFilterThreads() > 0
+        ? new ParallelPostFiltering(reader, options.postFilterThreads(), true)
+        : null;
   }
 
   @Override
@@ -30,7 +47,7 @@ public abstract class LogStoreReaderBase implements LogStoreReader {
 
     locateTokenBatches(lowerCaseToken, matchingBatches);
     if (loadData) {
-      readAndPostFilterLogs(reader, lowerCaseToken, matchingBatches, logConsumer, trace);
+      postFilter(tokenVerification.createMatcher(lowerCaseToken), logConsumer, trace);
     }
   }
 
@@ -44,16 +61,50 @@ public abstract class LogStoreReaderBase implements LogStoreReader {
     locateContainsBatches(lowerCaseToken, matchingBatches);
 
     if (loadData) {
-      readAndPostFilterLogs(reader, lowerCaseToken, matchingBatches, logConsumer, trace);
+      postFilter(BoyerMoore.createForPattern(lowerCaseToken), logConsumer, trace);
     }
   }
 
+  @Override
+  public BitSet[] queryTokenBatches(byte[][] utf8Tokens) {
+    final byte[][] lowerCaseTokens = new byte[utf8Tokens.length][];
+    final BitSet[] batches = new BitSet[utf8Tokens.length];
+    for (int i = 0; i < utf8Tokens.length; i++) {
+      lowerCaseTokens[i] = new byte[utf8Tokens[i].length];
+      Lowercase.toLowerCase(utf8Tokens[i], 0, utf8Tokens[i].length, lowerCaseTokens[i]);
+      batches[i] = new BitSet();
+    }
+
+    locateTokenBatches(lowerCaseTokens, batches);
+    return batches;
+  }
+
   @Override
   public void close() {
+    if (parallelPostFiltering != null) {
+      parallelPostFiltering.close();
+    }
     reader.close();
   }
 
   protected abstract void locateTokenBatches(byte[] utf8Token, BitSet batches);
 
+  /**
+   * Locate the batches of multiple tokens, which by default locates the batches of every token on its own.
+   */
+  protected void locateTokenBatches(byte[][] utf8Tokens, BitSet[] batches) {
+    for (int i = 0; i < utf8Tokens.length; i++) {
+      locateTokenBatches(utf8Tokens[i], batches[i]);
+    }
+  }
+
   protected abstract void locateContainsBatches(byte[] utf8String, BitSet batches);
+
+  private void postFilter(BoyerMoore matcher, LogConsumer logConsumer, QueryTrace trace) {
+    if (parallelPostFiltering != null) {
+      parallelPostFiltering.readAndPostFilterLogs(matcher, matchingBatches, logConsumer, trace);
+    } else {
+      readAndPostFilterLogs(reader, matcher, matchingBatches, logConsumer, trace, prefetchDepth);
+    }
+  }
 }
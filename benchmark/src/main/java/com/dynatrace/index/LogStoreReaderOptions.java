@@ -0,0 +1,120 @@
+package com.dynatrace.index;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.dynatrace.index.storage.BatchCache;
+import com.dynatrace.index.storage.BatchReadMode;
+import com.dynatrace.index.storage.TokenVerification;
+import javax.annotation.Nullable;
+
+/**
+ * Options defining how a {@link LogStoreReader} reads and post-filters the stored log lines. The loggrep store only
+ * supports the {@link #DEFAULT} options.
+ */
+public final class LogStoreReaderOptions {
+
+  public static final LogStoreReaderOptions DEFAULT = builder().build();
+
+  private final BatchReadMode readMode;
+  @Nullable
+  private final BatchCache batchCache;
+  private final int postFilterThreads;
+  private final int prefetchDepth;
+  private final TokenVerification tokenVerification;
+
+  private LogStoreReaderOptions(Builder builder) {
+    this.readMode = builder.readMode;
+    this.batchCache = builder.batchCache;
+    this.postFilterThreads = builder.postFilterThreads;
+    this.prefetchDepth = builder.prefetchDepth;
+    this.tokenVerification = builder.tokenVerification;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public BatchReadMode readMode() {
+    return readMode;
+  }
+
+  @Nullable
+  public BatchCache batchCache() {
+    return batchCache;
+  }
+
+  public int postFilterThreads() {
+    return postFilterThreads;
+  }
+
+  public int prefetchDepth() {
+    return prefetchDepth;
+  }
+
+  public TokenVerification tokenVerification() {
+    return tokenVerification;
+  }
+
+  public static final class Builder {
+
+    private BatchReadMode readMode = BatchReadMode.HEAP;
+    @Nullable
+    private BatchCache batchCache;
+    private int postFilterThreads;
+    private int prefetchDepth;
+    private TokenVerification tokenVerification = TokenVerification.SUBSTRING;
+
+    private Builder() {
+    }
+
+    /**
+     * Defines how the compressed batches are read from the data file, {@link BatchReadMode#HEAP} by default.
+     */
+    public Builder readMode(BatchReadMode readMode) {
+      this.readMode = requireNonNull(readMode);
+      return this;
+    }
+
+    /**
+     * Shares decompressed batches between readers, null (the default) disables caching.
+     */
+    public Builder batchCache(@Nullable BatchCache batchCache) {
+      this.batchCache = batchCache;
+      return this;
+    }
+
+    /**
+     * The number of threads post-filtering the matching batches of a query, zero (the default) post-filters them on
+     * the querying thread.
+     */
+    public Builder postFilterThreads(int postFilterThreads) {
+      checkArgument(postFilterThreads >= 0, "postFilterThreads must not be negative");
+      this.postFilterThreads = postFilterThreads;
+      return this;
+    }
+
+    /**
+     * The number of matching batches loaded ahead of the batch being post-filtered on the querying thread, zero by
+     * default. Not used by parallel post-filtering.
+     */
+    public Builder prefetchDepth(int prefetchDepth) {
+      checkArgument(prefetchDepth >= 0, "prefetchDepth must not be negative");
+      this.prefetchDepth = prefetchDepth;
+      return this;
+    }
+
+    /**
+     * Defines which lines of the matching batches are returned by token queries, {@link TokenVerification#SUBSTRING}
+     * by default.
+     */
+    public Builder tokenVerification(TokenVerification tokenVerification) {
+      this.tokenVerification = requireNonNull(tokenVerification);
+      return this;
+    }
+
+    public LogStoreReaderOptions build() {
+      return new LogStoreReaderOptions(this);
+    }
+  }
+}
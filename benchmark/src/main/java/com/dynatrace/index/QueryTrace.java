@@ -3,4 +3,11 @@ package com.dynatrace.index;
 public interface QueryTrace {
 
   void trackErrorRate(int falsePositives, int truePositives, int batches);
+
+  /**
+   * Track accesses to a cache of decompressed batches.
+   *
+   * @param evictions the number of batches evicted to cache the missed batches
+   */
+  void trackBatchCache(int hits, int misses, int evictions);
 }
@@ -0,0 +1,41 @@
+package com.dynatrace.index.csc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Maps the 32-bit hash values of tokens to ankers within a bit array whose capacity is a power of 2.
+ *
+ * <p>Capacities of up to 2^32 bits use the hash value as anker directly. Larger capacities cannot be addressed by
+ * 32-bit hashes, so the hash value is scaled up to the capacity instead. The ankers are then spaced
+ * {@code capacity / 2^32} bits apart, which still covers every bit of the array as long as the shifted range of
+ * partitions following an anker is at least as long as this spacing.
+ */
+final class AnkerFunction {
+
+  private final long mask;
+  private final int shift;
+
+  private AnkerFunction(long mask, int shift) {
+    this.mask = mask;
+    this.shift = shift;
+  }
+
+  static AnkerFunction create(long capacity, int partitions) {
+    checkArgument(Long.bitCount(capacity) == 1, "capacity must be a power of 2");
+
+    final int shift = Math.max(0, Long.numberOfTrailingZeros(capacity) - Integer.SIZE);
+    checkArgument((1L << shift) <= partitions,
+        "partitions must be at least capacity / 2^32 to cover the full capacity");
+
+    return new AnkerFunction(capacity - 1, shift);
+  }
+
+  long anker(int hash) {
+    return ((hash & 0xFFFFFFFFL) << shift) & mask;
+  }
+
+  long position(long anker, int posting) {
+    // Faster alternative to modulo, since the capacity is guaranteed to be a power of 2
+    return (anker + posting) & mask;
+  }
+}
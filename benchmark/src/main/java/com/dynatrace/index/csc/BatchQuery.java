@@ -0,0 +1,125 @@
+package com.dynatrace.index.csc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Evaluates the ranges probed by a batch of tokens in the order of their position within the filter, instead of
+ * evaluating the tokens one after another. A filter mapped from disk is therefore read sequentially, and every page
+ * is touched once per batch instead of once per token.
+ *
+ * <p>Every probed range belongs to a group, whose result is the "and" combination of its ranges. Groups whose result
+ * is already empty skip their remaining ranges.
+ *
+ * <p>Instances reuse their buffers between batches and must not be used concurrently.
+ */
+final class BatchQuery {
+
+  private final int rangeBits;
+  private final MemoryBitSet rangeResult;
+  private final IntConsumer copySetter;
+
+  // Position of each probe in the upper and its group in the lower bits, which sorts the probes by their position
+  private long[] probes;
+  private int probeCount;
+  private int groupBits;
+  private MemoryBitSet[] groupResults;
+  private boolean[] probed;
+  private BitSet copyTarget;
+
+  /**
+   * @param rangeBits the number of bits within each probed range
+   */
+  BatchQuery(int rangeBits) {
+    this.rangeBits = rangeBits;
+    this.rangeResult = new MemoryBitSet(rangeBits);
+    this.copySetter = position -> copyTarget.set(position);
+    this.probes = new long[0];
+    this.groupResults = new MemoryBitSet[0];
+    this.probed = new boolean[0];
+  }
+
+  /**
+   * Start a new batch.
+   *
+   * @param groups the number of groups within the batch
+   * @param positions the number of positions within the filter, all probed positions are smaller
+   */
+  void reset(int groups, long positions) {
+    groupBits = Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(1, groups - 1));
+    checkArgument(positions <= 1L << (Long.SIZE - 1 - groupBits), "Too many tokens within the batch");
+
+    if (groupResults.length < groups) {
+      final int previousGroups = groupResults.length;
+      groupResults = Arrays.copyOf(groupResults, Math.max(groups, previousGroups * 2));
+      for (int group = previousGroups; group < groupResults.length; group++) {
+        groupResults[group] = new MemoryBitSet(rangeBits);
+      }
+      probed = new boolean[groupResults.length];
+    }
+    Arrays.fill(probed, 0, groups, false);
+    probeCount = 0;
+  }
+
+  void addProbe(long position, int group) {
+    if (probeCount == probes.length) {
+      probes = Arrays.copyOf(probes, Math.max(64, probeCount * 2));
+    }
+    probes[probeCount++] = (position << groupBits) | group;
+  }
+
+  /**
+   * Read the ranges of all probes in the order of their position.
+   */
+  void evaluate(RangeReader reader) {
+    Arrays.sort(probes, 0, probeCount);
+
+    final long groupMask = (1L << groupBits) - 1;
+    for (int i = 0; i < probeCount; i++) {
+      final int group = (int) (probes[i] & groupMask);
+      final long position = probes[i] >>> groupBits;
+      final MemoryBitSet groupResult = groupResults[group];
+
+      if (!probed[group]) {
+        reader.read(position, group, groupResult);
+        probed[group] = true;
+      } else if (!groupResult.isEmpty()) {
+        groupResult.and(reader.read(position, group, rangeResult));
+      }
+    }
+  }
+
+  /**
+   * @return the "and" combination of all ranges probed for the group
+   */
+  MemoryBitSet result(int group) {
+    return groupResults[group];
+  }
+
+  /**
+   * Replace the content of the target with the bits of the source.
+   */
+  void copy(MemoryBitSet source, BitSet target) {
+    target.clear();
+    copyTarget = target;
+    source.forEachSetBit(0, copySetter);
+    copyTarget = null;
+  }
+
+  /**
+   * Reads the range probed at a position of the filter.
+   */
+  @FunctionalInterface
+  interface RangeReader {
+
+    /**
+     * Replace the content of the target with the bits of the range.
+     *
+     * @return the target bit set
+     */
+    MemoryBitSet read(long position, int group, MemoryBitSet target);
+  }
+}
@@ -0,0 +1,252 @@
+package com.dynatrace.index.csc;
+
+import com.dynatrace.index.memory.Memory;
+import java.util.function.IntConsumer;
+
+/**
+ * Word-level implementations of the bulk operations of {@link MemoryBitSet}. The kernel of bit sets created
+ * afterwards can be selected at runtime via {@link MemoryBitSet#useKernel(BitSetKernel)} or the system property
+ * {@value MemoryBitSet#KERNEL_PROPERTY}, which makes it possible to compare the implementations within benchmarks.
+ */
+public enum BitSetKernel {
+
+  /**
+   * Processes one 64-bit word per loop iteration.
+   */
+  SCALAR {
+    @Override
+    long and(Memory target, Memory other, long length) {
+      long usedBytes = 0;
+      for (long offset = 0; offset < length; offset += Long.BYTES) {
+        final long value = target.getLong(offset) & other.getLong(offset);
+        target.setLong(offset, value);
+        if (value != 0) {
+          usedBytes = offset + Long.BYTES;
+        }
+      }
+      return usedBytes;
+    }
+
+    @Override
+    long extract(Memory source, long from, long to, Memory target) {
+      // This code section is a modified copy of the Java BitSet method, except it uses different access methods for
+      // words
+      final int targetWords = (int) (((to - from - 1) >> 6) + 1);
+
+      long usedBytes = 0;
+      long sourceOffset = wordOffset(from);
+      final boolean wordAligned = ((from & 0x3f) == 0);
+
+      // Process all words but the last word
+      for (long offset = 0, i = 0;
+           i < targetWords - 1;
+           i++, offset += Long.BYTES, sourceOffset += Long.BYTES) {
+        final long word = wordAligned
+            ? source.getLong(sourceOffset)
+            : (source.getLong(sourceOffset) >>> from) | (source.getLong(sourceOffset + Long.BYTES) << -from);
+        if (word != 0) {
+          target.setLong(offset, word);
+          usedBytes = offset + Long.BYTES;
+        }
+      }
+
+      return lastWord(source, sourceOffset, from, to, target, targetWords, usedBytes);
+    }
+
+    @Override
+    long cardinality(Memory memory, long length) {
+      long count = 0;
+      for (long offset = 0; offset < length; offset += Long.BYTES) {
+        count += Long.bitCount(memory.getLong(offset));
+      }
+      return count;
+    }
+
+    @Override
+    void forEachSetBit(MemoryBitSet bitSet, int offset, IntConsumer consumer) {
+      for (long i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+        consumer.accept(offset + (int) i);
+      }
+    }
+  },
+
+  /**
+   * Processes four independent 64-bit lanes per loop iteration, which allows the CPU to overlap the loads and logic
+   * operations of consecutive words. Range extraction loads every source word only once and carries it over to the
+   * next iteration, and iteration walks the set bits of each word without re-scanning from the start position.
+   */
+  UNROLLED {
+    @Override
+    long and(Memory target, Memory other, long length) {
+      final long unrolledEnd = length & ~(LANES * Long.BYTES - 1);
+
+      long usedBytes = 0;
+      long offset = 0;
+      for (; offset < unrolledEnd; offset += LANES * Long.BYTES) {
+        final long w0 = target.getLong(offset) & other.getLong(offset);
+        final long w1 = target.getLong(offset + Long.BYTES) & other.getLong(offset + Long.BYTES);
+        final long w2 = target.getLong(offset + 2 * Long.BYTES) & other.getLong(offset + 2 * Long.BYTES);
+        final long w3 = target.getLong(offset + 3 * Long.BYTES) & other.getLong(offset + 3 * Long.BYTES);
+
+        target.setLong(offset, w0);
+        target.setLong(offset + Long.BYTES, w1);
+        target.setLong(offset + 2 * Long.BYTES, w2);
+        target.setLong(offset + 3 * Long.BYTES, w3);
+
+        if ((w0 | w1 | w2 | w3) != 0) {
+          usedBytes = offset + usedLanes(w0, w1, w2, w3) * Long.BYTES;
+        }
+      }
+
+      for (; offset < length; offset += Long.BYTES) {
+        final long value = target.getLong(offset) & other.getLong(offset);
+        target.setLong(offset, value);
+        if (value != 0) {
+          usedBytes = offset + Long.BYTES;
+        }
+      }
+
+      return usedBytes;
+    }
+
+    @Override
+    long extract(Memory source, long from, long to, Memory target) {
+      final int targetWords = (int) (((to - from - 1) >> 6) + 1);
+      final int shift = (int) (from & 0x3f);
+      final long startOffset = wordOffset(from);
+      final long lastSourceOffset = startOffset + (long) (targetWords - 1) * Long.BYTES;
+
+      long usedBytes = 0;
+      long offset = 0;
+      if (shift == 0) {
+        for (long sourceOffset = startOffset;
+             sourceOffset < lastSourceOffset;
+             sourceOffset += Long.BYTES, offset += Long.BYTES) {
+          final long word = source.getLong(sourceOffset);
+          if (word != 0) {
+            target.setLong(offset, word);
+            usedBytes = offset + Long.BYTES;
+          }
+        }
+      } else {
+        long current = source.getLong(startOffset);
+        for (long sourceOffset = startOffset;
+             sourceOffset < lastSourceOffset;
+             sourceOffset += Long.BYTES, offset += Long.BYTES) {
+          final long next = source.getLong(sourceOffset + Long.BYTES);
+          final long word = (current >>> shift) | (next << -shift);
+          if (word != 0) {
+            target.setLong(offset, word);
+            usedBytes = offset + Long.BYTES;
+          }
+          current = next;
+        }
+      }
+
+      return lastWord(source, lastSourceOffset, from, to, target, targetWords, usedBytes);
+    }
+
+    @Override
+    long cardinality(Memory memory, long length) {
+      final long unrolledEnd = length & ~(LANES * Long.BYTES - 1);
+
+      long c0 = 0;
+      long c1 = 0;
+      long c2 = 0;
+      long c3 = 0;
+      long offset = 0;
+      for (; offset < unrolledEnd; offset += LANES * Long.BYTES) {
+        c0 += Long.bitCount(memory.getLong(offset));
+        c1 += Long.bitCount(memory.getLong(offset + Long.BYTES));
+        c2 += Long.bitCount(memory.getLong(offset + 2 * Long.BYTES));
+        c3 += Long.bitCount(memory.getLong(offset + 3 * Long.BYTES));
+      }
+
+      for (; offset < length; offset += Long.BYTES) {
+        c0 += Long.bitCount(memory.getLong(offset));
+      }
+
+      return c0 + c1 + c2 + c3;
+    }
+
+    @Override
+    void forEachSetBit(MemoryBitSet bitSet, int offset, IntConsumer consumer) {
+      final Memory memory = bitSet.memory();
+      final long size = bitSet.size();
+      for (long wordOffset = 0; wordOffset < size; wordOffset += Long.BYTES) {
+        long word = memory.getLong(wordOffset);
+        final int base = offset + (int) (wordOffset * Byte.SIZE);
+        while (word != 0) {
+          consumer.accept(base + Long.numberOfTrailingZeros(word));
+          // Clear the lowest set bit
+          word &= word - 1;
+        }
+      }
+    }
+  };
+
+  private static final int LANES = 4;
+
+  /**
+   * Store the Boolean "and" combination of both memories in the target memory.
+   *
+   * @param length number of bytes to combine, has to be a multiple of {@link Long#BYTES}
+   * @return the number of bytes up to (and including) the last non-zero word of the result
+   */
+  abstract long and(Memory target, Memory other, long length);
+
+  /**
+   * Copy the bits within the specified range of the source to the start of the (zeroed) target memory.
+   *
+   * @param from start position (inclusive)
+   * @param to end position (exclusive), has to be within the size of the source
+   * @return the number of bytes up to (and including) the last non-zero word of the result
+   */
+  abstract long extract(Memory source, long from, long to, Memory target);
+
+  /**
+   * Count the bits set to 1 within the first bytes of the memory.
+   *
+   * @param length number of bytes to inspect, has to be a multiple of {@link Long#BYTES}
+   */
+  abstract long cardinality(Memory memory, long length);
+
+  /**
+   * Call the consumer with the position of every set bit, shifted by the specified offset.
+   */
+  abstract void forEachSetBit(MemoryBitSet bitSet, int offset, IntConsumer consumer);
+
+  private static long lastWord(
+      Memory source, long sourceOffset, long from, long to, Memory target, int targetWords, long usedBytes) {
+
+    final long lastWordMask = -1L >>> -to;
+    final long word;
+    if (((to - 1) & 0x3f) < (from & 0x3f)) {
+      word = (source.getLong(sourceOffset) >>> from)
+          | ((source.getLong(sourceOffset + Long.BYTES) & lastWordMask) << -from);
+    } else {
+      word = (source.getLong(sourceOffset) & lastWordMask) >>> from;
+    }
+
+    if (word != 0) {
+      final long offset = (long) (targetWords - 1) << 3;
+      target.setLong(offset, word);
+      return offset + Long.BYTES;
+    }
+    return usedBytes;
+  }
+
+  private static int usedLanes(long w0, long w1, long w2, long w3) {
+    if (w3 != 0) {
+      return 4;
+    }
+    if (w2 != 0) {
+      return 3;
+    }
+    return w1 != 0 ? 2 : 1;
+  }
+
+  private static long wordOffset(long bitPosition) {
+    return bitPosition >> 6 << 3;
+  }
+}
@@ -0,0 +1,474 @@
+package com.dynatrace.index.csc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.math.IntMath.isPowerOfTwo;
+
+import com.dynatrace.index.memory.Memory;
+import com.dynatrace.index.memory.MemoryReader;
+import com.dynatrace.index.util.IntEncoder;
+import com.dynatrace.index.util.MappedBufferUtil;
+import com.google.common.math.LongMath;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Blocked variant of the {@link ShiftingBloomFilter}. The bit array is divided into blocks of equal size and every
+ * token is assigned to a single block by an additional hash value. All hash functions of a token only select ankers
+ * within this block, and the shifted positions of the postings wrap around at the end of the block instead of the
+ * end of the bit array.
+ *
+ * <p>As a consequence, querying a token touches a single block instead of one random region of the bit array per hash
+ * function. The header is padded so that the bit array starts at a page boundary of the file, hence with a block size
+ * of at most one page, a query on a mapped file touches a single page, which reduces the page faults of cold queries.
+ * The price is a slightly higher false positive rate, since the load of the individual blocks is not perfectly
+ * balanced.
+ */
+public final class BlockedShiftingBloomFilter implements CscFilter {
+
+  /**
+   * Size of a page of the operating system, which is the default size of the blocks.
+   */
+  public static final int PAGE_BITS = 4096 * Byte.SIZE;
+
+  private static final int PAGE_SIZE = PAGE_BITS / Byte.SIZE;
+
+  /**
+   * Version of the serialized format, which is stored negated as first value of the header.
+   */
+  private static final int FORMAT_VERSION = 1;
+
+  private final MemoryBitSet repetition;
+  private final LocationHashing locationHashing;
+  private final int[] hashValues;
+  private final Supplier<UpdateScratch> updateScratch;
+  private final int partitions;
+  private final long capacity;
+  private final int blockBits;
+  private final int blockCount;
+  private final int blockMask;
+  @Nullable
+  private final Runnable closer;
+
+  // Scratch bit sets which are reused between queries, so the query path does not allocate
+  private final MemoryBitSet queryResult;
+  private final MemoryBitSet tokenResult;
+  private final MemoryBitSet hashResult;
+  private final MemoryBitSet wrappedResult;
+  private final QueryPlanner queryPlanner;
+  private final BatchQuery batchQuery;
+  private final BatchQuery.RangeReader batchReader;
+
+  private BlockedShiftingBloomFilter(
+      long capacity,
+      int blockBits,
+      MemoryBitSet repetition,
+      LocationHashing locationHashing,
+      int partitions,
+      boolean concurrent,
+      @Nullable Runnable closer) {
+
+    this.capacity = capacity;
+    this.blockBits = blockBits;
+    this.repetition = repetition;
+    this.locationHashing = locationHashing;
+    this.hashValues = new int[locationHashing.hashCount()];
+    this.updateScratch = UpdateScratch.supplier(locationHashing.hashCount(), concurrent);
+    this.partitions = partitions;
+    this.closer = closer;
+
+    this.blockCount = (int) (capacity / blockBits);
+    this.blockMask = blockBits - 1;
+
+    this.queryResult = new MemoryBitSet(partitions);
+    this.tokenResult = new MemoryBitSet(partitions);
+    this.hashResult = new MemoryBitSet(partitions);
+    this.wrappedResult = new MemoryBitSet(partitions);
+    this.queryPlanner = new QueryPlanner(locationHashing, this::estimatePostings);
+    this.batchQuery = new BatchQuery(partitions);
+    this.batchReader = (position, token, target) -> {
+      final long blockStart = position & ~(long) blockMask;
+      return repetition.getCircular(blockStart, position - blockStart, partitions, blockBits, target, wrappedResult);
+    };
+  }
+
+  /**
+   * Create a new instance which does not support concurrent updates.
+   *
+   * @param capacity capacity in bits of the filter
+   * @param blockBits size of the blocks in bits, e.g. {@link #PAGE_BITS} or 512 for blocks of one cache line
+   * @param hashes the number of hash functions to use within each block
+   * @param partitions the number of partitions, must not be larger than the block size
+   * @param hashScheme defines how the blocks and locations of tokens are calculated
+   */
+  public static BlockedShiftingBloomFilter create(
+      long capacity, int blockBits, int hashes, int partitions, CscHashScheme hashScheme) {
+    return create(capacity, blockBits, hashes, partitions, hashScheme, false);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param capacity capacity in bits of the filter
+   * @param blockBits size of the blocks in bits, e.g. {@link #PAGE_BITS} or 512 for blocks of one cache line
+   * @param hashes the number of hash functions to use within each block
+   * @param partitions the number of partitions, must not be larger than the block size
+   * @param hashScheme defines how the blocks and locations of tokens are calculated
+   * @param concurrent whether multiple threads may update the filter concurrently
+   */
+  public static BlockedShiftingBloomFilter create(
+      long capacity, int blockBits, int hashes, int partitions, CscHashScheme hashScheme, boolean concurrent) {
+    return create(capacity, blockBits, hashes, partitions, hashScheme, concurrent, CscMemoryType.HEAP);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param capacity capacity in bits of the filter
+   * @param blockBits size of the blocks in bits, e.g. {@link #PAGE_BITS} or 512 for blocks of one cache line
+   * @param hashes the number of hash functions to use within each block
+   * @param partitions the number of partitions, must not be larger than the block size
+   * @param hashScheme defines how the blocks and locations of tokens are calculated
+   * @param concurrent whether multiple threads may update the filter concurrently
+   * @param memoryType defines where the bit array is allocated
+   */
+  public static BlockedShiftingBloomFilter create(
+      long capacity,
+      int blockBits,
+      int hashes,
+      int partitions,
+      CscHashScheme hashScheme,
+      boolean concurrent,
+      CscMemoryType memoryType) {
+    return create(
+        capacity,
+        blockBits,
+        hashes,
+        partitions,
+        hashScheme,
+        ThreadLocalRandom.current().nextLong(),
+        SketchAllocator.create(memoryType, concurrent));
+  }
+
+  static BlockedShiftingBloomFilter create(
+      long capacity,
+      int blockBits,
+      int hashes,
+      int partitions,
+      CscHashScheme hashScheme,
+      long hashSeed,
+      SketchAllocator allocator) {
+
+    checkArgument(LongMath.isPowerOfTwo(capacity), "capacity must be a power of 2");
+    checkArgument(isPowerOfTwo(blockBits), "blockBits must be a power of 2");
+    checkArgument(isPowerOfTwo(partitions), "partitions must be a power of 2");
+    checkArgument(blockBits >= Long.SIZE && blockBits <= capacity, "blockBits must be within [64, capacity]");
+    checkArgument(partitions <= blockBits, "partitions must not be larger than blockBits");
+    checkArgument(capacity / blockBits <= Integer.MAX_VALUE, "capacity must not exceed 2^31 blocks");
+    checkArgument(hashes > 0, "Hashes must be larger than 0");
+
+    // The first hash value of a token selects the block
+    final LocationHashing locationHashing = LocationHashing.create(hashScheme, 1, hashes + 1, hashSeed);
+    return allocate(capacity, blockBits, locationHashing, partitions, allocator);
+  }
+
+  /**
+   * Create an empty filter of the same shape using the same hash functions, into which this filter can be merged.
+   */
+  BlockedShiftingBloomFilter emptyCopy(SketchAllocator allocator) {
+    return allocate(capacity, blockBits, locationHashing, partitions, allocator);
+  }
+
+  private static BlockedShiftingBloomFilter allocate(
+      long capacity, int blockBits, LocationHashing locationHashing, int partitions, SketchAllocator allocator) {
+
+    allocator.writeHeader(
+        out -> writeHeader(out, allocator.position(), capacity, blockBits, locationHashing, partitions));
+    final MemoryBitSet repetition = allocator.allocate(capacity);
+
+    return new BlockedShiftingBloomFilter(
+        capacity, blockBits, repetition, locationHashing, partitions, allocator.concurrent(), allocator.closer());
+  }
+
+  @Override
+  public void update(byte[] bytes, int[] offsets, int[] lengths, int count, int posting) {
+    for (int i = 0; i < count; i++) {
+      update(bytes, offsets[i], lengths[i], posting);
+    }
+  }
+
+  @Override
+  public void update(byte[] bytes, int offset, int length, int posting) {
+    final int[] updateHashes = updateScratch.get().hashValues;
+    locationHashing.hash(bytes, offset, length, updateHashes);
+    final long blockStart = blockStart(updateHashes[0]);
+    for (int i = 1; i < updateHashes.length; i++) {
+      final int anker = updateHashes[i] & blockMask;
+      repetition.set(blockStart + ((anker + posting) & blockMask));
+    }
+  }
+
+  @Override
+  public void query(byte[] bytes, IntConsumer postingsConsumer) {
+    queryInternal(bytes, queryResult).forEachSetBit(0, postingsConsumer);
+  }
+
+  @Override
+  public void queryAll(byte[][] bytes, IntConsumer postingsConsumer) {
+    MemoryBitSet result = queryInternal(bytes[0], queryResult);
+    for (int i = 1; i < bytes.length; i++) {
+      result.and(queryInternal(bytes[i], tokenResult));
+      if (result.isEmpty()) {
+        // Stop early if query cannot match anymore
+        return;
+      }
+    }
+
+    result.forEachSetBit(0, postingsConsumer);
+  }
+
+  @Override
+  public void queryAll(byte[] bytes, int[] offsets, int[] lengths, int count, IntConsumer postingsConsumer) {
+    final int plannedTokens = queryPlanner.plan(bytes, offsets, lengths, count);
+    if (plannedTokens == 0) {
+      return;
+    }
+
+    final int[] plannedHashes = queryPlanner.hashValues();
+    final MemoryBitSet result = queryHashes(plannedHashes, queryPlanner.hashOffset(0), queryResult);
+    for (int rank = 1; rank < plannedTokens && !result.isEmpty(); rank++) {
+      result.and(queryHashes(plannedHashes, queryPlanner.hashOffset(rank), tokenResult));
+    }
+
+    result.forEachSetBit(0, postingsConsumer);
+  }
+
+  @Override
+  public void queryBatch(byte[][] bytes, int[] offsets, int[] lengths, int count, BitSet[] results) {
+    checkArgument(results.length >= count, "A result is required for every token");
+    batchQuery.reset(count, capacity);
+    for (int token = 0; token < count; token++) {
+      locationHashing.hash(bytes[token], offsets[token], lengths[token], hashValues);
+      // The probes of a token are located within its block, so they are sorted next to each other
+      final long blockStart = blockStart(hashValues[0]);
+      for (int i = 1; i < hashValues.length; i++) {
+        batchQuery.addProbe(blockStart + (hashValues[i] & blockMask), token);
+      }
+    }
+
+    batchQuery.evaluate(batchReader);
+    for (int token = 0; token < count; token++) {
+      batchQuery.copy(batchQuery.result(token), results[token]);
+    }
+  }
+
+  @Override
+  public double[] fillRatios() {
+    return new double[]{repetition.cardinality() / (double) capacity};
+  }
+
+  @Override
+  public double expectedFalsePositiveRate() {
+    // Approximation, since the fill of the individual blocks varies around the fill ratio of the repetition. The first
+    // hash value only selects the block and does not probe a bit.
+    return Math.pow(fillRatio(), locationHashing.hashCount() - 1);
+  }
+
+  @Override
+  public long estimatedMemoryUsageBytes() {
+    return repetition.estimatedMemoryUsage();
+  }
+
+  @Override
+  public long estimatedOffHeapMemoryUsageBytes() {
+    return repetition.estimatedOffHeapMemoryUsage();
+  }
+
+  @Override
+  public void merge(CscFilter other) {
+    checkArgument(getClass() == other.getClass(), "Cannot merge %s into %s",
+        other.getClass().getSimpleName(), getClass().getSimpleName());
+    final BlockedShiftingBloomFilter that = (BlockedShiftingBloomFilter) other;
+    checkArgument(
+        capacity == that.capacity
+            && blockBits == that.blockBits
+            && partitions == that.partitions
+            && locationHashing.equals(that.locationHashing),
+        "Filters must have the same shape and hash functions");
+
+    repetition.or(that.repetition);
+  }
+
+  @Override
+  public void close() {
+    if (closer != null) {
+      closer.run();
+    }
+  }
+
+  @Override
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    // The header is written unbuffered, like the repetitions
+    final long position = channel instanceof SeekableByteChannel ? ((SeekableByteChannel) channel).position() : 0;
+    writeHeader(Channels.newOutputStream(channel), position, capacity, blockBits, locationHashing, partitions);
+
+    // Write repetition
+    repetition.writeTo(channel);
+  }
+
+  /**
+   * Write the header followed by the padding which moves the bit array to the next page boundary of the file.
+   *
+   * @param position the position of the header within the file
+   */
+  private static void writeHeader(
+      OutputStream out, long position, long capacity, int blockBits, LocationHashing locationHashing, int partitions)
+      throws IOException {
+    final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4];
+    byte[] longBuffer = new byte[8];
+
+    // Write header
+    IntEncoder.writeFullInt(buffer, 0, -FORMAT_VERSION);
+    header.write(buffer);
+    IntEncoder.writeFullInt(buffer, 0, locationHashing.scheme().id());
+    header.write(buffer);
+    IntEncoder.writeFullLong(longBuffer, 0, capacity);
+    header.write(longBuffer);
+    IntEncoder.writeFullInt(buffer, 0, blockBits);
+    header.write(buffer);
+    IntEncoder.writeFullInt(buffer, 0, locationHashing.hashCount());
+    header.write(buffer);
+    IntEncoder.writeFullInt(buffer, 0, partitions);
+    header.write(buffer);
+
+    // Write hash seeds
+    locationHashing.writeTo(header);
+
+    // Write padding, preceded by its length
+    final int padding = (int) Math.floorMod(-(position + header.size() + Integer.BYTES), (long) PAGE_SIZE);
+    IntEncoder.writeFullInt(buffer, 0, padding);
+    header.write(buffer);
+    header.write(new byte[padding]);
+    header.writeTo(out);
+  }
+
+  public static BlockedShiftingBloomFilter readFrom(FileInputStream in) throws IOException {
+    // Read header
+    final Header header = readHeader(in);
+
+    // Map main data into memory, split into multiple buffers if it exceeds the size limit of a single buffer
+    final long repetitionSize = header.capacity / 8;
+
+    final MappedByteBuffer[] mappedBuffers = MappedBufferUtil.mapReadOnly(
+        in.getChannel(),
+        in.getChannel().position(),
+        repetitionSize);
+
+    final Memory memory = Memory.readOnlyMappedMemory(mappedBuffers);
+    final MemoryReader memoryReader = new MemoryReader(memory);
+    final MemoryBitSet repetition = new MemoryBitSet(memoryReader.createView(repetitionSize));
+
+    return new BlockedShiftingBloomFilter(
+        header.capacity, header.blockBits, repetition, header.locationHashing, header.partitions, false,
+        () -> MappedBufferUtil.unmapBuffers(mappedBuffers));
+  }
+
+  public static BlockedShiftingBloomFilter readFrom(InputStream in) throws IOException {
+    // Read header
+    final Header header = readHeader(in);
+
+    // Read repetition
+    final long repetitionSize = header.capacity / 8;
+    final MemoryBitSet repetition = new MemoryBitSet(Memory.readHeapMemory(in, repetitionSize));
+
+    return new BlockedShiftingBloomFilter(
+        header.capacity, header.blockBits, repetition, header.locationHashing, header.partitions, false, null);
+  }
+
+  private static Header readHeader(InputStream in) throws IOException {
+    byte[] buffer = new byte[8];
+
+    in.readNBytes(buffer, 0, 4);
+    final int version = -IntEncoder.readFullInt(buffer, 0);
+    checkArgument(version == FORMAT_VERSION, "Unsupported format version %s", version);
+
+    in.readNBytes(buffer, 0, 4);
+    final CscHashScheme hashScheme = CscHashScheme.fromId(IntEncoder.readFullInt(buffer, 0));
+    in.readNBytes(buffer, 0, 8);
+    final long capacity = IntEncoder.readFullLong(buffer, 0);
+    in.readNBytes(buffer, 0, 4);
+    final int blockBits = IntEncoder.readFullInt(buffer, 0);
+    in.readNBytes(buffer, 0, 4);
+    final int hashCount = IntEncoder.readFullInt(buffer, 0);
+    in.readNBytes(buffer, 0, 4);
+    final int partitions = IntEncoder.readFullInt(buffer, 0);
+
+    // Read hashes
+    final LocationHashing locationHashing = LocationHashing.readFrom(hashScheme, 1, hashCount, in);
+
+    // Skip padding
+    in.readNBytes(buffer, 0, 4);
+    in.readNBytes(IntEncoder.readFullInt(buffer, 0));
+
+    return new Header(capacity, blockBits, partitions, locationHashing);
+  }
+
+  private MemoryBitSet queryInternal(byte[] bytes, MemoryBitSet result) {
+    locationHashing.hash(bytes, 0, bytes.length, hashValues);
+    return queryHashes(hashValues, 0, result);
+  }
+
+  private MemoryBitSet queryHashes(int[] hashes, int hashOffset, MemoryBitSet result) {
+    final long blockStart = blockStart(hashes[hashOffset]);
+    for (int i = 1; i < hashValues.length; i++) {
+      final int anker = hashes[hashOffset + i] & blockMask;
+
+      if (i == 1) {
+        repetition.getCircular(blockStart, anker, partitions, blockBits, result, wrappedResult);
+      } else {
+        repetition.getCircular(blockStart, anker, partitions, blockBits, hashResult, wrappedResult);
+        result.and(hashResult);
+      }
+    }
+
+    return result;
+  }
+
+  private long estimatePostings(int[] hashes) {
+    // The postings of the token are a subset of the bits within the range of any of its ankers
+    return repetition.cardinalityCircular(blockStart(hashes[0]), hashes[1] & blockMask, partitions, blockBits);
+  }
+
+  private long blockStart(int hash) {
+    // Maps the hash to [0, blockCount) via multiplication, which uses the high bits of the hash and therefore stays
+    // independent of the low bits used for the ankers within the block
+    final long block = ((hash & 0xFFFFFFFFL) * blockCount) >>> 32;
+    return block * blockBits;
+  }
+
+  private static final class Header {
+    final long capacity;
+    final int blockBits;
+    final int partitions;
+    final LocationHashing locationHashing;
+
+    Header(long capacity, int blockBits, int partitions, LocationHashing locationHashing) {
+      this.capacity = capacity;
+      this.blockBits = blockBits;
+      this.partitions = partitions;
+      this.locationHashing = locationHashing;
+    }
+  }
+}
@@ -2,7 +2,6 @@ package com.dynatrace.index.csc;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.math.IntMath.isPowerOfTwo;
-import static java.util.Objects.requireNonNull;
 
 import com.dynatrace.hash4j.hashing.Hasher32;
 import com.dynatrace.hash4j.hashing.Hashing;
@@ -10,17 +9,19 @@ import com.dynatrace.index.memory.Memory;
 import com.dynatrace.index.memory.MemoryReader;
 import com.dynatrace.index.util.IntEncoder;
 import com.dynatrace.index.util.MappedBufferUtil;
+import com.google.common.math.LongMath;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
-import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 
 /**
  * Implementation of the "Circular Shift And Coalesce Bloom Filter" from the paper
@@ -28,43 +29,106 @@ import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
  */
 public final class CscBloomFilter implements CscFilter {
 
+  /**
+   * Version of the serialized format. Headers of versioned formats start with the negated version, while the first
+   * value of the original, un-versioned header is the (positive) repetition count. Version 3 stores the capacity of
+   * the repetitions as long, version 4 stores the {@link PartitionFunction} between the hash seeds and the repetitions.
+   */
+  private static final int FORMAT_VERSION = 4;
+  private static final int LONG_CAPACITY_VERSION = 3;
+
   private final MemoryBitSet[] repetitions;
-  private final Hasher32[][] locationHashes;
+  private final LocationHashing locationHashing;
   private final Hasher32[] partitionHashes;
-  private final int[][] locationHashSeeds;
-  private final int repetitionCapacity;
+  private final int[] hashValues;
+  private final Supplier<UpdateScratch> updateScratch;
+  private final int hashCount;
+  private final long repetitionCapacity;
   private final int partitions;
   private final int sets;
   @Nullable
   private final Runnable closer;
-  private final int capacityMask;
+  private final AnkerFunction ankerFunction;
   private final int partitionMask;
-  private final int[][][] partitionFunction;
-  private final byte[] encodingBuffer = new byte[4];
+  private final PartitionFunction partitionFunction;
+
+  // Scratch state which is reused between queries, so the query path does not allocate
+  private final MemoryBitSet queryResult;
+  private final MemoryBitSet tokenResult;
+  private final MemoryBitSet repetitionResult;
+  private final MemoryBitSet partitionResult;
+  private final MemoryBitSet hashResult;
+  private final MemoryBitSet wrappedResult;
+  private final PartitionExpansion partitionExpansion;
+  private final QueryPlanner queryPlanner;
+  private final BatchQuery batchQuery;
+  private final BatchQuery.RangeReader batchReader;
 
   private CscBloomFilter(
-      int repetitionCapacity,
+      long repetitionCapacity,
       MemoryBitSet[] repetitions,
-      Hasher32[][] locationHashes,
+      LocationHashing locationHashing,
       Hasher32[] partitionHashes,
-      int[][] locationHashSeeds,
-      int[][][] partitionFunction,
+      PartitionFunction partitionFunction,
       int partitions,
       int sets,
+      boolean concurrent,
       @Nullable Runnable closer) {
 
     this.repetitionCapacity = repetitionCapacity;
     this.repetitions = repetitions;
-    this.locationHashes = locationHashes;
-    this.locationHashSeeds = locationHashSeeds;
+    this.locationHashing = locationHashing;
+    this.hashCount = locationHashing.hashCount();
+    this.hashValues = new int[repetitions.length * hashCount];
+    this.updateScratch = UpdateScratch.supplier(hashValues.length, concurrent);
     this.partitionHashes = partitionHashes;
     this.partitionFunction = partitionFunction;
     this.partitions = partitions;
     this.sets = sets;
     this.closer = closer;
 
-    this.capacityMask = bitMask(repetitionCapacity);
+    this.ankerFunction = AnkerFunction.create(repetitionCapacity, partitions);
     this.partitionMask = bitMask(partitions);
+
+    this.queryResult = new MemoryBitSet(sets);
+    this.tokenResult = new MemoryBitSet(sets);
+    this.repetitionResult = new MemoryBitSet(sets);
+    this.partitionResult = new MemoryBitSet(partitions);
+    this.hashResult = new MemoryBitSet(partitions);
+    this.wrappedResult = new MemoryBitSet(partitions);
+    this.queryPlanner = new QueryPlanner(locationHashing, this::estimatePostings);
+    this.partitionExpansion = new PartitionExpansion();
+    this.batchQuery = new BatchQuery(partitions);
+    this.batchReader = (position, group, target) -> {
+      // The probes of repetition r are located at r * repetitionCapacity + anker, see queryBatch
+      final int repetitionIndex = group % repetitions.length;
+      final long anker = position - repetitionIndex * repetitionCapacity;
+      return repetitions[repetitionIndex].getCircular(anker, partitions, repetitionCapacity, target, wrappedResult);
+    };
+  }
+
+  /**
+   * Create a new CSC-BF instance using the {@link CscHashScheme#MURMUR3} hash scheme.
+   *
+   * @param capacity capacity in bits of each repetition
+   * @param hashes the number of hash functions to use in each repetition
+   * @param partitions the number of partitions per repetition
+   */
+  public static CscFilter create(long capacity, int hashes, int repetitions, int partitions, int sets) {
+    return create(capacity, hashes, repetitions, partitions, sets, CscHashScheme.MURMUR3);
+  }
+
+  /**
+   * Create a new CSC-BF instance.
+   *
+   * @param capacity capacity in bits of each repetition
+   * @param hashes the number of hash functions to use in each repetition
+   * @param partitions the number of partitions per repetition
+   * @param hashScheme defines how the locations of tokens are calculated
+   */
+  public static CscFilter create(
+      long capacity, int hashes, int repetitions, int partitions, int sets, CscHashScheme hashScheme) {
+    return create(capacity, hashes, repetitions, partitions, sets, hashScheme, false);
   }
 
   /**
@@ -73,46 +137,111 @@ public final class CscBloomFilter implements CscFilter {
    * @param capacity capacity in bits of each repetition
    * @param hashes the number of hash functions to use in each repetition
    * @param partitions the number of partitions per repetition
+   * @param hashScheme defines how the locations of tokens are calculated
+   * @param concurrent whether multiple threads may update the filter concurrently
    */
-  public static CscFilter create(int capacity, int hashes, int repetitions, int partitions, int sets) {
-    checkArgument(isPowerOfTwo(capacity), "capacity must be a power of 2");
+  public static CscFilter create(
+      long capacity,
+      int hashes,
+      int repetitions,
+      int partitions,
+      int sets,
+      CscHashScheme hashScheme,
+      boolean concurrent) {
+    return create(capacity, hashes, repetitions, partitions, sets, hashScheme, concurrent, CscMemoryType.HEAP);
+  }
+
+  /**
+   * Create a new CSC-BF instance.
+   *
+   * @param capacity capacity in bits of each repetition
+   * @param hashes the number of hash functions to use in each repetition
+   * @param partitions the number of partitions per repetition
+   * @param hashScheme defines how the locations of tokens are calculated
+   * @param concurrent whether multiple threads may update the filter concurrently
+   * @param memoryType defines where the repetitions are allocated
+   */
+  public static CscFilter create(
+      long capacity,
+      int hashes,
+      int repetitions,
+      int partitions,
+      int sets,
+      CscHashScheme hashScheme,
+      boolean concurrent,
+      CscMemoryType memoryType) {
+    return create(
+        capacity,
+        hashes,
+        repetitions,
+        partitions,
+        sets,
+        hashScheme,
+        ThreadLocalRandom.current().nextLong(),
+        SketchAllocator.create(memoryType, concurrent));
+  }
+
+  static CscBloomFilter create(
+      long capacity,
+      int hashes,
+      int repetitions,
+      int partitions,
+      int sets,
+      CscHashScheme hashScheme,
+      long hashSeed,
+      SketchAllocator allocator) {
+
+    checkArgument(LongMath.isPowerOfTwo(capacity), "capacity must be a power of 2");
     checkArgument(isPowerOfTwo(repetitions), "repetitions must be a power of 2");
     checkArgument(isPowerOfTwo(partitions), "partitions must be a power of 2");
     checkArgument(hashes > 0, "Hashes must be larger than 0");
 
-    final int repetitionCapacity = capacity / repetitions;
-    final MemoryBitSet[] repetitionBitSets = new MemoryBitSet[repetitions];
-    final Hasher32[][] locationHashes = new Hasher32[repetitions][hashes];
-    final int[][] locationHashSeeds = new int[repetitions][hashes];
+    final LocationHashing locationHashing = LocationHashing.create(hashScheme, repetitions, hashes, hashSeed);
     final Hasher32[] partitionHashes = createPartitionHashes(repetitions);
+    final PartitionFunction partitionFunction = createPartitionFunction(partitionHashes, partitions, sets);
+
+    return allocate(
+        capacity / repetitions, locationHashing, partitionHashes, partitionFunction, partitions, sets, allocator);
+  }
+
+  /**
+   * Create an empty filter of the same shape using the same hash functions, into which this filter can be merged.
+   */
+  CscBloomFilter emptyCopy(SketchAllocator allocator) {
+    // The partition function of a filter read from disk resides in read-only memory owned by that filter
+    final PartitionFunction copiedFunction = createPartitionFunction(partitionHashes, partitions, sets);
+    return allocate(repetitionCapacity, locationHashing, partitionHashes, copiedFunction, partitions, sets, allocator);
+  }
+
+  private static CscBloomFilter allocate(
+      long repetitionCapacity,
+      LocationHashing locationHashing,
+      Hasher32[] partitionHashes,
+      PartitionFunction partitionFunction,
+      int partitions,
+      int sets,
+      SketchAllocator allocator) {
 
-    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int repetitions = locationHashing.repetitions();
+    final MemoryBitSet[] repetitionBitSets = new MemoryBitSet[repetitions];
+
+    // Mapped repetitions are allocated back to back behind the header
+    allocator.writeHeader(out -> writeHeader(
+        out, repetitionCapacity, repetitions, locationHashing, partitionFunction, partitions, sets));
     for (int r = 0; r < repetitions; r++) {
-      repetitionBitSets[r] = new MemoryBitSet(repetitionCapacity);
-
-      // Location hashes
-      Hasher32[] hashFunctions = new Hasher32[hashes];
-      int[] seeds = new int[hashes];
-      locationHashes[r] = hashFunctions;
-      locationHashSeeds[r] = seeds;
-      for (int i = 0; i < hashes; i++) {
-        seeds[i] = random.nextInt();
-        hashFunctions[i] = Hashing.murmur3_32(seeds[i]);
-      }
+      repetitionBitSets[r] = allocator.allocate(repetitionCapacity);
     }
 
-    final int[][][] partitionFunction = createPartitionFunction(partitionHashes, repetitions, partitions, sets);
-
     return new CscBloomFilter(
         repetitionCapacity,
         repetitionBitSets,
-        locationHashes,
+        locationHashing,
         partitionHashes,
-        locationHashSeeds,
         partitionFunction,
         partitions,
         sets,
-        null);
+        allocator.concurrent(),
+        allocator.closer());
   }
 
   @Override
@@ -124,39 +253,97 @@ public final class CscBloomFilter implements CscFilter {
 
   @Override
   public void update(byte[] bytes, int offset, int length, int posting) {
+    final UpdateScratch scratch = updateScratch.get();
+    locationHashing.hash(bytes, offset, length, scratch.hashValues);
     for (int r = 0; r < repetitions.length; r++) {
       final MemoryBitSet repetition = repetitions[r];
-      final Hasher32[] hashes = locationHashes[r];
 
       final int partition = powerOfTwoModulo(
-          partitionHashes[r].hashBytesToInt(toBytes(posting, encodingBuffer)),
+          partitionHashes[r].hashBytesToInt(toBytes(posting, scratch.encodingBuffer)),
           partitionMask);
-      for (Hasher32 hasher : hashes) {
-        final int hash = hasher.hashBytesToInt(bytes, offset, length);
-        final int anker = powerOfTwoModulo(hash, capacityMask);
-        final int position = powerOfTwoModulo(anker + partition, capacityMask);
-        repetition.set(position);
+      for (int i = r * hashCount; i < (r + 1) * hashCount; i++) {
+        repetition.set(ankerFunction.position(ankerFunction.anker(scratch.hashValues[i]), partition));
       }
     }
   }
 
   @Override
   public void query(byte[] bytes, IntConsumer postingsConsumer) {
-    final MemoryBitSet result = queryInternal(bytes);
+    final MemoryBitSet result = queryInternal(bytes, queryResult);
     consumeMatches(result, 0, postingsConsumer);
   }
 
   @Override
   public void queryAll(byte[][] bytes, IntConsumer postingsConsumer) {
-    MemoryBitSet result = queryInternal(bytes[0]);
+    MemoryBitSet result = queryInternal(bytes[0], queryResult);
     for (int i = 1; i < bytes.length && !result.isEmpty(); i++) {
-      MemoryBitSet tokenResult = queryInternal(bytes[i]);
-      result.and(tokenResult);
+      result.and(queryInternal(bytes[i], tokenResult));
+    }
+
+    consumeMatches(result, 0, postingsConsumer);
+  }
+
+  @Override
+  public void queryAll(byte[] bytes, int[] offsets, int[] lengths, int count, IntConsumer postingsConsumer) {
+    final int plannedTokens = queryPlanner.plan(bytes, offsets, lengths, count);
+    if (plannedTokens == 0) {
+      return;
+    }
+
+    final int[] plannedHashes = queryPlanner.hashValues();
+    final MemoryBitSet result = queryHashes(plannedHashes, queryPlanner.hashOffset(0), queryResult);
+    for (int rank = 1; rank < plannedTokens && !result.isEmpty(); rank++) {
+      result.and(queryHashes(plannedHashes, queryPlanner.hashOffset(rank), tokenResult));
     }
 
     consumeMatches(result, 0, postingsConsumer);
   }
 
+  @Override
+  public void queryBatch(byte[][] bytes, int[] offsets, int[] lengths, int count, BitSet[] results) {
+    checkArgument(results.length >= count, "A result is required for every token");
+    // Every repetition of a token forms a group, whose partitions are expanded to sets after all probes were read
+    batchQuery.reset(count * repetitions.length, repetitions.length * repetitionCapacity);
+    for (int token = 0; token < count; token++) {
+      locationHashing.hash(bytes[token], offsets[token], lengths[token], hashValues);
+      for (int r = 0; r < repetitions.length; r++) {
+        final int group = token * repetitions.length + r;
+        for (int i = r * hashCount; i < (r + 1) * hashCount; i++) {
+          batchQuery.addProbe(r * repetitionCapacity + ankerFunction.anker(hashValues[i]), group);
+        }
+      }
+    }
+
+    batchQuery.evaluate(batchReader);
+    for (int token = 0; token < count; token++) {
+      final int firstGroup = token * repetitions.length;
+      expandPartitions(0, batchQuery.result(firstGroup), queryResult);
+      for (int r = 1; r < repetitions.length && !queryResult.isEmpty(); r++) {
+        queryResult.and(expandPartitions(r, batchQuery.result(firstGroup + r), repetitionResult));
+      }
+      batchQuery.copy(queryResult, results[token]);
+    }
+  }
+
+  @Override
+  public double[] fillRatios() {
+    final double[] fillRatios = new double[repetitions.length];
+    for (int r = 0; r < repetitions.length; r++) {
+      fillRatios[r] = repetitions[r].cardinality() / (double) repetitionCapacity;
+    }
+    return fillRatios;
+  }
+
+  @Override
+  public double expectedFalsePositiveRate() {
+    // The repetitions use independent hash functions, so a posting has to be falsely returned by every repetition
+    double rate = 1;
+    for (double fillRatio : fillRatios()) {
+      rate *= Math.pow(fillRatio, hashCount);
+    }
+    return rate;
+  }
+
   @Override
   public long estimatedMemoryUsageBytes() {
     long size = 0;
@@ -166,6 +353,33 @@ public final class CscBloomFilter implements CscFilter {
     return size;
   }
 
+  @Override
+  public long estimatedOffHeapMemoryUsageBytes() {
+    long size = 0;
+    for (MemoryBitSet repetition : repetitions) {
+      size += repetition.estimatedOffHeapMemoryUsage();
+    }
+    return size;
+  }
+
+  @Override
+  public void merge(CscFilter other) {
+    checkArgument(getClass() == other.getClass(), "Cannot merge %s into %s",
+        other.getClass().getSimpleName(), getClass().getSimpleName());
+    final CscBloomFilter that = (CscBloomFilter) other;
+    // Equal sets and partitions result in the same partition function
+    checkArgument(
+        repetitionCapacity == that.repetitionCapacity
+            && partitions == that.partitions
+            && sets == that.sets
+            && locationHashing.equals(that.locationHashing),
+        "Filters must have the same shape and hash functions");
+
+    for (int r = 0; r < repetitions.length; r++) {
+      repetitions[r].or(that.repetitions[r]);
+    }
+  }
+
   @Override
   public void close() {
     if (closer != null) {
@@ -174,15 +388,45 @@ public final class CscBloomFilter implements CscFilter {
   }
 
   @Override
-  public void writeTo(OutputStream out) throws IOException {
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    // The header is written unbuffered, like the repetitions
+    writeHeader(
+        Channels.newOutputStream(channel),
+        repetitionCapacity,
+        repetitions.length,
+        locationHashing,
+        partitionFunction,
+        partitions,
+        sets);
+
+    // Write repetitions
+    // All repetition byte buffers have the same capacity
+    for (MemoryBitSet repetition : repetitions) {
+      repetition.writeTo(channel);
+    }
+  }
+
+  private static void writeHeader(
+      OutputStream out,
+      long repetitionCapacity,
+      int repetitions,
+      LocationHashing locationHashing,
+      PartitionFunction partitionFunction,
+      int partitions,
+      int sets) throws IOException {
     byte[] buffer = new byte[4];
+    byte[] longBuffer = new byte[8];
 
     // Write header
-    IntEncoder.writeFullInt(buffer, 0, repetitions.length);
+    IntEncoder.writeFullInt(buffer, 0, -FORMAT_VERSION);
+    out.write(buffer);
+    IntEncoder.writeFullInt(buffer, 0, locationHashing.scheme().id());
     out.write(buffer);
-    IntEncoder.writeFullInt(buffer, 0, repetitionCapacity);
+    IntEncoder.writeFullInt(buffer, 0, repetitions);
     out.write(buffer);
-    IntEncoder.writeFullInt(buffer, 0, locationHashes[0].length);
+    IntEncoder.writeFullLong(longBuffer, 0, repetitionCapacity);
+    out.write(longBuffer);
+    IntEncoder.writeFullInt(buffer, 0, locationHashing.hashCount());
     out.write(buffer);
     IntEncoder.writeFullInt(buffer, 0, partitions);
     out.write(buffer);
@@ -190,95 +434,112 @@ public final class CscBloomFilter implements CscFilter {
     out.write(buffer);
 
     // Write hash seeds
-    for (int[] seeds : locationHashSeeds) {
-      for (int seed : seeds) {
-        IntEncoder.writeFullInt(buffer, 0, seed);
-        out.write(buffer);
-      }
-    }
+    locationHashing.writeTo(out);
 
-    // Write repetitions
-    // All repetition byte buffers have the same capacity
-    for (MemoryBitSet repetition : repetitions) {
-      repetition.writeTo(out);
-    }
+    // Write partition function
+    partitionFunction.writeTo(out);
   }
 
   public static CscFilter readFrom(FileInputStream in) throws IOException {
     // Read header
     final Header header = readHeader(in);
 
-    // Read repetitions
-    // Map main data into memory
-    final int repetitionSize = header.repetitionCapacity / 8;
+    // Map the partition function and the repetitions into memory, split into multiple buffers if they exceed the size
+    // limit of a single buffer
+    final long partitionFunctionSize = header.hasPartitionFunction()
+        ? PartitionFunction.sizeBytes(header.repetitionCount, header.partitions, header.sets)
+        : 0;
+    final long repetitionSize = header.repetitionCapacity / 8;
 
-    final MappedByteBuffer mappedBuffer = in.getChannel().map(
-        FileChannel.MapMode.READ_ONLY,
+    final MappedByteBuffer[] mappedBuffers = MappedBufferUtil.mapReadOnly(
+        in.getChannel(),
         in.getChannel().position(),
-        (long) repetitionSize * header.repetitionCount);
-    mappedBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        partitionFunctionSize + repetitionSize * header.repetitionCount);
 
-    final Memory memory = Memory.readOnlyMappedMemory(mappedBuffer);
+    final Memory memory = Memory.readOnlyMappedMemory(mappedBuffers);
     final MemoryReader memoryReader = new MemoryReader(memory);
 
+    final Hasher32[] partitionHashes = createPartitionHashes(header.repetitionCount);
+    final PartitionFunction partitionFunction = header.hasPartitionFunction()
+        ? PartitionFunction.view(memoryReader, header.repetitionCount, header.partitions, header.sets)
+        : createPartitionFunction(partitionHashes, header.partitions, header.sets);
+
     final MemoryBitSet[] repetitions = new MemoryBitSet[header.repetitionCount];
     for (int i = 0; i < header.repetitionCount; i++) {
       final Memory repetitionMemory = memoryReader.createView(repetitionSize);
       repetitions[i] = new MemoryBitSet(repetitionMemory);
     }
 
-    final Hasher32[] partitionHashes = createPartitionHashes(repetitions.length);
-    final int[][][] partitionFunction = createPartitionFunction(
-        partitionHashes, repetitions.length, header.partitions, header.sets);
-
     return new CscBloomFilter(
         header.repetitionCapacity,
         repetitions,
-        header.locationHashes,
+        header.locationHashing,
         partitionHashes,
-        header.hashSeeds,
         partitionFunction,
         header.partitions,
         header.sets,
-        () -> MappedBufferUtil.unmapBuffer(mappedBuffer));
+        false,
+        () -> MappedBufferUtil.unmapBuffers(mappedBuffers));
   }
 
   public static CscFilter readFrom(InputStream in) throws IOException {
     // Read header
     final Header header = readHeader(in);
 
+    final Hasher32[] partitionHashes = createPartitionHashes(header.repetitionCount);
+    final PartitionFunction partitionFunction = header.hasPartitionFunction()
+        ? PartitionFunction.readFrom(in, header.repetitionCount, header.partitions, header.sets)
+        : createPartitionFunction(partitionHashes, header.partitions, header.sets);
+
     // Read repetitions
-    final int repetitionSize = header.repetitionCapacity / 8;
+    final long repetitionSize = header.repetitionCapacity / 8;
     final MemoryBitSet[] repetitions = new MemoryBitSet[header.repetitionCount];
     for (int i = 0; i < header.repetitionCount; i++) {
-      final byte[] bytes = in.readNBytes(repetitionSize);
-      repetitions[i] = new MemoryBitSet(Memory.readOnlyHeapMemory(bytes));
+      repetitions[i] = new MemoryBitSet(Memory.readHeapMemory(in, repetitionSize));
     }
 
-    final Hasher32[] partitionHashes = createPartitionHashes(repetitions.length);
-    final int[][][] partitionFunction = createPartitionFunction(
-        partitionHashes, repetitions.length, header.partitions, header.sets);
-
     return new CscBloomFilter(
         header.repetitionCapacity,
         repetitions,
-        header.locationHashes,
+        header.locationHashing,
         partitionHashes,
-        header.hashSeeds,
         partitionFunction,
         header.partitions,
         header.sets,
+        false,
         null);
   }
 
   private static Header readHeader(InputStream in) throws IOException {
-    byte[] buffer = new byte[4];
+    byte[] buffer = new byte[8];
 
     // Read header
     in.readNBytes(buffer, 0, 4);
-    final int repetitionCount = IntEncoder.readFullInt(buffer, 0);
-    in.readNBytes(buffer, 0, 4);
-    final int repetitionCapacity = IntEncoder.readFullInt(buffer, 0);
+    final int firstValue = IntEncoder.readFullInt(buffer, 0);
+
+    // The original format has version 0
+    final int version = Math.max(0, -firstValue);
+    final CscHashScheme hashScheme;
+    final int repetitionCount;
+    if (firstValue < 0) {
+      in.readNBytes(buffer, 0, 4);
+      hashScheme = CscHashScheme.fromId(IntEncoder.readFullInt(buffer, 0));
+      in.readNBytes(buffer, 0, 4);
+      repetitionCount = IntEncoder.readFullInt(buffer, 0);
+    } else {
+      // Original format without version, which always used murmur3 hashes
+      hashScheme = CscHashScheme.MURMUR3;
+      repetitionCount = firstValue;
+    }
+
+    final long repetitionCapacity;
+    if (version >= LONG_CAPACITY_VERSION) {
+      in.readNBytes(buffer, 0, 8);
+      repetitionCapacity = IntEncoder.readFullLong(buffer, 0);
+    } else {
+      in.readNBytes(buffer, 0, 4);
+      repetitionCapacity = IntEncoder.readFullInt(buffer, 0);
+    }
     in.readNBytes(buffer, 0, 4);
     final int hashCount = IntEncoder.readFullInt(buffer, 0);
     in.readNBytes(buffer, 0, 4);
@@ -287,65 +548,61 @@ public final class CscBloomFilter implements CscFilter {
     final int sets = IntEncoder.readFullInt(buffer, 0);
 
     // Read hashes
-    final int[][] hashSeeds = new int[repetitionCount][hashCount];
-    final Hasher32[][] repetitionHashes = new Hasher32[repetitionCount][hashCount];
-    for (int i = 0; i < repetitionCount; i++) {
-      for (int j = 0; j < hashCount; j++) {
-        in.readNBytes(buffer, 0, 4);
-        hashSeeds[i][j] = IntEncoder.readFullInt(buffer, 0);
-        repetitionHashes[i][j] = Hashing.murmur3_32(hashSeeds[i][j]);
-      }
-    }
+    final LocationHashing locationHashing = LocationHashing.readFrom(hashScheme, repetitionCount, hashCount, in);
 
-    return new Header(repetitionCount, repetitionCapacity, hashCount, partitions, sets, hashSeeds, repetitionHashes);
+    return new Header(version, repetitionCount, repetitionCapacity, partitions, sets, locationHashing);
   }
 
-  private MemoryBitSet queryInternal(byte[] bytes) {
-    MemoryBitSet result = new MemoryBitSet(sets);
-    MemoryBitSet temp = new MemoryBitSet(sets);
+  private MemoryBitSet queryInternal(byte[] bytes, MemoryBitSet result) {
+    locationHashing.hash(bytes, 0, bytes.length, hashValues);
+    return queryHashes(hashValues, 0, result);
+  }
 
-    queryRepetition(0, bytes, result::set);
+  private MemoryBitSet queryHashes(int[] hashes, int hashOffset, MemoryBitSet result) {
+    queryRepetition(0, hashes, hashOffset, result);
     for (int i = 1; i < repetitions.length && !result.isEmpty(); i++) {
-      queryRepetition(i, bytes, temp::set);
-      result.and(temp);
+      result.and(queryRepetition(i, hashes, hashOffset, repetitionResult));
     }
 
     return result;
   }
 
-  private void queryRepetition(int repetitionIndex, byte[] bytes, IntConsumer setConsumer) {
+  private MemoryBitSet queryRepetition(int repetitionIndex, int[] hashes, int hashOffset, MemoryBitSet result) {
     final MemoryBitSet repetition = repetitions[repetitionIndex];
-    final Hasher32[] hashes = locationHashes[repetitionIndex];
+    final int repetitionHashOffset = hashOffset + repetitionIndex * hashCount;
 
-    MemoryBitSet result = null;
-    for (Hasher32 hasher : hashes) {
-      final int hash = hasher.hashBytesToInt(bytes, 0, bytes.length);
-      final int anker = powerOfTwoModulo(hash, capacityMask);
-
-      final int endPosition = anker + partitions;
-      final MemoryBitSet hashResult;
-      if (endPosition < repetitionCapacity) {
-        hashResult = repetition.get(anker, endPosition);
-      } else {
-        // Handle the circular shift
-        hashResult = repetition.get(anker, repetitionCapacity);
-        final MemoryBitSet shifted = repetition.get(0, endPosition - repetitionCapacity);
-        consumeMatches(shifted, repetitionCapacity - anker, hashResult::set);
-      }
+    for (int i = 0; i < hashCount; i++) {
+      final long anker = ankerFunction.anker(hashes[repetitionHashOffset + i]);
 
-      if (result == null) {
-        result = hashResult;
+      if (i == 0) {
+        repetition.getCircular(anker, partitions, repetitionCapacity, partitionResult, wrappedResult);
       } else {
-        result.and(hashResult);
+        repetition.getCircular(anker, partitions, repetitionCapacity, hashResult, wrappedResult);
+        partitionResult.and(hashResult);
       }
     }
 
-    requireNonNull(result);
-    for (int p = result.nextSetBit(0); p >= 0; p = result.nextSetBit(p + 1)) {
-      for (int set : partitionFunction[repetitionIndex][p]) {
-        setConsumer.accept(set);
-      }
+    return expandPartitions(repetitionIndex, partitionResult, result);
+  }
+
+  private MemoryBitSet expandPartitions(int repetitionIndex, MemoryBitSet matchingPartitions, MemoryBitSet result) {
+    result.clear();
+    partitionExpansion.reset(repetitionIndex, result);
+    matchingPartitions.forEachSetBit(0, partitionExpansion);
+    return result;
+  }
+
+  private long estimatePostings(int[] hashes) {
+    // The partitions of the token within each repetition are a subset of the bits within the range of any of its
+    // hash functions. Every partition expands to the same number of sets on average, so the repetition with the
+    // fewest partitions bounds the postings the closest.
+    long minPartitions = Long.MAX_VALUE;
+    for (int r = 0; r < repetitions.length; r++) {
+      final long anker = ankerFunction.anker(hashes[r * hashCount]);
+      minPartitions = Math.min(
+          minPartitions, repetitions[r].cardinalityCircular(0, anker, partitions, repetitionCapacity));
     }
+    return minPartitions;
   }
 
   private static int powerOfTwoModulo(int value, int bitMask) {
@@ -359,9 +616,7 @@ public final class CscBloomFilter implements CscFilter {
   }
 
   private static void consumeMatches(MemoryBitSet result, int offset, IntConsumer postingsConsumer) {
-    for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
-      postingsConsumer.accept(offset + i);
-    }
+    result.forEachSetBit(offset, postingsConsumer);
   }
 
   private static Hasher32[] createPartitionHashes(int repetitions) {
@@ -372,39 +627,11 @@ public final class CscBloomFilter implements CscFilter {
     return hashes;
   }
 
-  private static int[][][] createPartitionFunction(
-      Hasher32[] partitionHashes, int repetitions, int partitions, int sets) {
-
+  private static PartitionFunction createPartitionFunction(Hasher32[] partitionHashes, int partitions, int sets) {
     final byte[] encodingBuffer = new byte[4];
     final int partitionMask = bitMask(partitions);
-    final IntArrayList[][] tempFunction = new IntArrayList[repetitions][partitions];
-    for (int s = 0; s < sets; s++) {
-      for (int r = 0; r < repetitions; r++) {
-        final int partition = powerOfTwoModulo(
-            partitionHashes[r].hashBytesToInt(toBytes(s, encodingBuffer)),
-            partitionMask);
-        IntArrayList partitionSets = tempFunction[r][partition];
-        if (partitionSets == null) {
-          partitionSets = new IntArrayList(4);
-          tempFunction[r][partition] = partitionSets;
-        }
-        partitionSets.add(s);
-      }
-    }
-
-    final int[][][] partitionFunction = new int[repetitions][partitions][];
-    for (int r = 0; r < repetitions; r++) {
-      for (int p = 0; p < partitions; p++) {
-        final IntArrayList tempSets = tempFunction[r][p];
-        if (tempSets != null) {
-          partitionFunction[r][p] = tempSets.toArray();
-        } else {
-          partitionFunction[r][p] = new int[0];
-        }
-      }
-    }
-
-    return partitionFunction;
+    return PartitionFunction.compute(partitionHashes.length, partitions, sets, (repetition, set) ->
+        powerOfTwoModulo(partitionHashes[repetition].hashBytesToInt(toBytes(set, encodingBuffer)), partitionMask));
   }
 
   private static byte[] toBytes(int value, byte[] encodingBuffer) {
@@ -412,31 +639,52 @@ public final class CscBloomFilter implements CscFilter {
     return encodingBuffer;
   }
 
+  /**
+   * Sets the bits of all sets mapped to a partition. The instance is reused between queries to avoid allocating a new
+   * capturing lambda for every repetition.
+   */
+  private final class PartitionExpansion implements IntConsumer {
+
+    private int repetition;
+    private MemoryBitSet target;
+
+    void reset(int repetition, MemoryBitSet target) {
+      this.repetition = repetition;
+      this.target = target;
+    }
+
+    @Override
+    public void accept(int partition) {
+      partitionFunction.expand(repetition, partition, target);
+    }
+  }
+
   private static final class Header {
+    final int version;
     final int repetitionCount;
-    final int repetitionCapacity;
-    final int hashCount;
+    final long repetitionCapacity;
     final int partitions;
     final int sets;
-    final int[][] hashSeeds;
-    final Hasher32[][] locationHashes;
+    final LocationHashing locationHashing;
 
     Header(
+        int version,
         int repetitionCount,
-        int repetitionCapacity,
-        int hashCount,
+        long repetitionCapacity,
         int partitions,
         int sets,
-        int[][] hashSeeds,
-        Hasher32[][] locationHashes) {
+        LocationHashing locationHashing) {
 
+      this.version = version;
       this.repetitionCount = repetitionCount;
       this.repetitionCapacity = repetitionCapacity;
-      this.hashCount = hashCount;
       this.partitions = partitions;
       this.sets = sets;
-      this.hashSeeds = hashSeeds;
-      this.locationHashes = locationHashes;
+      this.locationHashing = locationHashing;
+    }
+
+    boolean hasPartitionFunction() {
+      return version >= FORMAT_VERSION;
     }
   }
 }
@@ -2,6 +2,9 @@ package com.dynatrace.index.csc;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
 import java.util.function.IntConsumer;
 
 public interface CscFilter {
@@ -43,9 +46,106 @@ public interface CscFilter {
    */
   void queryAll(byte[][] bytes, IntConsumer postingsConsumer);
 
+  /**
+   * Retrieve the postings shared by all tokens located within the backing array, without copying the tokens.
+   * Duplicate tokens are evaluated only once and the most selective tokens are evaluated first, so the evaluation
+   * stops as early as possible if the tokens do not share any posting.
+   *
+   * @param bytes backing byte array of the tokens
+   * @param offsets offsets of each token
+   * @param lengths lengths of each token
+   * @param count number of tokens, has to be at least 1
+   * @param postingsConsumer will be called for the shared postings
+   */
+  void queryAll(byte[] bytes, int[] offsets, int[] lengths, int count, IntConsumer postingsConsumer);
+
+  /**
+   * Retrieve the postings of multiple independent tokens at once. The ranges probed for all tokens are read in the
+   * order of their position within the filter instead of token by token, so a filter mapped from disk is read
+   * sequentially and every page is touched at most once per batch.
+   *
+   * @param tokens the bytes of the queried tokens
+   * @param results receives the postings of the token at the same index, previous content is cleared
+   */
+  default void queryBatch(byte[][] tokens, BitSet[] results) {
+    final int[] offsets = new int[tokens.length];
+    final int[] lengths = new int[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      lengths[i] = tokens[i].length;
+    }
+    queryBatch(tokens, offsets, lengths, tokens.length, results);
+  }
+
+  /**
+   * Retrieve the postings of multiple independent tokens located within backing arrays at once, without copying the
+   * tokens, see {@link #queryBatch(byte[][], BitSet[])}.
+   *
+   * @param bytes backing byte array of each token
+   * @param offsets offsets of each token within its backing array
+   * @param lengths lengths of each token
+   * @param count number of tokens
+   * @param results receives the postings of the token at the same index, previous content is cleared
+   */
+  void queryBatch(byte[][] bytes, int[] offsets, int[] lengths, int count, BitSet[] results);
+
+  /**
+   * Calculate the share of bits set to 1 within each repetition, which determines the false positive rate of the
+   * filter. The result is only approximate while other threads update the filter.
+   *
+   * @return the fill ratio of each repetition within [0, 1]
+   */
+  double[] fillRatios();
+
+  /**
+   * @return the share of bits set to 1 over all repetitions, see {@link #fillRatios()}
+   */
+  default double fillRatio() {
+    final double[] fillRatios = fillRatios();
+    double sum = 0;
+    for (double fillRatio : fillRatios) {
+      sum += fillRatio;
+    }
+    return sum / fillRatios.length;
+  }
+
+  /**
+   * Estimate the probability that querying a single token returns a posting the token was not added for, based on
+   * the current fill ratios. A posting is falsely returned if the bits of all hash functions are set in every
+   * repetition, postings sharing a partition with an actual posting of the token are not taken into account.
+   *
+   * <p>{@link #queryAll(byte[][], IntConsumer)} returns a posting only if it is returned for every token, so the rate
+   * of a query for {@code n} independent tokens is the single token rate to the power of {@code n}.
+   */
+  double expectedFalsePositiveRate();
+
+  /**
+   * @return the estimated heap memory used by the filter
+   */
   long estimatedMemoryUsageBytes();
 
+  /**
+   * @return the estimated memory used by the filter outside of the Java heap
+   */
+  long estimatedOffHeapMemoryUsageBytes();
+
+  /**
+   * Merge the other filter into this filter, so that this filter returns the postings of both filters. The filters
+   * must be of the same type, have the same shape and use the same hash functions. Filters read from disk cannot be
+   * merged into.
+   *
+   * @param other the filter to merge, which is not modified
+   */
+  void merge(CscFilter other);
+
   void close();
 
-  void writeTo(OutputStream out) throws IOException;
+  default void writeTo(OutputStream out) throws IOException {
+    writeTo(Channels.newChannel(out));
+  }
+
+  /**
+   * Write the filter to the channel. Off-heap memory of the filter is passed to the channel without copying it to
+   * the heap first.
+   */
+  void writeTo(WritableByteChannel channel) throws IOException;
 }
@@ -0,0 +1,37 @@
+package com.dynatrace.index.csc;
+
+/**
+ * Defines how the location hashes of tokens within the repetitions of a CSC sketch are calculated.
+ */
+public enum CscHashScheme {
+
+  /**
+   * Calculates an individually seeded murmur3_32 hash for every hash function and repetition.
+   */
+  MURMUR3(0),
+
+  /**
+   * Calculates a single 64-bit komihash per token and derives the locations of all hash functions and repetitions
+   * through Kirsch-Mitzenmacher double hashing.
+   */
+  DOUBLE_HASHING(1);
+
+  private final int id;
+
+  CscHashScheme(int id) {
+    this.id = id;
+  }
+
+  int id() {
+    return id;
+  }
+
+  static CscHashScheme fromId(int id) {
+    for (CscHashScheme scheme : values()) {
+      if (scheme.id == id) {
+        return scheme;
+      }
+    }
+    throw new IllegalArgumentException("Unknown hash scheme: " + id);
+  }
+}
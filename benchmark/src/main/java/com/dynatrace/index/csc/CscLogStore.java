@@ -3,76 +3,302 @@ package com.dynatrace.index.csc;
 import static com.dynatrace.index.storage.StorageDirectories.dataDirectory;
 import static com.dynatrace.index.storage.StorageDirectories.indexDirectory;
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
 
 import com.dynatrace.index.FinishTrace;
 import com.dynatrace.index.LogStoreBase;
+import com.dynatrace.index.LogStoreOptions;
 import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
 import com.dynatrace.index.storage.DefaultBatchWriter;
-import com.dynatrace.index.tokenization.NGramTokenizer;
-import java.io.File;
-import java.io.FileOutputStream;
+import com.dynatrace.index.storage.StorageDirectories;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 /**
- * LogStore implementation using {@link ShiftingBloomFilter} instance to locate data.
+ * LogStore implementation using a {@link CscFilter} instance to locate data.
  */
 public class CscLogStore extends LogStoreBase {
 
   static final String FILE_NAME = "csc";
 
+  // The filter type precedes the filter in the sketch file
+  private static final long FILTER_POSITION = 1;
+
+  // The expected false positive rates are reported for queries of an alphanumeric string with 8 characters, which
+  // consists of 6 tri-grams. Token queries additionally include the token itself.
+  private static final int REFERENCE_QUERY_TRI_GRAMS = 6;
+
   private final CscFilter csc;
-  private final Tokenizer ngramTokenizer;
+  private final QueryTokens queryTokens;
   private final Path indexDirectory;
+  // Sketch files in which the sections of a mapped filter are constructed, empty for all other filters
+  private final List<FileChannel> sketchFiles;
 
   CscLogStore(
-      Path storageDirectory, DefaultBatchWriter writer, Tokenizer tokenizer, CscFilter csc, int maxBatchCount) {
-    super(writer, dataDirectory(storageDirectory), tokenizer, csc::update, maxBatchCount);
+      Path storageDirectory,
+      DefaultBatchWriter writer,
+      Supplier<Tokenizer> tokenizers,
+      CscFilter csc,
+      int maxBatchCount,
+      List<FileChannel> sketchFiles) {
+    super(writer, dataDirectory(storageDirectory), tokenizers, csc::update, maxBatchCount);
     this.indexDirectory = indexDirectory(storageDirectory);
-    this.ngramTokenizer = NGramTokenizer.create();
+    this.queryTokens = new QueryTokens();
     this.csc = requireNonNull(csc);
+    this.sketchFiles = requireNonNull(sketchFiles);
   }
 
+  /**
+   * Create a log store, whose hash functions are derived from the specified seed. Stores with the same seed and
+   * sketch parameters can be combined via {@link #merge(Path, List, CscMemoryType)}.
+   *
+   * @param hashSeed seed of the hash functions of the sketch
+   */
   public static CscLogStore create(
-      Path storageDirectory, Tokenizer tokenizer, int capacity, int hashes, int repetitions, int partitions, int sets) {
-    final CscFilter csc = createFilter(capacity, hashes, repetitions, partitions, sets);
-    final DefaultBatchWriter writer = new DefaultBatchWriter(dataDirectory(storageDirectory));
-    return new CscLogStore(storageDirectory, writer, tokenizer, csc, sets);
+      Path storageDirectory,
+      long capacity,
+      int hashes,
+      int repetitions,
+      int partitions,
+      int sets,
+      long hashSeed,
+      LogStoreOptions options) {
+
+    final FileChannel sketchFile = openSketchFile(storageDirectory, 0, options);
+    final CscFilter csc = createFilter(
+        capacity,
+        hashes,
+        repetitions,
+        partitions,
+        sets,
+        options.cscHashScheme(),
+        hashSeed,
+        allocator(sketchFile, options));
+    return new CscLogStore(storageDirectory, writer(storageDirectory, options), options.tokenizers(), csc, sets,
+        sketchFiles(sketchFile));
+  }
+
+  /**
+   * Create a log store using a {@link ScalableCscFilter}, which adds a new section of twice the capacity whenever the
+   * fill ratio of the current section exceeds {@code maxFillRatio}. The capacity therefore does not have to be known
+   * in advance, at the cost of querying every section. Each section is stored in its own sketch file.
+   *
+   * @param capacity the capacity of the first section in bits
+   * @param maxFillRatio the share of set bits at which a new section is added
+   */
+  public static CscLogStore createScalable(
+      Path storageDirectory,
+      long capacity,
+      int hashes,
+      int repetitions,
+      int partitions,
+      int sets,
+      double maxFillRatio,
+      LogStoreOptions options) {
+
+    // Sections are added by the ingest thread which fills the current section
+    final List<FileChannel> sketchFiles = new CopyOnWriteArrayList<>();
+    final ScalableCscFilter.SectionFactory sectionFactory = section -> {
+      final FileChannel sketchFile = openSketchFile(storageDirectory, section, options);
+      if (sketchFile != null) {
+        sketchFiles.add(sketchFile);
+      }
+      return createFilter(
+          capacity << section,
+          hashes,
+          repetitions,
+          partitions,
+          sets,
+          options.cscHashScheme(),
+          ThreadLocalRandom.current().nextLong(),
+          allocator(sketchFile, options));
+    };
+
+    // Counting the set bits requires a pass over the section, so the fill ratio is checked once per 1024 bits of
+    // capacity. Every update sets only a few bits, so the section cannot overfill much in between.
+    final long checkInterval = Math.max(capacity >> 10, 64);
+    final CscFilter csc = ScalableCscFilter.create(sectionFactory, maxFillRatio, checkInterval);
+    return new CscLogStore(storageDirectory, writer(storageDirectory, options), options.tokenizers(), csc, sets,
+        sketchFiles);
+  }
+
+  /**
+   * Create a log store using a {@link BlockedShiftingBloomFilter}, which locates all hashes of a token within a single
+   * block of the specified size. Stores with the same seed and sketch parameters can be combined via
+   * {@link #merge(Path, List, CscMemoryType)}.
+   *
+   * @param hashSeed seed of the hash functions of the sketch
+   */
+  public static CscLogStore createBlocked(
+      Path storageDirectory,
+      long capacity,
+      int blockBits,
+      int hashes,
+      int partitions,
+      long hashSeed,
+      LogStoreOptions options) {
+
+    final FileChannel sketchFile = openSketchFile(storageDirectory, 0, options);
+    final CscFilter csc = BlockedShiftingBloomFilter.create(
+        capacity,
+        blockBits,
+        hashes,
+        partitions,
+        options.cscHashScheme(),
+        hashSeed,
+        allocator(sketchFile, options));
+    return new CscLogStore(storageDirectory, writer(storageDirectory, options), options.tokenizers(), csc,
+        partitions, sketchFiles(sketchFile));
   }
 
-  private static CscFilter createFilter(int capacity, int hashes, int repetitions, int partitions, int sets) {
+  /**
+   * Merge independently built log stores into a new log store without tokenizing their logs again. The sketches of
+   * the stores are combined, which requires them to be created with the same sketch parameters and hash seed. Since
+   * the partitions of a CSC sketch depend on the batch numbers, batch {@code i} of the new store contains the logs of
+   * batch {@code i} of every source store.
+   *
+   * @param storageDirectory the directory of the new log store
+   * @param sourceDirectories the directories of the finished log stores to merge
+   * @param memoryType defines where the merged sketch is allocated
+   */
+  public static void merge(Path storageDirectory, List<Path> sourceDirectories, CscMemoryType memoryType)
+      throws IOException {
+    checkArgument(!sourceDirectories.isEmpty(), "At least one log store is required");
+
+    final List<CscFilter> sources = new ArrayList<>();
+    try {
+      for (Path sourceDirectory : sourceDirectories) {
+        sources.add(CscLogStoreReader.loadFilter(sourceDirectory));
+      }
+
+      final FileChannel sketchFile = openSketchFile(storageDirectory, 0, false, memoryType);
+      final CscFilter merged = emptyCopy(sources.get(0), allocator(sketchFile, false, memoryType));
+      try {
+        for (CscFilter source : sources) {
+          merged.merge(source);
+        }
+        writeSections(List.of(merged), sketchFiles(sketchFile), indexDirectory(storageDirectory));
+      } finally {
+        merged.close();
+      }
+    } finally {
+      sources.forEach(CscFilter::close);
+    }
+
+    DefaultBatchWriter.merge(
+        dataDirectory(storageDirectory),
+        sourceDirectories.stream().map(StorageDirectories::dataDirectory).collect(toList()));
+  }
+
+  private static CscFilter emptyCopy(CscFilter template, SketchAllocator allocator) {
+    checkArgument(!(template instanceof ScalableCscFilter), "Scalable sketches cannot be merged");
+    if (template instanceof ShiftingBloomFilter) {
+      return ((ShiftingBloomFilter) template).emptyCopy(allocator);
+    } else if (template instanceof BlockedShiftingBloomFilter) {
+      return ((BlockedShiftingBloomFilter) template).emptyCopy(allocator);
+    }
+    return ((CscBloomFilter) template).emptyCopy(allocator);
+  }
+
+  /**
+   * @return the file name of a section of the sketch, the first section uses the name of a non-scalable sketch
+   */
+  static String sectionFileName(int section) {
+    return section == 0 ? FILE_NAME : FILE_NAME + "." + section;
+  }
+
+  private static DefaultBatchWriter writer(Path storageDirectory, LogStoreOptions options) {
+    return new DefaultBatchWriter(dataDirectory(storageDirectory), options.compressionThreads());
+  }
+
+  @Nullable
+  private static FileChannel openSketchFile(Path storageDirectory, int section, LogStoreOptions options) {
+    return openSketchFile(storageDirectory, section, options.concurrent(), options.cscMemoryType());
+  }
+
+  @Nullable
+  private static FileChannel openSketchFile(
+      Path storageDirectory, int section, boolean concurrent, CscMemoryType memoryType) {
+    if (memoryType != CscMemoryType.MAPPED) {
+      return null;
+    }
+    checkArgument(!concurrent, "Mapped sketches do not support concurrent updates");
+
+    try {
+      final Path indexDirectory = indexDirectory(storageDirectory);
+      Files.createDirectories(indexDirectory);
+      final Path sketchFile = indexDirectory.resolve(sectionFileName(section));
+      return FileChannel.open(sketchFile, CREATE, READ, WRITE, TRUNCATE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static List<FileChannel> sketchFiles(@Nullable FileChannel sketchFile) {
+    return sketchFile == null ? List.of() : List.of(sketchFile);
+  }
+
+  private static SketchAllocator allocator(@Nullable FileChannel sketchFile, LogStoreOptions options) {
+    return allocator(sketchFile, options.concurrent(), options.cscMemoryType());
+  }
+
+  private static SketchAllocator allocator(
+      @Nullable FileChannel sketchFile, boolean concurrent, CscMemoryType memoryType) {
+    if (sketchFile != null) {
+      return SketchAllocator.mapped(sketchFile, FILTER_POSITION);
+    }
+    return SketchAllocator.create(memoryType, concurrent);
+  }
+
+  private static CscFilter createFilter(
+      long capacity,
+      int hashes,
+      int repetitions,
+      int partitions,
+      int sets,
+      CscHashScheme hashScheme,
+      long hashSeed,
+      SketchAllocator allocator) {
+
     checkArgument(capacity > 0);
     checkArgument(repetitions > 0);
     checkArgument(hashes > 0);
     checkArgument(partitions > 0);
 
     if (repetitions == 1) {
-      return ShiftingBloomFilter.create(capacity, hashes, partitions);
+      return ShiftingBloomFilter.create(capacity, hashes, partitions, hashScheme, hashSeed, allocator);
     }
 
-    return CscBloomFilter.create(capacity, hashes, repetitions, partitions, sets);
+    return CscBloomFilter.create(capacity, hashes, repetitions, partitions, sets, hashScheme, hashSeed, allocator);
   }
 
   @Override
   public void finish(FinishTrace trace) {
     try {
-      Files.createDirectories(indexDirectory);
-
-      trace.trackSketchMemoryUsage(csc.estimatedMemoryUsageBytes());
-      final File cscFile = indexDirectory.resolve(FILE_NAME).toFile();
+      trace.trackSketchMemoryUsage(csc.estimatedMemoryUsageBytes(), csc.estimatedOffHeapMemoryUsageBytes());
+      final double falsePositiveRate = csc.expectedFalsePositiveRate();
+      trace.trackSketchSaturation(
+          csc.fillRatios(),
+          Math.pow(falsePositiveRate, REFERENCE_QUERY_TRI_GRAMS + 1),
+          Math.pow(falsePositiveRate, REFERENCE_QUERY_TRI_GRAMS));
       final long sketchStart = System.nanoTime();
-      try (FileOutputStream outputStream = new FileOutputStream(cscFile)) {
-        writeFilterType(outputStream);
-        csc.writeTo(outputStream);
-        trace.trackSketchDiskUsage(outputStream.getChannel().position());
-      }
+      trace.trackSketchDiskUsage(writeSections(sections(csc), sketchFiles, indexDirectory));
       trace.trackSketchFinishTime(System.nanoTime() - sketchStart);
 
       super.finish(trace);
@@ -83,19 +309,17 @@ public class CscLogStore extends LogStoreBase {
 
   @Override
   protected void locateTokenBatches(byte[] utf8Token, BitSet batches) {
-    final List<byte[]> tokens = new ArrayList<>();
-    tokens.add(utf8Token);
-    ngramTokenizer.tokenize(utf8Token, (tokenType, offset, length) ->
-        tokens.add(Arrays.copyOfRange(utf8Token, offset, offset + length)));
-    csc.queryAll(tokens.toArray(new byte[0][]), batches::set);
+    queryTokens.locateTokenBatches(csc, utf8Token, batches);
+  }
+
+  @Override
+  protected void locateTokenBatches(byte[][] utf8Tokens, BitSet[] batches) {
+    queryTokens.locateTokenBatches(csc, utf8Tokens, batches);
   }
 
   @Override
   protected void locateContainsBatches(byte[] utf8String, BitSet batches) {
-    final List<byte[]> tokens = new ArrayList<>();
-    ngramTokenizer.tokenize(utf8String, (tokenType, offset, length) ->
-        tokens.add(Arrays.copyOfRange(utf8String, offset, offset + length)));
-    csc.queryAll(tokens.toArray(new byte[0][]), batches::set);
+    queryTokens.locateContainsBatches(csc, utf8String, batches);
   }
 
   @Override
@@ -103,11 +327,73 @@ public class CscLogStore extends LogStoreBase {
     return csc.estimatedMemoryUsageBytes();
   }
 
-  private void writeFilterType(FileOutputStream outputStream) throws IOException {
+  @Override
+  public void close() {
+    super.close();
+    // Releases the mapping of a mapped filter
+    csc.close();
+  }
+
+  private static List<CscFilter> sections(CscFilter csc) {
+    if (csc instanceof ScalableCscFilter) {
+      return ((ScalableCscFilter) csc).sections();
+    }
+    return List.of(csc);
+  }
+
+  /**
+   * Write every section of the sketch to its own sketch file and delete the files of sections left over from a
+   * previous sketch in the same directory.
+   *
+   * @param sketchFiles the files in which the sections of a mapped filter were constructed, empty for other filters
+   * @return the size of all sketch files
+   */
+  private static long writeSections(List<CscFilter> sections, List<FileChannel> sketchFiles, Path indexDirectory)
+      throws IOException {
+    Files.createDirectories(indexDirectory);
+    long size = 0;
+    for (int section = 0; section < sections.size(); section++) {
+      final FileChannel sketchFile = sketchFiles.isEmpty() ? null : sketchFiles.get(section);
+      final Path cscFile = indexDirectory.resolve(sectionFileName(section));
+      size += writeSketch(sections.get(section), sketchFile, cscFile);
+    }
+
+    int staleSection = sections.size();
+    while (Files.deleteIfExists(indexDirectory.resolve(sectionFileName(staleSection)))) {
+      staleSection++;
+    }
+    return size;
+  }
+
+  /**
+   * Write the filter type followed by the filter to the sketch file.
+   *
+   * @param sketchFile the file in which a mapped filter was constructed, which is closed afterwards
+   * @return the size of the sketch file
+   */
+  private static long writeSketch(CscFilter csc, @Nullable FileChannel sketchFile, Path cscFile)
+      throws IOException {
+    if (sketchFile != null) {
+      // The mapped filter already resides in the sketch file, only the filter type in front of it is missing
+      try (sketchFile) {
+        sketchFile.write(ByteBuffer.wrap(new byte[]{filterType(csc)}), 0);
+        return sketchFile.size();
+      }
+    }
+
+    try (FileChannel channel = FileChannel.open(cscFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.wrap(new byte[]{filterType(csc)}));
+      csc.writeTo(channel);
+      return channel.position();
+    }
+  }
+
+  private static byte filterType(CscFilter csc) {
     if (csc instanceof ShiftingBloomFilter) {
-      outputStream.write(0);
-    } else {
-      outputStream.write(1);
+      return 0;
+    } else if (csc instanceof BlockedShiftingBloomFilter) {
+      return 2;
     }
+    return 1;
   }
 }
@@ -5,16 +5,14 @@ import static com.dynatrace.index.storage.StorageDirectories.indexDirectory;
 import static java.util.Objects.requireNonNull;
 
 import com.dynatrace.index.LogStoreReaderBase;
-import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
+import com.dynatrace.index.LogStoreReaderOptions;
 import com.dynatrace.index.storage.BatchReader;
 import com.dynatrace.index.storage.DefaultBatchReader;
-import com.dynatrace.index.tokenization.NGramTokenizer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 
@@ -24,29 +22,27 @@ import java.util.List;
 public final class CscLogStoreReader extends LogStoreReaderBase {
 
   private final CscFilter csc;
-  private final Tokenizer ngramTokenizer;
+  private final QueryTokens queryTokens;
 
-  private CscLogStoreReader(CscFilter csc, BatchReader reader) {
-    super(reader);
+  private CscLogStoreReader(CscFilter csc, BatchReader reader, LogStoreReaderOptions options) {
+    super(reader, options);
     this.csc = requireNonNull(csc);
-    this.ngramTokenizer = NGramTokenizer.create();
+    this.queryTokens = new QueryTokens();
   }
 
   @Override
   protected void locateTokenBatches(byte[] utf8Token, BitSet batches) {
-    final List<byte[]> tokens = new ArrayList<>();
-    tokens.add(utf8Token);
-    ngramTokenizer.tokenize(utf8Token, (tokenType, offset, length) ->
-        tokens.add(Arrays.copyOfRange(utf8Token, offset, offset + length)));
-    csc.queryAll(tokens.toArray(new byte[0][]), batches::set);
+    queryTokens.locateTokenBatches(csc, utf8Token, batches);
+  }
+
+  @Override
+  protected void locateTokenBatches(byte[][] utf8Tokens, BitSet[] batches) {
+    queryTokens.locateTokenBatches(csc, utf8Tokens, batches);
   }
 
   @Override
   protected void locateContainsBatches(byte[] utf8String, BitSet batches) {
-    final List<byte[]> tokens = new ArrayList<>();
-    ngramTokenizer.tokenize(utf8String, (tokenType, offset, length) ->
-        tokens.add(Arrays.copyOfRange(utf8String, offset, offset + length)));
-    csc.queryAll(tokens.toArray(new byte[0][]), batches::set);
+    queryTokens.locateContainsBatches(csc, utf8String, batches);
   }
 
   @Override
@@ -61,15 +57,37 @@ public final class CscLogStoreReader extends LogStoreReaderBase {
   }
 
   public static CscLogStoreReader loadFromDisk(Path storageDirectory) throws IOException {
-    final Path indexDir = indexDirectory(storageDirectory);
+    return loadFromDisk(storageDirectory, LogStoreReaderOptions.DEFAULT);
+  }
+
+  public static CscLogStoreReader loadFromDisk(Path storageDirectory, LogStoreReaderOptions options)
+      throws IOException {
     final Path dataDir = dataDirectory(storageDirectory);
-    final BatchReader reader = DefaultBatchReader.create(dataDir);
-    final File cscFile = indexDir.resolve(CscLogStore.FILE_NAME).toFile();
-    try (FileInputStream in = new FileInputStream(cscFile)) {
+    final BatchReader reader = DefaultBatchReader.create(dataDir, options.readMode(), options.batchCache());
+    return new CscLogStoreReader(loadFilter(storageDirectory), reader, options);
+  }
 
-      final CscFilter filter = readFilter(in);
-      return new CscLogStoreReader(filter, reader);
+  /**
+   * Load the read-only filter of the log store, which maps the filter file into memory. The sections of a scalable
+   * filter are loaded from their individual files and combined into a {@link ScalableCscFilter}.
+   */
+  static CscFilter loadFilter(Path storageDirectory) throws IOException {
+    final Path indexDirectory = indexDirectory(storageDirectory);
+    final List<CscFilter> sections = new ArrayList<>();
+    try {
+      File cscFile = indexDirectory.resolve(CscLogStore.FILE_NAME).toFile();
+      do {
+        try (FileInputStream in = new FileInputStream(cscFile)) {
+          sections.add(readFilter(in));
+        }
+        cscFile = indexDirectory.resolve(CscLogStore.sectionFileName(sections.size())).toFile();
+      } while (cscFile.exists());
+    } catch (IOException | RuntimeException e) {
+      sections.forEach(CscFilter::close);
+      throw e;
     }
+
+    return sections.size() == 1 ? sections.get(0) : ScalableCscFilter.readOnly(sections);
   }
 
   private static CscFilter readFilter(FileInputStream in) throws IOException {
@@ -77,6 +95,9 @@ public final class CscLogStoreReader extends LogStoreReaderBase {
     if (filterType == 0) {
       return ShiftingBloomFilter.readFrom(in);
     }
+    if (filterType == 2) {
+      return BlockedShiftingBloomFilter.readFrom(in);
+    }
     return CscBloomFilter.readFrom(in);
   }
 }
@@ -0,0 +1,24 @@
+package com.dynatrace.index.csc;
+
+/**
+ * Defines where the repetitions of a CSC sketch are allocated while the sketch is constructed.
+ */
+public enum CscMemoryType {
+
+  /**
+   * Allocates the repetitions on the Java heap. Repetitions of up to 1 GB grow on demand.
+   */
+  HEAP,
+
+  /**
+   * Allocates the repetitions at their full capacity outside of the Java heap. The repetitions are written to disk
+   * without copying them to the heap first.
+   */
+  OFF_HEAP,
+
+  /**
+   * Constructs the sketch in place within the memory-mapped sketch file, so finishing the sketch does not have to
+   * write it. The sketch is backed by the page cache instead of the heap and does not support concurrent updates.
+   */
+  MAPPED
+}
@@ -0,0 +1,91 @@
+package com.dynatrace.index.csc;
+
+import com.dynatrace.hash4j.hashing.Hasher64;
+import com.dynatrace.hash4j.hashing.Hashing;
+import com.dynatrace.index.util.IntEncoder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Calculates a single 64-bit hash per token and derives all location hashes via the double hashing scheme described
+ * in "Less Hashing, Same Performance: Building a Better Bloom Filter" by Adam Kirsch and Michael Mitzenmacher:
+ * {@code h(i) = h1 + i * h2}.
+ */
+final class DoubleLocationHashing implements LocationHashing {
+
+  private final int repetitions;
+  private final int hashCount;
+  private final long seed;
+  private final Hasher64 hasher;
+
+  private DoubleLocationHashing(int repetitions, int hashCount, long seed) {
+    this.repetitions = repetitions;
+    this.hashCount = hashCount;
+    this.seed = seed;
+    this.hasher = Hashing.komihash4_3(seed);
+  }
+
+  static DoubleLocationHashing create(int repetitions, int hashCount, long seed) {
+    return new DoubleLocationHashing(repetitions, hashCount, seed);
+  }
+
+  static DoubleLocationHashing readFrom(int repetitions, int hashCount, InputStream in) throws IOException {
+    final byte[] buffer = in.readNBytes(Long.BYTES);
+    return new DoubleLocationHashing(repetitions, hashCount, IntEncoder.readFullLong(buffer, 0));
+  }
+
+  @Override
+  public CscHashScheme scheme() {
+    return CscHashScheme.DOUBLE_HASHING;
+  }
+
+  @Override
+  public int repetitions() {
+    return repetitions;
+  }
+
+  @Override
+  public int hashCount() {
+    return hashCount;
+  }
+
+  @Override
+  public void hash(byte[] bytes, int offset, int length, int[] hashes) {
+    final long hash = hasher.hashBytesToLong(bytes, offset, length);
+    final int h1 = (int) hash;
+    // An odd step guarantees distinct locations within the power-of-two sized repetitions
+    final int h2 = (int) (hash >>> 32) | 1;
+
+    final int count = repetitions * hashCount;
+    int value = h1;
+    for (int i = 0; i < count; i++) {
+      hashes[i] = value;
+      value += h2;
+    }
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    final byte[] buffer = new byte[Long.BYTES];
+    IntEncoder.writeFullLong(buffer, 0, seed);
+    out.write(buffer);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final DoubleLocationHashing that = (DoubleLocationHashing) o;
+    return repetitions == that.repetitions && hashCount == that.hashCount && seed == that.seed;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(seed);
+  }
+}
@@ -0,0 +1,64 @@
+package com.dynatrace.index.csc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Calculates the hash values locating a token within all repetitions of a CSC sketch. Instances are equal if they
+ * calculate the same hash values, which is required to merge sketches.
+ */
+interface LocationHashing {
+
+  CscHashScheme scheme();
+
+  int repetitions();
+
+  int hashCount();
+
+  /**
+   * Calculate the hash values of a token for every hash function of every repetition.
+   *
+   * @param bytes backing byte array of the token
+   * @param offset offset of the token within the backing byte array
+   * @param length length of the token
+   * @param hashes receives the hash value of hash function i of repetition r at index {@code r * hashCount() + i}
+   */
+  void hash(byte[] bytes, int offset, int length, int[] hashes);
+
+  /**
+   * Write the seeds of the hash functions.
+   */
+  void writeTo(OutputStream out) throws IOException;
+
+  /**
+   * Create the hash functions, whose seeds are derived from the specified seed. Sketches created with the same seed
+   * and shape can be merged.
+   */
+  static LocationHashing create(CscHashScheme scheme, int repetitions, int hashCount, long seed) {
+    switch (scheme) {
+      case MURMUR3:
+        return Murmur3LocationHashing.create(repetitions, hashCount, seed);
+      case DOUBLE_HASHING:
+        return DoubleLocationHashing.create(repetitions, hashCount, seed);
+      default:
+        throw new IllegalArgumentException("Unknown hash scheme: " + scheme);
+    }
+  }
+
+  /**
+   * Read the seeds of the hash functions written by {@link #writeTo(OutputStream)}.
+   */
+  static LocationHashing readFrom(CscHashScheme scheme, int repetitions, int hashCount, InputStream in)
+      throws IOException {
+
+    switch (scheme) {
+      case MURMUR3:
+        return Murmur3LocationHashing.readFrom(repetitions, hashCount, in);
+      case DOUBLE_HASHING:
+        return DoubleLocationHashing.readFrom(repetitions, hashCount, in);
+      default:
+        throw new IllegalArgumentException("Unknown hash scheme: " + scheme);
+    }
+  }
+}
@@ -1,10 +1,13 @@
 package com.dynatrace.index.csc;
 
+import static java.util.Objects.requireNonNull;
+
 import com.dynatrace.index.memory.Memory;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.function.IntConsumer;
 
 /**
@@ -13,22 +16,74 @@ import java.util.function.IntConsumer;
  */
 public final class MemoryBitSet {
 
+  /**
+   * System property to select the {@link BitSetKernel} used for bulk operations.
+   */
+  public static final String KERNEL_PROPERTY = "csc.bitset.kernel";
+
+  // Captured by every bit set when it is created, so a bit set never changes its kernel
+  private static volatile BitSetKernel defaultKernel = BitSetKernel.valueOf(
+      System.getProperty(KERNEL_PROPERTY, BitSetKernel.UNROLLED.name()).toUpperCase(Locale.ROOT));
+
+  /**
+   * Bit sets up to this size in bytes grow dynamically, larger bit sets are allocated in chunks at once.
+   */
+  private static final long MAX_DYNAMIC_BYTES = 1L << 30;
+
   private final Memory memory;
+  private final BitSetKernel kernel;
 
-  private int size;
+  private long size;
 
-  MemoryBitSet(int bitCapacity) {
-    this.memory = Memory.dynamicHeapMemory(bitCapacity >> 3);
+  MemoryBitSet(long bitCapacity) {
+    this.kernel = defaultKernel;
+    final long bytes = bitCapacity >> 3;
+    this.memory = bytes <= MAX_DYNAMIC_BYTES
+        ? Memory.dynamicHeapMemory((int) bytes)
+        : Memory.chunkedHeapMemory(bytes);
   }
 
   MemoryBitSet(Memory memory) {
+    this.kernel = defaultKernel;
     this.memory = memory;
     this.size = memory.size();
   }
 
+  /**
+   * Create a bit set of fixed capacity which supports concurrent calls of {@link #set(long)}. All other operations
+   * must not race with concurrent updates.
+   */
+  static MemoryBitSet concurrent(long bitCapacity) {
+    return new MemoryBitSet(Memory.concurrentHeapMemory(bitCapacity >> 3));
+  }
+
+  /**
+   * Create a bit set of fixed capacity located outside of the Java heap.
+   *
+   * @param concurrent whether the bit set supports concurrent calls of {@link #set(long)}
+   */
+  static MemoryBitSet offHeap(long bitCapacity, boolean concurrent) {
+    return new MemoryBitSet(concurrent
+        ? Memory.concurrentDirectMemory(bitCapacity >> 3)
+        : Memory.directMemory(bitCapacity >> 3));
+  }
+
+  /**
+   * Select the kernel used for the bulk operations of all bit sets created afterwards, which includes the bit sets of
+   * filters created afterwards. Existing bit sets keep their kernel.
+   */
+  public static void useKernel(BitSetKernel bitSetKernel) {
+    defaultKernel = requireNonNull(bitSetKernel);
+  }
+
   void set(long position) {
-    int wordOffset = wordOffset(position);
-    bitwiseOr(wordOffset, 1L << position);
+    final long wordOffset = wordOffset(position);
+    if (wordOffset < size) {
+      // Atomic for concurrent bit sets, whose size always covers the full capacity
+      memory.bitwiseOrLong(wordOffset, 1L << position);
+    } else {
+      setWord(wordOffset, 1L << position);
+    }
   }
 
   /**
@@ -39,19 +94,26 @@ public final class MemoryBitSet {
    * @return this instance
    */
   MemoryBitSet and(MemoryBitSet other) {
-    final int minSize = Math.min(size, other.size);
+    final long minSize = Math.min(size, other.size);
 
-    for (int offset = minSize; offset < size; offset += Long.BYTES) {
-      setWord(offset, 0L);
+    for (long offset = minSize; offset < size; offset += Long.BYTES) {
+      memory.setLong(offset, 0L);
     }
 
-    for (int offset = 0; offset < minSize; offset += Long.BYTES) {
-      final long thisValue = memory.getLong(offset);
-      final long otherValue = other.memory.getLong(offset);
-
-      setWord(offset, thisValue & otherValue);
-    }
+    // Shrink the size to the last non-zero word, so empty results can be detected via isEmpty()
+    size = kernel.and(memory, other.memory, minSize);
+    return this;
+  }
 
+  /**
+   * Updates this bit set instance with the result of the Boolean "or" combination of this instance with the other
+   * instance. Must not race with concurrent updates.
+   *
+   * @param other the other bit set
+   * @return this instance
+   */
+  MemoryBitSet or(MemoryBitSet other) {
+    orShifted(other, 0);
     return this;
   }
 
@@ -62,46 +124,105 @@ public final class MemoryBitSet {
    * @param to end position (exclusive)
    * @return the new bitset
    */
-  MemoryBitSet get(int from, int to) {
-    // This code section is a modified copy of the Java BitSet method, except it uses different access methods for
-    // words
-    int bitSize = size * 8;
+  MemoryBitSet get(long from, long to) {
+    return get(from, to, new MemoryBitSet(Math.max(0, to - from)));
+  }
+
+  /**
+   * Replace the content of the target bit set with the bits within the specified range. Unlike
+   * {@link #get(long, long)}, this method does not allocate as long as the target is large enough to hold the range.
+   *
+   * @param from start position (inclusive)
+   * @param to end position (exclusive)
+   * @param target the bit set receiving the bits
+   * @return the target bit set
+   */
+  MemoryBitSet get(long from, long to, MemoryBitSet target) {
+    target.clear();
 
+    final long bitSize = size * 8;
     if (bitSize <= from || from == to) {
-      return new MemoryBitSet(0);
+      return target;
     }
 
     if (to > bitSize) {
       to = bitSize;
     }
 
-    final MemoryBitSet result = new MemoryBitSet(to - from);
-    final int targetWords = ((to - from - 1) >> 6) + 1;
+    target.size = kernel.extract(memory, from, to, target.memory);
+    return target;
+  }
+
+  /**
+   * Replace the content of the target bit set with the bits of a circular range. Bits of the range exceeding the
+   * capacity are taken from the start of this bit set.
+   *
+   * @param from start position (inclusive)
+   * @param length the number of bits within the range
+   * @param capacity the capacity in bits after which the range wraps around
+   * @param target the bit set receiving the bits
+   * @param scratch temporary bit set used for the wrapped part of the range
+   * @return the target bit set
+   */
+  MemoryBitSet getCircular(long from, int length, long capacity, MemoryBitSet target, MemoryBitSet scratch) {
+    return getCircular(0, from, length, capacity, target, scratch);
+  }
 
-    int sourceOffset = wordOffset(from);
-    boolean wordAligned = ((from & 0x3f) == 0);
+  /**
+   * Replace the content of the target bit set with the bits of a circular range within a block of this bit set.
+   * Bits of the range exceeding the block are taken from the start of the block.
+   *
+   * @param blockStart start position of the block
+   * @param from start position of the range relative to the block start (inclusive)
+   * @param length the number of bits within the range
+   * @param blockSize the size of the block in bits
+   * @param target the bit set receiving the bits
+   * @param scratch temporary bit set used for the wrapped part of the range
+   * @return the target bit set
+   */
+  MemoryBitSet getCircular(
+      long blockStart, long from, int length, long blockSize, MemoryBitSet target, MemoryBitSet scratch) {
 
-    // Process all words but the last word
-    for (int offset = 0, i = 0;
-         i < targetWords - 1;
-         i++, offset += Long.BYTES, sourceOffset += Long.BYTES) {
-      long word = wordAligned
-          ? word(sourceOffset)
-          : (word(sourceOffset) >>> from) | (word(sourceOffset + Long.BYTES) << -from);
-      result.setWord(offset, word);
+    final long to = from + length;
+    if (to < blockSize) {
+      return get(blockStart + from, blockStart + to, target);
     }
 
-    // Process the last word
-    long lastWordMask = -1L >>> -to;
-    long word;
-    if (((to - 1) & 0x3f) < (from & 0x3f)) {
-      word = (word(sourceOffset) >>> from) | ((word(sourceOffset + Long.BYTES) & lastWordMask) << -from);
-    } else {
-      word = (word(sourceOffset) & lastWordMask) >>> from;
+    get(blockStart + from, blockStart + blockSize, target);
+    get(blockStart, blockStart + to - blockSize, scratch);
+    // The shift is smaller than the length of the range, since the range wraps around
+    target.orShifted(scratch, (int) (blockSize - from));
+    return target;
+  }
+
+  /**
+   * Updates this bit set instance with the result of the Boolean "or" combination of this instance and the other
+   * instance, where all bits of the other instance are shifted by the specified amount of positions.
+   */
+  private void orShifted(MemoryBitSet other, int shift) {
+    final long baseOffset = wordOffset(shift);
+    final int bitShift = shift & 0x3f;
+    for (long offset = 0; offset < other.size; offset += Long.BYTES) {
+      final long word = other.word(offset);
+      if (word == 0) {
+        continue;
+      }
+
+      bitwiseOr(baseOffset + offset, word << bitShift);
+      if (bitShift != 0 && (word >>> -bitShift) != 0) {
+        bitwiseOr(baseOffset + offset + Long.BYTES, word >>> -bitShift);
+      }
     }
-    result.setWord((targetWords - 1) << 3, word);
+  }
 
-    return result;
+  /**
+   * Set all bits to 0.
+   */
+  void clear() {
+    for (long offset = 0; offset < size; offset += Long.BYTES) {
+      memory.setLong(offset, 0L);
+    }
+    size = 0;
   }
 
   /**
@@ -110,8 +231,8 @@ public final class MemoryBitSet {
    * @param from start position for the search (inclusive)
    * @return position of the next set bit, or -1 if no more bit is set
    */
-  int nextSetBit(int from) {
-    int wordOffset = wordOffset(from);
+  long nextSetBit(long from) {
+    long wordOffset = wordOffset(from);
 
     if (wordOffset >= size) {
       return -1;
@@ -136,51 +257,107 @@ public final class MemoryBitSet {
     return size == 0;
   }
 
-  int estimatedMemoryUsage() {
-    return memory.reservedBytes();
+  /**
+   * @return the number of bits set to 1
+   */
+  long cardinality() {
+    return kernel.cardinality(memory, size);
+  }
+
+  /**
+   * Count the bits set to 1 within the specified range, without copying the range.
+   *
+   * @param from start position (inclusive)
+   * @param to end position (exclusive)
+   */
+  long cardinality(long from, long to) {
+    to = Math.min(to, size * 8);
+    if (from >= to) {
+      return 0;
+    }
+
+    final long firstWord = wordOffset(from);
+    final long lastWord = wordOffset(to - 1);
+    final long firstWordMask = -1L << from;
+    final long lastWordMask = -1L >>> -to;
+    if (firstWord == lastWord) {
+      return Long.bitCount(word(firstWord) & firstWordMask & lastWordMask);
+    }
+
+    long count = Long.bitCount(word(firstWord) & firstWordMask);
+    for (long offset = firstWord + Long.BYTES; offset < lastWord; offset += Long.BYTES) {
+      count += Long.bitCount(word(offset));
+    }
+    return count + Long.bitCount(word(lastWord) & lastWordMask);
+  }
+
+  /**
+   * Count the bits set to 1 within a circular range of a block, see
+   * {@link #getCircular(long, long, int, long, MemoryBitSet, MemoryBitSet)}.
+   */
+  long cardinalityCircular(long blockStart, long from, int length, long blockSize) {
+    final long to = from + length;
+    if (to < blockSize) {
+      return cardinality(blockStart + from, blockStart + to);
+    }
+    return cardinality(blockStart + from, blockStart + blockSize)
+        + cardinality(blockStart, blockStart + to - blockSize);
+  }
+
+  /**
+   * Call the consumer with the position of every set bit, shifted by the specified offset.
+   */
+  void forEachSetBit(int offset, IntConsumer consumer) {
+    kernel.forEachSetBit(this, offset, consumer);
+  }
+
+  Memory memory() {
+    return memory;
+  }
+
+  long size() {
+    return size;
+  }
+
+  long estimatedMemoryUsage() {
+    return memory.reservedBytes() - memory.offHeapBytes();
   }
 
-  void writeTo(OutputStream out) throws IOException {
-    memory.writeTo(out, 0, memory.reservedBytes());
+  long estimatedOffHeapMemoryUsage() {
+    return memory.offHeapBytes();
+  }
+
+  void writeTo(WritableByteChannel channel) throws IOException {
+    memory.writeTo(channel, 0, memory.reservedBytes());
   }
 
   @Override
   public String toString() {
     List<Integer> entries = new ArrayList<>();
-    forEach(entries::add);
+    forEachSetBit(0, entries::add);
     return entries.toString();
   }
 
-  private static int wordOffset(long bitPosition) {
-    final long offset = bitPosition >> 6 << 3;
-    if (offset > Integer.MAX_VALUE) {
-      throw new IllegalStateException("Exceeded space limit for Java arrays.");
-    }
-    return (int) offset;
+  private static long wordOffset(long bitPosition) {
+    return bitPosition >> 6 << 3;
   }
 
-  private void bitwiseOr(int wordOffset, long value) {
+  private void bitwiseOr(long wordOffset, long value) {
     long currentValue = wordOffset >= size
         ? 0L
         : word(wordOffset);
     setWord(wordOffset, currentValue | value);
   }
 
-  private long word(int wordOffset) {
+  private long word(long wordOffset) {
     return memory.getLong(wordOffset);
   }
 
-  private void setWord(int wordOffset, long value) {
+  private void setWord(long wordOffset, long value) {
     memory.setLong(wordOffset, value);
     if (value != 0) {
-      // We currently don't shrink the size anymore, as there is no use-case yet
+      // Only and() shrinks the size again
       size = Math.max(size, wordOffset + Long.BYTES);
     }
   }
-
-  private void forEach(IntConsumer consumer) {
-    for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
-      consumer.accept(i);
-    }
-  }
 }
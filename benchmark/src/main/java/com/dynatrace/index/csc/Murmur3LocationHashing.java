@@ -0,0 +1,100 @@
+package com.dynatrace.index.csc;
+
+import com.dynatrace.hash4j.hashing.Hasher32;
+import com.dynatrace.hash4j.hashing.Hashing;
+import com.dynatrace.index.util.IntEncoder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Uses an individually seeded murmur3_32 hash function for every location hash. This is the original scheme of
+ * the CSC sketches.
+ */
+final class Murmur3LocationHashing implements LocationHashing {
+
+  private final int repetitions;
+  private final int hashCount;
+  private final int[] seeds;
+  private final Hasher32[] hashers;
+
+  private Murmur3LocationHashing(int repetitions, int hashCount, int[] seeds) {
+    this.repetitions = repetitions;
+    this.hashCount = hashCount;
+    this.seeds = seeds;
+    this.hashers = new Hasher32[seeds.length];
+    for (int i = 0; i < seeds.length; i++) {
+      hashers[i] = Hashing.murmur3_32(seeds[i]);
+    }
+  }
+
+  static Murmur3LocationHashing create(int repetitions, int hashCount, long seed) {
+    // Derives the seeds of all hash functions from a single seed
+    final SplittableRandom random = new SplittableRandom(seed);
+    final int[] seeds = new int[repetitions * hashCount];
+    for (int i = 0; i < seeds.length; i++) {
+      seeds[i] = random.nextInt();
+    }
+    return new Murmur3LocationHashing(repetitions, hashCount, seeds);
+  }
+
+  static Murmur3LocationHashing readFrom(int repetitions, int hashCount, InputStream in) throws IOException {
+    final byte[] buffer = new byte[4];
+    final int[] seeds = new int[repetitions * hashCount];
+    for (int i = 0; i < seeds.length; i++) {
+      in.readNBytes(buffer, 0, 4);
+      seeds[i] = IntEncoder.readFullInt(buffer, 0);
+    }
+    return new Murmur3LocationHashing(repetitions, hashCount, seeds);
+  }
+
+  @Override
+  public CscHashScheme scheme() {
+    return CscHashScheme.MURMUR3;
+  }
+
+  @Override
+  public int repetitions() {
+    return repetitions;
+  }
+
+  @Override
+  public int hashCount() {
+    return hashCount;
+  }
+
+  @Override
+  public void hash(byte[] bytes, int offset, int length, int[] hashes) {
+    for (int i = 0; i < hashers.length; i++) {
+      hashes[i] = hashers[i].hashBytesToInt(bytes, offset, length);
+    }
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    final byte[] buffer = new byte[4];
+    for (int seed : seeds) {
+      IntEncoder.writeFullInt(buffer, 0, seed);
+      out.write(buffer);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final Murmur3LocationHashing that = (Murmur3LocationHashing) o;
+    return repetitions == that.repetitions && hashCount == that.hashCount && Arrays.equals(seeds, that.seeds);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(seeds);
+  }
+}
@@ -0,0 +1,116 @@
+package com.dynatrace.index.csc;
+
+import static java.util.Objects.requireNonNull;
+
+import com.dynatrace.index.memory.Memory;
+import com.dynatrace.index.memory.MemoryReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Maps the partitions of each repetition of a {@link CscBloomFilter} to the sets assigned to them.
+ *
+ * <p>The function is stored in a flat, compressed sparse row layout, which can be mapped from disk as is: For each
+ * repetition, {@code partitions + 1} offsets are followed by the sets of the repetition ordered by their partition.
+ * The sets of partition {@code p} are located between the offsets {@code p} and {@code p + 1}.
+ */
+final class PartitionFunction {
+
+  private final Memory memory;
+  private final int partitions;
+  private final long repetitionSize;
+
+  private PartitionFunction(Memory memory, int partitions, int sets) {
+    this.memory = requireNonNull(memory);
+    this.partitions = partitions;
+    this.repetitionSize = repetitionSizeBytes(partitions, sets);
+  }
+
+  /**
+   * Compute the function by assigning all sets to their partition.
+   *
+   * @param partitionOf calculates the partition of a set (second argument) within a repetition (first argument)
+   */
+  static PartitionFunction compute(int repetitions, int partitions, int sets, IntBinaryOperator partitionOf) {
+    final int offsetsSize = (partitions + 1) * Integer.BYTES;
+    // Every position of the memory is written below, so its size matches the serialized function
+    final Memory memory = Memory.dynamicHeapMemory(Math.toIntExact(sizeBytes(repetitions, partitions, sets)));
+    final int[] partitionOfSet = new int[sets];
+    final int[] partitionOffsets = new int[partitions + 1];
+
+    long repetitionStart = 0;
+    for (int r = 0; r < repetitions; r++) {
+      // Counting sort of the sets by their partition, which keeps the sets of a partition in ascending order
+      Arrays.fill(partitionOffsets, 0);
+      for (int s = 0; s < sets; s++) {
+        partitionOfSet[s] = partitionOf.applyAsInt(r, s);
+        partitionOffsets[partitionOfSet[s] + 1]++;
+      }
+      for (int p = 0; p < partitions; p++) {
+        partitionOffsets[p + 1] += partitionOffsets[p];
+      }
+      for (int p = 0; p <= partitions; p++) {
+        memory.setLong(repetitionStart + p * Integer.BYTES, Integer.BYTES, partitionOffsets[p]);
+      }
+
+      final long setsStart = repetitionStart + offsetsSize;
+      for (int s = 0; s < sets; s++) {
+        final int index = partitionOffsets[partitionOfSet[s]]++;
+        memory.setLong(setsStart + index * Integer.BYTES, Integer.BYTES, s);
+      }
+      repetitionStart = setsStart + sets * Integer.BYTES;
+    }
+
+    return new PartitionFunction(memory, partitions, sets);
+  }
+
+  /**
+   * Create a view of the serialized function at the current position of the reader, without copying it.
+   */
+  static PartitionFunction view(MemoryReader reader, int repetitions, int partitions, int sets) {
+    return new PartitionFunction(reader.createView(sizeBytes(repetitions, partitions, sets)), partitions, sets);
+  }
+
+  /**
+   * Read the serialized function into heap memory.
+   */
+  static PartitionFunction readFrom(InputStream in, int repetitions, int partitions, int sets)
+      throws IOException {
+    final Memory memory = Memory.readHeapMemory(in, sizeBytes(repetitions, partitions, sets));
+    return new PartitionFunction(memory, partitions, sets);
+  }
+
+  /**
+   * @return the size of the serialized function in bytes
+   */
+  static long sizeBytes(int repetitions, int partitions, int sets) {
+    return repetitions * repetitionSizeBytes(partitions, sets);
+  }
+
+  /**
+   * Set the bits of all sets assigned to the partition of the repetition.
+   */
+  void expand(int repetition, int partition, MemoryBitSet target) {
+    final long repetitionStart = repetition * repetitionSize;
+    final long offsetPosition = repetitionStart + (long) partition * Integer.BYTES;
+    final int start = memory.getInt(offsetPosition);
+    final int end = memory.getInt(offsetPosition + Integer.BYTES);
+
+    long setPosition = repetitionStart + (partitions + 1L + start) * Integer.BYTES;
+    for (int i = start; i < end; i++) {
+      target.set(memory.getInt(setPosition));
+      setPosition += Integer.BYTES;
+    }
+  }
+
+  void writeTo(OutputStream out) throws IOException {
+    memory.writeTo(out);
+  }
+
+  private static long repetitionSizeBytes(int partitions, int sets) {
+    return (partitions + 1L + sets) * Integer.BYTES;
+  }
+}
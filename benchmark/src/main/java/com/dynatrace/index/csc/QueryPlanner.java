@@ -0,0 +1,125 @@
+package com.dynatrace.index.csc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+
+/**
+ * Plans the evaluation of a query for multiple tokens, which returns the postings shared by all tokens.
+ *
+ * <p>Every token is hashed in place within the backing array of the query. Tokens with the same hash values are
+ * located identically, so only the first of them is evaluated. The remaining tokens are ordered by their estimated
+ * number of postings, which is cheap to calculate from the bits of the ranges the token is located in. Evaluating the
+ * most selective tokens first empties the intersection of the postings as early as possible.
+ *
+ * <p>Instances reuse their buffers between queries and must not be used concurrently.
+ */
+final class QueryPlanner {
+
+  private final LocationHashing locationHashing;
+  private final SelectivityEstimator estimator;
+  private final int hashesPerToken;
+  private final int[] tokenHashes;
+
+  // Buffers growing with the number of tokens per query
+  private int[] hashValues;
+  // Estimate of each token in the upper and its index in the lower 32 bits, which sorts tokens by their estimate
+  private long[] order;
+  private int[] plannedTokens;
+
+  QueryPlanner(LocationHashing locationHashing, SelectivityEstimator estimator) {
+    this.locationHashing = requireNonNull(locationHashing);
+    this.estimator = requireNonNull(estimator);
+    this.hashesPerToken = locationHashing.repetitions() * locationHashing.hashCount();
+    this.tokenHashes = new int[hashesPerToken];
+    this.hashValues = new int[0];
+    this.order = new long[0];
+    this.plannedTokens = new int[0];
+  }
+
+  /**
+   * Plan the evaluation of the tokens located within the backing array.
+   *
+   * @return the number of tokens to evaluate, which is 0 if a token cannot match at all
+   */
+  int plan(byte[] bytes, int[] offsets, int[] lengths, int count) {
+    checkArgument(count > 0, "At least one token is required");
+    ensureCapacity(count);
+
+    for (int token = 0; token < count; token++) {
+      locationHashing.hash(bytes, offsets[token], lengths[token], tokenHashes);
+      System.arraycopy(tokenHashes, 0, hashValues, token * hashesPerToken, hashesPerToken);
+
+      final long estimate = estimator.estimate(tokenHashes);
+      if (estimate == 0) {
+        // The token does not have any posting, so the query cannot match
+        return 0;
+      }
+      order[token] = (estimate << Integer.SIZE) | token;
+    }
+
+    Arrays.sort(order, 0, count);
+
+    int planned = 0;
+    for (int i = 0; i < count; i++) {
+      if (!isDuplicate(i)) {
+        plannedTokens[planned++] = (int) order[i];
+      }
+    }
+    return planned;
+  }
+
+  /**
+   * @return the hash values of all tokens, see {@link #hashOffset(int)}
+   */
+  int[] hashValues() {
+    return hashValues;
+  }
+
+  /**
+   * @param rank the position of the token within the evaluation order
+   * @return the offset of the hash values of the token, which are ordered like {@link LocationHashing#hash}
+   */
+  int hashOffset(int rank) {
+    return plannedTokens[rank] * hashesPerToken;
+  }
+
+  private boolean isDuplicate(int position) {
+    // Tokens with the same hash values share the same estimate, so they are located within the same run
+    final long estimate = order[position] >>> Integer.SIZE;
+    final int tokenOffset = (int) order[position] * hashesPerToken;
+    for (int i = position - 1; i >= 0 && (order[i] >>> Integer.SIZE) == estimate; i--) {
+      final int otherOffset = (int) order[i] * hashesPerToken;
+      if (Arrays.equals(
+          hashValues, tokenOffset, tokenOffset + hashesPerToken,
+          hashValues, otherOffset, otherOffset + hashesPerToken)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void ensureCapacity(int count) {
+    if (order.length < count) {
+      final int capacity = Math.max(count, order.length * 2);
+      hashValues = new int[capacity * hashesPerToken];
+      order = new long[capacity];
+      plannedTokens = new int[capacity];
+    }
+  }
+
+  /**
+   * Estimates the number of postings of a token.
+   */
+  @FunctionalInterface
+  interface SelectivityEstimator {
+
+    /**
+     * @param hashValues the hash values of the token, which are ordered like {@link LocationHashing#hash}
+     * @return a value proportional to the expected number of postings, which must only be 0 if the token does not
+     *     have any posting
+     */
+    long estimate(int[] hashValues);
+  }
+}
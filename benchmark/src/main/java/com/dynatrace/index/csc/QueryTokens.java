@@ -0,0 +1,122 @@
+package com.dynatrace.index.csc;
+
+import com.dynatrace.index.data.analysis.tokenization.TokenQueue.TokenType;
+import com.dynatrace.index.data.analysis.tokenization.Tokenizer;
+import com.dynatrace.index.data.analysis.tokenization.Tokenizer.TokenConsumer;
+import com.dynatrace.index.tokenization.NGramTokenizer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Locates the batches matching token and contains queries within a {@link CscFilter}. The n-grams of a query are
+ * collected as ranges of the query bytes, so they are hashed in place instead of being copied.
+ *
+ * <p>Instances reuse their buffers between queries and must not be used concurrently.
+ */
+final class QueryTokens implements TokenConsumer {
+
+  private final Tokenizer ngramTokenizer;
+  private final IntConsumer batchSetter;
+  private BitSet targetBatches;
+  // Backing array of each range, only required by batches of multiple tokens
+  private byte[][] sources;
+  private byte[] currentSource;
+  private int[] offsets;
+  private int[] lengths;
+  private int count;
+
+  // Index of the first range of each token of a batch, followed by the total number of ranges
+  private int[] termStarts;
+  private BitSet[] termBatches;
+
+  QueryTokens() {
+    this.ngramTokenizer = NGramTokenizer.create();
+    this.batchSetter = batch -> targetBatches.set(batch);
+    this.sources = new byte[16][];
+    this.offsets = new int[16];
+    this.lengths = new int[16];
+    this.termStarts = new int[16];
+    this.termBatches = new BitSet[0];
+  }
+
+  /**
+   * Locate the batches containing the token and all of its n-grams.
+   */
+  void locateTokenBatches(CscFilter csc, byte[] utf8Token, BitSet batches) {
+    count = 0;
+    add(0, utf8Token.length);
+    ngramTokenizer.tokenize(utf8Token, this);
+    queryAll(csc, utf8Token, batches);
+  }
+
+  /**
+   * Locate the batches containing each token and all of its n-grams. The tokens and n-grams of all tokens are looked
+   * up in place as a single batch of the filter, see
+   * {@link CscFilter#queryBatch(byte[][], int[], int[], int, BitSet[])}.
+   */
+  void locateTokenBatches(CscFilter csc, byte[][] utf8Tokens, BitSet[] batches) {
+    if (termStarts.length <= utf8Tokens.length) {
+      termStarts = new int[Math.max(utf8Tokens.length + 1, termStarts.length * 2)];
+    }
+
+    count = 0;
+    for (int i = 0; i < utf8Tokens.length; i++) {
+      termStarts[i] = count;
+      currentSource = utf8Tokens[i];
+      add(0, utf8Tokens[i].length);
+      ngramTokenizer.tokenize(utf8Tokens[i], this);
+    }
+    termStarts[utf8Tokens.length] = count;
+    currentSource = null;
+
+    if (termBatches.length < count) {
+      final int previousLength = termBatches.length;
+      termBatches = Arrays.copyOf(termBatches, Math.max(count, previousLength * 2));
+      for (int t = previousLength; t < termBatches.length; t++) {
+        termBatches[t] = new BitSet();
+      }
+    }
+    csc.queryBatch(sources, offsets, lengths, count, termBatches);
+
+    for (int i = 0; i < utf8Tokens.length; i++) {
+      batches[i].clear();
+      batches[i].or(termBatches[termStarts[i]]);
+      for (int t = termStarts[i] + 1; t < termStarts[i + 1]; t++) {
+        batches[i].and(termBatches[t]);
+      }
+    }
+  }
+
+  /**
+   * Locate the batches containing all n-grams of the string.
+   */
+  void locateContainsBatches(CscFilter csc, byte[] utf8String, BitSet batches) {
+    count = 0;
+    ngramTokenizer.tokenize(utf8String, this);
+    queryAll(csc, utf8String, batches);
+  }
+
+  @Override
+  public void accept(TokenType tokenType, int offset, int length) {
+    add(offset, length);
+  }
+
+  private void queryAll(CscFilter csc, byte[] bytes, BitSet batches) {
+    targetBatches = batches;
+    csc.queryAll(bytes, offsets, lengths, count, batchSetter);
+    targetBatches = null;
+  }
+
+  private void add(int offset, int length) {
+    if (count == offsets.length) {
+      sources = Arrays.copyOf(sources, count * 2);
+      offsets = Arrays.copyOf(offsets, count * 2);
+      lengths = Arrays.copyOf(lengths, count * 2);
+    }
+    sources[count] = currentSource;
+    offsets[count] = offset;
+    lengths[count] = length;
+    count++;
+  }
+}
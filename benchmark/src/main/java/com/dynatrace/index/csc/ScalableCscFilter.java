@@ -0,0 +1,300 @@
+package com.dynatrace.index.csc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Chain of CSC filters, which grows instead of saturating. Updates go to the most recent section of the chain. Once
+ * its fill ratio exceeds the configured limit, a new section with twice the capacity is added, following the idea of
+ * "Scalable Bloom Filters" by Almeida et al. Queries combine the postings of all sections.
+ *
+ * <p>Calculating the fill ratio requires a pass over the bits of the section, so it is only checked after a number
+ * of updates proportional to the capacity of the section.
+ */
+public final class ScalableCscFilter implements CscFilter {
+
+  private final SectionFactory sectionFactory;
+  private final double maxFillRatio;
+  private final List<CscFilter> sections;
+  private final AtomicLong pendingUpdates;
+
+  private volatile CscFilter current;
+  private volatile long checkInterval;
+
+  // Scratch state which is reused between queries, so the query path does not allocate
+  private final BitSet queryResult;
+  private final BitSet tokenResult;
+  private final IntConsumer queryResultSetter;
+  private final IntConsumer tokenResultSetter;
+  private final int[] tokenOffset;
+  private final int[] tokenLength;
+  private BitSet[] sectionResults;
+
+  private ScalableCscFilter(
+      SectionFactory sectionFactory, double maxFillRatio, long checkInterval, List<CscFilter> sections) {
+    this.sectionFactory = requireNonNull(sectionFactory);
+    this.maxFillRatio = maxFillRatio;
+    this.checkInterval = checkInterval;
+    this.sections = new CopyOnWriteArrayList<>(sections);
+    this.current = sections.get(sections.size() - 1);
+    this.pendingUpdates = new AtomicLong();
+
+    this.queryResult = new BitSet();
+    this.tokenResult = new BitSet();
+    this.queryResultSetter = queryResult::set;
+    this.tokenResultSetter = tokenResult::set;
+    this.tokenOffset = new int[1];
+    this.tokenLength = new int[1];
+    this.sectionResults = new BitSet[0];
+  }
+
+  /**
+   * Create a new chain consisting of its first section.
+   *
+   * @param sectionFactory creates the sections of the chain
+   * @param maxFillRatio fill ratio of the current section at which a new section is added
+   * @param checkInterval number of updates after which the fill ratio of the first section is checked, the interval
+   *     doubles with every section
+   */
+  public static ScalableCscFilter create(SectionFactory sectionFactory, double maxFillRatio, long checkInterval) {
+    checkArgument(maxFillRatio > 0 && maxFillRatio < 1, "maxFillRatio must be within (0, 1)");
+    checkArgument(checkInterval > 0, "checkInterval must be larger than 0");
+    return new ScalableCscFilter(sectionFactory, maxFillRatio, checkInterval, List.of(sectionFactory.create(0)));
+  }
+
+  /**
+   * Combine the sections of a chain read from disk. The chain does not support updates.
+   */
+  public static ScalableCscFilter readOnly(List<CscFilter> sections) {
+    checkArgument(!sections.isEmpty(), "At least one section is required");
+    final SectionFactory noSections = section -> {
+      throw new UnsupportedOperationException("Cannot add sections to a read-only filter");
+    };
+    return new ScalableCscFilter(noSections, Double.POSITIVE_INFINITY, Long.MAX_VALUE, sections);
+  }
+
+  /**
+   * @return the sections of the chain, in the order they were added
+   */
+  public List<CscFilter> sections() {
+    return Collections.unmodifiableList(sections);
+  }
+
+  @Override
+  public void update(byte[] bytes, int[] offsets, int[] lengths, int count, int posting) {
+    current.update(bytes, offsets, lengths, count, posting);
+    trackUpdates(count);
+  }
+
+  @Override
+  public void update(byte[] bytes, int offset, int length, int posting) {
+    current.update(bytes, offset, length, posting);
+    trackUpdates(1);
+  }
+
+  @Override
+  public void query(byte[] bytes, IntConsumer postingsConsumer) {
+    if (sections.size() == 1) {
+      current.query(bytes, postingsConsumer);
+      return;
+    }
+
+    queryResult.clear();
+    querySections(bytes, queryResultSetter);
+    consumeMatches(queryResult, postingsConsumer);
+  }
+
+  @Override
+  public void queryAll(byte[][] bytes, IntConsumer postingsConsumer) {
+    if (sections.size() == 1) {
+      current.queryAll(bytes, postingsConsumer);
+      return;
+    }
+
+    // A batch may contain tokens located in different sections, so the sections are combined for every token
+    queryResult.clear();
+    querySections(bytes[0], queryResultSetter);
+    for (int i = 1; i < bytes.length && !queryResult.isEmpty(); i++) {
+      tokenResult.clear();
+      querySections(bytes[i], tokenResultSetter);
+      queryResult.and(tokenResult);
+    }
+
+    consumeMatches(queryResult, postingsConsumer);
+  }
+
+  @Override
+  public void queryAll(byte[] bytes, int[] offsets, int[] lengths, int count, IntConsumer postingsConsumer) {
+    if (sections.size() == 1) {
+      current.queryAll(bytes, offsets, lengths, count, postingsConsumer);
+      return;
+    }
+
+    // The sections locate the tokens with different hash functions, so every token is evaluated on its own
+    queryResult.clear();
+    querySections(bytes, offsets[0], lengths[0], queryResultSetter);
+    for (int i = 1; i < count && !queryResult.isEmpty(); i++) {
+      tokenResult.clear();
+      querySections(bytes, offsets[i], lengths[i], tokenResultSetter);
+      queryResult.and(tokenResult);
+    }
+
+    consumeMatches(queryResult, postingsConsumer);
+  }
+
+  @Override
+  public void queryBatch(byte[][] bytes, int[] offsets, int[] lengths, int count, BitSet[] results) {
+    checkArgument(results.length >= count, "A result is required for every token");
+    if (sections.size() == 1) {
+      current.queryBatch(bytes, offsets, lengths, count, results);
+      return;
+    }
+
+    if (sectionResults.length < count) {
+      final int previousLength = sectionResults.length;
+      sectionResults = Arrays.copyOf(sectionResults, count);
+      for (int i = previousLength; i < count; i++) {
+        sectionResults[i] = new BitSet();
+      }
+    }
+
+    // Every section reads the probes of the whole batch in order, the sections themselves are read one after another
+    for (int i = 0; i < count; i++) {
+      results[i].clear();
+    }
+    for (CscFilter section : sections) {
+      section.queryBatch(bytes, offsets, lengths, count, sectionResults);
+      for (int i = 0; i < count; i++) {
+        results[i].or(sectionResults[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the fill ratios of the current section, which is kept below the configured limit
+   */
+  @Override
+  public double[] fillRatios() {
+    return current.fillRatios();
+  }
+
+  /**
+   * @return the fill ratio of the current section, which is kept below the configured limit
+   */
+  @Override
+  public double fillRatio() {
+    return current.fillRatio();
+  }
+
+  @Override
+  public double expectedFalsePositiveRate() {
+    // A posting is falsely returned if any section falsely returns it
+    double trueNegativeRate = 1;
+    for (CscFilter section : sections) {
+      trueNegativeRate *= 1 - section.expectedFalsePositiveRate();
+    }
+    return 1 - trueNegativeRate;
+  }
+
+  @Override
+  public long estimatedMemoryUsageBytes() {
+    long size = 0;
+    for (CscFilter section : sections) {
+      size += section.estimatedMemoryUsageBytes();
+    }
+    return size;
+  }
+
+  @Override
+  public long estimatedOffHeapMemoryUsageBytes() {
+    long size = 0;
+    for (CscFilter section : sections) {
+      size += section.estimatedOffHeapMemoryUsageBytes();
+    }
+    return size;
+  }
+
+  @Override
+  public void merge(CscFilter other) {
+    throw new UnsupportedOperationException("Scalable filters cannot be merged");
+  }
+
+  @Override
+  public void close() {
+    for (CscFilter section : sections) {
+      section.close();
+    }
+  }
+
+  /**
+   * Not supported, since each section is stored individually, see {@link #sections()}.
+   */
+  @Override
+  public void writeTo(WritableByteChannel channel) {
+    throw new UnsupportedOperationException("The sections of a scalable filter are written individually");
+  }
+
+  private void trackUpdates(int count) {
+    if (pendingUpdates.addAndGet(count) >= checkInterval) {
+      checkFillRatio();
+    }
+  }
+
+  private synchronized void checkFillRatio() {
+    if (pendingUpdates.get() < checkInterval) {
+      // Another thread already checked the fill ratio
+      return;
+    }
+
+    pendingUpdates.set(0);
+    if (current.fillRatio() >= maxFillRatio) {
+      final CscFilter section = sectionFactory.create(sections.size());
+      sections.add(section);
+      current = section;
+      checkInterval <<= 1;
+    }
+  }
+
+  private void querySections(byte[] bytes, IntConsumer resultSetter) {
+    for (CscFilter section : sections) {
+      section.query(bytes, resultSetter);
+    }
+  }
+
+  private void querySections(byte[] bytes, int offset, int length, IntConsumer resultSetter) {
+    tokenOffset[0] = offset;
+    tokenLength[0] = length;
+    for (CscFilter section : sections) {
+      section.queryAll(bytes, tokenOffset, tokenLength, 1, resultSetter);
+    }
+  }
+
+  private static void consumeMatches(BitSet result, IntConsumer postingsConsumer) {
+    for (int posting = result.nextSetBit(0); posting >= 0; posting = result.nextSetBit(posting + 1)) {
+      postingsConsumer.accept(posting);
+    }
+  }
+
+  /**
+   * Creates the sections of a {@link ScalableCscFilter}.
+   */
+  @FunctionalInterface
+  public interface SectionFactory {
+
+    /**
+     * Create an empty section, which should have twice the capacity of the previous section.
+     *
+     * @param section the index of the section within the chain
+     */
+    CscFilter create(int section);
+  }
+}
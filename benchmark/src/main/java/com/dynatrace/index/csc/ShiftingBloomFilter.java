@@ -2,23 +2,23 @@ package com.dynatrace.index.csc;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.math.IntMath.isPowerOfTwo;
-import static java.util.Objects.requireNonNull;
 
-import com.dynatrace.hash4j.hashing.Hasher32;
-import com.dynatrace.hash4j.hashing.Hashing;
 import com.dynatrace.index.memory.Memory;
 import com.dynatrace.index.memory.MemoryReader;
 import com.dynatrace.index.util.IntEncoder;
 import com.dynatrace.index.util.MappedBufferUtil;
+import com.google.common.math.LongMath;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /**
@@ -29,31 +29,94 @@ import javax.annotation.Nullable;
  */
 public final class ShiftingBloomFilter implements CscFilter {
 
+  /**
+   * Version of the serialized format. Headers of versioned formats start with the negated version, while the first
+   * value of the original, un-versioned header is the (positive) capacity. Version 3 stores the capacity as long.
+   */
+  private static final int FORMAT_VERSION = 3;
+
   private final MemoryBitSet repetition;
-  private final Hasher32[] hashes;
-  private final int[] hashSeeds;
+  private final LocationHashing locationHashing;
+  private final int[] hashValues;
+  private final Supplier<UpdateScratch> updateScratch;
   private final int partitions;
-  private final int capacity;
-  private final int capacityMask;
+  private final long capacity;
+  private final AnkerFunction ankerFunction;
   @Nullable
   private final Runnable closer;
 
+  // Scratch bit sets which are reused between queries, so the query path does not allocate
+  private final MemoryBitSet queryResult;
+  private final MemoryBitSet tokenResult;
+  private final MemoryBitSet hashResult;
+  private final MemoryBitSet wrappedResult;
+  private final QueryPlanner queryPlanner;
+  private final BatchQuery batchQuery;
+  private final BatchQuery.RangeReader batchReader;
+
   private ShiftingBloomFilter(
-      int capacity,
+      long capacity,
       MemoryBitSet repetition,
-      Hasher32[] hashes,
-      int[] hashSeeds,
+      LocationHashing locationHashing,
       int partitions,
+      boolean concurrent,
       @Nullable Runnable closer) {
 
     this.capacity = capacity;
     this.repetition = repetition;
-    this.hashes = hashes;
-    this.hashSeeds = hashSeeds;
+    this.locationHashing = locationHashing;
+    this.hashValues = new int[locationHashing.hashCount()];
+    this.updateScratch = UpdateScratch.supplier(locationHashing.hashCount(), concurrent);
     this.partitions = partitions;
     this.closer = closer;
 
-    this.capacityMask = bitMask(capacity);
+    this.ankerFunction = AnkerFunction.create(capacity, partitions);
+
+    this.queryResult = new MemoryBitSet(partitions);
+    this.tokenResult = new MemoryBitSet(partitions);
+    this.hashResult = new MemoryBitSet(partitions);
+    this.wrappedResult = new MemoryBitSet(partitions);
+    this.queryPlanner = new QueryPlanner(locationHashing, this::estimatePostings);
+    this.batchQuery = new BatchQuery(partitions);
+    this.batchReader = (anker, token, target) ->
+        repetition.getCircular(anker, partitions, capacity, target, wrappedResult);
+  }
+
+  /**
+   * Create a new instance using the {@link CscHashScheme#MURMUR3} hash scheme.
+   *
+   * @param capacity capacity in bits of each repetition
+   * @param hashes the number of hash functions to use in each repetition
+   * @param partitions the number of partitions per repetition
+   */
+  public static ShiftingBloomFilter create(long capacity, int hashes, int partitions) {
+    return create(capacity, hashes, partitions, CscHashScheme.MURMUR3);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param capacity capacity in bits of each repetition
+   * @param hashes the number of hash functions to use in each repetition
+   * @param partitions the number of partitions per repetition
+   * @param hashScheme defines how the locations of tokens are calculated
+   */
+  public static ShiftingBloomFilter create(long capacity, int hashes, int partitions, CscHashScheme hashScheme) {
+    return create(capacity, hashes, partitions, hashScheme, false);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param capacity capacity in bits of each repetition
+   * @param hashes the number of hash functions to use in each repetition
+   * @param partitions the number of partitions per repetition
+   * @param hashScheme defines how the locations of tokens are calculated
+   * @param concurrent whether multiple threads may update the filter concurrently
+   */
+  public static ShiftingBloomFilter create(
+      long capacity, int hashes, int partitions, CscHashScheme hashScheme, boolean concurrent) {
+    return create(capacity, hashes, partitions, hashScheme, concurrent, CscMemoryType.HEAP);
   }
 
   /**
@@ -62,23 +125,57 @@ public final class ShiftingBloomFilter implements CscFilter {
    * @param capacity capacity in bits of each repetition
    * @param hashes the number of hash functions to use in each repetition
    * @param partitions the number of partitions per repetition
+   * @param hashScheme defines how the locations of tokens are calculated
+   * @param concurrent whether multiple threads may update the filter concurrently
+   * @param memoryType defines where the repetition is allocated
    */
-  public static ShiftingBloomFilter create(int capacity, int hashes, int partitions) {
-    checkArgument(isPowerOfTwo(capacity), "capacity must be a power of 2");
+  public static ShiftingBloomFilter create(
+      long capacity,
+      int hashes,
+      int partitions,
+      CscHashScheme hashScheme,
+      boolean concurrent,
+      CscMemoryType memoryType) {
+    return create(
+        capacity,
+        hashes,
+        partitions,
+        hashScheme,
+        ThreadLocalRandom.current().nextLong(),
+        SketchAllocator.create(memoryType, concurrent));
+  }
+
+  static ShiftingBloomFilter create(
+      long capacity,
+      int hashes,
+      int partitions,
+      CscHashScheme hashScheme,
+      long hashSeed,
+      SketchAllocator allocator) {
+
+    checkArgument(LongMath.isPowerOfTwo(capacity), "capacity must be a power of 2");
     checkArgument(isPowerOfTwo(partitions), "partitions must be a power of 2");
     checkArgument(hashes > 0, "Hashes must be larger than 0");
 
-    final MemoryBitSet repetition = new MemoryBitSet(capacity);
-    final Hasher32[] repetitionHashes = new Hasher32[hashes];
-    final int[] hashSeeds = new int[hashes];
+    final LocationHashing locationHashing = LocationHashing.create(hashScheme, 1, hashes, hashSeed);
+    return allocate(capacity, locationHashing, partitions, allocator);
+  }
 
-    final ThreadLocalRandom random = ThreadLocalRandom.current();
-    for (int i = 0; i < hashes; i++) {
-      hashSeeds[i] = random.nextInt();
-      repetitionHashes[i] = Hashing.murmur3_32(hashSeeds[i]);
-    }
+  /**
+   * Create an empty filter of the same shape using the same hash functions, into which this filter can be merged.
+   */
+  ShiftingBloomFilter emptyCopy(SketchAllocator allocator) {
+    return allocate(capacity, locationHashing, partitions, allocator);
+  }
+
+  private static ShiftingBloomFilter allocate(
+      long capacity, LocationHashing locationHashing, int partitions, SketchAllocator allocator) {
 
-    return new ShiftingBloomFilter(capacity, repetition, repetitionHashes, hashSeeds, partitions, null);
+    allocator.writeHeader(out -> writeHeader(out, capacity, locationHashing, partitions));
+    final MemoryBitSet repetition = allocator.allocate(capacity);
+
+    return new ShiftingBloomFilter(
+        capacity, repetition, locationHashing, partitions, allocator.concurrent(), allocator.closer());
   }
 
   @Override
@@ -90,27 +187,24 @@ public final class ShiftingBloomFilter implements CscFilter {
 
   @Override
   public void update(byte[] bytes, int offset, int length, int posting) {
-    for (Hasher32 hasher : hashes) {
-      final int hash = hasher.hashBytesToInt(bytes, offset, length);
-      final int anker = powerOfTwoModulo(hash, capacityMask);
-      final int position = powerOfTwoModulo(anker + posting, capacityMask);
-      repetition.set(position);
+    final int[] updateHashes = updateScratch.get().hashValues;
+    locationHashing.hash(bytes, offset, length, updateHashes);
+    for (int hash : updateHashes) {
+      repetition.set(ankerFunction.position(ankerFunction.anker(hash), posting));
     }
   }
 
   @Override
   public void query(byte[] bytes, IntConsumer postingsConsumer) {
-    final MemoryBitSet repetitionResults = queryInternal(bytes);
+    final MemoryBitSet repetitionResults = queryInternal(bytes, queryResult);
     consumeMatches(repetitionResults, 0, postingsConsumer);
   }
 
   @Override
   public void queryAll(byte[][] bytes, IntConsumer postingsConsumer) {
-    MemoryBitSet result = queryInternal(bytes[0]);
+    MemoryBitSet result = queryInternal(bytes[0], queryResult);
     for (int i = 1; i < bytes.length; i++) {
-      MemoryBitSet tokenResult = queryInternal(bytes[i]);
-
-      result.and(tokenResult);
+      result.and(queryInternal(bytes[i], tokenResult));
       if (result.isEmpty()) {
         // Stop early if query cannot match anymore
         return;
@@ -120,11 +214,71 @@ public final class ShiftingBloomFilter implements CscFilter {
     consumeMatches(result, 0, postingsConsumer);
   }
 
+  @Override
+  public void queryAll(byte[] bytes, int[] offsets, int[] lengths, int count, IntConsumer postingsConsumer) {
+    final int plannedTokens = queryPlanner.plan(bytes, offsets, lengths, count);
+    if (plannedTokens == 0) {
+      return;
+    }
+
+    final int[] plannedHashes = queryPlanner.hashValues();
+    final MemoryBitSet result = queryHashes(plannedHashes, queryPlanner.hashOffset(0), queryResult);
+    for (int rank = 1; rank < plannedTokens && !result.isEmpty(); rank++) {
+      result.and(queryHashes(plannedHashes, queryPlanner.hashOffset(rank), tokenResult));
+    }
+
+    consumeMatches(result, 0, postingsConsumer);
+  }
+
+  @Override
+  public void queryBatch(byte[][] bytes, int[] offsets, int[] lengths, int count, BitSet[] results) {
+    checkArgument(results.length >= count, "A result is required for every token");
+    batchQuery.reset(count, capacity);
+    for (int token = 0; token < count; token++) {
+      locationHashing.hash(bytes[token], offsets[token], lengths[token], hashValues);
+      for (int hash : hashValues) {
+        batchQuery.addProbe(ankerFunction.anker(hash), token);
+      }
+    }
+
+    batchQuery.evaluate(batchReader);
+    for (int token = 0; token < count; token++) {
+      batchQuery.copy(batchQuery.result(token), results[token]);
+    }
+  }
+
+  @Override
+  public double[] fillRatios() {
+    return new double[]{repetition.cardinality() / (double) capacity};
+  }
+
+  @Override
+  public double expectedFalsePositiveRate() {
+    return Math.pow(fillRatio(), locationHashing.hashCount());
+  }
+
   @Override
   public long estimatedMemoryUsageBytes() {
     return repetition.estimatedMemoryUsage();
   }
 
+  @Override
+  public long estimatedOffHeapMemoryUsageBytes() {
+    return repetition.estimatedOffHeapMemoryUsage();
+  }
+
+  @Override
+  public void merge(CscFilter other) {
+    checkArgument(getClass() == other.getClass(), "Cannot merge %s into %s",
+        other.getClass().getSimpleName(), getClass().getSimpleName());
+    final ShiftingBloomFilter that = (ShiftingBloomFilter) other;
+    checkArgument(
+        capacity == that.capacity && partitions == that.partitions && locationHashing.equals(that.locationHashing),
+        "Filters must have the same shape and hash functions");
+
+    repetition.or(that.repetition);
+  }
+
   @Override
   public void close() {
     if (closer != null) {
@@ -133,25 +287,33 @@ public final class ShiftingBloomFilter implements CscFilter {
   }
 
   @Override
-  public void writeTo(OutputStream out) throws IOException {
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    // The header is written unbuffered, like the repetitions
+    writeHeader(Channels.newOutputStream(channel), capacity, locationHashing, partitions);
+
+    // Write repetition
+    repetition.writeTo(channel);
+  }
+
+  private static void writeHeader(
+      OutputStream out, long capacity, LocationHashing locationHashing, int partitions) throws IOException {
     byte[] buffer = new byte[4];
+    byte[] longBuffer = new byte[8];
 
     // Write header
-    IntEncoder.writeFullInt(buffer, 0, capacity);
+    IntEncoder.writeFullInt(buffer, 0, -FORMAT_VERSION);
+    out.write(buffer);
+    IntEncoder.writeFullInt(buffer, 0, locationHashing.scheme().id());
     out.write(buffer);
-    IntEncoder.writeFullInt(buffer, 0, hashes.length);
+    IntEncoder.writeFullLong(longBuffer, 0, capacity);
+    out.write(longBuffer);
+    IntEncoder.writeFullInt(buffer, 0, locationHashing.hashCount());
     out.write(buffer);
     IntEncoder.writeFullInt(buffer, 0, partitions);
     out.write(buffer);
 
     // Write hash seeds
-    for (int seed : hashSeeds) {
-      IntEncoder.writeFullInt(buffer, 0, seed);
-      out.write(buffer);
-    }
-
-    // Write repetition
-    repetition.writeTo(out);
+    locationHashing.writeTo(out);
   }
 
   public static ShiftingBloomFilter readFrom(FileInputStream in) throws IOException {
@@ -159,24 +321,23 @@ public final class ShiftingBloomFilter implements CscFilter {
     final Header header = readHeader(in);
 
     // Read repetitions
-    // Map main data into memory
-    final int repetitionSize = header.capacity / 8;
+    // Map main data into memory, split into multiple buffers if it exceeds the size limit of a single buffer
+    final long repetitionSize = header.capacity / 8;
 
-    final MappedByteBuffer mappedBuffer = in.getChannel().map(
-        FileChannel.MapMode.READ_ONLY,
+    final MappedByteBuffer[] mappedBuffers = MappedBufferUtil.mapReadOnly(
+        in.getChannel(),
         in.getChannel().position(),
         repetitionSize);
-    mappedBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
-    final Memory memory = Memory.readOnlyMappedMemory(mappedBuffer);
+    final Memory memory = Memory.readOnlyMappedMemory(mappedBuffers);
     final MemoryReader memoryReader = new MemoryReader(memory);
 
     final Memory repetitionMemory = memoryReader.createView(repetitionSize);
     final MemoryBitSet repetition = new MemoryBitSet(repetitionMemory);
 
     return new ShiftingBloomFilter(
-        header.capacity, repetition, header.repetitionHashes, header.hashSeeds, header.partitions,
-        () -> MappedBufferUtil.unmapBuffer(mappedBuffer));
+        header.capacity, repetition, header.locationHashing, header.partitions, false,
+        () -> MappedBufferUtil.unmapBuffers(mappedBuffers));
   }
 
   public static ShiftingBloomFilter readFrom(InputStream in) throws IOException {
@@ -184,99 +345,87 @@ public final class ShiftingBloomFilter implements CscFilter {
     final Header header = readHeader(in);
 
     // Read repetitions
-    final int repetitionSize = header.capacity / 8;
-    final byte[] bytes = in.readNBytes(repetitionSize);
-    final MemoryBitSet repetition = new MemoryBitSet(Memory.readOnlyHeapMemory(bytes));
+    final long repetitionSize = header.capacity / 8;
+    final MemoryBitSet repetition = new MemoryBitSet(Memory.readHeapMemory(in, repetitionSize));
 
     return new ShiftingBloomFilter(
-        header.capacity, repetition, header.repetitionHashes, header.hashSeeds, header.partitions, null);
+        header.capacity, repetition, header.locationHashing, header.partitions, false, null);
   }
 
   private static Header readHeader(InputStream in) throws IOException {
-    byte[] buffer = new byte[4];
+    byte[] buffer = new byte[8];
 
     // Read header
     in.readNBytes(buffer, 0, 4);
-    final int capacity = IntEncoder.readFullInt(buffer, 0);
+    final int firstValue = IntEncoder.readFullInt(buffer, 0);
+
+    final CscHashScheme hashScheme;
+    final long capacity;
+    if (firstValue < 0) {
+      in.readNBytes(buffer, 0, 4);
+      hashScheme = CscHashScheme.fromId(IntEncoder.readFullInt(buffer, 0));
+      if (-firstValue >= FORMAT_VERSION) {
+        in.readNBytes(buffer, 0, 8);
+        capacity = IntEncoder.readFullLong(buffer, 0);
+      } else {
+        in.readNBytes(buffer, 0, 4);
+        capacity = IntEncoder.readFullInt(buffer, 0);
+      }
+    } else {
+      // Original format without version, which always used murmur3 hashes
+      hashScheme = CscHashScheme.MURMUR3;
+      capacity = firstValue;
+    }
+
     in.readNBytes(buffer, 0, 4);
     final int hashCount = IntEncoder.readFullInt(buffer, 0);
     in.readNBytes(buffer, 0, 4);
     final int partitions = IntEncoder.readFullInt(buffer, 0);
 
     // Read hashes
-    final int[] hashSeeds = new int[hashCount];
-    final Hasher32[] repetitionHashes = new Hasher32[hashCount];
-    for (int j = 0; j < hashCount; j++) {
-      in.readNBytes(buffer, 0, 4);
-      hashSeeds[j] = IntEncoder.readFullInt(buffer, 0);
-      repetitionHashes[j] = Hashing.murmur3_32(hashSeeds[j]);
-    }
+    final LocationHashing locationHashing = LocationHashing.readFrom(hashScheme, 1, hashCount, in);
 
-    return new Header(capacity, hashCount, partitions, hashSeeds, repetitionHashes);
+    return new Header(capacity, partitions, locationHashing);
   }
 
-  private MemoryBitSet queryInternal(byte[] bytes) {
-    MemoryBitSet result = null;
-    for (Hasher32 hasher : hashes) {
-      final int hash = hasher.hashBytesToInt(bytes, 0, bytes.length);
-      final int anker = powerOfTwoModulo(hash, capacityMask);
+  private MemoryBitSet queryInternal(byte[] bytes, MemoryBitSet result) {
+    locationHashing.hash(bytes, 0, bytes.length, hashValues);
+    return queryHashes(hashValues, 0, result);
+  }
 
-      final int endPosition = anker + partitions;
-      final MemoryBitSet hashResult;
-      if (endPosition < capacity) {
-        hashResult = repetition.get(anker, endPosition);
-      } else {
-        // Handle the circular shift
-        hashResult = repetition.get(anker, capacity);
-        final MemoryBitSet shifted = repetition.get(0, endPosition - capacity);
-        consumeMatches(shifted, capacity - anker, hashResult::set);
-      }
+  private MemoryBitSet queryHashes(int[] hashes, int hashOffset, MemoryBitSet result) {
+    for (int i = 0; i < hashValues.length; i++) {
+      final long anker = ankerFunction.anker(hashes[hashOffset + i]);
 
-      if (result == null) {
-        result = hashResult;
+      if (i == 0) {
+        repetition.getCircular(anker, partitions, capacity, result, wrappedResult);
       } else {
+        repetition.getCircular(anker, partitions, capacity, hashResult, wrappedResult);
         result.and(hashResult);
       }
     }
 
-    return requireNonNull(result);
-  }
-
-  private static int powerOfTwoModulo(int value, int bitMask) {
-    // Faster alternative to modulo, since the capacity is guaranteed to be a power of 2
-    return value & bitMask;
+    return result;
   }
 
-  private static int bitMask(int partitions) {
-    final int shift = Integer.numberOfLeadingZeros(partitions) + 1;
-    return ~0 >>> shift;
+  private long estimatePostings(int[] hashes) {
+    // The postings of the token are a subset of the bits within the range of any of its hash functions
+    return repetition.cardinalityCircular(0, ankerFunction.anker(hashes[0]), partitions, capacity);
   }
 
   private static void consumeMatches(MemoryBitSet result, int offset, IntConsumer postingsConsumer) {
-    for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
-      postingsConsumer.accept(offset + i);
-    }
+    result.forEachSetBit(offset, postingsConsumer);
   }
 
   private static final class Header {
-    final int capacity;
-    final int hashCount;
+    final long capacity;
     final int partitions;
-    final int[] hashSeeds;
-    final Hasher32[] repetitionHashes;
-
-    Header(
-        int capacity,
-        int hashCount,
-        int partitions,
-        int[] hashSeeds,
-        Hasher32[] repetitionHashes) {
+    final LocationHashing locationHashing;
 
+    Header(long capacity, int partitions, LocationHashing locationHashing) {
       this.capacity = capacity;
-      this.hashCount = hashCount;
       this.partitions = partitions;
-      this.hashSeeds = hashSeeds;
-      this.repetitionHashes = repetitionHashes;
+      this.locationHashing = locationHashing;
     }
   }
 }
@@ -0,0 +1,126 @@
+package com.dynatrace.index.csc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.dynatrace.index.memory.Memory;
+import com.dynatrace.index.util.MappedBufferUtil;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Allocates the repetitions of a CSC sketch under construction according to a {@link CscMemoryType}.
+ *
+ * <p>Sketches of type {@link CscMemoryType#MAPPED} are constructed in place within the sketch file. The filter writes
+ * its header through the allocator before allocating its repetitions, which are mapped directly behind the header.
+ * The file therefore has its final layout from the start and does not have to be written when the sketch is finished.
+ */
+final class SketchAllocator {
+
+  private final CscMemoryType memoryType;
+  private final boolean concurrent;
+  @Nullable
+  private final FileChannel channel;
+  private final List<MappedByteBuffer[]> mappings;
+  private long position;
+
+  private SketchAllocator(
+      CscMemoryType memoryType, boolean concurrent, @Nullable FileChannel channel, long position) {
+    this.memoryType = memoryType;
+    this.concurrent = concurrent;
+    this.channel = channel;
+    this.position = position;
+    this.mappings = new ArrayList<>();
+  }
+
+  static SketchAllocator create(CscMemoryType memoryType, boolean concurrent) {
+    checkArgument(memoryType != CscMemoryType.MAPPED, "Mapped sketches require a sketch file");
+    return new SketchAllocator(memoryType, concurrent, null, 0);
+  }
+
+  /**
+   * Create an allocator which constructs the sketch within the file of the channel.
+   *
+   * @param channel channel of the sketch file, which has to be readable and writable
+   * @param position the position of the sketch within the file
+   */
+  static SketchAllocator mapped(FileChannel channel, long position) {
+    return new SketchAllocator(CscMemoryType.MAPPED, false, channel, position);
+  }
+
+  boolean concurrent() {
+    return concurrent;
+  }
+
+  /**
+   * @return the position within the sketch file at which the next header or repetition is written, or 0 if the
+   *     sketch is not constructed within a file
+   */
+  long position() {
+    return position;
+  }
+
+  /**
+   * Write the header of the sketch in front of the repetitions. Only mapped sketches write their header at this
+   * point, all other sketches write it once they are finished.
+   */
+  void writeHeader(HeaderWriter headerWriter) {
+    if (channel == null) {
+      return;
+    }
+
+    try {
+      channel.position(position);
+      headerWriter.writeTo(Channels.newOutputStream(channel));
+      position = channel.position();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  MemoryBitSet allocate(long bitCapacity) {
+    switch (memoryType) {
+      case OFF_HEAP:
+        return MemoryBitSet.offHeap(bitCapacity, concurrent);
+      case MAPPED:
+        return allocateMapped(bitCapacity);
+      default:
+        return concurrent ? MemoryBitSet.concurrent(bitCapacity) : new MemoryBitSet(bitCapacity);
+    }
+  }
+
+  /**
+   * @return releases the mapped memory of all allocated repetitions, or null if no memory has to be released
+   */
+  @Nullable
+  Runnable closer() {
+    if (channel == null) {
+      return null;
+    }
+    return () -> mappings.forEach(MappedBufferUtil::unmapBuffers);
+  }
+
+  private MemoryBitSet allocateMapped(long bitCapacity) {
+    final long bytes = bitCapacity >> 3;
+    try {
+      // Mapping extends the freshly truncated file, which reads as zeros beyond its previous end
+      final MappedByteBuffer[] buffers = MappedBufferUtil.mapReadWrite(channel, position, bytes);
+      mappings.add(buffers);
+      position += bytes;
+      return new MemoryBitSet(Memory.writableMappedMemory(buffers));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  interface HeaderWriter {
+
+    void writeTo(OutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,28 @@
+package com.dynatrace.index.csc;
+
+import java.util.function.Supplier;
+
+/**
+ * Scratch buffers of the update path of the CSC filters. Filters which support concurrent updates keep separate
+ * buffers for every updating thread, all other filters share a single instance.
+ */
+final class UpdateScratch {
+
+  final int[] hashValues;
+  final byte[] encodingBuffer;
+
+  private UpdateScratch(int hashValueCount) {
+    this.hashValues = new int[hashValueCount];
+    this.encodingBuffer = new byte[4];
+  }
+
+  static Supplier<UpdateScratch> supplier(int hashValueCount, boolean concurrent) {
+    if (concurrent) {
+      final ThreadLocal<UpdateScratch> scratch = ThreadLocal.withInitial(() -> new UpdateScratch(hashValueCount));
+      return scratch::get;
+    }
+
+    final UpdateScratch scratch = new UpdateScratch(hashValueCount);
+    return () -> scratch;
+  }
+}
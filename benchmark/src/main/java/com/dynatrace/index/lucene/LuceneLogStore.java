@@ -81,13 +81,22 @@ public final class LuceneLogStore extends LogStoreBase {
     this.indexWriter = requireNonNull(indexWriter);
   }
 
-  @SuppressWarnings("java:S2095") // closed in close method
   public static LuceneLogStore create(Path storageDirectory, Tokenizer tokenizer, int maxBatchCount)
       throws IOException {
+    return create(storageDirectory, tokenizer, maxBatchCount, 0);
+  }
+
+  /**
+   * @param compressionThreads the number of threads compressing the log data in the background, see
+   *     {@link DefaultBatchWriter#DefaultBatchWriter(Path, int)}
+   */
+  @SuppressWarnings("java:S2095") // closed in close method
+  public static LuceneLogStore create(
+      Path storageDirectory, Tokenizer tokenizer, int maxBatchCount, int compressionThreads) throws IOException {
     MMapDirectory directory = new MMapDirectory(indexDirectory(storageDirectory));
     IndexWriter indexWriter = new IndexWriter(directory, createIndexWriterConfig());
     BatchedIndexWriter batchedWriter = new BatchedIndexWriter(indexWriter);
-    DefaultBatchWriter writer = new DefaultBatchWriter(dataDirectory(storageDirectory));
+    DefaultBatchWriter writer = new DefaultBatchWriter(dataDirectory(storageDirectory), compressionThreads);
     return new LuceneLogStore(storageDirectory, writer, directory, batchedWriter, tokenizer, maxBatchCount);
   }
 
@@ -107,7 +116,7 @@ public final class LuceneLogStore extends LogStoreBase {
   @Override
   public void finish(FinishTrace trace) {
     try {
-      trace.trackSketchMemoryUsage(indexWriter.indexWriter.ramBytesUsed());
+      trace.trackSketchMemoryUsage(indexWriter.indexWriter.ramBytesUsed(), 0);
 
       // Write index
       final long indexStart = System.nanoTime();
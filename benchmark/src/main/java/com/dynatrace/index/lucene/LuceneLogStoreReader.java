@@ -8,6 +8,7 @@ import static com.dynatrace.index.storage.StorageDirectories.indexDirectory;
 
 import com.dynatrace.index.LogStoreReader;
 import com.dynatrace.index.LogStoreReaderBase;
+import com.dynatrace.index.LogStoreReaderOptions;
 import com.dynatrace.index.lucene.LuceneLogStore.BitSetCollector;
 import com.dynatrace.index.storage.BatchReader;
 import com.dynatrace.index.storage.DefaultBatchReader;
@@ -31,8 +32,9 @@ public final class LuceneLogStoreReader extends LogStoreReaderBase {
   private final BitSetCollector collector;
 
   LuceneLogStoreReader(
-      Directory directory, DirectoryReader directoryReader, IndexSearcher indexSearcher, BatchReader reader) {
-    super(reader);
+      Directory directory, DirectoryReader directoryReader, IndexSearcher indexSearcher, BatchReader reader,
+      LogStoreReaderOptions options) {
+    super(reader, options);
     this.directory = directory;
     this.directoryReader = directoryReader;
     this.indexSearcher = indexSearcher;
@@ -66,14 +68,19 @@ public final class LuceneLogStoreReader extends LogStoreReaderBase {
   }
 
   public static LuceneLogStoreReader loadFromDisk(Path storageDirectory) throws IOException {
+    return loadFromDisk(storageDirectory, LogStoreReaderOptions.DEFAULT);
+  }
+
+  public static LuceneLogStoreReader loadFromDisk(Path storageDirectory, LogStoreReaderOptions options)
+      throws IOException {
     final Path indexDir = indexDirectory(storageDirectory);
     final Path dataDir = dataDirectory(storageDirectory);
-    final BatchReader reader = DefaultBatchReader.create(dataDir);
+    final BatchReader reader = DefaultBatchReader.create(dataDir, options.readMode(), options.batchCache());
 
     MMapDirectory directory = new MMapDirectory(indexDir);
     DirectoryReader directoryReader = DirectoryReader.open(directory);
     IndexSearcher indexSearcher = new IndexSearcher(directoryReader);
 
-    return new LuceneLogStoreReader(directory, directoryReader, indexSearcher, reader);
+    return new LuceneLogStoreReader(directory, directoryReader, indexSearcher, reader, options);
   }
 }
@@ -0,0 +1,205 @@
+package com.dynatrace.index.memory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.dynatrace.index.util.IntEncoder;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Writable memory of a fixed capacity, which is split into byte-arrays ("chunks") of equal size. This makes it
+ * possible to allocate heap memory beyond the size limit of a single Java array.
+ *
+ * <p>Accesses of words aligned to {@link Long#BYTES} never cross chunk boundaries, since the chunk size is a power of
+ * 2. Unaligned accesses crossing a chunk boundary are supported, but slower.
+ *
+ * <p>If the memory is created as concurrent memory, the {@link #bitwiseOrLong(long, long)} operation is atomic, which
+ * allows multiple threads to set bits concurrently. All other write operations are plain writes and must not race
+ * with concurrent updates.
+ */
+final class ChunkedHeapMemory implements Memory {
+
+  static final int DEFAULT_CHUNK_SHIFT = 30;
+  static final int DEFAULT_CHUNK_SIZE = 1 << DEFAULT_CHUNK_SHIFT;
+
+  private static final VarHandle LONG_HANDLE =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final byte[][] chunks;
+  private final int chunkShift;
+  private final long chunkMask;
+  private final long capacity;
+  private final boolean concurrent;
+
+  ChunkedHeapMemory(long capacity, boolean concurrent) {
+    this(capacity, concurrent, DEFAULT_CHUNK_SHIFT);
+  }
+
+  ChunkedHeapMemory(long capacity, boolean concurrent, int chunkShift) {
+    checkArgument(capacity >= 0, "capacity must not be negative");
+    checkArgument(chunkShift >= 3 && chunkShift <= DEFAULT_CHUNK_SHIFT, "chunkShift must be within [3, 30]");
+
+    this.capacity = capacity;
+    this.concurrent = concurrent;
+    this.chunkShift = chunkShift;
+    this.chunkMask = (1L << chunkShift) - 1;
+
+    final long chunkSize = 1L << chunkShift;
+    final int chunkCount = Math.toIntExact((capacity + chunkSize - 1) >>> chunkShift);
+    this.chunks = new byte[chunkCount][];
+    for (int i = 0; i < chunkCount; i++) {
+      // The last chunk only covers the remaining capacity
+      chunks[i] = new byte[(int) Math.min(chunkSize, capacity - ((long) i << chunkShift))];
+    }
+  }
+
+  static ChunkedHeapMemory readFrom(InputStream in, long length) throws IOException {
+    final ChunkedHeapMemory memory = new ChunkedHeapMemory(length, false);
+    for (byte[] chunk : memory.chunks) {
+      if (in.readNBytes(chunk, 0, chunk.length) != chunk.length) {
+        throw new EOFException("Stream ended before " + length + " bytes were read");
+      }
+    }
+    return memory;
+  }
+
+  @Override
+  public AccessMode accessMode() {
+    return AccessMode.READ_WRITE;
+  }
+
+  @Override
+  public void setLong(long offset, long value) {
+    final byte[] chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (chunkOffset + Long.BYTES <= chunk.length) {
+      IntEncoder.writeFullLong(chunk, chunkOffset, value);
+    } else {
+      setLong(offset, Long.BYTES, value);
+    }
+  }
+
+  @Override
+  public void setLong(long offset, int byteCount, long value) {
+    final byte[] chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (chunkOffset + byteCount <= chunk.length) {
+      IntEncoder.writeLong(chunk, chunkOffset, byteCount, value);
+      return;
+    }
+
+    // Slow path for accesses crossing a chunk boundary
+    for (int i = 0; i < byteCount; i++) {
+      chunk(offset + i)[chunkOffset(offset + i)] = (byte) (value >>> (i * Byte.SIZE));
+    }
+  }
+
+  @Override
+  public void bitwiseOrLong(long offset, long value) {
+    final byte[] chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (concurrent) {
+      // Atomic access requires the offset to be aligned to the size of a long
+      LONG_HANDLE.getAndBitwiseOr(chunk, chunkOffset, value);
+    } else {
+      IntEncoder.writeFullLong(chunk, chunkOffset, IntEncoder.readFullLong(chunk, chunkOffset) | value);
+    }
+  }
+
+  @Override
+  public long getLong(long offset) {
+    final byte[] chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (chunkOffset + Long.BYTES <= chunk.length) {
+      return IntEncoder.readFullLong(chunk, chunkOffset);
+    }
+    return getLong(offset, Long.BYTES);
+  }
+
+  @Override
+  public long getLong(long offset, int byteCount) {
+    final byte[] chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (chunkOffset + byteCount <= chunk.length) {
+      return IntEncoder.readLong(chunk, chunkOffset, byteCount);
+    }
+
+    // Slow path for accesses crossing a chunk boundary
+    long value = 0;
+    for (int i = 0; i < byteCount; i++) {
+      value |= (chunk(offset + i)[chunkOffset(offset + i)] & 0xffL) << (i * Byte.SIZE);
+    }
+    return value;
+  }
+
+  @Override
+  public int getInt(long offset) {
+    return (int) getLong(offset, Integer.BYTES);
+  }
+
+  @Override
+  public long size() {
+    return capacity;
+  }
+
+  @Override
+  public long reservedBytes() {
+    return capacity;
+  }
+
+  @Override
+  public void clear() {
+    for (byte[] chunk : chunks) {
+      Arrays.fill(chunk, (byte) 0);
+    }
+  }
+
+  @Override
+  public void copy(long dstOffset, Memory src, long srcOffset, long length) {
+    throw new UnsupportedOperationException("Copying is not supported for chunked heap memory");
+  }
+
+  @Override
+  public Memory view(long offset, long length) {
+    throw new UnsupportedOperationException("Views are not supported for chunked heap memory");
+  }
+
+  @Override
+  public void writeTo(OutputStream out, long offset, long length) throws IOException {
+    final long end = offset + length;
+    while (offset < end) {
+      final byte[] chunk = chunk(offset);
+      final int chunkOffset = chunkOffset(offset);
+      final int chunkLength = (int) Math.min(chunk.length - chunkOffset, end - offset);
+      out.write(chunk, chunkOffset, chunkLength);
+      offset += chunkLength;
+    }
+  }
+
+  @Override
+  public void writeTo(WritableByteChannel channel, long offset, long length) throws IOException {
+    final long end = offset + length;
+    while (offset < end) {
+      final byte[] chunk = chunk(offset);
+      final int chunkOffset = chunkOffset(offset);
+      final int chunkLength = (int) Math.min(chunk.length - chunkOffset, end - offset);
+      HeapChannelWriter.write(channel, chunk, chunkOffset, chunkLength);
+      offset += chunkLength;
+    }
+  }
+
+  private byte[] chunk(long offset) {
+    return chunks[(int) (offset >>> chunkShift)];
+  }
+
+  private int chunkOffset(long offset) {
+    return (int) (offset & chunkMask);
+  }
+}
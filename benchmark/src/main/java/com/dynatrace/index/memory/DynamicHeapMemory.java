@@ -3,14 +3,18 @@ package com.dynatrace.index.memory;
 import com.dynatrace.index.util.IntEncoder;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 /**
- * Writable memory operating on a byte-array which will be grown dynamically when required.
+ * Writable memory operating on a byte-array which will be grown dynamically when required. The memory is limited to
+ * the size of a single Java array, larger memory is provided by {@link ChunkedHeapMemory}.
  */
 final class DynamicHeapMemory implements Memory {
 
   private static final int GROWTH_FACTOR = 2;
+  // Some JVMs reserve header words in arrays
+  private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
 
   private byte[] bytes;
   private int size;
@@ -25,39 +29,45 @@ final class DynamicHeapMemory implements Memory {
   }
 
   @Override
-  public void setLong(int offset, long value) {
+  public void setLong(long offset, long value) {
     ensureCapacity(offset, Long.BYTES);
-    IntEncoder.writeFullLong(bytes, offset, value);
+    IntEncoder.writeFullLong(bytes, (int) offset, value);
   }
 
   @Override
-  public void setLong(int offset, int byteCount, long value) {
+  public void setLong(long offset, int byteCount, long value) {
     ensureCapacity(offset, byteCount);
-    IntEncoder.writeLong(bytes, offset, byteCount, value);
+    IntEncoder.writeLong(bytes, (int) offset, byteCount, value);
   }
 
   @Override
-  public long getLong(int offset) {
-    return IntEncoder.readFullLong(bytes, offset);
+  public void bitwiseOrLong(long offset, long value) {
+    ensureCapacity(offset, Long.BYTES);
+    IntEncoder.writeFullLong(bytes, (int) offset, IntEncoder.readFullLong(bytes, (int) offset) | value);
+  }
+
+  @Override
+  public long getLong(long offset) {
+    return IntEncoder.readFullLong(bytes, (int) offset);
   }
 
   @Override
-  public long getLong(int offset, int byteCount) {
-    return IntEncoder.readLong(bytes, offset, byteCount);
+  public long getLong(long offset, int byteCount) {
+    return IntEncoder.readLong(bytes, (int) offset, byteCount);
   }
 
   @Override
-  public int getInt(int offset) {
-    return IntEncoder.readFullInt(bytes, offset);
+  public int getInt(long offset) {
+    return IntEncoder.readFullInt(bytes, (int) offset);
   }
 
   @Override
-  public int size() {
+  public long size() {
     return size;
   }
 
   @Override
-  public int reservedBytes() {
+  public long reservedBytes() {
     return bytes.length;
   }
 
@@ -68,12 +78,12 @@ final class DynamicHeapMemory implements Memory {
   }
 
   @Override
-  public void copy(int dstOffset, Memory src, int srcOffset, int length) {
+  public void copy(long dstOffset, Memory src, long srcOffset, long length) {
     ensureCapacity(dstOffset, length);
 
     if (src instanceof DynamicHeapMemory) {
       DynamicHeapMemory heapSource = (DynamicHeapMemory) src;
-      System.arraycopy(heapSource.bytes, srcOffset, bytes, dstOffset, length);
+      System.arraycopy(heapSource.bytes, (int) srcOffset, bytes, (int) dstOffset, (int) length);
       return;
     }
 
@@ -82,21 +92,29 @@ final class DynamicHeapMemory implements Memory {
   }
 
   @Override
-  public Memory view(int offset, int length) {
+  public Memory view(long offset, long length) {
     throw new UnsupportedOperationException("Views are not supported for dynamic head memory");
   }
 
   @Override
-  public void writeTo(OutputStream out, int offset, int length) throws IOException {
-    out.write(bytes, offset, length);
+  public void writeTo(OutputStream out, long offset, long length) throws IOException {
+    out.write(bytes, (int) offset, (int) length);
+  }
+
+  @Override
+  public void writeTo(WritableByteChannel channel, long offset, long length) throws IOException {
+    HeapChannelWriter.write(channel, bytes, (int) offset, (int) length);
   }
 
-  private void ensureCapacity(int offset, int length) {
-    if (offset + length > bytes.length) {
-      int requiredCapacity = offset + length;
-      int newCapacity = Math.max(requiredCapacity, bytes.length * GROWTH_FACTOR);
-      bytes = Arrays.copyOf(bytes, newCapacity);
+  private void ensureCapacity(long offset, long length) {
+    final long requiredCapacity = offset + length;
+    if (requiredCapacity > bytes.length) {
+      if (requiredCapacity > MAX_CAPACITY) {
+        throw new IllegalStateException("Exceeded space limit for Java arrays.");
+      }
+      long newCapacity = Math.min(MAX_CAPACITY, Math.max(requiredCapacity, (long) bytes.length * GROWTH_FACTOR));
+      bytes = Arrays.copyOf(bytes, (int) newCapacity);
     }
-    size = Math.max(size, offset + length);
+    size = Math.max(size, (int) requiredCapacity);
   }
 }
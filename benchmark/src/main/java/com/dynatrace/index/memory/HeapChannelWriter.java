@@ -0,0 +1,29 @@
+package com.dynatrace.index.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes byte-arrays to channels. Channels copy heap buffers into a temporary direct buffer of the same size before
+ * writing them, so large arrays are written in slices to bound the size of the temporary buffer.
+ */
+final class HeapChannelWriter {
+
+  private static final int MAX_SLICE_SIZE = 1 << 20;
+
+  private HeapChannelWriter() {
+    // static helper
+  }
+
+  static void write(WritableByteChannel channel, byte[] bytes, int offset, int length) throws IOException {
+    final int end = offset + length;
+    while (offset < end) {
+      final ByteBuffer slice = ByteBuffer.wrap(bytes, offset, Math.min(MAX_SLICE_SIZE, end - offset));
+      while (slice.hasRemaining()) {
+        channel.write(slice);
+      }
+      offset = slice.position();
+    }
+  }
+}
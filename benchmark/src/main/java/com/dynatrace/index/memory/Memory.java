@@ -1,16 +1,25 @@
 package com.dynatrace.index.memory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Provides an abstraction layer between data-structures and physical memory and enables other code to easily work with
  * different types of memory (heap, mapped, direct,...).
  *
  * <p>Implementations of this interface do not have to take any measures to ensure thread-safety, although
- * read-only implementations are typically thread-safe in the sense that they are immutable.
+ * read-only implementations are typically thread-safe in the sense that they are immutable. Memory created via
+ * {@link #concurrentHeapMemory(long)} or {@link #concurrentDirectMemory(long)} is an exception, since it supports
+ * atomic {@link #bitwiseOrLong(long, long)} updates from multiple threads.
  * <p>Implementations will typically not perform any range checks for performance reasons.
+ * <p>Offsets and sizes are 64-bit values. Memory larger than a single Java array or {@link java.nio.ByteBuffer} is
+ * split into chunks, see {@link #chunkedHeapMemory(long)} and {@link #readOnlyMappedMemory(MappedByteBuffer...)}.
  */
 public interface Memory {
 
@@ -24,40 +33,56 @@ public interface Memory {
    *
    * @throws UnsupportedOperationException if {@link #accessMode()} is not {@link AccessMode#READ_WRITE}
    */
-  void setLong(int offset, long value);
+  void setLong(long offset, long value);
 
   /**
    * Little-endian encode the least-significant bytes of the value into the memory at the given offset.
    *
    * @throws UnsupportedOperationException if {@link #accessMode()} is not {@link AccessMode#READ_WRITE}
    */
-  void setLong(int offset, int byteCount, long value);
+  void setLong(long offset, int byteCount, long value);
+
+  /**
+   * Combine the little-endian encoded value at the given offset with the specified value via a Boolean "or".
+   * The update is atomic for memory created via {@link #concurrentHeapMemory(long)} or
+   * {@link #concurrentDirectMemory(long)}, which requires the offset to be aligned to {@link Long#BYTES}.
+   *
+   * @throws UnsupportedOperationException if {@link #accessMode()} is not {@link AccessMode#READ_WRITE}
+   */
+  void bitwiseOrLong(long offset, long value);
 
   /**
    * Little-endian decode the value from the memory at the given offset.
    */
-  long getLong(int offset);
+  long getLong(long offset);
 
   /**
    * Little-endian decode the least-significant bytes of the value from the memory at the given offset.
    */
-  long getLong(int offset, int byteCount);
+  long getLong(long offset, int byteCount);
 
   /**
    * Little-endian decode the 4 byte int - value from the memory at the given offset.
    */
-  int getInt(int offset);
+  int getInt(long offset);
 
   /**
    * The amount of "relevant" bytes in the memory. Writable memory might reserve additional bytes which aren't counted
    * in the size until they are actually modified.
    */
-  int size();
+  long size();
 
   /**
    * The amount of bytes reserved from the operating system, e.g. heap memory.
    */
-  int reservedBytes();
+  long reservedBytes();
+
+  /**
+   * The part of the {@link #reservedBytes()} which is located outside of the Java heap.
+   */
+  default long offHeapBytes() {
+    return 0;
+  }
 
   /**
    * Set all bytes of the memory to zero.
@@ -75,7 +100,7 @@ public interface Memory {
    * @param length the number of bytes to copy
    * @throws UnsupportedOperationException if {@link #accessMode()} is not {@link AccessMode#READ_WRITE}
    */
-  void copy(int dstOffset, Memory src, int srcOffset, int length);
+  void copy(long dstOffset, Memory src, long srcOffset, long length);
 
   /**
    * Create a view of the current memory. While a length can be specified, views might not perform actual
@@ -85,7 +110,7 @@ public interface Memory {
    * @param length size of the view
    * @throws UnsupportedOperationException if {@link #accessMode()} is not {@link AccessMode#READ_ONLY}
    */
-  Memory view(int offset, int length);
+  Memory view(long offset, long length);
 
   default void writeTo(OutputStream out) throws IOException {
     writeTo(out, 0, size());
@@ -97,7 +122,18 @@ public interface Memory {
    * @throws UnsupportedOperationException if {@link #accessMode()} is not {@link AccessMode#READ_WRITE}
    * @throws IOException in case the write operation fails
    */
-  void writeTo(OutputStream out, int offset, int length) throws IOException;
+  void writeTo(OutputStream out, long offset, long length) throws IOException;
+
+  /**
+   * Write (a part) of the memory to a channel. Off-heap memory is passed to the channel without copying it to the
+   * heap first.
+   *
+   * @throws UnsupportedOperationException if {@link #accessMode()} is not {@link AccessMode#READ_WRITE}
+   * @throws IOException in case the write operation fails
+   */
+  default void writeTo(WritableByteChannel channel, long offset, long length) throws IOException {
+    writeTo(Channels.newOutputStream(channel), offset, length);
+  }
 
   /**
    * Allocate new heap memory with some initial capacity. The returned memory instance will
@@ -111,6 +147,63 @@ public interface Memory {
     return new DynamicHeapMemory(initialCapacity);
   }
 
+  /**
+   * Allocate new heap memory of a fixed capacity, which is split into multiple byte-arrays if it exceeds the size
+   * limit of Java arrays. The returned memory instance will have {@link AccessMode#READ_WRITE} and its size is equal
+   * to the capacity from the start, since the memory does not track which positions were written.
+   *
+   * @param capacity the amount of heap memory to allocate
+   * @return the allocated memory
+   */
+  static Memory chunkedHeapMemory(long capacity) {
+    return new ChunkedHeapMemory(capacity, false);
+  }
+
+  /**
+   * Allocate new heap memory of a fixed capacity like {@link #chunkedHeapMemory(long)}, which additionally supports
+   * concurrent {@link #bitwiseOrLong(long, long)} updates.
+   *
+   * @param capacity the amount of heap memory to allocate
+   * @return the allocated memory
+   */
+  static Memory concurrentHeapMemory(long capacity) {
+    return new ChunkedHeapMemory(capacity, true);
+  }
+
+  /**
+   * Allocate new off-heap memory of a fixed capacity. The returned memory instance will have
+   * {@link AccessMode#READ_WRITE} and its size is equal to the capacity from the start. The memory is released once
+   * the instance is garbage collected.
+   *
+   * @param capacity the amount of off-heap memory to allocate
+   * @return the allocated memory
+   */
+  static Memory directMemory(long capacity) {
+    return WritableBufferMemory.allocateDirect(capacity, false);
+  }
+
+  /**
+   * Allocate new off-heap memory of a fixed capacity like {@link #directMemory(long)}, which additionally supports
+   * concurrent {@link #bitwiseOrLong(long, long)} updates.
+   *
+   * @param capacity the amount of off-heap memory to allocate
+   * @return the allocated memory
+   */
+  static Memory concurrentDirectMemory(long capacity) {
+    return WritableBufferMemory.allocateDirect(capacity, true);
+  }
+
+  /**
+   * Read the specified amount of bytes from the input stream into heap memory. Memory exceeding the size limit of
+   * Java arrays is split into multiple byte-arrays.
+   */
+  static Memory readHeapMemory(InputStream in, long length) throws IOException {
+    if (length <= ChunkedHeapMemory.DEFAULT_CHUNK_SIZE) {
+      return new ReadOnlyHeapMemory(in.readNBytes((int) length));
+    }
+    return ChunkedHeapMemory.readFrom(in, length);
+  }
+
   /**
    * Wrap the byte-array into a read-only memory instance with {@link AccessMode#READ_ONLY}.
    */
@@ -125,6 +218,27 @@ public interface Memory {
     return new ReadOnlyBufferMemory(buffer, 0, buffer.capacity(), true);
   }
 
+  /**
+   * Combine consecutive byte-buffers into a single read-only memory instance with {@link AccessMode#READ_ONLY}.
+   * All buffers except the last one must have the same capacity, which has to be a power of 2.
+   */
+  static Memory readOnlyMappedMemory(MappedByteBuffer... buffers) {
+    checkArgument(buffers.length > 0, "At least one buffer is required");
+    if (buffers.length == 1) {
+      return readOnlyMappedMemory(buffers[0]);
+    }
+    return ReadOnlyChunkedBufferMemory.create(buffers);
+  }
+
+  /**
+   * Combine consecutive writable byte-buffers into a single memory instance with {@link AccessMode#READ_WRITE}, whose
+   * size is equal to the capacity of the buffers. All buffers except the last one must have the same capacity, which
+   * has to be a power of 2. The memory does not support atomic updates and the buffers are not unmapped by it.
+   */
+  static Memory writableMappedMemory(MappedByteBuffer... buffers) {
+    return WritableBufferMemory.wrapMapped(buffers);
+  }
+
   enum AccessMode {
     READ_ONLY,
     READ_WRITE
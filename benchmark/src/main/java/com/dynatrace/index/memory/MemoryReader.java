@@ -8,7 +8,7 @@ import static java.util.Objects.requireNonNull;
 public final class MemoryReader {
 
   private final Memory memory;
-  private int position;
+  private long position;
 
   /**
    * Create a new reader positioned at offset 0 of the memory.
@@ -48,7 +48,7 @@ public final class MemoryReader {
   /**
    * @return the current position of the reader within the memory
    */
-  public int position() {
+  public long position() {
     return position;
   }
 
@@ -58,7 +58,7 @@ public final class MemoryReader {
    *
    * @param length The number of bytes consumed for the memory view.
    */
-  public Memory createView(int length) {
+  public Memory createView(long length) {
     final Memory view = memory.view(position, length);
     position += length;
     return view;
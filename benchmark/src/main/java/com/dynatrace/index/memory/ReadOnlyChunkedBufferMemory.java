@@ -0,0 +1,148 @@
+package com.dynatrace.index.memory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.math.IntMath.isPowerOfTwo;
+
+import com.dynatrace.index.util.IntEncoder;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only memory operating on multiple consecutive mapped {@link ByteBuffer}s ("chunks"), which makes it possible
+ * to access files larger than the size limit of a single buffer.
+ *
+ * <p>All chunks except the last one have the same power of 2 capacity. Accesses of words aligned to
+ * {@link Long#BYTES} therefore never cross chunk boundaries, while unaligned accesses crossing a chunk boundary are
+ * supported, but slower.
+ */
+final class ReadOnlyChunkedBufferMemory implements Memory {
+
+  private final ByteBuffer[] chunks;
+  private final int chunkShift;
+  private final long chunkMask;
+  private final long baseOffset;
+  private final long length;
+
+  private ReadOnlyChunkedBufferMemory(ByteBuffer[] chunks, int chunkShift, long baseOffset, long length) {
+    this.chunks = chunks;
+    this.chunkShift = chunkShift;
+    this.chunkMask = (1L << chunkShift) - 1;
+    this.baseOffset = baseOffset;
+    this.length = length;
+  }
+
+  /**
+   * @param buffers the consecutive chunks, which must use little endian byte order
+   */
+  static ReadOnlyChunkedBufferMemory create(ByteBuffer... buffers) {
+    final int chunkSize = buffers[0].capacity();
+    checkArgument(isPowerOfTwo(chunkSize), "Chunk size must be a power of 2");
+
+    long length = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      checkArgument(i == buffers.length - 1 || buffers[i].capacity() == chunkSize,
+          "All buffers except the last one must have the same capacity");
+      length += buffers[i].capacity();
+    }
+
+    return new ReadOnlyChunkedBufferMemory(buffers.clone(), Integer.numberOfTrailingZeros(chunkSize), 0, length);
+  }
+
+  @Override
+  public AccessMode accessMode() {
+    return AccessMode.READ_ONLY;
+  }
+
+  @Override
+  public void setLong(long offset, long value) {
+    throw unsupportedOperation();
+  }
+
+  @Override
+  public void setLong(long offset, int byteCount, long value) {
+    throw unsupportedOperation();
+  }
+
+  @Override
+  public void bitwiseOrLong(long offset, long value) {
+    throw unsupportedOperation();
+  }
+
+  @Override
+  public long getLong(long offset) {
+    final long position = baseOffset + offset;
+    final ByteBuffer chunk = chunk(position);
+    final int chunkOffset = chunkOffset(position);
+    if (chunkOffset + Long.BYTES <= chunk.capacity()) {
+      return IntEncoder.readFullLong(chunk, chunkOffset);
+    }
+    return readAcrossChunks(position, Long.BYTES);
+  }
+
+  @Override
+  public long getLong(long offset, int byteCount) {
+    final long position = baseOffset + offset;
+    final ByteBuffer chunk = chunk(position);
+    final int chunkOffset = chunkOffset(position);
+    if (chunkOffset + byteCount <= chunk.capacity()) {
+      return IntEncoder.readLong(chunk, chunkOffset, byteCount);
+    }
+    return readAcrossChunks(position, byteCount);
+  }
+
+  @Override
+  public int getInt(long offset) {
+    return (int) getLong(offset, Integer.BYTES);
+  }
+
+  @Override
+  public long size() {
+    return length;
+  }
+
+  @Override
+  public long reservedBytes() {
+    // Mapped memory is not reserved from the heap
+    return 0;
+  }
+
+  @Override
+  public void clear() {
+    throw unsupportedOperation();
+  }
+
+  @Override
+  public void copy(long dstOffset, Memory src, long srcOffset, long length) {
+    throw unsupportedOperation();
+  }
+
+  @Override
+  public Memory view(long offset, long length) {
+    return new ReadOnlyChunkedBufferMemory(chunks, chunkShift, baseOffset + offset, length);
+  }
+
+  @Override
+  public void writeTo(OutputStream out, long offset, long length) {
+    throw unsupportedOperation();
+  }
+
+  private long readAcrossChunks(long position, int byteCount) {
+    long value = 0;
+    for (int i = 0; i < byteCount; i++) {
+      value |= (chunk(position + i).get(chunkOffset(position + i)) & 0xffL) << (i * Byte.SIZE);
+    }
+    return value;
+  }
+
+  private ByteBuffer chunk(long position) {
+    return chunks[(int) (position >>> chunkShift)];
+  }
+
+  private int chunkOffset(long position) {
+    return (int) (position & chunkMask);
+  }
+
+  private static RuntimeException unsupportedOperation() {
+    return new UnsupportedOperationException("Cannot modify read-only memory.");
+  }
+}
@@ -30,37 +30,42 @@ final class ReadOnlyHeapMemory implements Memory {
   }
 
   @Override
-  public void setLong(int offset, long value) {
+  public void setLong(long offset, long value) {
     throw unsupportedOperation();
   }
 
   @Override
-  public void setLong(int offset, int byteCount, long value) {
+  public void setLong(long offset, int byteCount, long value) {
     throw unsupportedOperation();
   }
 
   @Override
-  public long getLong(int offset) {
-    return IntEncoder.readFullLong(bytes, baseOffset + offset);
+  public void bitwiseOrLong(long offset, long value) {
+    throw unsupportedOperation();
+  }
+
+  @Override
+  public long getLong(long offset) {
+    return IntEncoder.readFullLong(bytes, (int) (baseOffset + offset));
   }
 
   @Override
-  public long getLong(int offset, int byteCount) {
-    return IntEncoder.readLong(bytes, baseOffset + offset, byteCount);
+  public long getLong(long offset, int byteCount) {
+    return IntEncoder.readLong(bytes, (int) (baseOffset + offset), byteCount);
   }
 
   @Override
-  public int getInt(int offset) {
-    return IntEncoder.readFullInt(bytes, baseOffset + offset);
+  public int getInt(long offset) {
+    return IntEncoder.readFullInt(bytes, (int) (baseOffset + offset));
   }
 
   @Override
-  public int size() {
+  public long size() {
     return length;
   }
 
   @Override
-  public int reservedBytes() {
+  public long reservedBytes() {
     return length;
   }
 
@@ -70,17 +75,17 @@ final class ReadOnlyHeapMemory implements Memory {
   }
 
   @Override
-  public void copy(int dstOffset, Memory src, int srcOffset, int length) {
+  public void copy(long dstOffset, Memory src, long srcOffset, long length) {
     throw unsupportedOperation();
   }
 
   @Override
-  public Memory view(int offset, int length) {
-    return new ReadOnlyHeapMemory(bytes, baseOffset + offset, length);
+  public Memory view(long offset, long length) {
+    return new ReadOnlyHeapMemory(bytes, (int) (baseOffset + offset), (int) length);
   }
 
   @Override
-  public void writeTo(OutputStream out, int offset, int length) {
+  public void writeTo(OutputStream out, long offset, long length) {
     throw unsupportedOperation();
   }
 
@@ -0,0 +1,236 @@
+package com.dynatrace.index.memory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.math.IntMath.isPowerOfTwo;
+
+import com.dynatrace.index.util.IntEncoder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writable memory of a fixed capacity operating on direct or mapped {@link ByteBuffer}s, which are located outside of
+ * the Java heap. Like {@link ChunkedHeapMemory}, the memory is split into chunks of equal size to support capacities
+ * beyond the size limit of a single buffer.
+ *
+ * <p>The memory is never copied when it is written to a {@link WritableByteChannel}, and it does neither need to be
+ * grown nor scanned by the garbage collector. Direct memory is released once the instance becomes unreachable, while
+ * mapped buffers have to be unmapped by their owner.
+ *
+ * <p>If the memory is created as concurrent memory, the {@link #bitwiseOrLong(long, long)} operation is atomic, which
+ * allows multiple threads to set bits concurrently. All other write operations are plain writes and must not race
+ * with concurrent updates.
+ */
+final class WritableBufferMemory implements Memory {
+
+  static final int DEFAULT_CHUNK_SHIFT = 30;
+
+  private static final VarHandle LONG_HANDLE =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final ByteBuffer[] chunks;
+  private final int chunkShift;
+  private final long chunkMask;
+  private final long capacity;
+  private final boolean concurrent;
+  private final boolean isMapped;
+
+  private WritableBufferMemory(
+      ByteBuffer[] chunks, int chunkShift, long capacity, boolean concurrent, boolean isMapped) {
+    this.chunks = chunks;
+    this.chunkShift = chunkShift;
+    this.chunkMask = (1L << chunkShift) - 1;
+    this.capacity = capacity;
+    this.concurrent = concurrent;
+    this.isMapped = isMapped;
+  }
+
+  static WritableBufferMemory allocateDirect(long capacity, boolean concurrent) {
+    return allocateDirect(capacity, concurrent, DEFAULT_CHUNK_SHIFT);
+  }
+
+  static WritableBufferMemory allocateDirect(long capacity, boolean concurrent, int chunkShift) {
+    checkArgument(capacity >= 0, "capacity must not be negative");
+    checkArgument(chunkShift >= 3 && chunkShift <= DEFAULT_CHUNK_SHIFT, "chunkShift must be within [3, 30]");
+
+    final long chunkSize = 1L << chunkShift;
+    final int chunkCount = Math.toIntExact((capacity + chunkSize - 1) >>> chunkShift);
+    final ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      // The last chunk only covers the remaining capacity
+      chunks[i] = allocateAligned((int) Math.min(chunkSize, capacity - ((long) i << chunkShift)));
+    }
+    return new WritableBufferMemory(chunks, chunkShift, capacity, concurrent, false);
+  }
+
+  /**
+   * Wrap consecutive mapped buffers. Atomic updates are not supported, since the mapped region is not necessarily
+   * aligned to the size of a long.
+   *
+   * @param buffers the consecutive chunks, which must use little endian byte order
+   */
+  static WritableBufferMemory wrapMapped(ByteBuffer... buffers) {
+    checkArgument(buffers.length > 0, "At least one buffer is required");
+    final int chunkSize = buffers[0].capacity();
+    checkArgument(buffers.length == 1 || isPowerOfTwo(chunkSize), "Chunk size must be a power of 2");
+
+    long capacity = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      checkArgument(i == buffers.length - 1 || buffers[i].capacity() == chunkSize,
+          "All buffers except the last one must have the same capacity");
+      capacity += buffers[i].capacity();
+    }
+
+    // A single buffer is never larger than the default chunk size
+    final int chunkShift = buffers.length == 1 ? DEFAULT_CHUNK_SHIFT : Integer.numberOfTrailingZeros(chunkSize);
+    return new WritableBufferMemory(buffers.clone(), chunkShift, capacity, false, true);
+  }
+
+  @Override
+  public AccessMode accessMode() {
+    return AccessMode.READ_WRITE;
+  }
+
+  @Override
+  public void setLong(long offset, long value) {
+    final ByteBuffer chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (chunkOffset + Long.BYTES <= chunk.capacity()) {
+      chunk.putLong(chunkOffset, value);
+    } else {
+      setLong(offset, Long.BYTES, value);
+    }
+  }
+
+  @Override
+  public void setLong(long offset, int byteCount, long value) {
+    // Byte-wise, since buffers do not support partial words
+    for (int i = 0; i < byteCount; i++) {
+      chunk(offset + i).put(chunkOffset(offset + i), (byte) (value >>> (i * Byte.SIZE)));
+    }
+  }
+
+  @Override
+  public void bitwiseOrLong(long offset, long value) {
+    final ByteBuffer chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (concurrent) {
+      // Atomic access requires the offset to be aligned to the size of a long
+      LONG_HANDLE.getAndBitwiseOr(chunk, chunkOffset, value);
+    } else {
+      chunk.putLong(chunkOffset, chunk.getLong(chunkOffset) | value);
+    }
+  }
+
+  @Override
+  public long getLong(long offset) {
+    final ByteBuffer chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (chunkOffset + Long.BYTES <= chunk.capacity()) {
+      return IntEncoder.readFullLong(chunk, chunkOffset);
+    }
+    return getLong(offset, Long.BYTES);
+  }
+
+  @Override
+  public long getLong(long offset, int byteCount) {
+    final ByteBuffer chunk = chunk(offset);
+    final int chunkOffset = chunkOffset(offset);
+    if (chunkOffset + byteCount <= chunk.capacity()) {
+      return IntEncoder.readLong(chunk, chunkOffset, byteCount);
+    }
+
+    // Slow path for accesses crossing a chunk boundary
+    long value = 0;
+    for (int i = 0; i < byteCount; i++) {
+      value |= (chunk(offset + i).get(chunkOffset(offset + i)) & 0xffL) << (i * Byte.SIZE);
+    }
+    return value;
+  }
+
+  @Override
+  public int getInt(long offset) {
+    return (int) getLong(offset, Integer.BYTES);
+  }
+
+  @Override
+  public long size() {
+    return capacity;
+  }
+
+  @Override
+  public long reservedBytes() {
+    // Mapped memory is not reserved from the heap or the native memory of the process
+    return isMapped ? 0 : capacity;
+  }
+
+  @Override
+  public long offHeapBytes() {
+    return reservedBytes();
+  }
+
+  @Override
+  public void clear() {
+    for (ByteBuffer chunk : chunks) {
+      int offset = 0;
+      for (; offset + Long.BYTES <= chunk.capacity(); offset += Long.BYTES) {
+        chunk.putLong(offset, 0L);
+      }
+      for (; offset < chunk.capacity(); offset++) {
+        chunk.put(offset, (byte) 0);
+      }
+    }
+  }
+
+  @Override
+  public void copy(long dstOffset, Memory src, long srcOffset, long length) {
+    throw new UnsupportedOperationException("Copying is not supported for buffer memory");
+  }
+
+  @Override
+  public Memory view(long offset, long length) {
+    throw new UnsupportedOperationException("Views are not supported for writable buffer memory");
+  }
+
+  @Override
+  public void writeTo(OutputStream out, long offset, long length) throws IOException {
+    writeTo(Channels.newChannel(out), offset, length);
+  }
+
+  @Override
+  public void writeTo(WritableByteChannel channel, long offset, long length) throws IOException {
+    final long end = offset + length;
+    while (offset < end) {
+      final ByteBuffer chunk = chunk(offset).duplicate();
+      final int chunkOffset = chunkOffset(offset);
+      final int chunkLength = (int) Math.min(chunk.capacity() - chunkOffset, end - offset);
+
+      // The channel reads directly from the off-heap buffer
+      chunk.limit(chunkOffset + chunkLength).position(chunkOffset);
+      while (chunk.hasRemaining()) {
+        channel.write(chunk);
+      }
+      offset += chunkLength;
+    }
+  }
+
+  private ByteBuffer chunk(long offset) {
+    return chunks[(int) (offset >>> chunkShift)];
+  }
+
+  private int chunkOffset(long offset) {
+    return (int) (offset & chunkMask);
+  }
+
+  private static ByteBuffer allocateAligned(int size) {
+    // Atomic updates require words which are aligned to their size
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(size + Long.BYTES - 1).alignedSlice(Long.BYTES);
+    buffer.limit(size);
+    return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
@@ -32,8 +32,16 @@ public final class ScanLogStore implements LogStore {
   private long[] sourceSizes;
 
   public ScanLogStore(Path storageDirectory, int maxBatchCount) {
+    this(storageDirectory, maxBatchCount, 0);
+  }
+
+  /**
+   * @param compressionThreads the number of threads compressing the log data in the background, see
+   *     {@link DefaultBatchWriter#DefaultBatchWriter(Path, int)}
+   */
+  public ScanLogStore(Path storageDirectory, int maxBatchCount, int compressionThreads) {
     this.dataDirectory = dataDirectory(storageDirectory);
-    this.batchWriter = new DefaultBatchWriter(dataDirectory);
+    this.batchWriter = new DefaultBatchWriter(dataDirectory, compressionThreads);
     this.maxBatchCount = maxBatchCount;
     this.sourceSizes = new long[4096];
   }
@@ -5,12 +5,17 @@ import static com.dynatrace.index.storage.StorageDirectories.dataDirectory;
 import static java.util.Objects.requireNonNull;
 
 import com.dynatrace.index.LogStoreReader;
+import com.dynatrace.index.LogStoreReaderOptions;
 import com.dynatrace.index.QueryTrace;
 import com.dynatrace.index.data.analysis.tokenization.Lowercase;
 import com.dynatrace.index.storage.BatchReader;
+import com.dynatrace.index.storage.BoyerMoore;
 import com.dynatrace.index.storage.DefaultBatchReader;
 import com.dynatrace.index.storage.LogConsumer;
+import com.dynatrace.index.storage.ParallelPostFiltering;
+import com.dynatrace.index.storage.TokenVerification;
 import java.nio.file.Path;
+import javax.annotation.Nullable;
 
 /**
  * Simple LogStore implementation which uses z-standard to compress data and always performs a full scan search
@@ -19,19 +24,28 @@ import java.nio.file.Path;
 public class ScanLogStoreReader implements LogStoreReader {
 
   private final BatchReader reader;
+  @Nullable
+  private final ParallelPostFiltering parallelPostFiltering;
+  private final int prefetchDepth;
+  private final TokenVerification tokenVerification;
 
-  ScanLogStoreReader(BatchReader reader) {
+  ScanLogStoreReader(BatchReader reader, LogStoreReaderOptions options) {
     this.reader = requireNonNull(reader);
+    this.prefetchDepth = options.prefetchDepth();
+    this.tokenVerification = options.tokenVerification();
+    this.parallelPostFiltering = options.postFilterThreads() > 0
+        ? new ParallelPostFiltering(reader, options.postFilterThreads(), true)
+        : null;
   }
 
   @Override
   public void queryToken(byte[] utf8Token, LogConsumer logConsumer, QueryTrace trace, boolean loadData) {
-    scanQuery(reader, utf8Token, logConsumer, trace);
+    scan(utf8Token, tokenVerification, logConsumer, trace);
   }
 
   @Override
   public void queryContains(byte[] utf8String, LogConsumer logConsumer, QueryTrace trace, boolean loadData) {
-    scanQuery(reader, utf8String, logConsumer, trace);
+    scan(utf8String, TokenVerification.SUBSTRING, logConsumer, trace);
   }
 
   @Override
@@ -41,21 +55,45 @@ public class ScanLogStoreReader implements LogStoreReader {
 
   @Override
   public void close() {
+    if (parallelPostFiltering != null) {
+      parallelPostFiltering.close();
+    }
     reader.close();
   }
 
   public static ScanLogStoreReader loadFromDisk(Path storageDirectory) {
+    return loadFromDisk(storageDirectory, LogStoreReaderOptions.DEFAULT);
+  }
+
+  public static ScanLogStoreReader loadFromDisk(Path storageDirectory, LogStoreReaderOptions options) {
     final Path dataDir = dataDirectory(storageDirectory);
-    final BatchReader reader = DefaultBatchReader.create(dataDir);
-    return new ScanLogStoreReader(reader);
+    final BatchReader reader = DefaultBatchReader.create(dataDir, options.readMode(), options.batchCache());
+    return new ScanLogStoreReader(reader, options);
+  }
+
+  private void scan(byte[] utf8String, TokenVerification verification, LogConsumer logConsumer, QueryTrace trace) {
+    final byte[] lowerCaseString = new byte[utf8String.length];
+    Lowercase.toLowerCase(utf8String, 0, utf8String.length, lowerCaseString);
+    final BoyerMoore matcher = verification.createMatcher(lowerCaseString);
+
+    if (parallelPostFiltering == null) {
+      readAllAndPostFilterLogs(reader, matcher, logConsumer, trace, prefetchDepth);
+    } else {
+      parallelPostFiltering.readAllAndPostFilterLogs(matcher, logConsumer, trace);
+    }
   }
 
   static void scanQuery(
       BatchReader reader, byte[] utf8String, LogConsumer logConsumer, QueryTrace trace) {
+    scanQuery(reader, utf8String, logConsumer, trace, 0);
+  }
+
+  static void scanQuery(
+      BatchReader reader, byte[] utf8String, LogConsumer logConsumer, QueryTrace trace, int prefetchDepth) {
 
     final byte[] lowerCaseString = new byte[utf8String.length];
     Lowercase.toLowerCase(utf8String, 0, utf8String.length, lowerCaseString);
 
-    readAllAndPostFilterLogs(reader, lowerCaseString, logConsumer, trace);
+    readAllAndPostFilterLogs(reader, lowerCaseString, logConsumer, trace, prefetchDepth);
   }
 }
@@ -0,0 +1,332 @@
+package com.dynatrace.index.storage;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+
+/**
+ * Buffers the uncompressed data of all batches within a bounded {@link PageArena}. Once the arena runs out of pages,
+ * the batch holding the most pages is compressed into independent z-standard frames, which are appended to the final
+ * data file. Concatenated frames decompress to the concatenated data, so the frames of a batch form the compressed
+ * batch without being copied, see {@link BatchExtents}.
+ *
+ * <p>Independent of the number of batches, the buffers keep a single file and at most one compression context open.
+ * With a compression executor, frames are compressed in the background and may complete in any order, but the frames
+ * of each batch are appended to the data file in the order they were written.
+ *
+ * <p>Instances must not be written concurrently.
+ */
+final class BatchBuffers {
+
+  /**
+   * Maximum number of uncompressed bytes per frame. Larger frames compress better, but are held on the heap while they
+   * are compressed.
+   */
+  static final int FRAME_SIZE = 1024 * 1024;
+
+  private static final int PAGES_PER_FRAME = FRAME_SIZE / PageArena.PAGE_SIZE;
+
+  private final PageArena arena;
+  private final Path dataFile;
+  @Nullable
+  private final Executor compressionExecutor;
+  private final int compressionLevel;
+  private final Object spillLock = new Object();
+
+  private Batch[] batches;
+  // Created with the first spilled frame
+  @Nullable
+  private FileChannel dataChannel;
+  @Nullable
+  private ZstdCompressCtx compressCtx;
+  private byte[] uncompressedFrame;
+  private byte[] compressedFrame;
+  private long dataSize;
+
+  /**
+   * @param capacity the maximum number of bytes buffered outside of the Java heap
+   * @param dataFile the file receiving the compressed frames, replaced once the first frame is appended
+   * @param compressionExecutor compresses the frames in the background, null compresses them on the writing thread
+   */
+  BatchBuffers(long capacity, Path dataFile, @Nullable Executor compressionExecutor) {
+    this.arena = new PageArena(capacity);
+    this.dataFile = dataFile;
+    this.compressionExecutor = compressionExecutor;
+    this.compressionLevel = Zstd.defaultCompressionLevel();
+    this.batches = new Batch[128];
+  }
+
+  /**
+   * Append the bytes to the batch.
+   */
+  void write(int batch, byte[] bytes, int offset, int length) throws IOException {
+    final Batch target = batch(batch);
+    while (length > 0) {
+      ByteBuffer page = target.lastPage();
+      if (page == null || !page.hasRemaining()) {
+        // Acquiring a page may spill the target itself, so the target is updated afterwards
+        page = acquirePage();
+        target.addPage(page);
+      }
+
+      final int written = Math.min(length, page.remaining());
+      page.put(bytes, offset, written);
+      offset += written;
+      length -= written;
+    }
+  }
+
+  /**
+   * Compress the buffered data of all batches and wait until all frames were appended to the data file. Afterwards,
+   * the location of the compressed batches is available via {@link #addExtents(int, BatchExtents)}.
+   */
+  void spillAll() throws IOException {
+    for (Batch batch : batches) {
+      if (batch != null && batch.pageCount > 0) {
+        spill(batch);
+      }
+    }
+    for (Batch batch : batches) {
+      if (batch != null) {
+        await(batch);
+      }
+    }
+    synchronized (spillLock) {
+      // The data file exists even if no batch was written
+      dataChannel();
+    }
+  }
+
+  /**
+   * Add the frames of the batch to the current batch of the extents, requires {@link #spillAll()}.
+   */
+  void addExtents(int batch, BatchExtents extents) {
+    if (batch >= batches.length || batches[batch] == null) {
+      return;
+    }
+
+    final Batch source = batches[batch];
+    for (int frame = 0; frame < source.frameCount; frame++) {
+      extents.addExtent(source.frameOffsets[frame], source.frameLengths[frame]);
+    }
+  }
+
+  /**
+   * Release all buffers and close the data file.
+   */
+  void close() throws IOException {
+    batches = new Batch[0];
+    if (compressCtx != null) {
+      compressCtx.close();
+      compressCtx = null;
+    }
+    if (dataChannel != null) {
+      dataChannel.close();
+      dataChannel = null;
+    }
+  }
+
+  /**
+   * Release all buffers and delete the data file, if any frame was appended to it.
+   */
+  void discard() throws IOException {
+    final boolean created = dataChannel != null;
+    close();
+    if (created) {
+      Files.deleteIfExists(dataFile);
+    }
+  }
+
+  private Batch batch(int batch) {
+    if (batch >= batches.length) {
+      batches = Arrays.copyOf(batches, Math.max(batch + 1, batches.length * 2));
+    }
+    if (batches[batch] == null) {
+      batches[batch] = new Batch();
+    }
+    return batches[batch];
+  }
+
+  private ByteBuffer acquirePage() throws IOException {
+    ByteBuffer page = arena.acquire();
+    while (page == null) {
+      spill(largestBatch());
+      page = arena.acquire();
+    }
+    return page;
+  }
+
+  private Batch largestBatch() {
+    Batch largest = null;
+    for (Batch batch : batches) {
+      if (batch != null && (largest == null || batch.pageCount > largest.pageCount)) {
+        largest = batch;
+      }
+    }
+    return largest;
+  }
+
+  private void spill(Batch batch) throws IOException {
+    if (batch.pendingFrames.isCompletedExceptionally()) {
+      // Report failures of previous frames as early as possible
+      await(batch);
+    }
+
+    for (int firstPage = 0; firstPage < batch.pageCount; firstPage += PAGES_PER_FRAME) {
+      final int lastPage = Math.min(batch.pageCount, firstPage + PAGES_PER_FRAME);
+      if (compressionExecutor == null) {
+        final int frameLength = copyPages(batch, firstPage, lastPage, uncompressedFrame());
+        final int compressedLength = compress(frameLength);
+        appendFrame(batch, compressedFrame, compressedLength);
+      } else {
+        submitFrame(batch, firstPage, lastPage);
+      }
+    }
+
+    batch.clearPages();
+  }
+
+  private void submitFrame(Batch batch, int firstPage, int lastPage) {
+    int frameLength = 0;
+    for (int page = firstPage; page < lastPage; page++) {
+      frameLength += batch.pages[page].position();
+    }
+    final byte[] frame = new byte[frameLength];
+    copyPages(batch, firstPage, lastPage, frame);
+
+    final CompletableFuture<byte[]> compression =
+        CompletableFuture.supplyAsync(() -> Zstd.compress(frame, compressionLevel), compressionExecutor);
+    // Frames may finish compression in any order, but are appended in the order they were submitted
+    batch.pendingFrames = batch.pendingFrames.thenCombine(compression, (previous, compressed) -> {
+      try {
+        appendFrame(batch, compressed, compressed.length);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Copy the pages into the frame and return them to the arena.
+   *
+   * @return the number of copied bytes
+   */
+  private int copyPages(Batch batch, int firstPage, int lastPage, byte[] frame) {
+    int frameLength = 0;
+    for (int i = firstPage; i < lastPage; i++) {
+      final ByteBuffer page = batch.pages[i];
+      page.flip();
+      final int pageLength = page.remaining();
+      page.get(frame, frameLength, pageLength);
+      frameLength += pageLength;
+      arena.release(page);
+    }
+    return frameLength;
+  }
+
+  private int compress(int frameLength) {
+    if (compressCtx == null) {
+      compressCtx = new ZstdCompressCtx().setLevel(compressionLevel);
+      compressedFrame = new byte[Math.toIntExact(Zstd.compressBound(FRAME_SIZE))];
+    }
+    return compressCtx.compressByteArray(
+        compressedFrame, 0, compressedFrame.length, uncompressedFrame, 0, frameLength);
+  }
+
+  private byte[] uncompressedFrame() {
+    if (uncompressedFrame == null) {
+      uncompressedFrame = new byte[FRAME_SIZE];
+    }
+    return uncompressedFrame;
+  }
+
+  private void appendFrame(Batch batch, byte[] frame, int length) throws IOException {
+    // Frames of different batches may be appended concurrently by the compression threads
+    synchronized (spillLock) {
+      final FileChannel channel = dataChannel();
+      final ByteBuffer buffer = ByteBuffer.wrap(frame, 0, length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, dataSize + buffer.position());
+      }
+      batch.addFrame(dataSize, length);
+      dataSize += length;
+    }
+  }
+
+  private FileChannel dataChannel() throws IOException {
+    if (dataChannel == null) {
+      Files.createDirectories(dataFile.getParent());
+      dataChannel = FileChannel.open(dataFile, CREATE, WRITE, TRUNCATE_EXISTING);
+    }
+    return dataChannel;
+  }
+
+  private static void await(Batch batch) throws IOException {
+    try {
+      batch.pendingFrames.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException("Failed to compress batch data", e.getCause());
+    }
+  }
+
+  /**
+   * Buffered pages and spilled frames of a single batch.
+   */
+  private static final class Batch {
+    ByteBuffer[] pages = new ByteBuffer[4];
+    int pageCount;
+
+    // Location of the frames within the data file, in the order they were written
+    long[] frameOffsets = new long[4];
+    int[] frameLengths = new int[4];
+    int frameCount;
+
+    // Completes once all frames submitted for compression so far were appended to the data file
+    CompletableFuture<Void> pendingFrames = CompletableFuture.completedFuture(null);
+
+    @Nullable
+    ByteBuffer lastPage() {
+      return pageCount == 0 ? null : pages[pageCount - 1];
+    }
+
+    void addPage(ByteBuffer page) {
+      if (pageCount == pages.length) {
+        pages = Arrays.copyOf(pages, pageCount * 2);
+      }
+      pages[pageCount++] = page;
+    }
+
+    void clearPages() {
+      Arrays.fill(pages, 0, pageCount, null);
+      pageCount = 0;
+    }
+
+    void addFrame(long offset, int length) {
+      if (frameCount == frameOffsets.length) {
+        frameOffsets = Arrays.copyOf(frameOffsets, frameCount * 2);
+        frameLengths = Arrays.copyOf(frameLengths, frameCount * 2);
+      }
+      frameOffsets[frameCount] = offset;
+      frameLengths[frameCount] = length;
+      frameCount++;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.dynatrace.index.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded cache of decompressed batches, which evicts the least recently used batches once the size of all cached
+ * batches exceeds the capacity. A cache can be shared by multiple {@link DefaultBatchReader}s, also across threads,
+ * since batches are identified by their data file.
+ *
+ * <p>Cached batches are shared between all readers and must not be modified.
+ */
+public final class BatchCache {
+
+  // Approximate heap overhead of an entry, so many small batches cannot exceed the capacity
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final long capacity;
+  private final LinkedHashMap<Key, byte[]> batches;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+  private long size;
+
+  /**
+   * @param capacity the maximum number of bytes of all cached batches
+   */
+  public BatchCache(long capacity) {
+    checkArgument(capacity > 0, "capacity must be positive");
+    this.capacity = capacity;
+    this.batches = new LinkedHashMap<>(16, 0.75f, true);
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+  }
+
+  /**
+   * @return the decompressed batch, or null if it is not cached
+   */
+  @Nullable
+  byte[] get(Path dataFile, int batch) {
+    final byte[] cached;
+    synchronized (batches) {
+      cached = batches.get(new Key(dataFile, batch));
+    }
+    (cached == null ? misses : hits).increment();
+    return cached;
+  }
+
+  /**
+   * @return whether the batch is cached, without counting a hit or miss and without marking it as recently used
+   */
+  boolean contains(Path dataFile, int batch) {
+    synchronized (batches) {
+      return batches.containsKey(new Key(dataFile, batch));
+    }
+  }
+
+  /**
+   * Cache a decompressed batch, evicting the least recently used batches if required. Batches exceeding the capacity
+   * on their own are not cached.
+   *
+   * @return the number of evicted batches
+   */
+  int put(Path dataFile, int batch, byte[] data) {
+    final long weight = weight(data);
+    if (weight > capacity) {
+      return 0;
+    }
+
+    int evicted = 0;
+    synchronized (batches) {
+      final byte[] previous = batches.put(new Key(dataFile, batch), data);
+      if (previous != null) {
+        // Cached concurrently by another reader
+        size -= weight(previous);
+      }
+      size += weight;
+
+      final Iterator<byte[]> leastRecentlyUsed = batches.values().iterator();
+      while (size > capacity) {
+        size -= weight(leastRecentlyUsed.next());
+        leastRecentlyUsed.remove();
+        evicted++;
+      }
+    }
+    evictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Remove all cached batches, the counters are retained.
+   */
+  public void clear() {
+    synchronized (batches) {
+      batches.clear();
+      size = 0;
+    }
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the number of bytes of all cached batches
+   */
+  public long size() {
+    synchronized (batches) {
+      return size;
+    }
+  }
+
+  private static long weight(byte[] data) {
+    return (long) data.length + ENTRY_OVERHEAD;
+  }
+
+  private static final class Key {
+    final Path dataFile;
+    final int batch;
+
+    Key(Path dataFile, int batch) {
+      this.dataFile = dataFile;
+      this.batch = batch;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return batch == that.batch && dataFile.equals(that.dataFile);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(dataFile, batch);
+    }
+  }
+}
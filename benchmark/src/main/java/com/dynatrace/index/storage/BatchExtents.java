@@ -0,0 +1,109 @@
+package com.dynatrace.index.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * Locations of the compressed batches within a data file. Each batch consists of a sequence of extents, which are
+ * contiguous byte ranges of the data file. The compressed batch is the concatenation of its extents in order.
+ *
+ * <p>Batches are added in ascending order, followed by their extents. The extents of each batch are ascending within
+ * the data file, since parts of a batch are only ever appended. Adjacent extents of the same batch are combined.
+ */
+final class BatchExtents {
+
+  // Index of the first extent of each batch, followed by the total number of extents
+  private int[] firstExtents;
+  private int batchCount;
+
+  private long[] offsets;
+  private int[] lengths;
+  private int extentCount;
+
+  BatchExtents() {
+    this.firstExtents = new int[16];
+    this.offsets = new long[16];
+    this.lengths = new int[16];
+  }
+
+  /**
+   * Start the next batch, subsequent extents are added to it.
+   */
+  void startBatch() {
+    if (batchCount + 1 >= firstExtents.length) {
+      firstExtents = Arrays.copyOf(firstExtents, firstExtents.length * 2);
+    }
+    firstExtents[batchCount++] = extentCount;
+    firstExtents[batchCount] = extentCount;
+  }
+
+  /**
+   * Append an extent to the current batch.
+   */
+  void addExtent(long offset, int length) {
+    checkArgument(batchCount > 0, "No batch started");
+    if (length == 0) {
+      return;
+    }
+
+    if (extentCount > firstExtents[batchCount - 1]) {
+      final long previousEnd = offsets[extentCount - 1] + lengths[extentCount - 1];
+      checkArgument(offset >= previousEnd, "Extent at %s precedes the previous extent of the batch", offset);
+      if (previousEnd == offset && (long) lengths[extentCount - 1] + length <= Integer.MAX_VALUE) {
+        lengths[extentCount - 1] += length;
+        return;
+      }
+    }
+
+    if (extentCount == offsets.length) {
+      offsets = Arrays.copyOf(offsets, extentCount * 2);
+      lengths = Arrays.copyOf(lengths, extentCount * 2);
+    }
+    offsets[extentCount] = offset;
+    lengths[extentCount] = length;
+    firstExtents[batchCount] = ++extentCount;
+  }
+
+  int batchCount() {
+    return batchCount;
+  }
+
+  int extentCount() {
+    return extentCount;
+  }
+
+  /**
+   * @return the index of the first extent of the batch
+   */
+  int firstExtent(int batch) {
+    return firstExtents[batch];
+  }
+
+  /**
+   * @return the index after the last extent of the batch
+   */
+  int endExtent(int batch) {
+    return firstExtents[batch + 1];
+  }
+
+  long offset(int extent) {
+    return offsets[extent];
+  }
+
+  int length(int extent) {
+    return lengths[extent];
+  }
+
+  /**
+   * @return the number of compressed bytes of the batch
+   */
+  long batchLength(int batch) {
+    // Batches may exceed 2 GiB, only their extents are limited to the int range
+    long length = 0;
+    for (int extent = firstExtent(batch); extent < endExtent(batch); extent++) {
+      length += lengths[extent];
+    }
+    return length;
+  }
+}
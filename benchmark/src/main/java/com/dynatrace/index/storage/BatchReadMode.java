@@ -0,0 +1,18 @@
+package com.dynatrace.index.storage;
+
+/**
+ * Defines how the {@link DefaultBatchReader} accesses the compressed batches within the data file.
+ */
+public enum BatchReadMode {
+
+  /**
+   * Reads the compressed batches from the data file into heap buffers, which are reused between batches.
+   */
+  HEAP,
+
+  /**
+   * Maps the data file into memory once. Batches read via {@link BatchReader#readBatchBuffer(int,
+   * ByteBufferLogConsumer)} are decompressed straight from the mapped file into a reusable direct buffer.
+   */
+  MAPPED
+}
@@ -1,5 +1,8 @@
 package com.dynatrace.index.storage;
 
+import com.dynatrace.index.QueryTrace;
+import java.nio.ByteBuffer;
+
 /**
  * Used for reading log data stored by the {@link BatchWriter}.
  */
@@ -10,10 +13,64 @@ public interface BatchReader {
    */
   void readBatch(int batch, LogConsumer consumer);
 
+  /**
+   * Read all log lines within the specified batch like {@link #readBatch(int, LogConsumer)} and report the access of
+   * the batch to the trace.
+   */
+  default void readBatch(int batch, LogConsumer consumer, QueryTrace trace) {
+    readBatch(batch, consumer);
+  }
+
+  /**
+   * Read the log lines within the specified batch which contain the pattern of the matcher, see
+   * {@link BoyerMoore#matchLowerCase(byte[], int, int)}. Implementations may search the whole batch at once instead
+   * of every line on its own, the default matches the lines handed out by
+   * {@link #readBatch(int, LogConsumer, QueryTrace)}.
+   */
+  default void readMatchingLines(int batch, BoyerMoore matcher, LogConsumer consumer, QueryTrace trace) {
+    readBatch(batch, (bytes, offset, length) -> {
+      if (matcher.matchLowerCase(bytes, offset, length) >= 0) {
+        consumer.acceptLog(bytes, offset, length);
+      }
+    }, trace);
+  }
+
+  /**
+   * Read all log lines within the specified batch as buffers. Implementations may avoid copying the lines to the
+   * heap, the default wraps the arrays handed out by {@link #readBatch(int, LogConsumer)}.
+   */
+  default void readBatchBuffer(int batch, ByteBufferLogConsumer consumer) {
+    final ByteBuffer[] wrapped = new ByteBuffer[1];
+    readBatch(batch, (bytes, offset, length) -> {
+      if (wrapped[0] == null || wrapped[0].array() != bytes) {
+        wrapped[0] = ByteBuffer.wrap(bytes);
+      }
+      consumer.acceptLog(wrapped[0], offset, length);
+    });
+  }
+
+  /**
+   * Hint that the batch will be read soon, so implementations may load it in the background. Prefetched batches should
+   * be read in the order they were prefetched, since reading a batch discards all batches prefetched before it. By
+   * default, batches are not prefetched.
+   */
+  default void prefetchBatch(int batch) {
+    // Batches are loaded once they are read
+  }
+
   /**
    * @return the highest used batch number.
    */
   int getMaxBatch();
 
+  /**
+   * Create an independent reader of the same data, which may be used concurrently to this reader.
+   *
+   * @throws UnsupportedOperationException if the reader cannot be duplicated
+   */
+  default BatchReader duplicate() {
+    throw new UnsupportedOperationException("Reader cannot be duplicated");
+  }
+
   void close();
 }
@@ -2,36 +2,133 @@ package com.dynatrace.index.storage;
 
 import static com.dynatrace.index.data.analysis.tokenization.Lowercase.toLowerCase;
 
+import com.dynatrace.index.data.analysis.tokenization.TokenQueue.TokenType;
 import java.util.Arrays;
+import java.util.Locale;
+import javax.annotation.Nullable;
 
 /**
  * Implementation of the Boyer-Moore algorithm for string pattern matching.
  * <p>
  * This algorithm is a modified version of the implementation provided
  * <a href="https://algs4.cs.princeton.edu/53substring/BoyerMoore.java.html">here</a>.
+ * <p>
+ * Matchers search with the {@link MatcherKernel} selected when they are created, which defaults to
+ * {@link MatcherKernel#SWAR}.
+ * <p>
+ * Matchers {@link #createForToken(byte[]) created for tokens} only return occurrences forming a token on their own,
+ * see {@link TokenVerification#TOKEN}.
  */
 public final class BoyerMoore {
 
-  private final int[] right;
+  /**
+   * System property to select the {@link MatcherKernel} used by matchers created without an explicit kernel.
+   */
+  public static final String KERNEL_PROPERTY = "postfilter.matcher.kernel";
+
+  private static final MatcherKernel DEFAULT_KERNEL = MatcherKernel.valueOf(
+      System.getProperty(KERNEL_PROPERTY, MatcherKernel.SWAR.name()).toUpperCase(Locale.ROOT));
+
   private final byte[] pattern;
+  // Only set for the Boyer-Moore kernel
+  @Nullable
+  private final int[] right;
+  // Only set for the SWAR kernel
+  @Nullable
+  private final SwarMatcher swarMatcher;
+  // Types of the first and the last byte of the pattern, only set if occurrences have to be bounded by other types
+  @Nullable
+  private final TokenType firstType;
+  @Nullable
+  private final TokenType lastType;
 
-  private BoyerMoore(byte[] pattern, int[] right) {
+  private BoyerMoore(
+      byte[] pattern, @Nullable int[] right, @Nullable SwarMatcher swarMatcher, boolean tokenBoundaries) {
     this.pattern = pattern;
     this.right = right;
+    this.swarMatcher = swarMatcher;
+    // The empty pattern has no boundaries to check
+    final boolean checkBoundaries = tokenBoundaries && pattern.length > 0;
+    this.firstType = checkBoundaries ? TokenType.getType(pattern[0]) : null;
+    this.lastType = checkBoundaries ? TokenType.getType(pattern[pattern.length - 1]) : null;
   }
 
   public static BoyerMoore createForPattern(byte[] pattern) {
+    return createForPattern(pattern, DEFAULT_KERNEL);
+  }
+
+  public static BoyerMoore createForPattern(byte[] pattern, MatcherKernel matcherKernel) {
+    return create(pattern, matcherKernel, false);
+  }
+
+  /**
+   * Create a matcher which only returns occurrences of the pattern that are not directly preceded by a byte of the
+   * same {@link TokenType} as the first byte of the pattern, and not directly followed by a byte of the same type as
+   * the last byte of the pattern. Such occurrences start and end at the boundaries of the base tokens produced by the
+   * tokenizers, so searching for {@code error} does not match {@code errors} or {@code xerror}.
+   */
+  public static BoyerMoore createForToken(byte[] pattern) {
+    return createForToken(pattern, DEFAULT_KERNEL);
+  }
+
+  public static BoyerMoore createForToken(byte[] pattern, MatcherKernel matcherKernel) {
+    return create(pattern, matcherKernel, true);
+  }
+
+  private static BoyerMoore create(byte[] pattern, MatcherKernel matcherKernel, boolean tokenBoundaries) {
+    if (matcherKernel == MatcherKernel.SWAR) {
+      return new BoyerMoore(pattern, null, new SwarMatcher(pattern), tokenBoundaries);
+    }
     final int[] right = preprocessPattern(pattern);
-    return new BoyerMoore(pattern, right);
+    return new BoyerMoore(pattern, right, null, tokenBoundaries);
   }
 
   /**
    * Returns the index of the first occurrence of the pattern in the data. ASCII characters within the data
    * will be treated as lower-case, enabling case-insensitive matching when also encoding a lower-case pattern.
+   * Matchers created for tokens treat the start and the end of the searched range as token boundaries.
    *
    * @return the offset within the data array where the first match starts, or -1 if no match was found
    */
   public int matchLowerCase(byte[] data, int offset, int length) {
+    return matchLowerCase(data, offset, offset, length);
+  }
+
+  /**
+   * Returns the index of the first occurrence of the pattern in the data, which starts at or after the position, like
+   * {@link #matchLowerCase(byte[], int, int)} for the range of the given offset and length.
+   */
+  int matchLowerCase(byte[] data, int position, int offset, int length) {
+    final int end = offset + length;
+    int match = findLowerCase(data, position, end - position);
+    while (match >= 0 && !isBounded(data, match, offset, end)) {
+      match = findLowerCase(data, match + 1, end - match - 1);
+    }
+    return match;
+  }
+
+  /**
+   * @return whether the occurrence of the pattern at the position is bounded like required by the matcher, where the
+   *     data between the offset and the end is searched
+   */
+  boolean isBounded(byte[] data, int position, int offset, int end) {
+    if (firstType == null) {
+      return true;
+    }
+    final int matchEnd = position + pattern.length;
+    return (position == offset || TokenType.getType(data[position - 1]) != firstType)
+        && (matchEnd >= Math.min(end, data.length) || TokenType.getType(data[matchEnd]) != lastType);
+  }
+
+  /**
+   * Returns the index of the first occurrence of the pattern like {@link #matchLowerCase(byte[], int, int)}, but
+   * ignores the boundaries of token matchers.
+   */
+  int findLowerCase(byte[] data, int offset, int length) {
+    if (swarMatcher != null) {
+      return swarMatcher.matchLowerCase(data, offset, length);
+    }
+
     final int patternLength = pattern.length;
 
     final int endOffset = Math.min(offset + length - patternLength, data.length - patternLength);
@@ -54,6 +151,10 @@ public final class BoyerMoore {
     return -1;
   }
 
+  int patternLength() {
+    return pattern.length;
+  }
+
   private static int[] preprocessPattern(byte[] pattern) {
     final int[] right = new int[256];
     Arrays.fill(right, -1);
@@ -0,0 +1,15 @@
+package com.dynatrace.index.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accepts individual log lines located within a {@link ByteBuffer}, which may reside outside of the Java heap.
+ */
+public interface ByteBufferLogConsumer {
+
+  /**
+   * Accept the log line at an absolute offset of the buffer. The position and limit of the buffer are undefined and
+   * its content is only valid until the method returns.
+   */
+  void acceptLog(ByteBuffer buffer, int offset, int length);
+}
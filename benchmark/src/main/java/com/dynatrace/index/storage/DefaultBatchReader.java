@@ -2,46 +2,132 @@ package com.dynatrace.index.storage;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.dynatrace.index.QueryTrace;
 import com.dynatrace.index.util.IntEncoder;
+import com.dynatrace.index.util.MappedBufferUtil;
 import com.github.luben.zstd.ZstdDecompressCtx;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ObjIntConsumer;
 import javax.annotation.Nullable;
 
 /**
- * Used to read log batches produced by the {@link DefaultBatchWriter}.
+ * Used to read log batches produced by the {@link DefaultBatchWriter}. Depending on the {@link BatchReadMode}, the
+ * data file is either read into heap buffers or mapped into memory once. An optional {@link BatchCache} keeps
+ * decompressed batches between reads.
+ *
+ * <p>In {@link BatchReadMode#HEAP} mode, {@link #prefetchBatch(int) prefetched} batches are read from the data file
+ * by a background thread of the reader, while the previous batches are decompressed and consumed.
+ *
+ * <p>{@link #readMatchingLines(int, BoyerMoore, LogConsumer, QueryTrace) Matching lines} are found by searching the
+ * whole decompressed batch at once. Matches are mapped to their enclosing lines with the {@link LineIndex} of the
+ * storage, or by following the length prefixes from the previous match for storages written without one.
  */
 public final class DefaultBatchReader implements BatchReader {
 
+  // Batches are decompressed into a single array
+  private static final int MAX_BATCH_SIZE = Integer.MAX_VALUE - 8;
+
   private final Path headerFile;
   private final Path dataFile;
+  private final BatchReadMode readMode;
+  @Nullable
+  private final BatchCache cache;
 
   @Nullable
   private State state;
 
   public DefaultBatchReader(Path headerFile, Path dataFile) {
+    this(headerFile, dataFile, BatchReadMode.HEAP);
+  }
+
+  public DefaultBatchReader(Path headerFile, Path dataFile, BatchReadMode readMode) {
+    this(headerFile, dataFile, readMode, null);
+  }
+
+  /**
+   * @param cache shares decompressed batches between readers, null decompresses every read batch
+   */
+  public DefaultBatchReader(Path headerFile, Path dataFile, BatchReadMode readMode, @Nullable BatchCache cache) {
     this.headerFile = headerFile;
     this.dataFile = dataFile;
+    this.readMode = readMode;
+    this.cache = cache;
   }
 
   public static DefaultBatchReader create(Path storagePath) {
+    return create(storagePath, BatchReadMode.HEAP);
+  }
+
+  public static DefaultBatchReader create(Path storagePath, BatchReadMode readMode) {
+    return create(storagePath, readMode, null);
+  }
+
+  public static DefaultBatchReader create(Path storagePath, BatchReadMode readMode, @Nullable BatchCache cache) {
     final Path headerFile = storagePath.resolve(DefaultBatchWriter.HEADER_FILE);
     final Path dataFile = storagePath.resolve(DefaultBatchWriter.DATA_FILE);
 
-    return new DefaultBatchReader(headerFile, dataFile);
+    return new DefaultBatchReader(headerFile, dataFile, readMode, cache);
   }
 
   @Override
   public void readBatch(int batch, LogConsumer consumer) {
-    ensureState().readBatch(batch, consumer);
+    ensureState().readBatch(batch, consumer, null);
+  }
+
+  @Override
+  public void readBatch(int batch, LogConsumer consumer, QueryTrace trace) {
+    ensureState().readBatch(batch, consumer, trace);
+  }
+
+  @Override
+  public void readMatchingLines(int batch, BoyerMoore matcher, LogConsumer consumer, QueryTrace trace) {
+    ensureState().readMatchingLines(batch, matcher, consumer, trace);
+  }
+
+  @Override
+  public void readBatchBuffer(int batch, ByteBufferLogConsumer consumer) {
+    ensureState().readBatchBuffer(batch, consumer);
+  }
+
+  @Override
+  public void prefetchBatch(int batch) {
+    ensureState().prefetch(batch);
+  }
+
+  /**
+   * @return the number of prefetched batches which were not read yet
+   */
+  int pendingPrefetches() {
+    return state == null ? 0 : state.pendingPrefetches();
   }
 
   @Override
   public int getMaxBatch() {
-    return ensureState().offsets.length - 2;
+    return ensureState().extents.batchCount() - 1;
+  }
+
+  /**
+   * The duplicate shares the cache of this reader, but loads the header again.
+   */
+  @Override
+  public DefaultBatchReader duplicate() {
+    return new DefaultBatchReader(headerFile, dataFile, readMode, cache);
   }
 
   @Override
@@ -60,103 +146,655 @@ public final class DefaultBatchReader implements BatchReader {
 
   private State ensureState() {
     if (state == null) {
-      state = State.loadFrom(headerFile, dataFile);
+      state = loadState();
     }
     return state;
   }
 
-  private static final class State {
-    final int[] offsets;
+  private State loadState() {
+    final Header header = readHeader(headerFile);
+    checkArgument(header.maxOriginalBatchSize <= MAX_BATCH_SIZE,
+        "Batches of up to %s bytes exceed the maximum size of %s bytes", header.maxOriginalBatchSize, MAX_BATCH_SIZE);
+
+    final LineIndex lineIndex = readLineIndex(dataFile.resolveSibling(DefaultBatchWriter.LINE_INDEX_FILE), header);
+
     final FileInputStream dataIn;
+    try {
+      dataIn = new FileInputStream(dataFile.toFile());
+    } catch (FileNotFoundException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (readMode == BatchReadMode.HEAP) {
+      return new HeapState((int) header.maxOriginalBatchSize, header.extents, lineIndex, cache, dataFile, dataIn);
+    }
 
+    // The mapping remains valid after the file is closed
+    try (dataIn) {
+      final FileChannel channel = dataIn.getChannel();
+      final MappedByteBuffer[] mappedData = MappedBufferUtil.mapReadOnly(channel, 0, channel.size());
+      return new MappedState(
+          (int) header.maxOriginalBatchSize, header.extents, lineIndex, cache, dataFile, mappedData);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Decompresses batches into a reusable heap buffer, or serves them from the optional cache. Subclasses define how
+   * the compressed data is accessed.
+   */
+  private abstract static class State {
+    final BatchExtents extents;
+    @Nullable
+    final LineIndex lineIndex;
+    final int maxOriginalBatchSize;
     final ZstdDecompressCtx decompressCtx;
-    final byte[] decompressBuffer;
+    @Nullable
+    final BatchCache cache;
+    final Path cacheKey;
+
+    // Reused between batches, the compressed buffer grows to the largest compressed batch
+    byte[] compressedBuffer;
+    @Nullable
+    private byte[] decompressBuffer;
+    @Nullable
+    private ByteBuffer bytesView;
+
+    State(
+        int maxOriginalBatchSize, BatchExtents extents, @Nullable LineIndex lineIndex, @Nullable BatchCache cache,
+        Path dataFile) {
+      this.extents = extents;
+      this.lineIndex = lineIndex;
+      this.maxOriginalBatchSize = maxOriginalBatchSize;
+      this.decompressCtx = new ZstdDecompressCtx();
+      this.cache = cache;
+      // Readers of the same storage share the cached batches
+      this.cacheKey = dataFile.toAbsolutePath().normalize();
+      this.compressedBuffer = new byte[0];
+    }
 
-    State(int maxOriginalBatchSize, int[] offsets, FileInputStream dataIn) {
-      this.offsets = offsets;
-      this.dataIn = dataIn;
+    /**
+     * Copy the compressed extents of the batch into the target.
+     */
+    abstract void readCompressed(int batch, byte[] target) throws IOException;
+
+    /**
+     * @return a buffer holding the compressed batch, which has to be released once it was decompressed
+     */
+    byte[] loadCompressed(int batch, int length) throws IOException {
+      if (compressedBuffer.length < length) {
+        compressedBuffer = new byte[Math.max(length, compressedBuffer.length + (compressedBuffer.length >> 1))];
+      }
+      readCompressed(batch, compressedBuffer);
+      return compressedBuffer;
+    }
 
-      this.decompressCtx = new ZstdDecompressCtx();
-      this.decompressBuffer = new byte[maxOriginalBatchSize];
+    void releaseCompressed(byte[] compressed) {
+      // The compressed buffer is reused
     }
 
-    static State loadFrom(Path headerFile, Path dataFile) {
-      try {
-        final Header header = readHeader(headerFile);
-        final FileInputStream dataIn = new FileInputStream(dataFile.toFile());
+    /**
+     * Drop the pending load of a batch which is served from the cache instead.
+     */
+    void skipCompressed(int batch) {
+      // Batches are loaded once they are read
+    }
 
-        return new State(header.maxOriginalBatchSize, header.offsets, dataIn);
-      } catch (FileNotFoundException e) {
-        throw new UncheckedIOException(e);
-      }
+    int pendingPrefetches() {
+      return 0;
+    }
+
+    void prefetch(int batch) {
+      // Batches are loaded once they are read
+    }
+
+    void readBatch(int batch, LogConsumer consumer, @Nullable QueryTrace trace) {
+      readDecompressed(batch, trace, (decompressed, originalLength) ->
+          consumeLines(decompressed, originalLength, consumer));
     }
 
-    void readBatch(int batch, LogConsumer consumer) {
-      checkArgument(batch < offsets.length - 1 && batch >= 0,
-          "Tried to access batch %s of %s", batch, offsets.length - 2);
+    void readMatchingLines(int batch, BoyerMoore matcher, LogConsumer consumer, QueryTrace trace) {
+      readDecompressed(batch, trace, (decompressed, originalLength) ->
+          matchLines(batch, decompressed, originalLength, matcher, consumer));
+    }
 
-      final int offset = offsets[batch];
-      final int length = offsets[batch + 1] - offset;
+    /**
+     * Hand out the decompressed batch and its length, the array may be longer than the batch.
+     */
+    private void readDecompressed(int batch, @Nullable QueryTrace trace, ObjIntConsumer<byte[]> consumer) {
+      final long length = compressedLength(batch);
       if (length == 0) {
         // Batch does not exist
         return;
       }
 
-      try {
-        // Load data
-        dataIn.getChannel().position(offset);
-        final byte[] compressedData = dataIn.readNBytes(length);
+      if (cache != null) {
+        final byte[] cached = cache.get(cacheKey, batch);
+        if (cached != null) {
+          skipCompressed(batch);
+          trackCache(trace, 1, 0, 0);
+          consumer.accept(cached, cached.length);
+          return;
+        }
+      }
 
-        // Decompress
-        final int originalLength = decompressCtx.decompress(decompressBuffer, compressedData);
-        int originalOffset = 0;
-        while (originalOffset < originalLength) {
-          int lineLength = IntEncoder.readFullInt(decompressBuffer, originalOffset);
-          originalOffset += Integer.BYTES;
+      final byte[] decompressed = decompressBuffer();
+      final int originalLength = decompress(batch, length, decompressed);
+      if (cache != null) {
+        final int evicted = cache.put(cacheKey, batch, Arrays.copyOf(decompressed, originalLength));
+        trackCache(trace, 0, 1, evicted);
+      }
+      consumer.accept(decompressed, originalLength);
+    }
+
+    void readBatchBuffer(int batch, ByteBufferLogConsumer consumer) {
+      readBatch(batch, (bytes, offset, length) -> consumer.acceptLog(bytesView(bytes), offset, length), null);
+    }
 
-          consumer.acceptLog(decompressBuffer, originalOffset, lineLength);
+    long compressedLength(int batch) {
+      checkArgument(batch < extents.batchCount() && batch >= 0,
+          "Tried to access batch %s of %s", batch, extents.batchCount() - 1);
+      return extents.batchLength(batch);
+    }
 
-          originalOffset += lineLength;
+    /**
+     * Decompress the batch into the array.
+     *
+     * @return the number of decompressed bytes
+     */
+    int decompress(int batch, long length, byte[] decompressed) {
+      final int heapLength = heapLength(batch, length);
+      try {
+        // Load data, the concatenated frames of all extents form the compressed batch
+        final byte[] compressed = loadCompressed(batch, heapLength);
+        try {
+          return decompressCtx.decompressByteArray(decompressed, 0, decompressed.length, compressed, 0, heapLength);
+        } finally {
+          releaseCompressed(compressed);
         }
       } catch (IOException e) {
         throw new UncheckedIOException(e);
       }
     }
 
+    /**
+     * @return the length of the compressed batch, which has to fit into a single heap array
+     */
+    static int heapLength(int batch, long length) {
+      checkArgument(length <= MAX_BATCH_SIZE,
+          "Compressed batch %s of %s bytes exceeds the maximum size of %s bytes", batch, length, MAX_BATCH_SIZE);
+      return (int) length;
+    }
+
+    private static void consumeLines(byte[] decompressed, int originalLength, LogConsumer consumer) {
+      int originalOffset = 0;
+      while (originalOffset < originalLength) {
+        int lineLength = IntEncoder.readFullInt(decompressed, originalOffset);
+        originalOffset += Integer.BYTES;
+
+        consumer.acceptLog(decompressed, originalOffset, lineLength);
+
+        originalOffset += lineLength;
+      }
+    }
+
+    /**
+     * Search the pattern within the whole batch and hand out the lines enclosing the matches. Since the search skips
+     * all non-matching lines, only the lines between the closest indexed line start and a match are visited.
+     */
+    private void matchLines(
+        int batch, byte[] decompressed, int originalLength, BoyerMoore matcher, LogConsumer consumer) {
+
+      // Without a fitting index, the enclosing lines are found by following the length prefixes from the last match
+      final boolean indexed = lineIndex != null && lineIndex.batchSize(batch) == originalLength;
+      final int patternLength = matcher.patternLength();
+      int lineStart = 0;
+      while (lineStart < originalLength) {
+        final int match = matcher.findLowerCase(decompressed, lineStart, originalLength - lineStart);
+        if (match < 0) {
+          return;
+        }
+
+        if (indexed) {
+          lineStart = Math.max(lineStart, lineIndex.floorLineStart(batch, match));
+        }
+        int lineLength = IntEncoder.readFullInt(decompressed, lineStart);
+        while (lineStart + Integer.BYTES + lineLength <= match) {
+          lineStart += Integer.BYTES + lineLength;
+          lineLength = IntEncoder.readFullInt(decompressed, lineStart);
+        }
+
+        final int lineOffset = lineStart + Integer.BYTES;
+        final int lineEnd = lineOffset + lineLength;
+        // Matches starting within the length prefix have to be confirmed within the line. Later matches of a line
+        // cannot fit into it either, if the first one ends in the next line. Token matchers search on behind matches
+        // which are not bounded within the line.
+        final boolean matches = match >= lineOffset
+            ? match + patternLength <= lineEnd
+                && (matcher.isBounded(decompressed, match, lineOffset, lineEnd)
+                    || matcher.matchLowerCase(decompressed, match + 1, lineOffset, lineLength) >= 0)
+            : matcher.matchLowerCase(decompressed, lineOffset, lineLength) >= 0;
+        if (matches) {
+          consumer.acceptLog(decompressed, lineOffset, lineLength);
+        }
+        lineStart = lineEnd;
+      }
+    }
+
+    private static void trackCache(@Nullable QueryTrace trace, int hits, int misses, int evictions) {
+      if (trace != null) {
+        trace.trackBatchCache(hits, misses, evictions);
+      }
+    }
+
+    private byte[] decompressBuffer() {
+      if (decompressBuffer == null) {
+        decompressBuffer = new byte[maxOriginalBatchSize];
+      }
+      return decompressBuffer;
+    }
+
+    private ByteBuffer bytesView(byte[] bytes) {
+      if (bytesView == null || bytesView.array() != bytes) {
+        bytesView = ByteBuffer.wrap(bytes);
+      }
+      return bytesView;
+    }
+
     void close() throws IOException {
-      dataIn.close();
       decompressCtx.close();
     }
+  }
+
+  /**
+   * Reads the compressed batches with positional reads from the data file. Prefetched batches are read by a
+   * background thread into a ring of recycled buffers, positional reads of the channel may run concurrently. The ring
+   * holds one buffer more than the largest number of pending prefetches, which is the prefetch depth of the queries.
+   */
+  private static final class HeapState extends State {
+    final FileInputStream dataIn;
+
+    // Pending reads in the order the batches were prefetched
+    private final ArrayDeque<Prefetch> prefetches;
+    private final BitSet prefetchedBatches;
+    private final ArrayDeque<byte[]> freeBuffers;
+    private int maxPrefetches;
+    // Created with the first prefetched batch
+    @Nullable
+    private ExecutorService prefetchExecutor;
+
+    HeapState(
+        int maxOriginalBatchSize, BatchExtents extents, @Nullable LineIndex lineIndex, @Nullable BatchCache cache,
+        Path dataFile, FileInputStream dataIn) {
+      super(maxOriginalBatchSize, extents, lineIndex, cache, dataFile);
+      this.dataIn = dataIn;
+      this.prefetches = new ArrayDeque<>();
+      this.prefetchedBatches = new BitSet();
+      this.freeBuffers = new ArrayDeque<>();
+    }
+
+    @Override
+    void readCompressed(int batch, byte[] target) throws IOException {
+      final ByteBuffer targetBuffer = ByteBuffer.wrap(target);
+      for (int extent = extents.firstExtent(batch); extent < extents.endExtent(batch); extent++) {
+        readFully(extents.offset(extent), extents.length(extent), targetBuffer);
+      }
+    }
+
+    @Override
+    void prefetch(int batch) {
+      final long compressedLength = compressedLength(batch);
+      if (compressedLength == 0 || prefetchedBatches.get(batch) || (cache != null && cache.contains(cacheKey, batch))) {
+        // Batch does not exist, is already pending or will be served from the cache
+        return;
+      }
+
+      final int length = heapLength(batch, compressedLength);
+      byte[] buffer = freeBuffers.poll();
+      if (buffer == null || buffer.length < length) {
+        buffer = new byte[length];
+      }
+      final byte[] target = buffer;
+      final CompletableFuture<byte[]> compressed = CompletableFuture.supplyAsync(() -> {
+        try {
+          readCompressed(batch, target);
+          return target;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, prefetchExecutor());
+      prefetches.add(new Prefetch(batch, compressed));
+      prefetchedBatches.set(batch);
+      maxPrefetches = Math.max(maxPrefetches, prefetches.size());
+    }
 
-    private static Header readHeader(Path offsetFile) {
-      try (FileInputStream offsetsIn = new FileInputStream(offsetFile.toFile())) {
-        final byte[] buffer = offsetsIn.readNBytes(8);
-        final int maxOriginalBatchSize = IntEncoder.readFullInt(buffer, 0);
-        final int length = IntEncoder.readFullInt(buffer, 4);
+    @Override
+    byte[] loadCompressed(int batch, int length) throws IOException {
+      final Prefetch prefetch = takePrefetch(batch);
+      if (prefetch == null) {
+        return super.loadCompressed(batch, length);
+      }
 
-        final byte[] encodedOffsets = offsetsIn.readNBytes(length * Integer.BYTES);
-        final int[] offsets = new int[length];
-        int decodingOffset = 0;
-        for (int i = 0; i < length; i++) {
-          offsets[i] = IntEncoder.readFullInt(encodedOffsets, decodingOffset);
-          decodingOffset += Integer.BYTES;
+      try {
+        return prefetch.compressed.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof UncheckedIOException) {
+          throw ((UncheckedIOException) e.getCause()).getCause();
         }
+        throw e;
+      }
+    }
 
-        return new Header(maxOriginalBatchSize, offsets);
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
+    @Override
+    void releaseCompressed(byte[] compressed) {
+      if (compressed != compressedBuffer) {
+        recycle(compressed);
+      }
+    }
+
+    @Override
+    void skipCompressed(int batch) {
+      final Prefetch prefetch = takePrefetch(batch);
+      if (prefetch != null) {
+        discard(prefetch);
       }
     }
+
+    @Override
+    int pendingPrefetches() {
+      return prefetches.size();
+    }
+
+    /**
+     * Remove the pending read of the batch, batches prefetched before it were skipped and are discarded.
+     *
+     * @return the pending read, or null if the batch was not prefetched
+     */
+    @Nullable
+    private Prefetch takePrefetch(int batch) {
+      if (!prefetchedBatches.get(batch)) {
+        return null;
+      }
+
+      while (prefetches.peek().batch != batch) {
+        discard(prefetches.poll());
+      }
+      prefetchedBatches.clear(batch);
+      return prefetches.poll();
+    }
+
+    private void discard(Prefetch prefetch) {
+      prefetchedBatches.clear(prefetch.batch);
+      try {
+        // The buffer may only be reused once the background read finished
+        recycle(prefetch.compressed.join());
+      } catch (CompletionException e) {
+        // Skipped batches are not required to be readable
+      }
+    }
+
+    private void recycle(byte[] buffer) {
+      if (freeBuffers.size() <= maxPrefetches) {
+        freeBuffers.add(buffer);
+      }
+    }
+
+    private ExecutorService prefetchExecutor() {
+      if (prefetchExecutor == null) {
+        prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+          final Thread thread = new Thread(runnable, "batch-prefetch");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      return prefetchExecutor;
+    }
+
+    private void readFully(long offset, int length, ByteBuffer target) throws IOException {
+      target.limit(target.position() + length);
+      while (target.hasRemaining()) {
+        final int read = dataIn.getChannel().read(target, offset + length - target.remaining());
+        if (read < 0) {
+          throw new EOFException("Batch extent exceeds the data file");
+        }
+      }
+    }
+
+    @Override
+    void close() throws IOException {
+      if (prefetchExecutor != null) {
+        prefetchExecutor.shutdownNow();
+        prefetches.clear();
+        prefetchedBatches.clear();
+        freeBuffers.clear();
+      }
+      dataIn.close();
+      super.close();
+    }
   }
 
-  private static final class Header {
+  private static final class Prefetch {
+    final int batch;
+    final CompletableFuture<byte[]> compressed;
 
-    final int maxOriginalBatchSize;
-    final int[] offsets;
+    Prefetch(int batch, CompletableFuture<byte[]> compressed) {
+      this.batch = batch;
+      this.compressed = compressed;
+    }
+  }
+
+  /**
+   * Maps the data file once. Batches are decompressed straight from the mapped file, without copying the compressed
+   * data to the heap. Batches read via {@link #readBatchBuffer(int, ByteBufferLogConsumer)} are decompressed into a
+   * reusable direct buffer instead of the heap array.
+   */
+  private static final class MappedState extends State {
+    final MappedByteBuffer[] mappedData;
+
+    @Nullable
+    private ByteBuffer directBuffer;
+    // Only used for extents crossing the boundary between two mapped chunks
+    @Nullable
+    private ByteBuffer crossingExtent;
+
+    MappedState(
+        int maxOriginalBatchSize, BatchExtents extents, @Nullable LineIndex lineIndex, @Nullable BatchCache cache,
+        Path dataFile, MappedByteBuffer[] mappedData) {
+      super(maxOriginalBatchSize, extents, lineIndex, cache, dataFile);
+      this.mappedData = mappedData;
+    }
+
+    @Override
+    void readCompressed(int batch, byte[] target) {
+      int position = 0;
+      for (int extent = extents.firstExtent(batch); extent < extents.endExtent(batch); extent++) {
+        final int extentLength = extents.length(extent);
+        copyMapped(extents.offset(extent), extentLength, ByteBuffer.wrap(target, position, extentLength));
+        position += extentLength;
+      }
+    }
+
+    @Override
+    int decompress(int batch, long length, byte[] decompressed) {
+      int originalLength = 0;
+      for (int extent = extents.firstExtent(batch); extent < extents.endExtent(batch); extent++) {
+        // Extents consist of complete frames, so they are decompressed individually
+        final ByteBuffer source = mappedExtent(extents.offset(extent), extents.length(extent));
+        originalLength += decompressCtx.decompressDirectByteBufferToByteArray(
+            decompressed, originalLength, decompressed.length - originalLength,
+            source, source.position(), source.remaining());
+      }
+      return originalLength;
+    }
+
+    @Override
+    void readBatchBuffer(int batch, ByteBufferLogConsumer consumer) {
+      if (cache != null) {
+        // Cached batches are kept on the heap
+        super.readBatchBuffer(batch, consumer);
+        return;
+      }
+      if (compressedLength(batch) == 0) {
+        // Batch does not exist
+        return;
+      }
+
+      final ByteBuffer decompressed = directBuffer();
+      int originalLength = 0;
+      for (int extent = extents.firstExtent(batch); extent < extents.endExtent(batch); extent++) {
+        // Extents consist of complete frames, so they are decompressed individually
+        final ByteBuffer source = mappedExtent(extents.offset(extent), extents.length(extent));
+        originalLength += decompressCtx.decompressDirectByteBuffer(
+            decompressed, originalLength, decompressed.capacity() - originalLength,
+            source, source.position(), source.remaining());
+      }
+
+      int originalOffset = 0;
+      while (originalOffset < originalLength) {
+        final int lineLength = decompressed.getInt(originalOffset);
+        originalOffset += Integer.BYTES;
+
+        consumer.acceptLog(decompressed, originalOffset, lineLength);
+
+        originalOffset += lineLength;
+      }
+    }
+
+    /**
+     * @return a view of the extent within the mapped file, or a copy if it crosses two mapped chunks
+     */
+    private ByteBuffer mappedExtent(long offset, int length) {
+      final MappedByteBuffer chunk = mappedData[(int) (offset / MappedBufferUtil.MAX_CHUNK_SIZE)];
+      final int chunkOffset = (int) (offset % MappedBufferUtil.MAX_CHUNK_SIZE);
+      if (chunkOffset + length <= chunk.capacity()) {
+        return chunk.duplicate().limit(chunkOffset + length).position(chunkOffset);
+      }
+
+      if (crossingExtent == null || crossingExtent.capacity() < length) {
+        crossingExtent = ByteBuffer.allocateDirect(length);
+      }
+      final ByteBuffer copy = crossingExtent.clear().limit(length);
+      copyMapped(offset, length, copy);
+      return copy.flip();
+    }
+
+    private void copyMapped(long offset, int length, ByteBuffer target) {
+      while (length > 0) {
+        final MappedByteBuffer chunk = mappedData[(int) (offset / MappedBufferUtil.MAX_CHUNK_SIZE)];
+        final int chunkOffset = (int) (offset % MappedBufferUtil.MAX_CHUNK_SIZE);
+        final int copied = Math.min(length, chunk.capacity() - chunkOffset);
+        target.put(chunk.duplicate().limit(chunkOffset + copied).position(chunkOffset));
+        offset += copied;
+        length -= copied;
+      }
+    }
+
+    private ByteBuffer directBuffer() {
+      if (directBuffer == null) {
+        directBuffer = ByteBuffer.allocateDirect(maxOriginalBatchSize).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      return directBuffer;
+    }
+
+    @Override
+    void close() throws IOException {
+      MappedBufferUtil.unmapBuffers(mappedData);
+      super.close();
+    }
+  }
+
+  /**
+   * @return the line index of the storage, or null if the storage was written without one or the index does not fit
+   *     the batches listed in the header
+   */
+  @Nullable
+  static LineIndex readLineIndex(Path lineIndexFile, Header header) {
+    final LineIndex lineIndex = LineIndex.readFrom(lineIndexFile);
+    if (lineIndex == null || lineIndex.batchCount() != header.extents.batchCount()) {
+      return null;
+    }
+    return lineIndex;
+  }
+
+  static Header readHeader(Path offsetFile) {
+    try (FileInputStream offsetsIn = new FileInputStream(offsetFile.toFile())) {
+      final int first = IntEncoder.readFullInt(offsetsIn.readNBytes(Integer.BYTES), 0);
+      if (first >= 0) {
+        return readOffsetHeader(first, offsetsIn);
+      }
+
+      final int version = -first;
+      checkArgument(version == DefaultBatchWriter.HEADER_VERSION, "Unsupported header version %s", version);
+      return readExtentHeader(offsetsIn);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Header readExtentHeader(FileInputStream offsetsIn) throws IOException {
+    final byte[] buffer = offsetsIn.readAllBytes();
+    int decodingOffset = 0;
+
+    final long maxOriginalBatchSize = IntEncoder.readVarLong(buffer, decodingOffset);
+    decodingOffset += IntEncoder.varLongLength(maxOriginalBatchSize);
+    final int batchCount = Math.toIntExact(IntEncoder.readVarLong(buffer, decodingOffset));
+    decodingOffset += IntEncoder.varLongLength(batchCount);
+    final int extentCount = Math.toIntExact(IntEncoder.readVarLong(buffer, decodingOffset));
+    decodingOffset += IntEncoder.varLongLength(extentCount);
+
+    final int[] batchExtentCounts = new int[batchCount];
+    for (int batch = 0; batch < batchCount; batch++) {
+      batchExtentCounts[batch] = Math.toIntExact(IntEncoder.readVarLong(buffer, decodingOffset));
+      decodingOffset += IntEncoder.varLongLength(batchExtentCounts[batch]);
+    }
+
+    final BatchExtents extents = new BatchExtents();
+    for (int batch = 0; batch < batchCount; batch++) {
+      extents.startBatch();
+      long previousEnd = 0;
+      for (int i = 0; i < batchExtentCounts[batch]; i++) {
+        final long distance = IntEncoder.readVarLong(buffer, decodingOffset);
+        decodingOffset += IntEncoder.varLongLength(distance);
+        final int length = Math.toIntExact(IntEncoder.readVarLong(buffer, decodingOffset));
+        decodingOffset += IntEncoder.varLongLength(length);
+
+        final long offset = previousEnd + distance;
+        extents.addExtent(offset, length);
+        previousEnd = offset + length;
+      }
+    }
+    checkArgument(extents.extentCount() <= extentCount, "Header lists more than %s extents", extentCount);
+
+    return new Header(maxOriginalBatchSize, extents);
+  }
+
+  /**
+   * Reads headers written before batches could span multiple extents, which list the start offset of every batch.
+   */
+  private static Header readOffsetHeader(int maxOriginalBatchSize, FileInputStream offsetsIn) throws IOException {
+    final int length = IntEncoder.readFullInt(offsetsIn.readNBytes(Integer.BYTES), 0);
+
+    final byte[] encodedOffsets = offsetsIn.readNBytes(length * Integer.BYTES);
+    final BatchExtents extents = new BatchExtents();
+    int previousOffset = IntEncoder.readFullInt(encodedOffsets, 0);
+    for (int i = 1; i < length; i++) {
+      final int offset = IntEncoder.readFullInt(encodedOffsets, i * Integer.BYTES);
+      extents.startBatch();
+      extents.addExtent(previousOffset, offset - previousOffset);
+      previousOffset = offset;
+    }
+
+    return new Header(maxOriginalBatchSize, extents);
+  }
+
+  static final class Header {
+
+    final long maxOriginalBatchSize;
+    final BatchExtents extents;
 
-    private Header(int maxOriginalBatchSize, int[] offsets) {
+    private Header(long maxOriginalBatchSize, BatchExtents extents) {
       this.maxOriginalBatchSize = maxOriginalBatchSize;
-      this.offsets = offsets;
+      this.extents = extents;
     }
   }
 }
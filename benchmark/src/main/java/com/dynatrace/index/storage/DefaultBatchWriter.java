@@ -1,59 +1,135 @@
 package com.dynatrace.index.storage;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
-import com.dynatrace.index.loggrep.LogGrepException;
+import com.dynatrace.index.QueryTrace;
 import com.dynatrace.index.util.IntEncoder;
-import com.github.luben.zstd.RecyclingBufferPool;
-import com.github.luben.zstd.ZstdOutputStreamNoFinalizer;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
 import javax.annotation.Nullable;
 
 /**
- * Compresses each batch individually using z-standard. When the writer is flushed, all batches are combined
- * into a single file to avoid the overhead of opening many files during queries.
+ * Compresses each batch individually using z-standard. All batches are stored in a single data file to avoid the
+ * overhead of opening many files during queries.
+ *
+ * <p>Log lines are buffered uncompressed within a bounded off-heap arena. Once the arena is full, the largest batches
+ * are compressed and appended to the data file, see {@link BatchBuffers}. The number of open files and compression
+ * contexts therefore does not depend on the number of batches. Since batches are appended in parts, a batch may span
+ * multiple extents of the data file, which are listed in the header file. Flushing the writer appends the remaining
+ * buffers and writes the header, but never copies data which is already on disk.
+ *
+ * <p>By default, the batches are compressed on the thread adding the log lines. With compression threads, they are
+ * compressed by a bounded thread pool instead. Once all compression threads are busy and the queue of the pool is
+ * full, the adding thread compresses the next frame itself, which bounds the memory held by pending frames.
+ *
+ * <p>The start of every {@value LineIndex#INTERVAL}th line within the uncompressed batches is written to a separate
+ * {@link LineIndex} file, which is used to map matches within whole batches to their lines.
  */
 public final class DefaultBatchWriter implements BatchWriter {
 
-  static final String TMP_DIR = "tmp";
+  /**
+   * Default capacity of the arena buffering uncompressed log lines.
+   */
+  public static final long DEFAULT_BUFFER_CAPACITY = 128L * 1024 * 1024;
+
   static final String DATA_FILE = "data";
   static final String HEADER_FILE = "header";
+  static final String LINE_INDEX_FILE = "lines";
+
+  /**
+   * Version of the header format, written negated as the first int of the header. Headers of the original format start
+   * with the non-negative size of the largest batch instead and list a single 32-bit offset per batch.
+   */
+  static final int HEADER_VERSION = 1;
 
   private final Path storagePath;
-  private final Path tmpPath;
   private final byte[] writeBuffer;
+  @Nullable
+  private final ThreadPoolExecutor compressionPool;
+  private final BatchBuffers batches;
 
-  private OutputStream[] batches;
-  private int[] originalBatchSizes;
+  private long[] originalBatchSizes;
+  // Sampled line starts of every batch, created with the first line of the batch
+  private SampledLines[] sampledLines;
   private int maxBatch;
 
   @Nullable
   private BatchReader reader;
 
   public DefaultBatchWriter(Path storagePath) {
+    this(storagePath, 0);
+  }
+
+  /**
+   * @param compressionThreads the number of threads compressing the batches in the background, 0 compresses the
+   *     batches on the thread adding the log lines
+   */
+  public DefaultBatchWriter(Path storagePath, int compressionThreads) {
+    this(storagePath, compressionThreads, DEFAULT_BUFFER_CAPACITY);
+  }
+
+  /**
+   * @param compressionThreads the number of threads compressing the batches in the background, 0 compresses the
+   *     batches on the thread adding the log lines
+   * @param bufferCapacity the number of bytes of uncompressed log lines buffered outside of the Java heap
+   */
+  public DefaultBatchWriter(Path storagePath, int compressionThreads, long bufferCapacity) {
+    checkArgument(compressionThreads >= 0, "compressionThreads must not be negative");
     this.storagePath = storagePath;
-    this.tmpPath = storagePath.resolve(TMP_DIR);
     this.writeBuffer = new byte[4];
-    this.batches = new OutputStream[128];
-    this.originalBatchSizes = new int[128];
+    this.originalBatchSizes = new long[128];
+    this.sampledLines = new SampledLines[128];
+    this.compressionPool = compressionThreads == 0 ? null : createCompressionPool(compressionThreads);
+    this.batches = new BatchBuffers(bufferCapacity, storagePath.resolve(DATA_FILE), compressionPool);
+  }
+
+  private static ThreadPoolExecutor createCompressionPool(int compressionThreads) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadFactory threadFactory = runnable -> {
+      final Thread thread = new Thread(runnable, "batch-compression-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    return new ThreadPoolExecutor(
+        compressionThreads,
+        compressionThreads,
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(2 * compressionThreads),
+        threadFactory,
+        new ThreadPoolExecutor.CallerRunsPolicy());
   }
 
   @Override
   public void addLogLine(byte[] bytes, int offset, int length, int batch) {
     try {
       maxBatch = Math.max(maxBatch, batch);
+      trackLineStart(batch);
+      trackOriginalSize(batch, length + Integer.BYTES);
 
-      int entryLength = length + Integer.BYTES;
-      OutputStream batchOut = acquireBatchWriter(batch, entryLength);
       IntEncoder.writeFullInt(writeBuffer, 0, length);
-      batchOut.write(writeBuffer);
-      batchOut.write(bytes, offset, length);
+      batches.write(batch, writeBuffer, 0, writeBuffer.length);
+      batches.write(batch, bytes, offset, length);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -61,61 +137,208 @@ public final class DefaultBatchWriter implements BatchWriter {
 
   @Override
   public void flush() {
-    final int[] batchOffsets = new int[maxBatch + 2];
-    Arrays.fill(batchOffsets, -1);
-    try (FileOutputStream dataOut = new FileOutputStream(storagePath.resolve(DATA_FILE).toFile());
+    try {
+      final BatchExtents extents = finishDataFile();
+      final long maxOriginalBatchSize = Arrays.stream(originalBatchSizes).max().orElseThrow();
+      try (FileOutputStream headerOut = new FileOutputStream(storagePath.resolve(HEADER_FILE).toFile())) {
+        writeHeaderFile(extents, maxOriginalBatchSize, headerOut);
+      }
+      try (FileOutputStream lineIndexOut = new FileOutputStream(storagePath.resolve(LINE_INDEX_FILE).toFile())) {
+        createLineIndex().writeTo(lineIndexOut);
+      }
+
+      reader = DefaultBatchReader.create(storagePath);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Merge the storages of independent writers into a new storage, where batch {@code i} contains batch {@code i} of
+   * every source storage.
+   *
+   * @see #merge(Path, List, List)
+   */
+  public static void merge(Path storagePath, List<Path> sourceStoragePaths) {
+    merge(storagePath, sourceStoragePaths, Collections.nCopies(sourceStoragePaths.size(), IntUnaryOperator.identity()));
+  }
+
+  /**
+   * Merge the storages of independent writers into a new storage, renumbering the batches of every source storage.
+   * Batches with the same new number are concatenated in the order of the source storages. The compressed batches are
+   * copied as they are, since concatenated z-standard frames decompress to the concatenated log lines. The line index
+   * is only written if all source storages have one.
+   *
+   * @param storagePath the path of the new storage
+   * @param sourceStoragePaths the paths of the flushed source storages
+   * @param batchMappings maps the batch numbers of each source storage to the batch numbers of the new storage
+   */
+  public static void merge(Path storagePath, List<Path> sourceStoragePaths, List<IntUnaryOperator> batchMappings) {
+    checkArgument(sourceStoragePaths.size() == batchMappings.size(), "Every source storage requires a batch mapping");
+
+    // Collect the non-empty batches of all sources
+    final List<BatchExtent> extents = new ArrayList<>();
+    final LineIndex[] sourceLineIndexes = new LineIndex[sourceStoragePaths.size()];
+    boolean indexed = true;
+    for (int source = 0; source < sourceStoragePaths.size(); source++) {
+      final Path sourceStoragePath = sourceStoragePaths.get(source);
+      final DefaultBatchReader.Header header = DefaultBatchReader.readHeader(sourceStoragePath.resolve(HEADER_FILE));
+      sourceLineIndexes[source] = DefaultBatchReader.readLineIndex(sourceStoragePath.resolve(LINE_INDEX_FILE), header);
+      indexed &= sourceLineIndexes[source] != null;
+      final BatchExtents sourceExtents = header.extents;
+      for (int batch = 0; batch < sourceExtents.batchCount(); batch++) {
+        if (sourceExtents.firstExtent(batch) == sourceExtents.endExtent(batch)) {
+          continue;
+        }
+
+        final int targetBatch = batchMappings.get(source).applyAsInt(batch);
+        checkArgument(targetBatch >= 0, "Batch %s of source %s is mapped to %s", batch, source, targetBatch);
+        // The line index lists the original size of every batch, otherwise the largest batch is an upper bound
+        final long originalBatchSize = sourceLineIndexes[source] != null
+            ? sourceLineIndexes[source].batchSize(batch)
+            : header.maxOriginalBatchSize;
+        final int firstExtent = sourceExtents.firstExtent(batch);
+        for (int extent = firstExtent; extent < sourceExtents.endExtent(batch); extent++) {
+          // The original size is accounted once per source batch
+          extents.add(new BatchExtent(source, batch, sourceExtents.offset(extent), sourceExtents.length(extent),
+              targetBatch, extent == firstExtent, extent == firstExtent ? originalBatchSize : 0));
+        }
+      }
+    }
+    // The sort is stable, so the extents of a batch remain in the order of the sources
+    extents.sort(Comparator.comparingInt(extent -> extent.targetBatch));
+
+    final int maxBatch = extents.isEmpty() ? 0 : extents.get(extents.size() - 1).targetBatch;
+    final BatchExtents targetExtents = new BatchExtents();
+    final LineIndex targetLineIndex = indexed ? new LineIndex() : null;
+    // Sum of the original sizes of the source batches concatenated within each batch
+    final long[] originalBatchSizes = new long[maxBatch + 1];
+
+    final FileChannel[] sources = new FileChannel[sourceStoragePaths.size()];
+    try {
+      Files.createDirectories(storagePath);
+      // Never keep the line index of a previous storage
+      Files.deleteIfExists(storagePath.resolve(LINE_INDEX_FILE));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    try (FileChannel dataOut = FileChannel.open(storagePath.resolve(DATA_FILE), CREATE, WRITE, TRUNCATE_EXISTING);
          FileOutputStream headerOut = new FileOutputStream(storagePath.resolve(HEADER_FILE).toFile())) {
 
-      final int maxOriginalBatchSize = Arrays.stream(originalBatchSizes).max().orElseThrow();
-      writeDataFile(batchOffsets, dataOut);
-      writeHeaderFile(batchOffsets, maxOriginalBatchSize, headerOut);
+      for (int i = 0; i < sources.length; i++) {
+        sources[i] = FileChannel.open(sourceStoragePaths.get(i).resolve(DATA_FILE), READ);
+      }
+
+      int previousBatch = -1;
+      for (BatchExtent extent : extents) {
+        while (previousBatch < extent.targetBatch) {
+          startBatch(targetExtents, targetLineIndex);
+          previousBatch++;
+        }
+        if (targetLineIndex != null && extent.firstExtent) {
+          targetLineIndex.appendBatch(sourceLineIndexes[extent.source], extent.sourceBatch);
+        }
+        originalBatchSizes[extent.targetBatch] += extent.originalBatchSize;
+        targetExtents.addExtent(dataOut.position(), extent.length);
+        transferFully(sources[extent.source], extent.offset, extent.length, dataOut);
+      }
+      while (previousBatch < maxBatch) {
+        startBatch(targetExtents, targetLineIndex);
+        previousBatch++;
+      }
 
-      reader = DefaultBatchReader.create(storagePath);
+      final long maxOriginalBatchSize = Arrays.stream(originalBatchSizes).max().orElseThrow();
+      writeHeaderFile(targetExtents, maxOriginalBatchSize, headerOut);
+      if (targetLineIndex != null) {
+        try (FileOutputStream lineIndexOut = new FileOutputStream(storagePath.resolve(LINE_INDEX_FILE).toFile())) {
+          targetLineIndex.writeTo(lineIndexOut);
+        }
+      }
     } catch (IOException e) {
       throw new UncheckedIOException(e);
+    } finally {
+      closeAll(sources);
     }
   }
 
-  private void writeHeaderFile(int[] batchOffsets, int maxOriginalBatchSize, FileOutputStream headerOut)
+  private static void startBatch(BatchExtents extents, @Nullable LineIndex lineIndex) {
+    extents.startBatch();
+    if (lineIndex != null) {
+      lineIndex.startBatch();
+    }
+  }
+
+  private static void transferFully(FileChannel source, long offset, long length, FileChannel target)
       throws IOException {
+    long transferred = 0;
+    while (transferred < length) {
+      transferred += source.transferTo(offset + transferred, length - transferred, target);
+    }
+  }
 
-    final byte[] buffer = new byte[2 * Integer.BYTES + Integer.BYTES * batchOffsets.length];
+  private static void closeAll(FileChannel[] channels) {
+    try {
+      for (FileChannel channel : channels) {
+        if (channel != null) {
+          channel.close();
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 
-    IntEncoder.writeFullInt(buffer, 0, maxOriginalBatchSize);
-    IntEncoder.writeFullInt(buffer, Integer.BYTES, batchOffsets.length);
-    int offset = 2 * Integer.BYTES;
-    for (int batchOffset : batchOffsets) {
-      IntEncoder.writeFullInt(buffer, offset, batchOffset);
-      offset += Integer.BYTES;
+  /**
+   * Layout: negated version as full int, followed by variable length longs: size of the largest batch, number of
+   * batches, number of extents, number of extents of every batch, offset and length of every extent. The extents of
+   * a batch are stored in ascending order, so only the first offset of each batch is absolute, while the following
+   * ones are stored as the distance to the end of the previous extent.
+   */
+  static void writeHeaderFile(BatchExtents extents, long maxOriginalBatchSize, FileOutputStream headerOut)
+      throws IOException {
+
+    final int batchCount = extents.batchCount();
+    final int extentCount = extents.extentCount();
+    final byte[] buffer =
+        new byte[Integer.BYTES + (3 + batchCount + 2 * extentCount) * IntEncoder.MAX_VAR_LONG_LENGTH];
+
+    IntEncoder.writeFullInt(buffer, 0, -HEADER_VERSION);
+    int offset = Integer.BYTES;
+    offset += IntEncoder.writeVarLong(buffer, offset, maxOriginalBatchSize);
+    offset += IntEncoder.writeVarLong(buffer, offset, batchCount);
+    offset += IntEncoder.writeVarLong(buffer, offset, extentCount);
+    for (int batch = 0; batch < batchCount; batch++) {
+      offset += IntEncoder.writeVarLong(buffer, offset, extents.endExtent(batch) - extents.firstExtent(batch));
+    }
+    for (int batch = 0; batch < batchCount; batch++) {
+      long previousEnd = 0;
+      for (int extent = extents.firstExtent(batch); extent < extents.endExtent(batch); extent++) {
+        offset += IntEncoder.writeVarLong(buffer, offset, extents.offset(extent) - previousEnd);
+        offset += IntEncoder.writeVarLong(buffer, offset, extents.length(extent));
+        previousEnd = extents.offset(extent) + extents.length(extent);
+      }
     }
 
-    headerOut.write(buffer);
+    headerOut.write(buffer, 0, offset);
   }
 
-  private void writeDataFile(int[] batchOffsets, FileOutputStream dataOut) throws IOException {
-    int offset = 0;
+  /**
+   * Append the remaining buffers to the data file.
+   *
+   * @return the extents of all batches within the data file
+   */
+  private BatchExtents finishDataFile() throws IOException {
+    batches.spillAll();
+
+    final BatchExtents extents = new BatchExtents();
     for (int i = 0; i <= maxBatch; i++) {
-      final OutputStream batch = batches[i];
-
-      batchOffsets[i] = offset;
-      if (batch != null) {
-        final Path batchFile = tmpPath.resolve(String.valueOf(i));
-        // Flush
-        batch.flush();
-        batch.close();
-
-        // Copy data to single data file
-        final long copiedBytes = Files.copy(batchFile, dataOut);
-        offset += copiedBytes;
-
-        // Delete tmp data
-        batches[i] = null;
-        originalBatchSizes[i] = 0;
-        Files.deleteIfExists(batchFile);
-      }
+      extents.startBatch();
+      batches.addExtents(i, extents);
     }
-    batchOffsets[maxBatch + 1] = offset;
-    Files.deleteIfExists(tmpPath);
+
+    batches.close();
+    return extents;
   }
 
   @Override
@@ -124,6 +347,18 @@ public final class DefaultBatchWriter implements BatchWriter {
     reader.readBatch(batch, consumer);
   }
 
+  @Override
+  public void readMatchingLines(int batch, BoyerMoore matcher, LogConsumer consumer, QueryTrace trace) {
+    checkState(reader != null, "Data not yet flushed");
+    reader.readMatchingLines(batch, matcher, consumer, trace);
+  }
+
+  @Override
+  public void readBatchBuffer(int batch, ByteBufferLogConsumer consumer) {
+    checkState(reader != null, "Data not yet flushed");
+    reader.readBatchBuffer(batch, consumer);
+  }
+
   @Override
   public int getMaxBatch() {
     return maxBatch;
@@ -131,33 +366,101 @@ public final class DefaultBatchWriter implements BatchWriter {
 
   @Override
   public void close() {
+    final boolean flushed = reader != null;
     if (reader != null) {
       reader.close();
       reader = null;
     }
+    try {
+      if (flushed) {
+        batches.close();
+      } else {
+        // Without a header, the data file cannot be read
+        batches.discard();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (compressionPool != null) {
+      compressionPool.shutdown();
+    }
   }
 
-  private OutputStream acquireBatchWriter(int batch, int length) {
-    if (batch >= batches.length) {
-      final int newSize = Math.max(batch + 1, batches.length * 2);
-      batches = Arrays.copyOf(batches, newSize);
-      originalBatchSizes = Arrays.copyOf(originalBatchSizes, newSize);
+  private LineIndex createLineIndex() {
+    final LineIndex lineIndex = new LineIndex();
+    for (int batch = 0; batch <= maxBatch; batch++) {
+      lineIndex.startBatch();
+      final SampledLines lines = sampledLines[batch];
+      if (lines != null) {
+        for (int i = 0; i < lines.sampleCount; i++) {
+          lineIndex.addLineStart(lines.lineStarts[i]);
+        }
+      }
+      lineIndex.growBatch(originalBatchSizes[batch]);
     }
+    return lineIndex;
+  }
 
-    try {
-      originalBatchSizes[batch] += length;
-      OutputStream batchOut = batches[batch];
-      if (batchOut == null) {
-        Files.createDirectories(tmpPath);
-        final Path batchFile = tmpPath.resolve(String.valueOf(batch));
-        batchOut = new ZstdOutputStreamNoFinalizer(
-            new FileOutputStream(batchFile.toFile()),
-            RecyclingBufferPool.INSTANCE);
-        batches[batch] = batchOut;
+  private void trackLineStart(int batch) {
+    if (batch >= sampledLines.length) {
+      sampledLines = Arrays.copyOf(sampledLines, Math.max(batch + 1, sampledLines.length * 2));
+    }
+    if (sampledLines[batch] == null) {
+      sampledLines[batch] = new SampledLines();
+    }
+    // The line starts where the batch currently ends
+    sampledLines[batch].addLine(batch < originalBatchSizes.length ? originalBatchSizes[batch] : 0);
+  }
+
+  private void trackOriginalSize(int batch, int length) {
+    if (batch >= originalBatchSizes.length) {
+      originalBatchSizes = Arrays.copyOf(originalBatchSizes, Math.max(batch + 1, originalBatchSizes.length * 2));
+    }
+    originalBatchSizes[batch] += length;
+  }
+
+  /**
+   * Starts of every {@value LineIndex#INTERVAL}th line of a batch, except the first line.
+   */
+  private static final class SampledLines {
+    long[] lineStarts = new long[0];
+    int sampleCount;
+    int lineCount;
+
+    void addLine(long lineStart) {
+      if (lineCount > 0 && lineCount % LineIndex.INTERVAL == 0) {
+        if (sampleCount == lineStarts.length) {
+          lineStarts = Arrays.copyOf(lineStarts, Math.max(4, sampleCount * 2));
+        }
+        lineStarts[sampleCount++] = lineStart;
       }
-      return batchOut;
-    } catch (IOException e) {
-      throw new LogGrepException(e);
+      lineCount++;
+    }
+  }
+
+  /**
+   * Location of a part of a compressed batch within the data file of a source storage.
+   */
+  private static final class BatchExtent {
+    final int source;
+    final int sourceBatch;
+    final long offset;
+    final int length;
+    final int targetBatch;
+    // Whether the extent is the first one of the source batch
+    final boolean firstExtent;
+    final long originalBatchSize;
+
+    BatchExtent(
+        int source, int sourceBatch, long offset, int length, int targetBatch, boolean firstExtent,
+        long originalBatchSize) {
+      this.source = source;
+      this.sourceBatch = sourceBatch;
+      this.offset = offset;
+      this.length = length;
+      this.targetBatch = targetBatch;
+      this.firstExtent = firstExtent;
+      this.originalBatchSize = originalBatchSize;
     }
   }
 }
@@ -0,0 +1,209 @@
+package com.dynatrace.index.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.dynatrace.index.util.IntEncoder;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * Sparse index of the line starts within the decompressed batches, which lists the start of every
+ * {@value #INTERVAL}th line of each batch, in addition to the size of each decompressed batch. A match found by
+ * searching a whole batch is mapped to its enclosing line by following the length prefixes of at most
+ * {@value #INTERVAL} lines from the closest indexed line start, instead of visiting all lines before the match.
+ *
+ * <p>Batches are added in ascending order, followed by their line starts in ascending order. The start of the first
+ * line of each batch is always 0 and not listed. Merged batches additionally list the start of every concatenated
+ * source batch, so the distance between two indexed lines never exceeds the interval.
+ */
+final class LineIndex {
+
+  /**
+   * Number of lines between two indexed line starts.
+   */
+  static final int INTERVAL = 64;
+
+  private static final int VERSION = 1;
+
+  // Index of the first line start of each batch, followed by the total number of line starts
+  private int[] firstEntries;
+  private long[] batchSizes;
+  private int batchCount;
+
+  private long[] lineStarts;
+  private int entryCount;
+
+  LineIndex() {
+    this.firstEntries = new int[16];
+    this.batchSizes = new long[16];
+    this.lineStarts = new long[16];
+  }
+
+  /**
+   * Start the next batch, subsequent line starts are added to it.
+   */
+  void startBatch() {
+    if (batchCount + 1 >= firstEntries.length) {
+      firstEntries = Arrays.copyOf(firstEntries, firstEntries.length * 2);
+      batchSizes = Arrays.copyOf(batchSizes, batchSizes.length * 2);
+    }
+    firstEntries[batchCount++] = entryCount;
+    firstEntries[batchCount] = entryCount;
+  }
+
+  /**
+   * Append a line start to the current batch.
+   */
+  void addLineStart(long lineStart) {
+    checkArgument(batchCount > 0, "No batch started");
+    checkArgument(entryCount == firstEntries[batchCount - 1] || lineStart > lineStarts[entryCount - 1],
+        "Line start %s precedes the previous line start of the batch", lineStart);
+
+    if (entryCount == lineStarts.length) {
+      lineStarts = Arrays.copyOf(lineStarts, entryCount * 2);
+    }
+    lineStarts[entryCount] = lineStart;
+    firstEntries[batchCount] = ++entryCount;
+  }
+
+  /**
+   * Add decompressed bytes to the size of the current batch.
+   */
+  void growBatch(long length) {
+    checkArgument(batchCount > 0, "No batch started");
+    batchSizes[batchCount - 1] += length;
+  }
+
+  /**
+   * Append the lines of a batch of another index to the current batch, shifted behind the lines already added.
+   */
+  void appendBatch(LineIndex source, int sourceBatch) {
+    checkArgument(batchCount > 0, "No batch started");
+    final long shift = batchSizes[batchCount - 1];
+    if (shift > 0) {
+      addLineStart(shift);
+    }
+    for (int entry = source.firstEntry(sourceBatch); entry < source.endEntry(sourceBatch); entry++) {
+      addLineStart(shift + source.lineStart(entry));
+    }
+    growBatch(source.batchSize(sourceBatch));
+  }
+
+  int batchCount() {
+    return batchCount;
+  }
+
+  /**
+   * @return the number of decompressed bytes of the batch
+   */
+  long batchSize(int batch) {
+    return batchSizes[batch];
+  }
+
+  /**
+   * @return the index of the first line start of the batch
+   */
+  int firstEntry(int batch) {
+    return firstEntries[batch];
+  }
+
+  /**
+   * @return the index after the last line start of the batch
+   */
+  int endEntry(int batch) {
+    return firstEntries[batch + 1];
+  }
+
+  long lineStart(int entry) {
+    return lineStarts[entry];
+  }
+
+  /**
+   * @return the closest indexed line start of the batch at or before the position
+   */
+  int floorLineStart(int batch, int position) {
+    // Binary search for the last line start not exceeding the position
+    int low = firstEntries[batch];
+    int high = firstEntries[batch + 1] - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      if (lineStarts[mid] <= position) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high < firstEntries[batch] ? 0 : (int) lineStarts[high];
+  }
+
+  /**
+   * Layout: version as full int, followed by variable length longs: number of batches, followed by the size, the
+   * number of line starts and the line starts of every batch. Line starts are stored as the distance to the previous
+   * line start.
+   */
+  void writeTo(OutputStream out) throws IOException {
+    final byte[] buffer =
+        new byte[Integer.BYTES + (1 + 2 * batchCount + entryCount) * IntEncoder.MAX_VAR_LONG_LENGTH];
+
+    IntEncoder.writeFullInt(buffer, 0, VERSION);
+    int offset = Integer.BYTES;
+    offset += IntEncoder.writeVarLong(buffer, offset, batchCount);
+    for (int batch = 0; batch < batchCount; batch++) {
+      offset += IntEncoder.writeVarLong(buffer, offset, batchSizes[batch]);
+      offset += IntEncoder.writeVarLong(buffer, offset, endEntry(batch) - firstEntry(batch));
+      long previousStart = 0;
+      for (int entry = firstEntry(batch); entry < endEntry(batch); entry++) {
+        offset += IntEncoder.writeVarLong(buffer, offset, lineStarts[entry] - previousStart);
+        previousStart = lineStarts[entry];
+      }
+    }
+
+    out.write(buffer, 0, offset);
+  }
+
+  /**
+   * @return the line index stored in the file, or null if the file does not exist
+   */
+  @Nullable
+  static LineIndex readFrom(Path lineIndexFile) {
+    try (FileInputStream in = new FileInputStream(lineIndexFile.toFile())) {
+      final byte[] buffer = in.readAllBytes();
+      final int version = IntEncoder.readFullInt(buffer, 0);
+      checkArgument(version == VERSION, "Unsupported line index version %s", version);
+
+      int decodingOffset = Integer.BYTES;
+      final int batchCount = Math.toIntExact(IntEncoder.readVarLong(buffer, decodingOffset));
+      decodingOffset += IntEncoder.varLongLength(batchCount);
+
+      final LineIndex lineIndex = new LineIndex();
+      for (int batch = 0; batch < batchCount; batch++) {
+        lineIndex.startBatch();
+        final long batchSize = IntEncoder.readVarLong(buffer, decodingOffset);
+        decodingOffset += IntEncoder.varLongLength(batchSize);
+        lineIndex.growBatch(batchSize);
+
+        final int entries = Math.toIntExact(IntEncoder.readVarLong(buffer, decodingOffset));
+        decodingOffset += IntEncoder.varLongLength(entries);
+        long lineStart = 0;
+        for (int i = 0; i < entries; i++) {
+          final long distance = IntEncoder.readVarLong(buffer, decodingOffset);
+          decodingOffset += IntEncoder.varLongLength(distance);
+          lineStart += distance;
+          lineIndex.addLineStart(lineStart);
+        }
+      }
+      return lineIndex;
+    } catch (FileNotFoundException e) {
+      // Storages written before the line index existed
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.dynatrace.index.storage;
+
+/**
+ * Implementations of the case-insensitive pattern matching of {@link BoyerMoore}. The kernel is passed in when a
+ * matcher is created, e.g. via {@link BoyerMoore#createForPattern(byte[], MatcherKernel)}, otherwise the system
+ * property {@value BoyerMoore#KERNEL_PROPERTY} selects it. This makes it possible to compare the implementations
+ * within benchmarks.
+ */
+public enum MatcherKernel {
+
+  /**
+   * Compares the pattern from right to left at every candidate position and skips ahead based on the mismatching
+   * byte, lowercasing every inspected byte on its own.
+   */
+  BOYER_MOORE,
+
+  /**
+   * Filters eight candidate positions at once by comparing the first and the last byte of the pattern within 64-bit
+   * words, and only compares the remaining bytes at the positions passing the filter. ASCII letters are lowercased
+   * by setting their case bit, so no lookup is required for the filter.
+   */
+  SWAR
+}
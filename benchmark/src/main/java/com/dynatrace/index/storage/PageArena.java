@@ -0,0 +1,66 @@
+package com.dynatrace.index.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded pool of off-heap pages of equal size. Pages are allocated lazily in slabs of multiple pages and recycled
+ * once they are released, so the memory of the pool never exceeds its capacity and is neither scanned nor copied by
+ * the garbage collector.
+ *
+ * <p>Instances must not be used concurrently.
+ */
+final class PageArena {
+
+  static final int PAGE_SIZE = 16 * 1024;
+
+  private static final int SLAB_SIZE = 1024 * 1024;
+
+  private final int maxPages;
+  private final ArrayDeque<ByteBuffer> freePages;
+  private int allocatedPages;
+
+  /**
+   * @param capacity the maximum number of bytes of all pages, has to fit at least one page
+   */
+  PageArena(long capacity) {
+    checkArgument(capacity >= PAGE_SIZE, "capacity must be at least %s bytes", PAGE_SIZE);
+    this.maxPages = (int) Math.min(Integer.MAX_VALUE, capacity / PAGE_SIZE);
+    this.freePages = new ArrayDeque<>();
+  }
+
+  /**
+   * @return an empty page, or null if all pages are in use
+   */
+  @Nullable
+  ByteBuffer acquire() {
+    if (freePages.isEmpty()) {
+      if (allocatedPages == maxPages) {
+        return null;
+      }
+      allocateSlab();
+    }
+    return freePages.pop();
+  }
+
+  /**
+   * Return a page to the pool, its content is discarded.
+   */
+  void release(ByteBuffer page) {
+    page.clear();
+    freePages.push(page);
+  }
+
+  private void allocateSlab() {
+    final int pages = Math.min(SLAB_SIZE / PAGE_SIZE, maxPages - allocatedPages);
+    final ByteBuffer slab = ByteBuffer.allocateDirect(pages * PAGE_SIZE);
+    for (int i = 0; i < pages; i++) {
+      slab.limit((i + 1) * PAGE_SIZE).position(i * PAGE_SIZE);
+      freePages.push(slab.slice());
+    }
+    allocatedPages += pages;
+  }
+}
@@ -0,0 +1,287 @@
+package com.dynatrace.index.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.dynatrace.index.QueryTrace;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Reads and post-filters the matching batches of a query on multiple threads, like {@link PostFiltering} does on the
+ * calling thread. Every worker thread reads batches through its own duplicate of the {@link BatchReader}, so each
+ * worker keeps its own decompression context and buffers. Workers take the next unread batch once they finished their
+ * previous one, which balances batches of different size.
+ *
+ * <p>In ordered mode, the matching lines of each batch are copied and handed to the consumer on the calling thread in
+ * the order of the batches, like the sequential post-filter does. Otherwise, the workers hand out the lines as soon as
+ * they are found, without copying them. The consumer is never called concurrently in either mode.
+ *
+ * <p>Instances must not be used by multiple queries concurrently.
+ */
+public final class ParallelPostFiltering {
+
+  private final BatchReader[] workerReaders;
+  private final ExecutorService executor;
+  private final boolean ordered;
+
+  /**
+   * @param reader the reader to duplicate for each worker thread, see {@link BatchReader#duplicate()}
+   * @param threads the number of worker threads
+   * @param ordered whether the lines are handed to the consumer in the order of the batches
+   */
+  public ParallelPostFiltering(BatchReader reader, int threads, boolean ordered) {
+    checkArgument(threads > 0, "threads must be positive");
+    this.workerReaders = new BatchReader[threads];
+    for (int i = 0; i < threads; i++) {
+      workerReaders[i] = reader.duplicate();
+    }
+    this.ordered = ordered;
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadFactory threadFactory = runnable -> {
+      final Thread thread = new Thread(runnable, "post-filter-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    this.executor = Executors.newFixedThreadPool(threads, threadFactory);
+  }
+
+  /**
+   * Read all log lines and filter lines based on the provided token.
+   */
+  public void readAllAndPostFilterLogs(byte[] utf8Token, LogConsumer consumer, QueryTrace trace) {
+    readAllAndPostFilterLogs(BoyerMoore.createForPattern(utf8Token), consumer, trace);
+  }
+
+  /**
+   * Read all log lines and verify them with the given matcher, which is shared by the worker threads.
+   */
+  public void readAllAndPostFilterLogs(BoyerMoore matcher, LogConsumer consumer, QueryTrace trace) {
+    final int batches = workerReaders[0].getMaxBatch() + 1;
+    postFilterBatches(matcher, IntStream.range(0, batches).toArray(), consumer, trace, batches);
+  }
+
+  /**
+   * Read all log lines within the matching batches and filter lines based on the provided token.
+   */
+  public void readAndPostFilterLogs(byte[] utf8Token, BitSet matchingBatches, LogConsumer consumer, QueryTrace trace) {
+    readAndPostFilterLogs(BoyerMoore.createForPattern(utf8Token), matchingBatches, consumer, trace);
+  }
+
+  /**
+   * Read all log lines within the matching batches and verify them with the given matcher, which is shared by the
+   * worker threads.
+   */
+  public void readAndPostFilterLogs(
+      BoyerMoore matcher, BitSet matchingBatches, LogConsumer consumer, QueryTrace trace) {
+    final int batches = workerReaders[0].getMaxBatch() + 1;
+    if (matchingBatches.isEmpty()) {
+      trace.trackErrorRate(0, 0, batches);
+      return;
+    }
+
+    postFilterBatches(matcher, matchingBatches.stream().toArray(), consumer, trace, batches);
+  }
+
+  public void close() {
+    executor.shutdown();
+    for (BatchReader workerReader : workerReaders) {
+      workerReader.close();
+    }
+  }
+
+  private void postFilterBatches(
+      BoyerMoore matcher, int[] matchingBatches, LogConsumer consumer, QueryTrace trace, int batches) {
+
+    final Query query = new Query(matcher, matchingBatches, consumer, ordered);
+    final int workers = Math.min(workerReaders.length, matchingBatches.length);
+    final Future<?>[] tasks = new Future<?>[workers];
+    for (int i = 0; i < workers; i++) {
+      final BatchReader workerReader = workerReaders[i];
+      tasks[i] = executor.submit(() -> query.readBatches(workerReader));
+    }
+
+    try {
+      if (ordered) {
+        try {
+          query.handOutInOrder();
+        } catch (RuntimeException | Error e) {
+          // The worker readers must be idle before the next query, so the remaining workers are stopped and awaited
+          query.stop();
+          awaitQuietly(tasks);
+          throw e;
+        }
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (CompletionException e) {
+      throw failure(e.getCause());
+    } catch (ExecutionException e) {
+      throw failure(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while post-filtering batches", e);
+    }
+
+    trace.trackErrorRate(query.falsePositives.get(), query.truePositives.get(), batches);
+    trace.trackBatchCache(query.cacheHits.get(), query.cacheMisses.get(), query.cacheEvictions.get());
+  }
+
+  /**
+   * Wait for the tasks to finish, their failures are ignored.
+   */
+  private static void awaitQuietly(Future<?>[] tasks) {
+    for (Future<?> task : tasks) {
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        // Reported by the failure of the query
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static RuntimeException failure(Throwable cause) {
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    return new IllegalStateException("Failed to post-filter batches", cause);
+  }
+
+  /**
+   * State of a single query shared by all workers. Also collects the cache accesses of the workers, since the trace of
+   * the query may only be used by the calling thread.
+   */
+  private static final class Query implements QueryTrace {
+    final BoyerMoore matcher;
+    final int[] matchingBatches;
+    final LogConsumer consumer;
+    // Matching lines of each batch in ordered mode
+    final CompletableFuture<MatchingLines>[] results;
+
+    final AtomicInteger nextBatch = new AtomicInteger();
+    final AtomicInteger truePositives = new AtomicInteger();
+    final AtomicInteger falsePositives = new AtomicInteger();
+    final AtomicInteger cacheHits = new AtomicInteger();
+    final AtomicInteger cacheMisses = new AtomicInteger();
+    final AtomicInteger cacheEvictions = new AtomicInteger();
+
+    @SuppressWarnings("unchecked")
+    Query(BoyerMoore matcher, int[] matchingBatches, LogConsumer consumer, boolean ordered) {
+      this.matcher = matcher;
+      this.matchingBatches = matchingBatches;
+      this.consumer = consumer;
+      this.results = ordered ? new CompletableFuture[matchingBatches.length] : null;
+      if (ordered) {
+        Arrays.setAll(results, i -> new CompletableFuture<>());
+      }
+    }
+
+    void readBatches(BatchReader reader) {
+      int i = nextBatch.getAndIncrement();
+      try {
+        for (; i < matchingBatches.length; i = nextBatch.getAndIncrement()) {
+          final MatchingLines lines = new MatchingLines();
+          reader.readMatchingLines(matchingBatches[i], matcher, (bytes, offset, length) -> {
+            if (results != null) {
+              lines.add(bytes, offset, length);
+            } else {
+              lines.count++;
+              synchronized (consumer) {
+                consumer.acceptLog(bytes, offset, length);
+              }
+            }
+          }, this);
+
+          if (lines.count > 0) {
+            truePositives.incrementAndGet();
+          } else {
+            // Batch did not contain any matching line
+            falsePositives.incrementAndGet();
+          }
+
+          if (results != null) {
+            results[i].complete(lines);
+          }
+        }
+      } catch (RuntimeException | Error e) {
+        if (results != null) {
+          // The calling thread must not wait for batches which are never read
+          for (int j = i; j < results.length; j++) {
+            results[j].completeExceptionally(e);
+          }
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Stop the workers from taking further batches, the batches currently read are finished.
+     */
+    void stop() {
+      nextBatch.set(matchingBatches.length);
+    }
+
+    void handOutInOrder() {
+      for (CompletableFuture<MatchingLines> result : results) {
+        result.join().handOut(consumer);
+      }
+    }
+
+    @Override
+    public void trackErrorRate(int falsePositives, int truePositives, int batches) {
+      throw new UnsupportedOperationException("The error rate is tracked per query");
+    }
+
+    @Override
+    public void trackBatchCache(int hits, int misses, int evictions) {
+      cacheHits.addAndGet(hits);
+      cacheMisses.addAndGet(misses);
+      cacheEvictions.addAndGet(evictions);
+    }
+  }
+
+  /**
+   * Copied matching lines of a batch. In unordered mode, only the lines are counted.
+   */
+  private static final class MatchingLines {
+    byte[] data = new byte[0];
+    int[] offsets = new int[0];
+    int[] lengths = new int[0];
+    int count;
+    int size;
+
+    void add(byte[] bytes, int offset, int length) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, Math.max(8, count * 2));
+        lengths = Arrays.copyOf(lengths, offsets.length);
+      }
+      if (size + length > data.length) {
+        data = Arrays.copyOf(data, Math.max(size + length, data.length * 2));
+      }
+      System.arraycopy(bytes, offset, data, size, length);
+      offsets[count] = size;
+      lengths[count] = length;
+      size += length;
+      count++;
+    }
+
+    void handOut(LogConsumer consumer) {
+      for (int i = 0; i < count; i++) {
+        consumer.acceptLog(data, offsets[i], lengths[i]);
+      }
+    }
+  }
+}
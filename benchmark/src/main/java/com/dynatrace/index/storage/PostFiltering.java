@@ -21,7 +21,29 @@ public final class PostFiltering {
   public static void readAllAndPostFilterLogs(
       BatchReader reader, byte[] utf8Token, LogConsumer consumer, QueryTrace trace) {
 
-    readAndPostFilterLogs(reader, utf8Token, consumer, trace, IntStream.range(0, reader.getMaxBatch() + 1).iterator());
+    readAllAndPostFilterLogs(reader, utf8Token, consumer, trace, 0);
+  }
+
+  /**
+   * Read all log lines like {@link #readAllAndPostFilterLogs(BatchReader, byte[], LogConsumer, QueryTrace)}, while
+   * the reader prefetches up to the given number of batches ahead of the batch being filtered.
+   */
+  public static void readAllAndPostFilterLogs(
+      BatchReader reader, byte[] utf8Token, LogConsumer consumer, QueryTrace trace, int prefetchDepth) {
+
+    readAllAndPostFilterLogs(reader, BoyerMoore.createForPattern(utf8Token), consumer, trace, prefetchDepth);
+  }
+
+  /**
+   * Read all log lines like {@link #readAllAndPostFilterLogs(BatchReader, byte[], LogConsumer, QueryTrace, int)},
+   * but verify the lines with the given matcher.
+   */
+  public static void readAllAndPostFilterLogs(
+      BatchReader reader, BoyerMoore matcher, LogConsumer consumer, QueryTrace trace, int prefetchDepth) {
+
+    final int batches = reader.getMaxBatch() + 1;
+    readAndPostFilterLogs(reader, matcher, consumer, trace,
+        IntStream.range(0, batches).iterator(), IntStream.range(0, batches).iterator(), prefetchDepth);
   }
 
   /**
@@ -31,36 +53,76 @@ public final class PostFiltering {
   public static void readAndPostFilterLogs(
       BatchReader reader, byte[] utf8Token, BitSet matchingBatches, LogConsumer consumer, QueryTrace trace) {
 
+    readAndPostFilterLogs(reader, utf8Token, matchingBatches, consumer, trace, 0);
+  }
+
+  /**
+   * Read all log lines within the matching batches like
+   * {@link #readAndPostFilterLogs(BatchReader, byte[], BitSet, LogConsumer, QueryTrace)}, while the reader prefetches
+   * up to the given number of matching batches ahead of the batch being filtered.
+   */
+  public static void readAndPostFilterLogs(
+      BatchReader reader,
+      byte[] utf8Token,
+      BitSet matchingBatches,
+      LogConsumer consumer,
+      QueryTrace trace,
+      int prefetchDepth) {
+
+    readAndPostFilterLogs(
+        reader, BoyerMoore.createForPattern(utf8Token), matchingBatches, consumer, trace, prefetchDepth);
+  }
+
+  /**
+   * Read all log lines within the matching batches like
+   * {@link #readAndPostFilterLogs(BatchReader, byte[], BitSet, LogConsumer, QueryTrace, int)}, but verify the lines
+   * with the given matcher.
+   */
+  public static void readAndPostFilterLogs(
+      BatchReader reader,
+      BoyerMoore matcher,
+      BitSet matchingBatches,
+      LogConsumer consumer,
+      QueryTrace trace,
+      int prefetchDepth) {
+
     if (matchingBatches.isEmpty()) {
       trace.trackErrorRate(0, 0, reader.getMaxBatch() + 1);
       return;
     }
 
-    readAndPostFilterLogs(reader, utf8Token, consumer, trace, matchingBatches.stream().iterator());
+    readAndPostFilterLogs(reader, matcher, consumer, trace,
+        matchingBatches.stream().iterator(), matchingBatches.stream().iterator(), prefetchDepth);
   }
 
   private static void readAndPostFilterLogs(
       BatchReader reader,
-      byte[] utf8Token,
+      BoyerMoore matcher,
       LogConsumer consumer,
       QueryTrace trace,
-      PrimitiveIterator.OfInt matchingBatches) {
+      PrimitiveIterator.OfInt matchingBatches,
+      PrimitiveIterator.OfInt prefetchedBatches,
+      int prefetchDepth) {
 
-    final BoyerMoore matcher = BoyerMoore.createForPattern(utf8Token);
     final AtomicBoolean hasMatch = new AtomicBoolean();
-    final LogConsumer filter = (bytes, offset, length) -> {
-      if (matcher.matchLowerCase(bytes, offset, length) >= 0) {
-        consumer.acceptLog(bytes, offset, length);
-        hasMatch.set(true);
-      }
+    final LogConsumer matchingLines = (bytes, offset, length) -> {
+      consumer.acceptLog(bytes, offset, length);
+      hasMatch.set(true);
     };
 
     final int batches = reader.getMaxBatch() + 1;
     int falsePositives = 0;
     int truePositives = 0;
+    // The reader loads the next batches while the current batch is decompressed and filtered
+    for (int i = 0; i < prefetchDepth && prefetchedBatches.hasNext(); i++) {
+      reader.prefetchBatch(prefetchedBatches.nextInt());
+    }
     while (matchingBatches.hasNext()) {
       final int batch = matchingBatches.nextInt();
-      reader.readBatch(batch, filter);
+      if (prefetchDepth > 0 && prefetchedBatches.hasNext()) {
+        reader.prefetchBatch(prefetchedBatches.nextInt());
+      }
+      reader.readMatchingLines(batch, matcher, matchingLines, trace);
       if (hasMatch.getAndSet(false)) {
         truePositives++;
       } else {
@@ -0,0 +1,120 @@
+package com.dynatrace.index.storage;
+
+import static com.dynatrace.index.data.analysis.tokenization.Lowercase.toLowerCase;
+
+import com.dynatrace.index.util.IntEncoder;
+
+/**
+ * Case-insensitive substring search which processes eight candidate positions per step (SIMD within a register).
+ * Candidate positions have to start with the first and end with the last byte of the pattern, which is checked for
+ * eight consecutive positions with two unaligned 64-bit loads. Only the remaining bytes of candidates are compared
+ * individually, see {@link MatcherKernel#SWAR}.
+ */
+final class SwarMatcher {
+
+  private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+  private static final long ONES = 0x0101010101010101L;
+  // Differentiates lower and upper case ASCII letters
+  private static final int CASE_BIT = 0x20;
+
+  private final byte[] pattern;
+  private final long firstBytes;
+  private final long firstCaseMask;
+  private final long lastBytes;
+  private final long lastCaseMask;
+  // Patterns containing upper case letters never match lowercased data
+  private final boolean matchable;
+
+  SwarMatcher(byte[] pattern) {
+    this.pattern = pattern;
+    if (pattern.length == 0) {
+      this.firstBytes = 0;
+      this.firstCaseMask = 0;
+      this.lastBytes = 0;
+      this.lastCaseMask = 0;
+      this.matchable = true;
+      return;
+    }
+
+    final byte first = pattern[0];
+    final byte last = pattern[pattern.length - 1];
+    this.firstBytes = (first & 0xff) * ONES;
+    this.firstCaseMask = caseBit(first) * ONES;
+    this.lastBytes = (last & 0xff) * ONES;
+    this.lastCaseMask = caseBit(last) * ONES;
+
+    boolean lowerCase = true;
+    for (byte b : pattern) {
+      lowerCase &= toLowerCase(b) == b;
+    }
+    this.matchable = lowerCase;
+  }
+
+  /**
+   * @see BoyerMoore#matchLowerCase(byte[], int, int)
+   */
+  int matchLowerCase(byte[] data, int offset, int length) {
+    final int patternLength = pattern.length;
+    // Last position a match may start at
+    final int endOffset = Math.min(offset + length - patternLength, data.length - patternLength);
+    if (patternLength == 0) {
+      return offset <= endOffset ? offset : -1;
+    }
+    if (!matchable) {
+      return -1;
+    }
+
+    int i = offset;
+    for (; i <= endOffset - (Long.BYTES - 1); i += Long.BYTES) {
+      final long first = (IntEncoder.readFullLong(data, i) | firstCaseMask) ^ firstBytes;
+      final long last = (IntEncoder.readFullLong(data, i + patternLength - 1) | lastCaseMask) ^ lastBytes;
+      // Positions where both the first and the last byte match
+      long candidates = zeroBytes(first | last);
+      while (candidates != 0) {
+        final int candidate = i + (Long.numberOfTrailingZeros(candidates) >>> 3);
+        if (matchesInner(data, candidate)) {
+          return candidate;
+        }
+        // Clear the lowest candidate
+        candidates &= candidates - 1;
+      }
+    }
+
+    for (; i <= endOffset; i++) {
+      if (toLowerCase(data[i]) == pattern[0]
+          && toLowerCase(data[i + patternLength - 1]) == pattern[patternLength - 1]
+          && matchesInner(data, i)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * @return whether the bytes between the first and the last byte of the pattern match at the position
+   */
+  private boolean matchesInner(byte[] data, int position) {
+    for (int j = 1; j < pattern.length - 1; j++) {
+      if (toLowerCase(data[position + j]) != pattern[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the highest bit of every zero byte of the word set, without false positives
+   */
+  private static long zeroBytes(long word) {
+    return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+  }
+
+  /**
+   * Setting the case bit of upper case ASCII letters turns them into lower case letters. Other bytes could turn into
+   * different characters, so the bit is only set for letters.
+   */
+  private static long caseBit(byte patternByte) {
+    return patternByte >= 'a' && patternByte <= 'z' ? CASE_BIT : 0;
+  }
+}
@@ -0,0 +1,35 @@
+package com.dynatrace.index.storage;
+
+/**
+ * Defines how the post-filter verifies the lines of the batches located for a token query.
+ */
+public enum TokenVerification {
+
+  /**
+   * Lines containing the token anywhere match, like for contains queries. Searching for {@code error} also returns
+   * lines which only contain {@code errors} or {@code xerror}.
+   */
+  SUBSTRING {
+    @Override
+    public BoyerMoore createMatcher(byte[] lowerCaseToken) {
+      return BoyerMoore.createForPattern(lowerCaseToken);
+    }
+  },
+
+  /**
+   * Lines only match if the token occurs bounded by bytes of other token types, see
+   * {@link BoyerMoore#createForToken(byte[])}. Derived tokens which are only parts of a base token, like tri-grams,
+   * therefore only match if they form the whole base token.
+   */
+  TOKEN {
+    @Override
+    public BoyerMoore createMatcher(byte[] lowerCaseToken) {
+      return BoyerMoore.createForToken(lowerCaseToken);
+    }
+  };
+
+  /**
+   * @return a matcher verifying the lines for the lowercase token
+   */
+  public abstract BoyerMoore createMatcher(byte[] lowerCaseToken);
+}
@@ -1,5 +1,7 @@
 package com.dynatrace.index.util;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
@@ -10,6 +12,11 @@ import java.nio.ByteOrder;
  */
 public final class IntEncoder {
 
+  /**
+   * Maximum number of bytes of a long written via {@link #writeVarLong(byte[], int, long)}.
+   */
+  public static final int MAX_VAR_LONG_LENGTH = 9;
+
   private static final VarHandle LONG_HANDLE =
       MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
   private static final VarHandle INT_HANDLE =
@@ -112,7 +119,6 @@ public final class IntEncoder {
     return (long) LONG_HANDLE.get(buffer, offset);
   }
 
-
   /**
    * Read a full 8-byte long from a buffer at a given offset.
    *
@@ -226,4 +232,43 @@ public final class IntEncoder {
         throw new IllegalArgumentException("max allowed byte count is 8, but was " + byteCount);
     }
   }
+
+  /**
+   * Write a non-negative long into a buffer at a given offset, using 7 bits per byte. The most significant bit of each
+   * byte marks whether another byte follows, so small values only take a single byte.
+   *
+   * @return the number of written bytes, at most {@link #MAX_VAR_LONG_LENGTH}
+   */
+  public static int writeVarLong(byte[] buffer, int offset, long value) {
+    checkArgument(value >= 0, "value must not be negative, but was %s", value);
+    int position = offset;
+    while (value >= 0x80) {
+      buffer[position++] = (byte) (value | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+    return position - offset;
+  }
+
+  /**
+   * Read a long written by {@link #writeVarLong(byte[], int, long)} from a buffer at a given offset.
+   */
+  public static long readVarLong(byte[] buffer, int offset) {
+    long value = 0;
+    int shift = 0;
+    byte current;
+    do {
+      current = buffer[offset++];
+      value |= (current & 0x7fL) << shift;
+      shift += 7;
+    } while (current < 0);
+    return value;
+  }
+
+  /**
+   * @return the number of bytes taken by the value when written via {@link #writeVarLong(byte[], int, long)}
+   */
+  public static int varLongLength(long value) {
+    return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7);
+  }
 }
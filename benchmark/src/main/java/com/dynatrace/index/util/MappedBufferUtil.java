@@ -4,15 +4,23 @@ import static java.lang.String.format;
 
 import com.google.errorprone.annotations.FormatMethod;
 import com.google.errorprone.annotations.FormatString;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 import javax.annotation.Nullable;
 
 public final class MappedBufferUtil {
 
+  /**
+   * Maximum size of a single buffer created by {@link #mapReadOnly(FileChannel, long, long)}.
+   */
+  public static final int MAX_CHUNK_SIZE = 1 << 30;
+
   @Nullable
   private static final Method CLEAN_BUFFER;
   @Nullable
@@ -41,6 +49,45 @@ public final class MappedBufferUtil {
     // static helper
   }
 
+  /**
+   * Map a region of a file into memory. Regions larger than the size limit of a single buffer are split into multiple
+   * buffers, which all have a capacity of {@link #MAX_CHUNK_SIZE} except the last one. All buffers are set to
+   * {@link ByteOrder#LITTLE_ENDIAN}.
+   */
+  public static MappedByteBuffer[] mapReadOnly(FileChannel channel, long position, long length) throws IOException {
+    return map(channel, FileChannel.MapMode.READ_ONLY, position, length);
+  }
+
+  /**
+   * Map a region of a file into writable memory like {@link #mapReadOnly(FileChannel, long, long)}. The file is
+   * extended if the region exceeds its current size.
+   */
+  public static MappedByteBuffer[] mapReadWrite(FileChannel channel, long position, long length) throws IOException {
+    return map(channel, FileChannel.MapMode.READ_WRITE, position, length);
+  }
+
+  private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long position, long length)
+      throws IOException {
+
+    final int chunkCount = Math.max(1, Math.toIntExact((length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE));
+    final MappedByteBuffer[] buffers = new MappedByteBuffer[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      final long chunkStart = (long) i * MAX_CHUNK_SIZE;
+      buffers[i] = channel.map(mode, position + chunkStart, Math.min(MAX_CHUNK_SIZE, length - chunkStart));
+      buffers[i].order(ByteOrder.LITTLE_ENDIAN);
+    }
+    return buffers;
+  }
+
+  /**
+   * Unmap all buffers, see {@link #unmapBuffer(MappedByteBuffer)}.
+   */
+  public static void unmapBuffers(MappedByteBuffer[] buffers) {
+    for (MappedByteBuffer buffer : buffers) {
+      unmapBuffer(buffer);
+    }
+  }
+
   /**
    * Tries to unmap the mapped byte-buffer by accessing the "Unsafe" utility via reflection.
    * Yes, this is a bad idea. Sadly, Java does not provide any alternatives to get mapped files working
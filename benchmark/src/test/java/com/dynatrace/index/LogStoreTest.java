@@ -3,27 +3,178 @@ package com.dynatrace.index;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
+import com.dynatrace.index.csc.CscLogStore;
+import com.dynatrace.index.csc.CscMemoryType;
 import com.dynatrace.index.data.analysis.tokenization.Tokenizers;
+import com.dynatrace.index.storage.BatchReadMode;
+import com.dynatrace.index.storage.StorageDirectories;
+import com.dynatrace.index.storage.TokenVerification;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.function.Supplier;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
 class LogStoreTest {
 
   @ParameterizedTest
-  @ValueSource(strings = {"csc", "csc-bf", "lucene", "scan"})
+  @ValueSource(strings = {"csc", "csc-bf", "csc-blocked", "csc-scalable", "lucene", "scan"})
   void writeReadLogLines(String storeType, @TempDir Path tempDir) throws IOException {
     testWriteReadLogLines(
         () -> LogStoreFactory.createStore(storeType, tempDir, Tokenizers.createFull(), 2048, 8),
         () -> LogStoreFactory.loadReader(storeType, tempDir));
   }
 
+  @ParameterizedTest
+  @ValueSource(strings = {"csc", "csc-blocked", "lucene", "scan"})
+  void writeReadLogLinesWithMappedData(String storeType, @TempDir Path tempDir) throws IOException {
+    testWriteReadLogLines(
+        () -> LogStoreFactory.createStore(storeType, tempDir, Tokenizers.createFull(), 2048, 8),
+        () -> LogStoreFactory.loadReader(
+            storeType, tempDir, LogStoreReaderOptions.builder().readMode(BatchReadMode.MAPPED).build()));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"csc", "lucene", "scan"})
+  void writeReadLogLinesWithParallelPostFiltering(String storeType, @TempDir Path tempDir) throws IOException {
+    testWriteReadLogLines(
+        () -> LogStoreFactory.createStore(storeType, tempDir, Tokenizers.createFull(), 2048, 8),
+        () -> LogStoreFactory.loadReader(
+            storeType, tempDir, LogStoreReaderOptions.builder().postFilterThreads(4).build()));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"csc", "lucene", "scan"})
+  void queryTokensWithTokenVerification(String storeType, @TempDir Path tempDir) throws IOException {
+    final byte[] log1 = "Disk error: no space left".getBytes(StandardCharsets.UTF_8);
+    final byte[] log2 = "2 errors reported".getBytes(StandardCharsets.UTF_8);
+    final byte[] log3 = "Retrying after ERROR".getBytes(StandardCharsets.UTF_8);
+    final byte[] log4 = "xerror-count=0".getBytes(StandardCharsets.UTF_8);
+
+    final LogStore logStore = LogStoreFactory.createStore(storeType, tempDir, Tokenizers.createFull(), 2048, 8);
+    logStore.addLogLine(log1, 0, log1.length, 0);
+    logStore.addLogLine(log2, 0, log2.length, 0);
+    logStore.addLogLine(log3, 0, log3.length, 1);
+    logStore.addLogLine(log4, 0, log4.length, 1);
+    logStore.finish(mock(FinishTrace.class));
+    logStore.close();
+
+    final LogStoreReader substringReader = LogStoreFactory.loadReader(storeType, tempDir);
+    assertTokenLogs(substringReader, "error",
+        "Disk error: no space left", "2 errors reported", "Retrying after ERROR", "xerror-count=0");
+    substringReader.close();
+
+    // Only lines containing the whole token are returned, also by parallel post-filtering
+    for (int postFilterThreads : new int[] {0, 2}) {
+      final LogStoreReaderOptions options = LogStoreReaderOptions.builder()
+          .postFilterThreads(postFilterThreads)
+          .tokenVerification(TokenVerification.TOKEN)
+          .build();
+      final LogStoreReader tokenReader = LogStoreFactory.loadReader(storeType, tempDir, options);
+      assertTokenLogs(tokenReader, "error", "Disk error: no space left", "Retrying after ERROR");
+      assertTokenLogs(tokenReader, "xerror-count", "xerror-count=0");
+      // Contains queries still match substrings
+      assertContainsLogs(tokenReader, "rror",
+          "Disk error: no space left", "2 errors reported", "Retrying after ERROR", "xerror-count=0");
+      tokenReader.close();
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"csc", "csc-bf", "csc-blocked", "csc-scalable"})
+  void writeReadLogLinesWithConcurrentIngest(String storeType, @TempDir Path tempDir) throws IOException {
+    testWriteReadLogLines(
+        () -> LogStoreFactory.createStore(
+            storeType, tempDir, 2048, 8, LogStoreOptions.builder(Tokenizers::createFull).ingestThreads(4).build()),
+        () -> LogStoreFactory.loadReader(storeType, tempDir));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"csc", "csc-bf", "csc-blocked", "csc-scalable"})
+  void writeReadLogLinesWithOffHeapSketch(String storeType, @TempDir Path tempDir) throws IOException {
+    testWriteReadLogLines(
+        () -> LogStoreFactory.createStore(storeType, tempDir, 2048, 8,
+            LogStoreOptions.builder(Tokenizers::createFull).cscMemoryType(CscMemoryType.OFF_HEAP).build()),
+        () -> LogStoreFactory.loadReader(storeType, tempDir));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"csc", "csc-bf", "csc-blocked", "csc-scalable"})
+  void writeReadLogLinesWithMappedSketch(String storeType, @TempDir Path tempDir) throws IOException {
+    testWriteReadLogLines(
+        () -> LogStoreFactory.createStore(storeType, tempDir, 2048, 8,
+            LogStoreOptions.builder(Tokenizers::createFull).cscMemoryType(CscMemoryType.MAPPED).build()),
+        () -> LogStoreFactory.loadReader(storeType, tempDir));
+  }
+
+  @ParameterizedTest
+  @EnumSource(CscMemoryType.class)
+  void writeReadLogLinesWithGrowingSketch(CscMemoryType memoryType, @TempDir Path tempDir) throws IOException {
+    // The first section is too small for the logs, so further sections have to be added
+    testWriteReadLogLines(
+        () -> CscLogStore.createScalable(
+            tempDir,
+            4096,
+            4,
+            1,
+            2048,
+            2048,
+            0.05,
+            LogStoreOptions.builder(Tokenizers::createFull).cscMemoryType(memoryType).build()),
+        () -> LogStoreFactory.loadReader("csc-scalable", tempDir));
+
+    assertThat(StorageDirectories.indexDirectory(tempDir).resolve("csc.1")).exists();
+  }
+
+  @ParameterizedTest
+  @EnumSource(CscMemoryType.class)
+  void mergeCscStores(CscMemoryType memoryType, @TempDir Path tempDir) throws IOException {
+    final byte[] log1 = "Look at my horse, my horse is amazing.".getBytes(StandardCharsets.UTF_8);
+    final byte[] log2 = "Give it a lick!".getBytes(StandardCharsets.UTF_8);
+    final byte[] log3 = "Get on my horse! I'll take you 'round the universe and all the other places, too."
+        .getBytes(StandardCharsets.UTF_8);
+
+    // Both stores have to use the same seed
+    final Path first = tempDir.resolve("first");
+    final LogStore firstStore = createCscStore(first);
+    firstStore.addLogLine(log1, 0, log1.length, 0);
+    firstStore.addLogLine(log2, 0, log2.length, 1);
+    firstStore.finish(mock(FinishTrace.class));
+    firstStore.close();
+
+    final Path second = tempDir.resolve("second");
+    final LogStore secondStore = createCscStore(second);
+    secondStore.addLogLine(log3, 0, log3.length, 0);
+    secondStore.addLogLine(log2, 0, log2.length, 1);
+    secondStore.finish(mock(FinishTrace.class));
+    secondStore.close();
+
+    final Path merged = tempDir.resolve("merged");
+    CscLogStore.merge(merged, List.of(first, second), memoryType);
+
+    final LogStoreReader reader = LogStoreFactory.loadReader("csc-bf", merged);
+    checkLogs(reader);
+    reader.close();
+  }
+
+  private static LogStore createCscStore(Path storageDirectory) {
+    return CscLogStore.create(
+        storageDirectory,
+        8L * 8 * 1024 * 1024,
+        4,
+        2,
+        256,
+        2048,
+        42,
+        LogStoreOptions.of(Tokenizers.createFull()));
+  }
+
   private void testWriteReadLogLines(
       Supplier<LogStore> storeSupplier,
       Supplier<LogStoreReader> readerSupplier) throws IOException {
@@ -63,6 +214,25 @@ class LogStoreTest {
     assertTokenLogs(reader, "lick",
         "Give it a lick!",
         "Give it a lick!");
+
+    if (reader instanceof LogStoreReaderBase) {
+      assertTokenBatches(reader, "horse", "lick", "universe", "HORSE", "covfefe");
+    }
+  }
+
+  private void assertTokenBatches(LogStoreReader reader, String... queries) {
+    final byte[][] tokens = new byte[queries.length][];
+    for (int i = 0; i < queries.length; i++) {
+      tokens[i] = queries[i].getBytes(StandardCharsets.UTF_8);
+    }
+
+    final BitSet[] batches = reader.queryTokenBatches(tokens);
+    assertThat(batches).hasSize(queries.length);
+    for (int i = 0; i < queries.length; i++) {
+      // Looking up the tokens at once returns the same batches as looking them up one by one
+      assertThat(batches[i]).isEqualTo(reader.queryTokenBatches(new byte[][]{tokens[i]})[0]);
+    }
+    assertThat(batches[0]).isNotEqualTo(new BitSet()).isEqualTo(batches[3]);
   }
 
   private void assertTokenLogs(LogStoreReader reader, String query, String... expectedLines) {
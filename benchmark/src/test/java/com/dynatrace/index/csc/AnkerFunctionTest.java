@@ -0,0 +1,38 @@
+package com.dynatrace.index.csc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.jupiter.api.Test;
+
+class AnkerFunctionTest {
+
+  @Test
+  void usesHashAsAnkerUpTo32Bits() {
+    final AnkerFunction small = AnkerFunction.create(1024, 128);
+    assertThat(small.anker(1025)).isEqualTo(1);
+    assertThat(small.position(small.anker(1020), 10)).isEqualTo(6);
+
+    final AnkerFunction large = AnkerFunction.create(1L << 32, 1);
+    assertThat(large.anker(-1)).isEqualTo(0xFFFFFFFFL);
+    assertThat(large.position(large.anker(-1), 1)).isEqualTo(0);
+  }
+
+  @Test
+  void scalesHashBeyond32Bits() {
+    final long capacity = 1L << 35;
+    final AnkerFunction ankerFunction = AnkerFunction.create(capacity, 8);
+
+    assertThat(ankerFunction.anker(1)).isEqualTo(8);
+    assertThat(ankerFunction.anker(-1)).isEqualTo(capacity - 8);
+    assertThat(ankerFunction.position(ankerFunction.anker(-1), 7)).isEqualTo(capacity - 1);
+    assertThat(ankerFunction.position(ankerFunction.anker(-1), 8)).isEqualTo(0);
+  }
+
+  @Test
+  void rejectsTooFewPartitions() {
+    // The partitions following an anker would not cover all bits between two ankers
+    assertThatThrownBy(() -> AnkerFunction.create(1L << 35, 4))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
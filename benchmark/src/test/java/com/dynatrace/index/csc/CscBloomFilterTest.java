@@ -1,16 +1,32 @@
 package com.dynatrace.index.csc;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import com.dynatrace.index.util.IntEncoder;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.List;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
 class CscBloomFilterTest {
@@ -48,7 +64,245 @@ class CscBloomFilterTest {
     assertWriteReadPostings(reader);
   }
 
+  @ParameterizedTest
+  @MethodSource("unversionedFilters")
+  void shouldReadUnversionedFormat(FilterFactory factory) throws IOException {
+    final CscFilter cscWriter = factory.create();
+
+    cscWriter.update(TOKEN_1, 0, TOKEN_1.length, 10);
+    cscWriter.update(TOKEN_2, 0, TOKEN_2.length, 20);
+    cscWriter.update(TOKEN_3, 0, TOKEN_3.length, 30);
+    cscWriter.update(TOKEN_4, 0, TOKEN_4.length, 40);
+    cscWriter.update(TOKEN_1, 0, TOKEN_1.length, 15);
+    cscWriter.update(TOKEN_2, 0, TOKEN_2.length, 15);
+
+    byte[] serializedCsc;
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      cscWriter.writeTo(out);
+      serializedCsc = out.toByteArray();
+    }
+
+    CscFilter reader;
+    try (ByteArrayInputStream in = new ByteArrayInputStream(factory.toUnversionedFormat(serializedCsc))) {
+      reader = factory.readFrom(in);
+    }
+
+    assertWriteReadPostings(reader);
+  }
+
+  @ParameterizedTest
+  @MethodSource("concurrentFilters")
+  void shouldUpdateConcurrently(Supplier<CscFilter> factory) throws InterruptedException {
+    final CscFilter csc = factory.get();
+    final byte[][] tokens = {TOKEN_1, TOKEN_2, TOKEN_3, TOKEN_4};
+
+    // Every thread adds all tokens for its own postings
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      threads.add(new Thread(() -> {
+        for (int posting = thread; posting < 128; posting += 4) {
+          for (byte[] token : tokens) {
+            csc.update(token, 0, token.length, posting);
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    final int[] allPostings = IntStream.range(0, 128).toArray();
+    for (byte[] token : tokens) {
+      assertPostings(csc, token, allPostings);
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("mergeableFilters")
+  void shouldMergeFilters(SeededFilterFactory factory) throws IOException {
+    final CscFilter first = factory.create(42);
+    first.update(TOKEN_1, 0, TOKEN_1.length, 10);
+    first.update(TOKEN_2, 0, TOKEN_2.length, 20);
+    first.update(TOKEN_3, 0, TOKEN_3.length, 30);
+
+    final CscFilter second = factory.create(42);
+    second.update(TOKEN_4, 0, TOKEN_4.length, 40);
+    second.update(TOKEN_1, 0, TOKEN_1.length, 15);
+    second.update(TOKEN_2, 0, TOKEN_2.length, 15);
+
+    // Filters read from disk can be merged into other filters
+    final CscFilter secondReader;
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      second.writeTo(out);
+      secondReader = factory.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    first.merge(secondReader);
+    assertWriteReadPostings(first);
+
+    // Filters with different hash functions locate tokens differently
+    assertThatThrownBy(() -> first.merge(factory.create(7)))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @ParameterizedTest
+  @MethodSource("versionedFilters")
+  void shouldEstimateFalsePositiveRate(FilterFactory factory) throws IOException {
+    final CscFilter cscWriter = factory.create();
+    assertThat(cscWriter.fillRatio()).isZero();
+    assertThat(cscWriter.expectedFalsePositiveRate()).isZero();
+
+    for (int i = 0; i < 1000; i++) {
+      final byte[] token = ("token-" + i).getBytes(StandardCharsets.UTF_8);
+      cscWriter.update(token, 0, token.length, i % 128);
+    }
+
+    // Every token sets 3 bits in each repetition, which share the capacity of up to 2 repetitions
+    for (double fillRatio : cscWriter.fillRatios()) {
+      assertThat(fillRatio).isGreaterThan(0).isLessThanOrEqualTo(3000.0 / (512 * 1024));
+    }
+    final double falsePositiveRate = cscWriter.expectedFalsePositiveRate();
+    assertThat(falsePositiveRate).isGreaterThan(0).isLessThan(Math.pow(cscWriter.fillRatio(), 2));
+
+    CscFilter reader;
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      cscWriter.writeTo(out);
+      reader = factory.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+    assertThat(reader.fillRatios()).containsExactly(cscWriter.fillRatios());
+    assertThat(reader.expectedFalsePositiveRate()).isEqualTo(falsePositiveRate);
+  }
+
+  @ParameterizedTest
+  @EnumSource(CscHashScheme.class)
+  void shouldEstimateBlockedFalsePositiveRateLikeShiftingFilter(CscHashScheme hashScheme) {
+    final int capacity = 1024 * 1024;
+    final CscFilter shifting = ShiftingBloomFilter.create(capacity, 3, 128, hashScheme);
+    final CscFilter blocked = BlockedShiftingBloomFilter.create(capacity, 512, 3, 128, hashScheme);
+    for (int i = 0; i < 1000; i++) {
+      final byte[] token = ("token-" + i).getBytes(StandardCharsets.UTF_8);
+      shifting.update(token, 0, token.length, i % 128);
+      blocked.update(token, 0, token.length, i % 128);
+    }
+
+    // Both filters probe 3 bits per token, the block selection of the blocked filter does not probe a bit
+    assertThat(shifting.expectedFalsePositiveRate()).isEqualTo(Math.pow(shifting.fillRatio(), 3));
+    assertThat(blocked.expectedFalsePositiveRate()).isEqualTo(Math.pow(blocked.fillRatio(), 3));
+  }
+
+  @Test
+  void shouldAlignBlocksToPages(@TempDir Path directory) throws IOException {
+    final int capacity = 1024 * 1024;
+    final int blockBits = BlockedShiftingBloomFilter.PAGE_BITS;
+    final CscFilter cscWriter = BlockedShiftingBloomFilter.create(capacity, blockBits, 3, 128, CscHashScheme.MURMUR3);
+    cscWriter.update(TOKEN_1, 0, TOKEN_1.length, 10);
+    cscWriter.update(TOKEN_4, 0, TOKEN_4.length, 40);
+
+    // The filter follows a single byte, like the filter type in the sketch files
+    final Path file = directory.resolve("blocked.csc");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[1]));
+      cscWriter.writeTo(channel);
+    }
+    assertThat(Files.size(file) % 4096).isZero();
+
+    try (FileInputStream in = new FileInputStream(file.toFile())) {
+      in.read();
+      final CscFilter reader = BlockedShiftingBloomFilter.readFrom(in);
+      assertThat(Files.size(file) - in.getChannel().position()).isEqualTo(capacity / 8);
+      assertPostings(reader, TOKEN_1, 10);
+      assertPostings(reader, TOKEN_4, 40);
+      reader.close();
+    }
+  }
+
+  private static Stream<Arguments> mergeableFilters() {
+    final int capacity = 1024 * 1024;
+    final int partitions = 128;
+    final CscHashScheme hashScheme = CscHashScheme.MURMUR3;
+    return Stream.of(
+        Arguments.of(seeded("ShiftingBloomFilter",
+            seed -> ShiftingBloomFilter.create(capacity, 3, partitions, hashScheme, seed, heapAllocator()),
+            ShiftingBloomFilter::readFrom)),
+        Arguments.of(seeded("CscBloomFilter",
+            seed -> CscBloomFilter.create(capacity, 3, 2, partitions, partitions, hashScheme, seed, heapAllocator()),
+            CscBloomFilter::readFrom)),
+        Arguments.of(seeded("BlockedShiftingBloomFilter",
+            seed -> BlockedShiftingBloomFilter.create(capacity, 512, 3, partitions, hashScheme, seed, heapAllocator()),
+            BlockedShiftingBloomFilter::readFrom))
+    );
+  }
+
+  private static SketchAllocator heapAllocator() {
+    return SketchAllocator.create(CscMemoryType.HEAP, false);
+  }
+
+  private static SeededFilterFactory seeded(
+      String name, LongFunction<CscFilter> factory, FilterReader reader) {
+    return new SeededFilterFactory() {
+      @Override
+      public CscFilter create(long seed) {
+        return factory.apply(seed);
+      }
+
+      @Override
+      public CscFilter readFrom(InputStream in) throws IOException {
+        return reader.readFrom(in);
+      }
+
+      @Override
+      public String toString() {
+        return name;
+      }
+    };
+  }
+
+  private static Stream<Arguments> concurrentFilters() {
+    final int capacity = 1024 * 1024;
+    final int partitions = 128;
+    final CscHashScheme hashScheme = CscHashScheme.MURMUR3;
+    return Stream.of(
+        Arguments.of(named("ShiftingBloomFilter",
+            () -> ShiftingBloomFilter.create(capacity, 3, partitions, hashScheme, true))),
+        Arguments.of(named("CscBloomFilter",
+            () -> CscBloomFilter.create(capacity, 3, 2, partitions, partitions, hashScheme, true))),
+        Arguments.of(named("BlockedShiftingBloomFilter",
+            () -> BlockedShiftingBloomFilter.create(capacity, 512, 3, partitions, hashScheme, true)))
+    );
+  }
+
+  private static Supplier<CscFilter> named(String name, Supplier<CscFilter> factory) {
+    return new Supplier<>() {
+      @Override
+      public CscFilter get() {
+        return factory.get();
+      }
+
+      @Override
+      public String toString() {
+        return name;
+      }
+    };
+  }
+
   private static Stream<Arguments> shouldWriteReadPostings() {
+    return Stream.of(CscHashScheme.values())
+        .flatMap(hashScheme -> Stream.concat(filters(hashScheme), blockedFilters(hashScheme)));
+  }
+
+  private static Stream<Arguments> versionedFilters() {
+    return Stream.concat(filters(CscHashScheme.MURMUR3), blockedFilters(CscHashScheme.MURMUR3));
+  }
+
+  private static Stream<Arguments> unversionedFilters() {
+    return filters(CscHashScheme.MURMUR3);
+  }
+
+  private static Stream<Arguments> filters(CscHashScheme hashScheme) {
     final int capacity = 1024 * 1024;
     final int partitions = 128;
     return Stream.of(
@@ -56,7 +310,7 @@ class CscBloomFilterTest {
         Arguments.of(new FilterFactory() {
           @Override
           public CscFilter create() {
-            return ShiftingBloomFilter.create(capacity, 3, partitions);
+            return ShiftingBloomFilter.create(capacity, 3, partitions, hashScheme);
           }
 
           @Override
@@ -64,9 +318,15 @@ class CscBloomFilterTest {
             return ShiftingBloomFilter.readFrom(in);
           }
 
+          @Override
+          public byte[] toUnversionedFormat(byte[] serialized) {
+            // Version, hash scheme and capacity are followed by the remaining header
+            return unversionedFormat(serialized, 8, 8);
+          }
+
           @Override
           public String toString() {
-            return "ShiftingBloomFilter";
+            return "ShiftingBloomFilter/" + hashScheme;
           }
         }),
 
@@ -74,7 +334,7 @@ class CscBloomFilterTest {
         Arguments.of(new FilterFactory() {
           @Override
           public CscFilter create() {
-            return CscBloomFilter.create(capacity, 3, 2, partitions, partitions);
+            return CscBloomFilter.create(capacity, 3, 2, partitions, partitions, hashScheme);
           }
 
           @Override
@@ -82,14 +342,79 @@ class CscBloomFilterTest {
             return CscBloomFilter.readFrom(in);
           }
 
+          @Override
+          public byte[] toUnversionedFormat(byte[] serialized) {
+            // The partition function in front of the repetitions is recomputed from the original format
+            final int repetitionsSize = capacity / 8;
+            final int partitionFunctionSize = Math.toIntExact(PartitionFunction.sizeBytes(2, partitions, partitions));
+            final byte[] withoutPartitionFunction = new byte[serialized.length - partitionFunctionSize];
+            final int partitionFunctionOffset = serialized.length - repetitionsSize - partitionFunctionSize;
+            System.arraycopy(serialized, 0, withoutPartitionFunction, 0, partitionFunctionOffset);
+            System.arraycopy(
+                serialized, partitionFunctionOffset + partitionFunctionSize,
+                withoutPartitionFunction, partitionFunctionOffset,
+                repetitionsSize);
+
+            // Version, hash scheme, repetition count and capacity are followed by the remaining header
+            return unversionedFormat(withoutPartitionFunction, 8, 12);
+          }
+
           @Override
           public String toString() {
-            return "CscBloomFilter";
+            return "CscBloomFilter/" + hashScheme;
           }
         })
     );
   }
 
+  private static Stream<Arguments> blockedFilters(CscHashScheme hashScheme) {
+    final int capacity = 1024 * 1024;
+    final int partitions = 128;
+    return Stream.of(512, BlockedShiftingBloomFilter.PAGE_BITS)
+        .map(blockBits -> Arguments.of(new FilterFactory() {
+          @Override
+          public CscFilter create() {
+            return BlockedShiftingBloomFilter.create(capacity, blockBits, 3, partitions, hashScheme);
+          }
+
+          @Override
+          public CscFilter readFrom(InputStream in) throws IOException {
+            return BlockedShiftingBloomFilter.readFrom(in);
+          }
+
+          @Override
+          public byte[] toUnversionedFormat(byte[] serialized) {
+            throw new UnsupportedOperationException("The blocked filter was versioned from the start");
+          }
+
+          @Override
+          public String toString() {
+            return "BlockedShiftingBloomFilter/" + blockBits + "/" + hashScheme;
+          }
+        }));
+  }
+
+  /**
+   * Convert the serialized filter to the original format, which did not start with a version and stored the capacity
+   * as int.
+   *
+   * @param skippedBytes the number of leading bytes which are not part of the original format
+   * @param capacityOffset the offset of the capacity within the current format
+   */
+  private static byte[] unversionedFormat(byte[] serialized, int skippedBytes, int capacityOffset) {
+    final int capacity = Math.toIntExact(IntEncoder.readFullLong(serialized, capacityOffset));
+    final byte[] result = new byte[serialized.length - skippedBytes - Integer.BYTES];
+
+    final int resultCapacityOffset = capacityOffset - skippedBytes;
+    System.arraycopy(serialized, skippedBytes, result, 0, resultCapacityOffset);
+    IntEncoder.writeFullInt(result, resultCapacityOffset, capacity);
+    System.arraycopy(
+        serialized, capacityOffset + Long.BYTES,
+        result, resultCapacityOffset + Integer.BYTES,
+        serialized.length - capacityOffset - Long.BYTES);
+    return result;
+  }
+
   private void assertWriteReadPostings(CscFilter reader) {
     assertPostings(reader, TOKEN_1, 10, 15);
     assertPostings(reader, TOKEN_2, 15, 20);
@@ -97,6 +422,9 @@ class CscBloomFilterTest {
     assertPostings(reader, TOKEN_4, 40);
 
     assertPostings(reader, new byte[][]{TOKEN_1, TOKEN_2}, 15);
+    assertInPlacePostings(reader, new byte[][]{TOKEN_1, TOKEN_2, TOKEN_1}, 15);
+    assertInPlacePostings(reader, new byte[][]{TOKEN_3, TOKEN_4});
+    assertBatchPostings(reader, new byte[][]{TOKEN_1, TOKEN_2, TOKEN_3, TOKEN_4, TOKEN_1});
   }
 
   private void assertPostings(CscFilter reader, byte[] queryToken, int... expectedPostings) {
@@ -119,6 +447,46 @@ class CscBloomFilterTest {
     assertThat(result).isEqualTo(expected);
   }
 
+  private void assertInPlacePostings(CscFilter reader, byte[][] queryTokens, int... expectedPostings) {
+    // Concatenate the tokens, separated by a space
+    final ByteArrayOutputStream query = new ByteArrayOutputStream();
+    final int[] offsets = new int[queryTokens.length];
+    final int[] lengths = new int[queryTokens.length];
+    for (int i = 0; i < queryTokens.length; i++) {
+      offsets[i] = query.size();
+      lengths[i] = queryTokens[i].length;
+      query.writeBytes(queryTokens[i]);
+      query.write(' ');
+    }
+
+    final BitSet result = new BitSet();
+    reader.queryAll(query.toByteArray(), offsets, lengths, queryTokens.length, result::set);
+
+    // Duplicate tokens and the evaluation order do not change the result
+    final BitSet copiedResult = new BitSet();
+    reader.queryAll(queryTokens, copiedResult::set);
+    assertThat(result).isEqualTo(copiedResult);
+
+    final BitSet expected = toBitSet(expectedPostings);
+    result.and(expected);
+    assertThat(result).isEqualTo(expected);
+  }
+
+  private void assertBatchPostings(CscFilter reader, byte[][] queryTokens) {
+    final BitSet[] results = new BitSet[queryTokens.length];
+    for (int i = 0; i < results.length; i++) {
+      // Previous content of the results is replaced
+      results[i] = toBitSet(new int[]{1, 2, 3});
+    }
+    reader.queryBatch(queryTokens, results);
+
+    for (int i = 0; i < queryTokens.length; i++) {
+      final BitSet expected = new BitSet();
+      reader.query(queryTokens[i], expected::set);
+      assertThat(results[i]).isEqualTo(expected);
+    }
+  }
+
   private BitSet toBitSet(int[] expectedPostings) {
     BitSet result = new BitSet();
     for (int posting : expectedPostings) {
@@ -127,10 +495,22 @@ class CscBloomFilterTest {
     return result;
   }
 
+  private interface FilterReader {
+
+    CscFilter readFrom(InputStream in) throws IOException;
+  }
+
+  private interface SeededFilterFactory extends FilterReader {
+
+    CscFilter create(long seed);
+  }
+
   private interface FilterFactory {
 
     CscFilter create();
 
     CscFilter readFrom(InputStream in) throws IOException;
+
+    byte[] toUnversionedFormat(byte[] serialized);
   }
 }
\ No newline at end of file
@@ -4,10 +4,19 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
 class MemoryBitSetTest {
 
+  @AfterEach
+  void resetKernel() {
+    MemoryBitSet.useKernel(BitSetKernel.UNROLLED);
+  }
+
   @Test
   void nextSetBit() {
     final MemoryBitSet bitSet = bitSet(1, 10, 127, 333);
@@ -38,6 +47,33 @@ class MemoryBitSetTest {
     assertThat(collectBits(bitSet.get(1019, 1024))).containsExactly(1, 4);
   }
 
+  @Test
+  void getIntoTarget() {
+    final MemoryBitSet bitSet = bitSet(1, 10, 12, 127, 333);
+    final MemoryBitSet target = bitSet(0, 5, 64);
+
+    assertThat(collectBits(bitSet.get(10, 13, target))).containsExactly(0, 2);
+    assertThat(collectBits(bitSet.get(500, 600, target))).isEmpty();
+  }
+
+  @Test
+  void getCircular() {
+    final MemoryBitSet bitSet = new MemoryBitSet(1024);
+    bitSet.set(2);
+    bitSet.set(70);
+    bitSet.set(1000);
+    bitSet.set(1023);
+
+    final MemoryBitSet target = new MemoryBitSet(128);
+    final MemoryBitSet scratch = new MemoryBitSet(128);
+    assertThat(collectBits(bitSet.getCircular(1000, 128, 1024, target, scratch))).containsExactly(0, 23, 26, 94);
+    assertThat(collectBits(bitSet.getCircular(0, 128, 1024, target, scratch))).containsExactly(2, 70);
+
+    // Ranges within blocks wrap around at the end of the block
+    assertThat(collectBits(bitSet.getCircular(512, 488, 128, 512, target, scratch))).containsExactly(0, 23);
+    assertThat(collectBits(bitSet.getCircular(0, 500, 128, 512, target, scratch))).containsExactly(14, 82);
+  }
+
   @Test
   void and() {
     assertThat(collectBits(bitSet(10, 11, 352, 500).and(bitSet()))).isEmpty();
@@ -46,6 +82,69 @@ class MemoryBitSetTest {
     assertThat(collectBits(bitSet(10, 11, 352, 500).and(bitSet(10, 11, 352, 500)))).containsExactly(10, 11, 352, 500);
   }
 
+  @ParameterizedTest
+  @EnumSource(BitSetKernel.class)
+  void andShrinksToEmpty(BitSetKernel kernel) {
+    MemoryBitSet.useKernel(kernel);
+    final MemoryBitSet bitSet = bitSet(10, 11, 352, 500).and(bitSet(9, 12, 501, 1000));
+    assertThat(bitSet.isEmpty()).isTrue();
+    assertThat(collectBits(bitSet)).isEmpty();
+  }
+
+  @ParameterizedTest
+  @EnumSource(BitSetKernel.class)
+  void cardinality(BitSetKernel kernel) {
+    MemoryBitSet.useKernel(kernel);
+    assertThat(bitSet().cardinality()).isZero();
+    assertThat(bitSet(1, 10, 127, 333, 2048).cardinality()).isEqualTo(5);
+  }
+
+  @Test
+  void cardinalityOfRange() {
+    final MemoryBitSet bitSet = bitSet(1, 10, 12, 127, 333);
+
+    assertThat(bitSet.cardinality(10, 12)).isOne();
+    assertThat(bitSet.cardinality(10, 13)).isEqualTo(2);
+    assertThat(bitSet.cardinality(0, 128)).isEqualTo(4);
+    assertThat(bitSet.cardinality(11, 6400)).isEqualTo(3);
+    assertThat(bitSet.cardinality(500, 600)).isZero();
+
+    // Ranges within blocks wrap around at the end of the block, like getCircular()
+    assertThat(bitSet.cardinalityCircular(0, 300, 128, 512)).isOne();
+    assertThat(bitSet.cardinalityCircular(0, 450, 128, 512)).isEqualTo(3);
+    assertThat(bitSet.cardinalityCircular(256, 200, 150, 256)).isOne();
+  }
+
+  @ParameterizedTest
+  @EnumSource(BitSetKernel.class)
+  void forEachSetBit(BitSetKernel kernel) {
+    MemoryBitSet.useKernel(kernel);
+    final List<Integer> bits = new ArrayList<>();
+    bitSet(0, 63, 64, 700).forEachSetBit(5, bits::add);
+    assertThat(bits).containsExactly(5, 68, 69, 705);
+  }
+
+  @Test
+  void kernelsProduceEqualResults() {
+    final Random random = new Random(42);
+    for (int i = 0; i < 100; i++) {
+      final int[] bits1 = random.ints(random.nextInt(200), 0, 4096).toArray();
+      final int[] bits2 = random.ints(random.nextInt(200), 0, 4096).toArray();
+      final int from = random.nextInt(4096);
+      final int to = from + random.nextInt(1024);
+
+      MemoryBitSet.useKernel(BitSetKernel.SCALAR);
+      final List<Integer> scalarAnd = collectBits(bitSet(bits1).and(bitSet(bits2)));
+      final List<Integer> scalarGet = collectBits(bitSet(bits1).get(from, to));
+      final long scalarCardinality = bitSet(bits1).cardinality();
+
+      MemoryBitSet.useKernel(BitSetKernel.UNROLLED);
+      assertThat(collectBits(bitSet(bits1).and(bitSet(bits2)))).isEqualTo(scalarAnd);
+      assertThat(collectBits(bitSet(bits1).get(from, to))).isEqualTo(scalarGet);
+      assertThat(bitSet(bits1).cardinality()).isEqualTo(scalarCardinality);
+    }
+  }
+
   private MemoryBitSet bitSet(int... bits) {
     final MemoryBitSet bitSet = new MemoryBitSet(0);
     for (int bit : bits) {
@@ -56,8 +155,8 @@ class MemoryBitSetTest {
 
   private List<Integer> collectBits(MemoryBitSet bitSet) {
     List<Integer> result = new ArrayList<>();
-    for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
-      result.add(i);
+    for (long i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+      result.add((int) i);
     }
     return result;
   }
@@ -0,0 +1,61 @@
+package com.dynatrace.index.csc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.dynatrace.index.memory.Memory;
+import com.dynatrace.index.memory.MemoryReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class PartitionFunctionTest {
+
+  @Test
+  void expandsAllSetsOfPartition() {
+    // Repetition 0 assigns the sets round-robin, repetition 1 assigns all sets to the last partition
+    final PartitionFunction function = PartitionFunction.compute(
+        2, 4, 10, (repetition, set) -> repetition == 0 ? set % 4 : 3);
+
+    assertThat(expand(function, 0, 1)).containsExactly(1, 5, 9);
+    assertThat(expand(function, 0, 2)).containsExactly(2, 6);
+    assertThat(expand(function, 1, 0)).isEmpty();
+    assertThat(expand(function, 1, 3)).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+  }
+
+  @Test
+  void readsSerializedFunction() throws IOException {
+    final PartitionFunction function = PartitionFunction.compute(
+        3, 8, 100, (repetition, set) -> (set * (repetition + 3)) % 8);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[]{1, 2, 3});
+    function.writeTo(out);
+    final byte[] serialized = out.toByteArray();
+    assertThat(serialized).hasSize(3 + (int) PartitionFunction.sizeBytes(3, 8, 100));
+
+    final MemoryReader reader = new MemoryReader(Memory.readOnlyHeapMemory(serialized));
+    reader.createView(3);
+    final PartitionFunction view = PartitionFunction.view(reader, 3, 8, 100);
+
+    final ByteArrayInputStream in = new ByteArrayInputStream(serialized, 3, serialized.length - 3);
+    final PartitionFunction copy = PartitionFunction.readFrom(in, 3, 8, 100);
+
+    for (int r = 0; r < 3; r++) {
+      for (int p = 0; p < 8; p++) {
+        assertThat(expand(view, r, p)).isEqualTo(expand(function, r, p));
+        assertThat(expand(copy, r, p)).isEqualTo(expand(function, r, p));
+      }
+    }
+  }
+
+  private static int[] expand(PartitionFunction function, int repetition, int partition) {
+    final MemoryBitSet result = new MemoryBitSet(128);
+    function.expand(repetition, partition, result);
+
+    final IntStream.Builder sets = IntStream.builder();
+    result.forEachSetBit(0, sets::add);
+    return sets.build().toArray();
+  }
+}
@@ -0,0 +1,94 @@
+package com.dynatrace.index.csc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ScalableCscFilterTest {
+
+  private static final int PARTITIONS = 64;
+
+  @Test
+  void addsSectionsInsteadOfSaturating() {
+    final ScalableCscFilter csc = ScalableCscFilter.create(ScalableCscFilterTest::section, 0.25, 16);
+
+    for (int i = 0; i < 1000; i++) {
+      final byte[] token = token(i);
+      csc.update(token, 0, token.length, i % PARTITIONS);
+    }
+
+    final List<CscFilter> sections = csc.sections();
+    assertThat(sections.size()).isGreaterThan(1);
+    // Only the last section may exceed the fill ratio, since it is checked periodically
+    for (CscFilter section : sections.subList(0, sections.size() - 1)) {
+      assertThat(section.fillRatio()).isLessThan(0.5);
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      final List<Integer> postings = new ArrayList<>();
+      csc.query(token(i), postings::add);
+      assertThat(postings).contains(i % PARTITIONS).doesNotHaveDuplicates();
+    }
+
+    final byte[][] tokens = new byte[1000][];
+    final BitSet[] results = new BitSet[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      tokens[i] = token(i);
+      results[i] = new BitSet();
+    }
+    csc.queryBatch(tokens, results);
+    for (int i = 0; i < tokens.length; i++) {
+      final BitSet expected = new BitSet();
+      csc.query(tokens[i], expected::set);
+      assertThat(results[i]).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void combinesSectionsForEveryToken() {
+    final CscFilter first = section(0);
+    final byte[] token1 = token(1);
+    first.update(token1, 0, token1.length, 3);
+    first.update(token1, 0, token1.length, 5);
+
+    final CscFilter second = section(1);
+    final byte[] token2 = token(2);
+    second.update(token2, 0, token2.length, 5);
+    second.update(token2, 0, token2.length, 7);
+
+    final List<Integer> postings = new ArrayList<>();
+    ScalableCscFilter.readOnly(List.of(first, second)).queryAll(new byte[][]{token1, token2}, postings::add);
+
+    // The postings of both tokens are located in different sections
+    assertThat(postings).containsExactly(5);
+  }
+
+  @Test
+  void measuresFillRatio() {
+    final CscFilter csc = section(0);
+    assertThat(csc.fillRatio()).isZero();
+
+    final byte[] token = token(1);
+    csc.update(token, 0, token.length, 1);
+    assertThat(csc.fillRatio()).isGreaterThan(0).isLessThanOrEqualTo(4.0 / 1024);
+  }
+
+  @Test
+  void rejectsMerge() {
+    final ScalableCscFilter csc = ScalableCscFilter.create(ScalableCscFilterTest::section, 0.5, 16);
+    assertThatThrownBy(() -> csc.merge(section(0))).isInstanceOf(UnsupportedOperationException.class);
+  }
+
+  private static CscFilter section(int section) {
+    return ShiftingBloomFilter.create(1024L << section, 4, PARTITIONS);
+  }
+
+  private static byte[] token(int i) {
+    return ("token-" + i).getBytes(StandardCharsets.UTF_8);
+  }
+}
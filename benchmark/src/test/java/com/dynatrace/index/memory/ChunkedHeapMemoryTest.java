@@ -0,0 +1,87 @@
+package com.dynatrace.index.memory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ChunkedHeapMemoryTest {
+
+  @Test
+  void accessesCrossChunkBoundaries() {
+    // Chunks of 8 bytes, the last chunk only covers 4 bytes
+    final ChunkedHeapMemory memory = new ChunkedHeapMemory(20, false, 3);
+    assertThat(memory.size()).isEqualTo(20);
+    assertThat(memory.reservedBytes()).isEqualTo(20);
+
+    memory.setLong(0, 0x0102030405060708L);
+    memory.setLong(8, 0x1112131415161718L);
+    memory.setLong(5, 3, 0xAABBCCL);
+    memory.setLong(16, 4, 0xCAFEBABEL);
+
+    assertThat(memory.getLong(0)).isEqualTo(0xAABBCC0405060708L);
+    assertThat(memory.getLong(8)).isEqualTo(0x1112131415161718L);
+    assertThat(memory.getLong(4)).isEqualTo(0x15161718AABBCC04L);
+    assertThat(memory.getLong(6, 4)).isEqualTo(0x1718AABBL);
+    assertThat(memory.getInt(14)).isEqualTo(0xBABE1112);
+
+    // Unaligned full words crossing a chunk boundary
+    memory.setLong(12, -1L);
+    assertThat(memory.getLong(8)).isEqualTo(0xFFFFFFFF15161718L);
+    assertThat(memory.getInt(16)).isEqualTo(-1);
+  }
+
+  @Test
+  void writesAndReadsAllChunks() throws IOException {
+    final ChunkedHeapMemory memory = new ChunkedHeapMemory(20, false, 3);
+    for (int offset = 0; offset < 20; offset += Integer.BYTES) {
+      memory.setLong(offset, Integer.BYTES, offset + 1);
+    }
+
+    final byte[] bytes;
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      memory.writeTo(out, 2, 16);
+      bytes = out.toByteArray();
+    }
+    assertThat(bytes).hasSize(16);
+
+    final Memory copy = ChunkedHeapMemory.readFrom(new ByteArrayInputStream(bytes), bytes.length);
+    assertThat(copy.getLong(2, 4)).isEqualTo(memory.getLong(4, 4));
+    assertThat(copy.getLong(14, 2)).isEqualTo(memory.getLong(16, 2));
+
+    assertThatThrownBy(() -> ChunkedHeapMemory.readFrom(new ByteArrayInputStream(bytes), bytes.length + 1))
+        .isInstanceOf(EOFException.class);
+  }
+
+  @Test
+  void bitwiseOrIsAtomic() throws InterruptedException {
+    final ChunkedHeapMemory memory = new ChunkedHeapMemory(16, true, 3);
+
+    // Every thread sets a distinct subset of the bits within the same words
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      threads.add(new Thread(() -> {
+        for (int bit = thread; bit < Long.SIZE; bit += 4) {
+          memory.bitwiseOrLong(0, 1L << bit);
+          memory.bitwiseOrLong(8, 1L << bit);
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(memory.getLong(0)).isEqualTo(-1L);
+    assertThat(memory.getLong(8)).isEqualTo(-1L);
+  }
+}
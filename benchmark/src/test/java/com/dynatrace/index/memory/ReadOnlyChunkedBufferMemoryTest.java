@@ -0,0 +1,43 @@
+package com.dynatrace.index.memory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.jupiter.api.Test;
+
+class ReadOnlyChunkedBufferMemoryTest {
+
+  @Test
+  void viewsAccessTheCorrectBytes() {
+    final ReadOnlyChunkedBufferMemory memory = ReadOnlyChunkedBufferMemory.create(
+        chunk(0xC, 0xA, 0xF, 0xE),
+        chunk(0xB, 0xA, 0xB, 0xE),
+        chunk(0xD, 0xF));
+
+    assertThat(memory.getLong(3, 1)).isEqualTo(0xE);
+    assertThat(memory.getLong(3, 2)).isEqualTo(0xB0E);
+    assertThat(memory.getLong(0)).isEqualTo(0x0E0B0A0B0E0F0A0CL);
+    assertThat(memory.getInt(6)).isEqualTo(0x0F0D0E0B);
+    assertThat(memory.size()).isEqualTo(10);
+    assertThat(memory.reservedBytes()).isEqualTo(0);
+
+    final Memory view1 = memory.view(2, memory.size() - 2);
+    assertThat(view1.getLong(3, 1)).isEqualTo(0xA);
+    assertThat(view1.getLong(0)).isEqualTo(0x0F0D0E0B0A0B0E0FL);
+    assertThat(view1.size()).isEqualTo(8);
+
+    final Memory view2 = view1.view(2, view1.size() - 2);
+    assertThat(view2.getLong(3, 1)).isEqualTo(0xE);
+    assertThat(view2.getInt(2)).isEqualTo(0x0F0D0E0B);
+    assertThat(view2.size()).isEqualTo(6);
+  }
+
+  private static ByteBuffer chunk(int... values) {
+    final byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
@@ -0,0 +1,99 @@
+package com.dynatrace.index.memory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import org.junit.jupiter.api.Test;
+
+class WritableBufferMemoryTest {
+
+  @Test
+  void accessesCrossChunkBoundaries() {
+    // Chunks of 8 bytes, the last chunk only covers 4 bytes
+    final WritableBufferMemory memory = WritableBufferMemory.allocateDirect(20, false, 3);
+    assertThat(memory.size()).isEqualTo(20);
+    assertThat(memory.reservedBytes()).isEqualTo(20);
+    assertThat(memory.offHeapBytes()).isEqualTo(20);
+
+    memory.setLong(0, 0x0102030405060708L);
+    memory.setLong(8, 0x1112131415161718L);
+    memory.setLong(5, 3, 0xAABBCCL);
+    memory.bitwiseOrLong(8, 0xF0L);
+
+    assertThat(memory.getLong(0)).isEqualTo(0xAABBCC0405060708L);
+    assertThat(memory.getLong(8)).isEqualTo(0x11121314151617F8L);
+    assertThat(memory.getLong(4)).isEqualTo(0x151617F8AABBCC04L);
+    assertThat(memory.getInt(6)).isEqualTo(0x17F8AABB);
+
+    memory.setLong(12, -1L);
+    assertThat(memory.getLong(8)).isEqualTo(0xFFFFFFFF151617F8L);
+    assertThat(memory.getInt(16)).isEqualTo(-1);
+
+    memory.clear();
+    assertThat(memory.getLong(0)).isZero();
+    assertThat(memory.getLong(12)).isZero();
+  }
+
+  @Test
+  void writesAllChunksToChannel() throws IOException {
+    final WritableBufferMemory memory = WritableBufferMemory.allocateDirect(20, false, 3);
+    for (int offset = 0; offset < 20; offset++) {
+      memory.setLong(offset, 1, offset);
+    }
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    memory.writeTo(Channels.newChannel(out), 2, 16);
+
+    final byte[] bytes = out.toByteArray();
+    assertThat(bytes).hasSize(16);
+    for (int i = 0; i < bytes.length; i++) {
+      assertThat(bytes[i]).isEqualTo((byte) (i + 2));
+    }
+  }
+
+  @Test
+  void writesThroughToWrappedBuffers() {
+    final ByteBuffer first = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer second = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    final WritableBufferMemory memory = WritableBufferMemory.wrapMapped(first, second);
+    assertThat(memory.size()).isEqualTo(12);
+    assertThat(memory.reservedBytes()).isZero();
+    assertThat(memory.offHeapBytes()).isZero();
+
+    memory.setLong(4, 0x1112131415161718L);
+    memory.bitwiseOrLong(0, 0xFFL);
+
+    assertThat(first.getLong(0)).isEqualTo(0x15161718000000FFL);
+    assertThat(second.getInt(0)).isEqualTo(0x11121314);
+  }
+
+  @Test
+  void bitwiseOrIsAtomic() throws InterruptedException {
+    final Memory memory = Memory.concurrentDirectMemory(16);
+
+    // Every thread sets a distinct subset of the bits within the same words
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread(() -> {
+        for (int bit = thread; bit < Long.SIZE; bit += threads.length) {
+          memory.bitwiseOrLong(0, 1L << bit);
+          memory.bitwiseOrLong(8, 1L << bit);
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(memory.getLong(0)).isEqualTo(-1L);
+    assertThat(memory.getLong(8)).isEqualTo(-1L);
+  }
+}
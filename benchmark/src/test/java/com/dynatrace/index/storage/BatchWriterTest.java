@@ -2,12 +2,22 @@ package com.dynatrace.index.storage;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import com.dynatrace.index.QueryTrace;
+import com.dynatrace.index.util.IntEncoder;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
 class BatchWriterTest {
 
@@ -30,15 +40,346 @@ class BatchWriterTest {
 
     batchWriter.close();
 
-    final DefaultBatchReader reader = DefaultBatchReader.create(tempDir);
-    assertLogs(reader, 0, "log line 0/1", "log line 0/2", "log line 0/3");
-    assertLogs(reader, 1, "log line 1/1");
-    assertLogs(reader, 2);
-    assertLogs(reader, 4, "log line 2/1");
+    for (BatchReadMode readMode : BatchReadMode.values()) {
+      final DefaultBatchReader reader = DefaultBatchReader.create(tempDir, readMode);
+      assertLogs(reader, 0, "log line 0/1", "log line 0/2", "log line 0/3");
+      assertLogs(reader, 1, "log line 1/1");
+      assertLogs(reader, 2);
+      assertLogs(reader, 4, "log line 2/1");
+
+      reader.close();
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 2})
+  void writeReadSpilledBatches(int compressionThreads, @TempDir Path tempDir) {
+    // The buffers only fit a few pages, so the batches are spilled as many frames, which have to be stored in order
+    final BatchWriter batchWriter = new DefaultBatchWriter(tempDir, compressionThreads, 4 * PageArena.PAGE_SIZE);
+
+    final List<List<String>> expectedLines = List.of(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+    for (int i = 0; i < 50_000; i++) {
+      final int batch = i % 7 == 0 ? 2 : i % 2;
+      final String logLine = "log line " + batch + "/" + i;
+      expectedLines.get(batch).add(logLine);
+      addLog(batchWriter, batch, logLine);
+    }
+
+    batchWriter.flush();
+    assertLogs(batchWriter, 0, expectedLines.get(0).toArray(new String[0]));
+    batchWriter.close();
+    // Frames are written to the final data file only, so batches span multiple extents
+    assertThat(tempDir.toFile().list())
+        .containsExactlyInAnyOrder(
+            DefaultBatchWriter.DATA_FILE, DefaultBatchWriter.HEADER_FILE, DefaultBatchWriter.LINE_INDEX_FILE);
+    final BatchExtents extents = DefaultBatchReader.readHeader(tempDir.resolve(DefaultBatchWriter.HEADER_FILE)).extents;
+    assertThat(extents.extentCount()).isGreaterThan(extents.batchCount());
+
+    for (BatchReadMode readMode : BatchReadMode.values()) {
+      final DefaultBatchReader reader = DefaultBatchReader.create(tempDir, readMode);
+      for (int batch = 0; batch < expectedLines.size(); batch++) {
+        assertLogs(reader, batch, expectedLines.get(batch).toArray(new String[0]));
+      }
+      reader.close();
+    }
+  }
+
+  @Test
+  void readCachedBatches(@TempDir Path tempDir) {
+    final BatchWriter batchWriter = new DefaultBatchWriter(tempDir);
+    addLog(batchWriter, 0, "log line 0/1");
+    addLog(batchWriter, 1, "log line 1/1");
+    addLog(batchWriter, 2, "log line 2/1");
+    batchWriter.flush();
+    batchWriter.close();
+
+    // Fits two of the batches
+    final BatchCache cache = new BatchCache(2 * (16 + 96));
+    final CacheTrace trace = new CacheTrace();
+    final LogConsumer ignore = (bytes, offset, length) -> { };
+    final DefaultBatchReader first = DefaultBatchReader.create(tempDir, BatchReadMode.HEAP, cache);
+    first.readBatch(0, ignore, trace);
+    first.readBatch(1, ignore, trace);
+    assertThat(trace.misses).isEqualTo(2);
+
+    // The cache is shared with other readers of the storage
+    final DefaultBatchReader second = DefaultBatchReader.create(tempDir, BatchReadMode.MAPPED, cache);
+    second.readBatch(0, ignore, trace);
+    assertThat(trace.hits).isEqualTo(1);
+    assertLogs(second, 0, "log line 0/1");
+
+    // Batch 1 is least recently used
+    second.readBatch(2, ignore, trace);
+    assertThat(trace.misses).isEqualTo(3);
+    assertThat(trace.evictions).isEqualTo(1);
+    second.readBatch(1, ignore, trace);
+    assertThat(trace.misses).isEqualTo(4);
+    assertLogs(first, 1, "log line 1/1");
+    assertLogs(first, 2, "log line 2/1");
+
+    assertThat(cache.evictions()).isGreaterThanOrEqualTo(2);
+    assertThat(cache.size()).isLessThanOrEqualTo(2 * (16 + 96));
+    first.close();
+    second.close();
+  }
+
+  @Test
+  void readPrefetchedBatches(@TempDir Path tempDir) {
+    final BatchWriter batchWriter = new DefaultBatchWriter(tempDir);
+    for (int batch = 0; batch < 6; batch++) {
+      addLog(batchWriter, batch, "log line " + batch + "/1");
+      addLog(batchWriter, batch, "log line " + batch + "/2");
+    }
+    batchWriter.flush();
+    batchWriter.close();
+
+    for (BatchReadMode readMode : BatchReadMode.values()) {
+      final DefaultBatchReader reader = DefaultBatchReader.create(tempDir, readMode);
+      reader.prefetchBatch(0);
+      reader.prefetchBatch(2);
+      reader.prefetchBatch(3);
+      assertLogs(reader, 0, "log line 0/1", "log line 0/2");
+      // Not prefetched, so the prefetched batches are retained
+      assertLogs(reader, 1, "log line 1/1", "log line 1/2");
+      reader.prefetchBatch(5);
+      // Skips the prefetched batch 2
+      assertLogs(reader, 3, "log line 3/1", "log line 3/2");
+      assertLogs(reader, 2, "log line 2/1", "log line 2/2");
+      assertLogs(reader, 5, "log line 5/1", "log line 5/2");
+
+      // Batches prefetched but never read are dropped on close
+      reader.prefetchBatch(4);
+      reader.close();
+    }
+  }
+
+  @Test
+  void readCachedPrefetchedBatches(@TempDir Path tempDir) {
+    final BatchWriter batchWriter = new DefaultBatchWriter(tempDir);
+    for (int batch = 0; batch < 6; batch++) {
+      addLog(batchWriter, batch, "log line " + batch);
+    }
+    batchWriter.flush();
+    batchWriter.close();
+
+    final BatchCache cache = new BatchCache(1 << 20);
+    final DefaultBatchReader reader = DefaultBatchReader.create(tempDir, BatchReadMode.HEAP, cache);
+    final BitSet matchingBatches = new BitSet();
+    matchingBatches.set(0, 6);
+    final List<String> logLines = new ArrayList<>();
+    final LogConsumer consumer = (bytes, offset, length) ->
+        logLines.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+    final byte[] token = "log".getBytes(StandardCharsets.UTF_8);
+
+    // Once the cache is warm, the matching batches are neither prefetched nor left pending
+    for (int query = 0; query < 3; query++) {
+      logLines.clear();
+      PostFiltering.readAndPostFilterLogs(reader, token, matchingBatches, consumer, new CacheTrace(), 2);
+      assertThat(logLines).hasSize(6);
+      assertThat(reader.pendingPrefetches()).isZero();
+    }
+
+    // Batches cached by another reader after they were prefetched are dropped once they are read
+    cache.clear();
+    reader.prefetchBatch(1);
+    reader.prefetchBatch(2);
+    final DefaultBatchReader other = DefaultBatchReader.create(tempDir, BatchReadMode.MAPPED, cache);
+    other.readBatch(2, consumer);
+    reader.readBatch(2, consumer);
+    assertThat(reader.pendingPrefetches()).isZero();
+
+    other.close();
+    reader.close();
+  }
+
+  @Test
+  void readOffsetHeader(@TempDir Path tempDir) throws IOException {
+    final BatchWriter batchWriter = new DefaultBatchWriter(tempDir);
+    addLog(batchWriter, 0, "log line 0/1");
+    addLog(batchWriter, 2, "log line 2/1");
+    addLog(batchWriter, 0, "log line 0/2");
+    batchWriter.flush();
+    batchWriter.close();
+
+    // Replace the header by the original format, which lists the start offset of every batch
+    final Path headerFile = tempDir.resolve(DefaultBatchWriter.HEADER_FILE);
+    final DefaultBatchReader.Header header = DefaultBatchReader.readHeader(headerFile);
+    final int batchCount = header.extents.batchCount();
+    final byte[] offsetHeader = new byte[(3 + batchCount) * Integer.BYTES];
+    IntEncoder.writeFullInt(offsetHeader, 0, (int) header.maxOriginalBatchSize);
+    IntEncoder.writeFullInt(offsetHeader, Integer.BYTES, batchCount + 1);
+    int offset = 0;
+    for (int batch = 0; batch <= batchCount; batch++) {
+      IntEncoder.writeFullInt(offsetHeader, (2 + batch) * Integer.BYTES, offset);
+      if (batch < batchCount) {
+        offset += header.extents.batchLength(batch);
+      }
+    }
+    Files.write(headerFile, offsetHeader);
 
+    final DefaultBatchReader reader = DefaultBatchReader.create(tempDir);
+    assertThat(reader.getMaxBatch()).isEqualTo(2);
+    assertLogs(reader, 0, "log line 0/1", "log line 0/2");
+    assertLogs(reader, 1);
+    assertLogs(reader, 2, "log line 2/1");
     reader.close();
   }
 
+  @Test
+  void writeReadLargeOffsets(@TempDir Path tempDir) throws IOException {
+    final BatchExtents extents = new BatchExtents();
+    extents.startBatch();
+    extents.addExtent(5L << 32, 100);
+    extents.addExtent((5L << 32) + 100, 50);
+    extents.addExtent(6L << 32, Integer.MAX_VALUE);
+    extents.startBatch();
+    extents.startBatch();
+    extents.addExtent(3L << 32, 10);
+
+    final Path headerFile = tempDir.resolve(DefaultBatchWriter.HEADER_FILE);
+    try (FileOutputStream headerOut = new FileOutputStream(headerFile.toFile())) {
+      DefaultBatchWriter.writeHeaderFile(extents, 3L << 31, headerOut);
+    }
+
+    final DefaultBatchReader.Header header = DefaultBatchReader.readHeader(headerFile);
+    assertThat(header.maxOriginalBatchSize).isEqualTo(3L << 31);
+    final BatchExtents readExtents = header.extents;
+    assertThat(readExtents.batchCount()).isEqualTo(3);
+    assertThat(readExtents.extentCount()).isEqualTo(3);
+    assertThat(readExtents.offset(0)).isEqualTo(5L << 32);
+    assertThat(readExtents.length(0)).isEqualTo(150);
+    assertThat(readExtents.offset(1)).isEqualTo(6L << 32);
+    assertThat(readExtents.length(1)).isEqualTo(Integer.MAX_VALUE);
+    assertThat(readExtents.firstExtent(1)).isEqualTo(readExtents.endExtent(1));
+    assertThat(readExtents.offset(2)).isEqualTo(3L << 32);
+    // Header is smaller than with fixed 64-bit values
+    assertThat(Files.size(headerFile)).isLessThan(4L + 8 * (3 + 3 + 2 * 3));
+  }
+
+  @Test
+  void sumLargeBatchLengths() {
+    // The extents of a batch are limited to the int range, but not the batch itself
+    final BatchExtents extents = new BatchExtents();
+    extents.startBatch();
+    extents.addExtent(0, Integer.MAX_VALUE);
+    extents.addExtent(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    extents.addExtent(3L * Integer.MAX_VALUE, 10);
+    assertThat(extents.extentCount()).isEqualTo(3);
+    assertThat(extents.batchLength(0)).isEqualTo(2L * Integer.MAX_VALUE + 10);
+  }
+
+  @Test
+  void mergeBatches(@TempDir Path tempDir) {
+    final Path first = tempDir.resolve("first");
+    final BatchWriter firstWriter = new DefaultBatchWriter(first);
+    addLog(firstWriter, 0, "first 0/1");
+    addLog(firstWriter, 2, "first 2/1");
+    addLog(firstWriter, 0, "first 0/2");
+    firstWriter.flush();
+    firstWriter.close();
+
+    final Path second = tempDir.resolve("second");
+    final BatchWriter secondWriter = new DefaultBatchWriter(second);
+    addLog(secondWriter, 0, "second 0/1");
+    addLog(secondWriter, 3, "second 3/1");
+    secondWriter.flush();
+    secondWriter.close();
+
+    final Path merged = tempDir.resolve("merged");
+    DefaultBatchWriter.merge(merged, List.of(first, second));
+
+    final DefaultBatchReader mergedReader = DefaultBatchReader.create(merged);
+    assertThat(mergedReader.getMaxBatch()).isEqualTo(3);
+    assertLogs(mergedReader, 0, "first 0/1", "first 0/2", "second 0/1");
+    assertLogs(mergedReader, 1);
+    assertLogs(mergedReader, 2, "first 2/1");
+    assertLogs(mergedReader, 3, "second 3/1");
+    mergedReader.close();
+    // The largest merged batch holds three length-prefixed lines
+    assertThat(DefaultBatchReader.readHeader(merged.resolve(DefaultBatchWriter.HEADER_FILE)).maxOriginalBatchSize)
+        .isEqualTo(3 * Integer.BYTES + 9 + 9 + 10);
+
+    // Append the batches of the second storage behind the ones of the first storage
+    final Path renumbered = tempDir.resolve("renumbered");
+    DefaultBatchWriter.merge(
+        renumbered, List.of(first, second), List.of(IntUnaryOperator.identity(), batch -> batch + 4));
+
+    final DefaultBatchReader renumberedReader = DefaultBatchReader.create(renumbered);
+    assertThat(renumberedReader.getMaxBatch()).isEqualTo(7);
+    assertLogs(renumberedReader, 0, "first 0/1", "first 0/2");
+    assertLogs(renumberedReader, 2, "first 2/1");
+    assertLogs(renumberedReader, 4, "second 0/1");
+    assertLogs(renumberedReader, 5);
+    assertLogs(renumberedReader, 7, "second 3/1");
+    renumberedReader.close();
+  }
+
+  @Test
+  void readMatchingLines(@TempDir Path tempDir) throws IOException {
+    final Random random = new Random(81195);
+    final Path first = tempDir.resolve("first");
+    final Path second = tempDir.resolve("second");
+    for (Path storage : List.of(first, second)) {
+      final BatchWriter batchWriter = new DefaultBatchWriter(storage);
+      // Few distinct bytes produce many matches spanning line boundaries, empty lines only consist of length prefixes
+      for (int i = 0; i < 1_000; i++) {
+        final byte[] line = new byte[random.nextInt(12)];
+        for (int j = 0; j < line.length; j++) {
+          line[j] = (byte) "aAb-".charAt(random.nextInt(4));
+        }
+        batchWriter.addLogLine(line, 0, line.length, random.nextInt(3));
+      }
+      batchWriter.flush();
+      batchWriter.close();
+    }
+
+    final Path merged = tempDir.resolve("merged");
+    DefaultBatchWriter.merge(merged, List.of(first, second));
+    final LineIndex firstIndex = LineIndex.readFrom(first.resolve(DefaultBatchWriter.LINE_INDEX_FILE));
+    final LineIndex secondIndex = LineIndex.readFrom(second.resolve(DefaultBatchWriter.LINE_INDEX_FILE));
+    final LineIndex mergedIndex = LineIndex.readFrom(merged.resolve(DefaultBatchWriter.LINE_INDEX_FILE));
+    assertThat(mergedIndex.batchCount()).isEqualTo(3);
+    final DefaultBatchReader firstReader = DefaultBatchReader.create(first);
+    final int[] firstLines = new int[1];
+    firstReader.readBatch(0, (bytes, offset, length) -> firstLines[0]++);
+    firstReader.close();
+    assertThat(firstIndex.endEntry(0) - firstIndex.firstEntry(0)).isEqualTo((firstLines[0] - 1) / LineIndex.INTERVAL);
+    // The first line of the second source is indexed as well
+    assertThat(mergedIndex.endEntry(0) - mergedIndex.firstEntry(0)).isEqualTo(
+        firstIndex.endEntry(0) - firstIndex.firstEntry(0) + 1 + secondIndex.endEntry(0) - secondIndex.firstEntry(0));
+    assertThat(mergedIndex.batchSize(0)).isEqualTo(firstIndex.batchSize(0) + secondIndex.batchSize(0));
+
+    final Path unindexed = tempDir.resolve("unindexed");
+    DefaultBatchWriter.merge(unindexed, List.of(first, second));
+    Files.delete(unindexed.resolve(DefaultBatchWriter.LINE_INDEX_FILE));
+    assertThat(LineIndex.readFrom(unindexed.resolve(DefaultBatchWriter.LINE_INDEX_FILE))).isNull();
+
+    for (Path storage : List.of(first, merged, unindexed)) {
+      final DefaultBatchReader reader = DefaultBatchReader.create(storage);
+      for (String pattern : List.of("", "a", "ab", "aab", "b-a", "bbbb", "aaaaaaaaa")) {
+        // Token matchers only accept some of the occurrences within a line
+        for (BoyerMoore matcher : List.of(
+            BoyerMoore.createForPattern(pattern.getBytes(StandardCharsets.UTF_8)),
+            BoyerMoore.createForToken(pattern.getBytes(StandardCharsets.UTF_8)))) {
+          for (int batch = 0; batch <= reader.getMaxBatch(); batch++) {
+            final List<String> expectedLines = new ArrayList<>();
+            reader.readBatch(batch, (bytes, offset, length) -> {
+              if (matcher.matchLowerCase(bytes, offset, length) >= 0) {
+                expectedLines.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+              }
+            });
+
+            final List<String> matchingLines = new ArrayList<>();
+            reader.readMatchingLines(batch, matcher, (bytes, offset, length) ->
+                matchingLines.add(new String(bytes, offset, length, StandardCharsets.UTF_8)), new CacheTrace());
+            assertThat(matchingLines).containsExactlyElementsOf(expectedLines);
+          }
+        }
+      }
+      reader.close();
+    }
+  }
+
   private void addLog(BatchWriter batchWriter, int posting, String logLine) {
     final byte[] bytes = logLine.getBytes(StandardCharsets.UTF_8);
     batchWriter.addLogLine(bytes, 0, bytes.length, posting);
@@ -49,5 +390,31 @@ class BatchWriterTest {
     reader.readBatch(posting, (bytes, offset, length) ->
         logLines.add(new String(bytes, offset, length, StandardCharsets.UTF_8)));
     assertThat(logLines).containsExactly(expectedLines);
+
+    List<String> bufferLines = new ArrayList<>();
+    reader.readBatchBuffer(posting, (buffer, offset, length) -> {
+      final byte[] bytes = new byte[length];
+      buffer.duplicate().position(offset).get(bytes);
+      bufferLines.add(new String(bytes, StandardCharsets.UTF_8));
+    });
+    assertThat(bufferLines).containsExactly(expectedLines);
+  }
+
+  private static final class CacheTrace implements QueryTrace {
+    int hits;
+    int misses;
+    int evictions;
+
+    @Override
+    public void trackErrorRate(int falsePositives, int truePositives, int batches) {
+      // Not tracked
+    }
+
+    @Override
+    public void trackBatchCache(int hits, int misses, int evictions) {
+      this.hits += hits;
+      this.misses += misses;
+      this.evictions += evictions;
+    }
   }
-}
\ No newline at end of file
+}
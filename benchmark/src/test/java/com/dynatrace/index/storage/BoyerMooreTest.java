@@ -3,29 +3,96 @@ package com.dynatrace.index.storage;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
 class BoyerMooreTest {
 
-  @Test
-  void shouldMatchCaseInsensitiveAscii() {
+  @ParameterizedTest
+  @EnumSource(MatcherKernel.class)
+  void shouldMatchCaseInsensitiveAscii(MatcherKernel kernel) {
     byte[] data = "This is Upper Case".getBytes(StandardCharsets.UTF_8);
 
-    final BoyerMoore matcher1 = BoyerMoore.createForPattern("upper".getBytes(StandardCharsets.UTF_8));
+    final BoyerMoore matcher1 = BoyerMoore.createForPattern("upper".getBytes(StandardCharsets.UTF_8), kernel);
     assertThat(matcher1.matchLowerCase(data, 0, data.length)).isEqualTo(8);
 
-    final BoyerMoore matcher2 = BoyerMoore.createForPattern("upper case".getBytes(StandardCharsets.UTF_8));
+    final BoyerMoore matcher2 = BoyerMoore.createForPattern("upper case".getBytes(StandardCharsets.UTF_8), kernel);
     assertThat(matcher2.matchLowerCase(data, 0, data.length)).isEqualTo(8);
   }
 
-  @Test
-  void shouldMatchWithinBounds() {
+  @ParameterizedTest
+  @EnumSource(MatcherKernel.class)
+  void shouldMatchWithinBounds(MatcherKernel kernel) {
     byte[] data = "look at my horse, my horse is amazing".getBytes(StandardCharsets.UTF_8);
 
-    final BoyerMoore matcher = BoyerMoore.createForPattern("at my".getBytes(StandardCharsets.UTF_8));
+    final BoyerMoore matcher = BoyerMoore.createForPattern("at my".getBytes(StandardCharsets.UTF_8), kernel);
     assertThat(matcher.matchLowerCase(data, 0, data.length)).isEqualTo(5);
     assertThat(matcher.matchLowerCase(data, 3, data.length)).isEqualTo(5);
     assertThat(matcher.matchLowerCase(data, 10, data.length)).isEqualTo(-1);
     assertThat(matcher.matchLowerCase(data, 0, 5)).isEqualTo(-1);
+    assertThat(matcher.matchLowerCase(data, 0, 10)).isEqualTo(5);
+  }
+
+  @ParameterizedTest
+  @EnumSource(MatcherKernel.class)
+  void shouldOnlyFoldAsciiLetters(MatcherKernel kernel) {
+    // '@' and '`' as well as '[' and '{' only differ in the case bit of ASCII letters
+    byte[] data = "mail@host [section] MAIL`HOST {SECTION}".getBytes(StandardCharsets.UTF_8);
+
+    final BoyerMoore mailMatcher = BoyerMoore.createForPattern("l`h".getBytes(StandardCharsets.UTF_8), kernel);
+    assertThat(mailMatcher.matchLowerCase(data, 0, data.length)).isEqualTo(23);
+
+    final BoyerMoore sectionMatcher = BoyerMoore.createForPattern("{section}".getBytes(StandardCharsets.UTF_8), kernel);
+    assertThat(sectionMatcher.matchLowerCase(data, 0, data.length)).isEqualTo(30);
+
+    // Upper case patterns never match lowercased data
+    final BoyerMoore upperMatcher = BoyerMoore.createForPattern("MAIL".getBytes(StandardCharsets.UTF_8), kernel);
+    assertThat(upperMatcher.matchLowerCase(data, 0, data.length)).isEqualTo(-1);
+  }
+
+  @ParameterizedTest
+  @EnumSource(MatcherKernel.class)
+  void shouldOnlyMatchTokens(MatcherKernel kernel) {
+    byte[] data = "xerror errors error: Error-42".getBytes(StandardCharsets.UTF_8);
+
+    final BoyerMoore errorMatcher = BoyerMoore.createForToken("error".getBytes(StandardCharsets.UTF_8), kernel);
+    assertThat(errorMatcher.matchLowerCase(data, 0, data.length)).isEqualTo(14);
+    // The bounds of the searched range are token boundaries
+    assertThat(errorMatcher.matchLowerCase(data, 1, 5)).isEqualTo(1);
+    assertThat(errorMatcher.matchLowerCase(data, 0, 6)).isEqualTo(-1);
+
+    final BoyerMoore comboMatcher = BoyerMoore.createForToken("error-42".getBytes(StandardCharsets.UTF_8), kernel);
+    assertThat(comboMatcher.matchLowerCase(data, 0, data.length)).isEqualTo(21);
+    assertThat(comboMatcher.matchLowerCase(data, 0, data.length + 8)).isEqualTo(21);
+
+    final BoyerMoore partMatcher = BoyerMoore.createForToken("rror".getBytes(StandardCharsets.UTF_8), kernel);
+    assertThat(partMatcher.matchLowerCase(data, 0, data.length)).isEqualTo(-1);
+    assertThat(BoyerMoore.createForPattern("rror".getBytes(StandardCharsets.UTF_8), kernel)
+        .matchLowerCase(data, 0, data.length)).isEqualTo(2);
+  }
+
+  @Test
+  void kernelsShouldFindSameMatches() {
+    final Random random = new Random(81195);
+    // Few distinct bytes, including upper case letters and non-ASCII bytes, produce many partial matches
+    final byte[] alphabet = "aAbB-\u00e4".getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < 2_000; i++) {
+      final byte[] data = new byte[random.nextInt(100)];
+      for (int j = 0; j < data.length; j++) {
+        data[j] = alphabet[random.nextInt(alphabet.length)];
+      }
+      final byte[] pattern = new byte[1 + random.nextInt(6)];
+      for (int j = 0; j < pattern.length; j++) {
+        pattern[j] = (byte) "ab-".charAt(random.nextInt(3));
+      }
+
+      final int offset = data.length == 0 ? 0 : random.nextInt(data.length);
+      final int length = random.nextInt(data.length - offset + 8);
+      assertThat(BoyerMoore.createForPattern(pattern, MatcherKernel.SWAR).matchLowerCase(data, offset, length))
+          .isEqualTo(BoyerMoore.createForPattern(pattern, MatcherKernel.BOYER_MOORE)
+              .matchLowerCase(data, offset, length));
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,189 @@
+package com.dynatrace.index.storage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.dynatrace.index.QueryTrace;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ParallelPostFilteringTest {
+
+  private static final int BATCHES = 64;
+  private static final byte[] TOKEN = "match".getBytes(StandardCharsets.UTF_8);
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 3, 8})
+  void postFilterAllBatchesInOrder(int threads, @TempDir Path tempDir) {
+    writeBatches(tempDir);
+
+    final DefaultBatchReader reader = DefaultBatchReader.create(tempDir);
+    final List<String> expectedLines = new ArrayList<>();
+    final ErrorRateTrace expectedTrace = new ErrorRateTrace();
+    PostFiltering.readAllAndPostFilterLogs(reader, TOKEN, collect(expectedLines), expectedTrace);
+
+    final ParallelPostFiltering postFiltering = new ParallelPostFiltering(reader, threads, true);
+    final List<String> lines = new ArrayList<>();
+    final ErrorRateTrace trace = new ErrorRateTrace();
+    postFiltering.readAllAndPostFilterLogs(TOKEN, collect(lines), trace);
+
+    assertThat(lines).isNotEmpty().containsExactlyElementsOf(expectedLines);
+    assertThat(trace.truePositives).isEqualTo(expectedTrace.truePositives).isEqualTo(BATCHES / 3 + 1);
+    assertThat(trace.falsePositives).isEqualTo(expectedTrace.falsePositives);
+    assertThat(trace.batches).isEqualTo(BATCHES);
+
+    postFiltering.close();
+    reader.close();
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 4, 16})
+  void postFilterPrefetchedBatches(int prefetchDepth, @TempDir Path tempDir) {
+    writeBatches(tempDir);
+
+    final DefaultBatchReader reader = DefaultBatchReader.create(tempDir);
+    final BitSet matchingBatches = new BitSet();
+    for (int batch = 0; batch < BATCHES; batch += 2) {
+      matchingBatches.set(batch);
+    }
+
+    final List<String> expectedLines = new ArrayList<>();
+    final ErrorRateTrace expectedTrace = new ErrorRateTrace();
+    PostFiltering.readAndPostFilterLogs(reader, TOKEN, matchingBatches, collect(expectedLines), expectedTrace);
+
+    final List<String> lines = new ArrayList<>();
+    final ErrorRateTrace trace = new ErrorRateTrace();
+    PostFiltering.readAndPostFilterLogs(reader, TOKEN, matchingBatches, collect(lines), trace, prefetchDepth);
+
+    assertThat(lines).isNotEmpty().containsExactlyElementsOf(expectedLines);
+    assertThat(trace.truePositives).isEqualTo(expectedTrace.truePositives);
+    assertThat(trace.falsePositives).isEqualTo(expectedTrace.falsePositives);
+    reader.close();
+  }
+
+  @Test
+  void postFilterMatchingBatchesUnordered(@TempDir Path tempDir) {
+    writeBatches(tempDir);
+
+    final DefaultBatchReader reader = DefaultBatchReader.create(tempDir, BatchReadMode.MAPPED);
+    final BitSet matchingBatches = new BitSet();
+    matchingBatches.set(1, 10);
+
+    final List<String> expectedLines = new ArrayList<>();
+    PostFiltering.readAndPostFilterLogs(reader, TOKEN, matchingBatches, collect(expectedLines), new ErrorRateTrace());
+
+    final ParallelPostFiltering postFiltering = new ParallelPostFiltering(reader, 4, false);
+    final List<String> lines = new ArrayList<>();
+    final ErrorRateTrace trace = new ErrorRateTrace();
+    postFiltering.readAndPostFilterLogs(TOKEN, matchingBatches, collect(lines), trace);
+
+    assertThat(lines).hasSize(3 * 10).containsExactlyInAnyOrderElementsOf(expectedLines);
+    assertThat(trace.truePositives).isEqualTo(3);
+    assertThat(trace.falsePositives).isEqualTo(6);
+    assertThat(trace.batches).isEqualTo(BATCHES);
+
+    // No matching batches
+    final ErrorRateTrace emptyTrace = new ErrorRateTrace();
+    postFiltering.readAndPostFilterLogs(TOKEN, new BitSet(), collect(lines), emptyTrace);
+    assertThat(emptyTrace.truePositives).isZero();
+    assertThat(emptyTrace.batches).isEqualTo(BATCHES);
+
+    postFiltering.close();
+    reader.close();
+  }
+
+  @Test
+  void awaitWorkersOfFailedQuery(@TempDir Path tempDir) {
+    writeBatches(tempDir);
+
+    // Fails the first batch, while the other workers are still reading
+    final AtomicInteger activeReads = new AtomicInteger();
+    final DefaultBatchReader reader = DefaultBatchReader.create(tempDir);
+    final BatchReader failingReader = new BatchReader() {
+      @Override
+      public void readBatch(int batch, LogConsumer consumer) {
+        activeReads.incrementAndGet();
+        try {
+          if (batch == 0) {
+            throw new IllegalStateException("Failed to read batch 0");
+          }
+          Thread.sleep(5);
+          reader.readBatch(batch, consumer);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          activeReads.decrementAndGet();
+        }
+      }
+
+      @Override
+      public int getMaxBatch() {
+        return reader.getMaxBatch();
+      }
+
+      @Override
+      public BatchReader duplicate() {
+        return this;
+      }
+
+      @Override
+      public void close() {
+        // Closed with the wrapped reader
+      }
+    };
+
+    final ParallelPostFiltering postFiltering = new ParallelPostFiltering(failingReader, 4, true);
+    assertThatThrownBy(() -> postFiltering.readAllAndPostFilterLogs(TOKEN, collect(new ArrayList<>()),
+        new ErrorRateTrace()))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("Failed to read batch 0");
+    assertThat(activeReads.get()).isZero();
+
+    postFiltering.close();
+    reader.close();
+  }
+
+  private static void writeBatches(Path directory) {
+    final BatchWriter batchWriter = new DefaultBatchWriter(directory);
+    for (int line = 0; line < 10; line++) {
+      for (int batch = 0; batch < BATCHES; batch++) {
+        // Every third batch contains matching lines
+        final String prefix = batch % 3 == 0 ? "Match" : "other";
+        final byte[] bytes = (prefix + " line " + batch + "/" + line).getBytes(StandardCharsets.UTF_8);
+        batchWriter.addLogLine(bytes, 0, bytes.length, batch);
+      }
+    }
+    batchWriter.flush();
+    batchWriter.close();
+  }
+
+  private static LogConsumer collect(List<String> lines) {
+    return (bytes, offset, length) -> lines.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+  }
+
+  private static final class ErrorRateTrace implements QueryTrace {
+    int falsePositives;
+    int truePositives;
+    int batches;
+
+    @Override
+    public void trackErrorRate(int falsePositives, int truePositives, int batches) {
+      this.falsePositives += falsePositives;
+      this.truePositives += truePositives;
+      this.batches = batches;
+    }
+
+    @Override
+    public void trackBatchCache(int hits, int misses, int evictions) {
+      // Not tracked
+    }
+  }
+}
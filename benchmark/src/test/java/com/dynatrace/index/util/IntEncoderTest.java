@@ -111,4 +111,14 @@ class IntEncoderTest {
       assertThat(IntEncoder.readLong(view, 2, byteCount)).isEqualTo(value);
     }
   }
-}
\ No newline at end of file
+
+  @ParameterizedTest
+  @ValueSource(longs = {0, 1, 0x7f, 0x80, 0x3fff, 0x4000, Integer.MAX_VALUE, 1L << 40, Long.MAX_VALUE})
+  void writeReadVarLongs(long value) {
+    byte[] buffer = new byte[IntEncoder.MAX_VAR_LONG_LENGTH + 2];
+    int length = IntEncoder.writeVarLong(buffer, 2, value);
+    assertThat(length).isEqualTo(IntEncoder.varLongLength(value));
+    assertThat(length).isLessThanOrEqualTo(IntEncoder.MAX_VAR_LONG_LENGTH);
+    assertThat(IntEncoder.readVarLong(buffer, 2)).isEqualTo(value);
+  }
+}
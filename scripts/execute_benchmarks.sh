@@ -110,4 +110,12 @@ java -jar benchmark/build/libs/benchmarks.jar "QueryBenchmark.tokenQuery" -p log
 java -jar benchmark/build/libs/benchmarks.jar "QueryBenchmark.tokenQuery" -p logFileName=data/5M_generated -p rootDirName=tmp -p storeType=lucene -p tokenizer=combo -p queryMode=COLD -rf json -rff results/query/frequent/5M_lucene.json
 java -jar benchmark/build/libs/benchmarks.jar "QueryBenchmark.tokenQuery" -p logFileName=data/5M_generated -p rootDirName=tmp -p storeType=scan -p tokenizer=combo -p queryMode=COLD -rf json -rff results/query/frequent/5M_scan.json
 java -jar benchmark/build/libs/benchmarks.jar "QueryBenchmark.tokenQuery" -p logFileName=data/5M_generated -p rootDirName=tmp -p storeType=loggrep -p tokenizer=combo -p queryMode=COLD -rf json -rff results/query/frequent/5M_loggrep.json
+rm -r tmp/*
+
+# Prefetch depth of cold queries
+
+mkdir -p results/query/prefetch
+
+java -jar benchmark/build/libs/benchmarks.jar "QueryBenchmark.tokenQuery" -p logFileName=data/5M_generated -p rootDirName=tmp -p storeType=csc -p cscSizeMB=32 -p tokenizer=full -p queryMode=COLD -p prefetchDepth=0,1,4,16 -rf json -rff results/query/prefetch/5M_csc.json
+java -jar benchmark/build/libs/benchmarks.jar "QueryBenchmark.tokenQuery" -p logFileName=data/5M_generated -p rootDirName=tmp -p storeType=scan -p tokenizer=combo -p queryMode=COLD -p prefetchDepth=0,1,4,16 -rf json -rff results/query/prefetch/5M_scan.json
 rm -r tmp/*
\ No newline at end of file